@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * 运行全部 benchmark，结果以 json 格式写入结果目录，便于不同版本之间对比：
+ * <ul>
+ *     <li>jmh-result.json：全部 benchmark，线程数使用各自的默认值</li>
+ *     <li>jmh-result-threads-N.json：可以并发调用的 benchmark（写入、读取、路由）在 N 个线程下的结果</li>
+ * </ul>
+ * 可以通过系统属性调整：osx.benchmark.include（正则），osx.benchmark.threads.include（多线程运行的 benchmark，正则），
+ * osx.benchmark.threads（逗号分隔），osx.benchmark.result.dir。
+ * 传入任意命令行参数时直接交给 JMH 处理，例如 -rf json -rff result.json
+ */
+public class BenchmarkRunner {
+
+    private static final String CONCURRENT_BENCHMARKS = "(MessageStoreBenchmark|RouterBenchmark)";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        String include = System.getProperty("osx.benchmark.include", ".*Benchmark.*");
+        String threadsInclude = System.getProperty("osx.benchmark.threads.include", CONCURRENT_BENCHMARKS);
+        String threads = System.getProperty("osx.benchmark.threads", "4,8");
+        File resultDir = new File(System.getProperty("osx.benchmark.result.dir", "benchmark-result"));
+        if (!resultDir.exists() && !resultDir.mkdirs()) {
+            throw new IllegalStateException("create result dir failed " + resultDir.getAbsolutePath());
+        }
+
+        run(new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(resultDir, "jmh-result.json").getAbsolutePath())
+                .build());
+
+        for (String thread : threads.split(",")) {
+            if (thread.trim().isEmpty()) {
+                continue;
+            }
+            int threadNum = Integer.parseInt(thread.trim());
+            run(new OptionsBuilder()
+                    .include(threadsInclude)
+                    .threads(threadNum)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(resultDir, "jmh-result-threads-" + threadNum + ".json").getAbsolutePath())
+                    .build());
+        }
+    }
+
+    private static void run(Options options) throws RunnerException {
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.benchmark;
+
+import org.fedai.osx.broker.constants.MessageFlag;
+import org.fedai.osx.broker.message.MessageDecoder;
+import org.fedai.osx.broker.message.MessageExtBrokerInner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class BenchmarkUtil {
+
+    public static final String SESSION_ID = "benchmarkSessionId";
+    public static final String SRC_PARTY_ID = "9999";
+    public static final String DES_PARTY_ID = "10000";
+
+    public static File createTempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    public static void deleteDir(File dir) {
+        if (dir == null || !dir.exists()) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * 随机内容的 body，避免压缩等优化影响结果
+     */
+    public static byte[] randomBody(int size) {
+        byte[] body = new byte[size];
+        new Random(size).nextBytes(body);
+        return body;
+    }
+
+    public static MessageExtBrokerInner buildMessage(String topic, byte[] body) {
+        MessageExtBrokerInner msg = MessageDecoder.buildMessageExtBrokerInner(topic, body, "", MessageFlag.SENDMSG,
+                SRC_PARTY_ID, DES_PARTY_ID);
+        msg.getProperties().put("sessionId", SESSION_ID);
+        return msg;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.benchmark;
+
+import org.fedai.osx.broker.message.SelectMappedBufferResult;
+import org.fedai.osx.broker.store.IndexQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 索引写入与读取。IndexQueue 只由一个线程写入，因此固定为单线程
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 5)
+@Threads(1)
+@Fork(1)
+public class IndexQueueBenchmark {
+
+    private static final int MAPPED_FILE_SIZE = IndexQueue.CQ_STORE_UNIT_SIZE * (1 << 20);
+    private static final int PRELOAD_COUNT = 1 << 21;
+    private static final int MESSAGE_SIZE = 256;
+
+    @State(Scope.Benchmark)
+    public static class WriteState {
+
+        File storeDir;
+        IndexQueue indexQueue;
+        long phyOffset;
+
+        @Setup(Level.Iteration)
+        public void setup() throws Exception {
+            storeDir = BenchmarkUtil.createTempDir("osx-benchmark-index-write");
+            indexQueue = new IndexQueue("benchmark", storeDir.getAbsolutePath(), MAPPED_FILE_SIZE);
+            indexQueue.load();
+            phyOffset = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            indexQueue.destroy();
+            BenchmarkUtil.deleteDir(storeDir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ReadState {
+
+        File storeDir;
+        IndexQueue indexQueue;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            storeDir = BenchmarkUtil.createTempDir("osx-benchmark-index-read");
+            indexQueue = new IndexQueue("benchmark", storeDir.getAbsolutePath(), MAPPED_FILE_SIZE);
+            indexQueue.load();
+            for (int i = 0; i < PRELOAD_COUNT; i++) {
+                indexQueue.putMessagePositionInfoWrapper((long) i * MESSAGE_SIZE, MESSAGE_SIZE);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            indexQueue.destroy();
+            BenchmarkUtil.deleteDir(storeDir);
+        }
+    }
+
+    @Benchmark
+    public long write(WriteState state) {
+        long offset = state.phyOffset;
+        state.phyOffset = offset + MESSAGE_SIZE;
+        return state.indexQueue.putMessagePositionInfoWrapper(offset, MESSAGE_SIZE);
+    }
+
+    /**
+     * 与消费路径一致：按下标取出索引所在的映射内存，读取物理位置和长度后释放
+     */
+    @Benchmark
+    public long read(ReadState state) {
+        long index = 1 + ThreadLocalRandom.current().nextInt(PRELOAD_COUNT);
+        SelectMappedBufferResult result = state.indexQueue.getIndexBuffer(index);
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            return byteBuffer.getLong() + byteBuffer.getInt();
+        } finally {
+            result.release();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.benchmark;
+
+import org.fedai.osx.broker.message.AppendMessageResult;
+import org.fedai.osx.broker.message.DefaultAppendMessageHandler;
+import org.fedai.osx.broker.message.MessageDecoder;
+import org.fedai.osx.broker.message.MessageExt;
+import org.fedai.osx.broker.message.MessageExtBrokerInner;
+import org.fedai.osx.core.config.MetaInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消息编码（DefaultAppendMessageHandler）与解码（MessageDecoder），不涉及磁盘
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageCodecBenchmark {
+
+    private static final int MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+
+    @Param({"128", "4096", "65536"})
+    int payloadSize;
+
+    @Param({"true", "false"})
+    boolean crc;
+
+    DefaultAppendMessageHandler appendMessageHandler;
+    MessageExtBrokerInner msg;
+    ByteBuffer encodeBuffer;
+    ByteBuffer encodedMessage;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        MetaInfo.PROPERTY_STORE_CRC_ENABLE = crc;
+        appendMessageHandler = new DefaultAppendMessageHandler(MAX_MESSAGE_SIZE);
+        msg = BenchmarkUtil.buildMessage("codec", BenchmarkUtil.randomBody(payloadSize));
+        encodeBuffer = ByteBuffer.allocateDirect(payloadSize + 4096);
+        AppendMessageResult result = appendMessageHandler.doAppend(0, encodeBuffer, encodeBuffer.remaining(), msg);
+        if (!result.isOk()) {
+            throw new IllegalStateException("encode message failed " + result.getStatus());
+        }
+        encodedMessage = ByteBuffer.allocateDirect(result.getWroteBytes());
+        encodeBuffer.flip();
+        encodedMessage.put(encodeBuffer);
+        encodedMessage.flip();
+    }
+
+    @Benchmark
+    public AppendMessageResult encode() {
+        encodeBuffer.clear();
+        return appendMessageHandler.doAppend(0, encodeBuffer, encodeBuffer.remaining(), msg);
+    }
+
+    @Benchmark
+    public MessageExt decode() {
+        return MessageDecoder.decode(encodedMessage.duplicate(), true, true, false, crc);
+    }
+
+    @Benchmark
+    public MessageExt decodeHeader() {
+        return MessageDecoder.decode(encodedMessage.duplicate(), false, true, false, false);
+    }
+}
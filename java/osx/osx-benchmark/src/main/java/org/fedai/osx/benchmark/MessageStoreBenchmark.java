@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.benchmark;
+
+import org.fedai.osx.broker.message.MessageDecoder;
+import org.fedai.osx.broker.message.MessageExt;
+import org.fedai.osx.broker.message.SelectMappedBufferResult;
+import org.fedai.osx.broker.queue.PutMessageResult;
+import org.fedai.osx.broker.store.MessageStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * commit log 写入与读取。写入每轮迭代使用新的目录，避免多轮迭代累积的文件占满磁盘；
+ * 读取先写入固定数量的消息，再随机读取
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MessageStoreBenchmark {
+
+    private static final long PRELOAD_BYTES = 256L << 20;
+    private static final int MAX_PRELOAD_COUNT = 100000;
+
+    @State(Scope.Benchmark)
+    public static class PutState {
+
+        @Param({"128", "4096", "65536"})
+        int payloadSize;
+
+        File storeDir;
+        MessageStore messageStore;
+        byte[] body;
+
+        @Setup(Level.Iteration)
+        public void setup() throws Exception {
+            body = BenchmarkUtil.randomBody(payloadSize);
+            storeDir = BenchmarkUtil.createTempDir("osx-benchmark-put");
+            messageStore = new MessageStore(null, storeDir.getAbsolutePath());
+            messageStore.start();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            messageStore.shutdown();
+            BenchmarkUtil.deleteDir(storeDir);
+        }
+    }
+
+    /**
+     * 多个线程写入多个独立的 MessageStore，与 TransferQueueManager 按 session 分片时一致，shardCount 为 1 时所有线程竞争同一个写锁
+     */
+    @State(Scope.Benchmark)
+    public static class ShardedPutState {
+
+        @Param({"1", "4"})
+        int shardCount;
+
+        @Param({"4096"})
+        int payloadSize;
+
+        File storeDir;
+        MessageStore[] messageStores;
+        byte[] body;
+        AtomicInteger threadIndex = new AtomicInteger(0);
+
+        @Setup(Level.Iteration)
+        public void setup() throws Exception {
+            body = BenchmarkUtil.randomBody(payloadSize);
+            storeDir = BenchmarkUtil.createTempDir("osx-benchmark-sharded-put");
+            messageStores = new MessageStore[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                messageStores[i] = new MessageStore(null, storeDir.getAbsolutePath() + File.separator + "shard-" + i);
+                messageStores[i].start();
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            for (MessageStore messageStore : messageStores) {
+                messageStore.shutdown();
+            }
+            BenchmarkUtil.deleteDir(storeDir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ShardState {
+        int shard;
+
+        @Setup(Level.Iteration)
+        public void setup(ShardedPutState state) {
+            shard = state.threadIndex.getAndIncrement() % state.shardCount;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ConsumeState {
+
+        @Param({"128", "4096", "65536"})
+        int payloadSize;
+
+        File storeDir;
+        MessageStore messageStore;
+        long[] offsets;
+        int[] sizes;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            byte[] body = BenchmarkUtil.randomBody(payloadSize);
+            storeDir = BenchmarkUtil.createTempDir("osx-benchmark-consume");
+            messageStore = new MessageStore(null, storeDir.getAbsolutePath());
+            messageStore.start();
+            int count = (int) Math.min(MAX_PRELOAD_COUNT, PRELOAD_BYTES / payloadSize);
+            offsets = new long[count];
+            sizes = new int[count];
+            for (int i = 0; i < count; i++) {
+                PutMessageResult result = messageStore.putMessage(BenchmarkUtil.buildMessage("consume", body));
+                if (!result.isOk()) {
+                    throw new IllegalStateException("preload message failed " + result.getPutMessageStatus());
+                }
+                offsets[i] = result.getAppendMessageResult().getWroteOffset();
+                sizes[i] = result.getAppendMessageResult().getWroteBytes();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            messageStore.shutdown();
+            BenchmarkUtil.deleteDir(storeDir);
+        }
+    }
+
+    @Benchmark
+    public PutMessageResult put(PutState state) {
+        return state.messageStore.putMessage(BenchmarkUtil.buildMessage("put", state.body));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public PutMessageResult shardedPut(ShardedPutState state, ShardState shardState) {
+        return state.messageStores[shardState.shard].putMessage(BenchmarkUtil.buildMessage("put", state.body));
+    }
+
+    /**
+     * 与 TransferQueue 的零拷贝读取路径一致：按索引中的长度读取，只解析消息头，body 保持为映射内存的切片
+     */
+    @Benchmark
+    public void consume(ConsumeState state, Blackhole blackhole) {
+        int index = ThreadLocalRandom.current().nextInt(state.offsets.length);
+        SelectMappedBufferResult result = state.messageStore.consumeOneMessage(state.offsets[index], state.sizes[index]);
+        try {
+            MessageExt messageExt = MessageDecoder.decode(result.getByteBuffer(), false, true, false, false);
+            blackhole.consume(messageExt.getBodyBuffer());
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * 读取并复制 body，同时校验 CRC32C
+     */
+    @Benchmark
+    public void consumeWithCopy(ConsumeState state, Blackhole blackhole) {
+        int index = ThreadLocalRandom.current().nextInt(state.offsets.length);
+        SelectMappedBufferResult result = state.messageStore.consumeOneMessage(state.offsets[index], state.sizes[index]);
+        try {
+            MessageExt messageExt = MessageDecoder.decode(result.getByteBuffer(), true, true, false, true);
+            blackhole.consume(messageExt.getBody());
+        } finally {
+            result.release();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.benchmark;
+
+import org.fedai.osx.broker.router.DefaultFateRouterServiceImpl;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.router.RouterInfo;
+import org.fedai.osx.core.utils.JsonUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 路由查找。路由表写入临时目录下的 broker/route_table.json，通过 DefaultFateRouterServiceImpl 正常加载
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+
+    private static final String ROLE = "fateflow";
+
+    @Param({"10", "1000"})
+    int partyCount;
+
+    File configDir;
+    DefaultFateRouterServiceImpl routerService;
+    String[] partyIds;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        configDir = BenchmarkUtil.createTempDir("osx-benchmark-router");
+        File brokerDir = new File(configDir, "broker");
+        brokerDir.mkdirs();
+
+        partyIds = new String[partyCount];
+        Map<String, Object> routeTable = new HashMap<>();
+        for (int i = 0; i < partyCount; i++) {
+            String partyId = String.valueOf(10000 + i);
+            partyIds[i] = partyId;
+            Map<String, Object> roles = new HashMap<>();
+            roles.put("default", Arrays.asList(endpoint(i, 9370), endpoint(i, 9371)));
+            roles.put(ROLE, Collections.singletonList(endpoint(i, 9360)));
+            routeTable.put(partyId, roles);
+        }
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("route_table", routeTable);
+        conf.put("self_party", Collections.singletonList(BenchmarkUtil.SRC_PARTY_ID));
+        Files.write(new File(brokerDir, "route_table.json").toPath(),
+                JsonUtil.object2Json(conf).getBytes(StandardCharsets.UTF_8));
+
+        MetaInfo.PROPERTY_CONFIG_DIR = configDir.getAbsolutePath();
+        MetaInfo.PROPERTY_USE_REMOTE_HEALTH_CHECK = false;
+        MetaInfo.PROPERTY_OPEN_ROUTE_CYCLE_CHECKER = false;
+        routerService = new DefaultFateRouterServiceImpl();
+        routerService.start();
+        if (routerService.route(BenchmarkUtil.SRC_PARTY_ID, "", partyIds[0], "") == null) {
+            throw new IllegalStateException("route table is not loaded");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkUtil.deleteDir(configDir);
+    }
+
+    private static Map<String, Object> endpoint(int index, int port) {
+        Map<String, Object> endpoint = new HashMap<>();
+        endpoint.put("ip", "10.0." + (index / 256) + "." + (index % 256));
+        endpoint.put("port", port);
+        return endpoint;
+    }
+
+    @Benchmark
+    public RouterInfo routeDefaultRole() {
+        String partyId = partyIds[ThreadLocalRandom.current().nextInt(partyIds.length)];
+        return routerService.route(BenchmarkUtil.SRC_PARTY_ID, "", partyId, "");
+    }
+
+    @Benchmark
+    public RouterInfo routeWithRole() {
+        String partyId = partyIds[ThreadLocalRandom.current().nextInt(partyIds.length)];
+        return routerService.route(BenchmarkUtil.SRC_PARTY_ID, "", partyId, ROLE);
+    }
+}
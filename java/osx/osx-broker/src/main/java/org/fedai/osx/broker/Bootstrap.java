@@ -22,6 +22,7 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
 import org.apache.commons.lang3.StringUtils;
+import org.fedai.osx.broker.consumer.ConsumerManager;
 import org.fedai.osx.broker.queue.TransferQueueManager;
 import org.fedai.osx.broker.server.OsxServer;
 import org.fedai.osx.broker.util.ApplicationStartedRunnerUtils;
@@ -101,9 +102,14 @@ public class Bootstrap {
     public void stop() {
         logger.info("try to shutdown server ...");
         if (injector != null) {
+            ConsumerManager consumerManager = injector.getInstance(ConsumerManager.class);
+            if (consumerManager != null) {
+                consumerManager.shutdown();
+            }
             TransferQueueManager transferQueueManager = injector.getInstance(TransferQueueManager.class);
-            if (transferQueueManager != null)
-                transferQueueManager.destroyAll();
+            if (transferQueueManager != null) {
+                transferQueueManager.shutdown();
+            }
         }
     }
 
@@ -19,13 +19,19 @@ import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.fedai.osx.broker.queue.TransferQueueManager;
+import org.fedai.osx.core.config.MetaInfo;
 import org.fedai.osx.core.frame.Lifecycle;
 import org.fedai.osx.core.frame.ServiceThread;
+import org.fedai.osx.core.timer.HashedWheelTimer;
+import org.fedai.osx.core.timer.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -46,7 +52,7 @@ public class ConsumerManager   {
 
         @Override
         public void run() {
-            while (true) {
+            while (!this.isStopped()) {
                 try {
                     report();
                 } catch (Exception igore) {
@@ -56,6 +62,14 @@ public class ConsumerManager   {
         }
     };
 
+    /*
+     * 有新消息到达并且存在长轮询请求的消费者，由 longPullingThread 应答
+     */
+    Set<UnaryConsumer> arrivedConsumers = ConcurrentHashMap.newKeySet();
+    /*
+     * 长轮询请求的超时由时间轮处理，不需要定时扫描所有消费者
+     */
+    HashedWheelTimer longPullingTimer = new HashedWheelTimer();
     ServiceThread longPullingThread = new ServiceThread() {
         @Override
         public String getServiceName() {
@@ -64,30 +78,38 @@ public class ConsumerManager   {
 
         @Override
         public void run() {
-            int interval = 200;
-            final AtomicInteger longPullingWaitingSize = new AtomicInteger(0);
-            final AtomicInteger answerCount = new AtomicInteger(0);
-            while (true) {
+            long lastScanTimestamp = System.currentTimeMillis();
+            while (!this.isStopped()) {
                 try {
-                    longPullingWaitingSize.set(0);
-                    answerCount.set(0);
-                    unaryConsumerMap.forEach((transferId, unaryConsumer) -> {
+                    Iterator<UnaryConsumer> iterator = arrivedConsumers.iterator();
+                    while (iterator.hasNext()) {
+                        UnaryConsumer unaryConsumer = iterator.next();
+                        iterator.remove();
                         try {
-                            answerCount.addAndGet(unaryConsumer.answerLongPulling());
-                            longPullingWaitingSize.addAndGet(unaryConsumer.getLongPullingQueueSize());
+                            unaryConsumer.answerLongPulling();
                         } catch (Exception igore) {
-                            igore.printStackTrace();
+                            logger.error("answer long pulling error", igore);
                         }
-                    });
-
-                    if (longPullingWaitingSize.get() > 0) {
-                        interval = 500;
-                    } else {
-                        interval = 1000;
+                    }
+                    /*
+                     * 兜底扫描，处理没有通过写入通知到的情况，比如队列被销毁
+                     */
+                    long now = System.currentTimeMillis();
+                    if (now - lastScanTimestamp >= MetaInfo.PROPERTY_CONSUME_LONG_PULLING_SCAN_INTERVAL) {
+                        lastScanTimestamp = now;
+                        unaryConsumerMap.forEach((transferId, unaryConsumer) -> {
+                            try {
+                                if (unaryConsumer.hasLongPulling()) {
+                                    unaryConsumer.answerLongPulling();
+                                }
+                            } catch (Exception igore) {
+                                logger.error("answer long pulling error", igore);
+                            }
+                        });
                     }
                 } catch (Exception igore) {
                 }
-                this.waitForRunning(interval);
+                this.waitForRunning(MetaInfo.PROPERTY_CONSUME_LONG_PULLING_SCAN_INTERVAL);
             }
         }
     };
@@ -114,6 +136,49 @@ public class ConsumerManager   {
             return unaryConsumerMap.get(indexKey);
         }
     }
+    /**
+     * 队列写入消息之后调用，唤醒等待该队列的长轮询请求
+     */
+    public void notifyMessageArriving(String sessionId, String topic) {
+        UnaryConsumer unaryConsumer = unaryConsumerMap.get(TransferQueueManager.assembleTopic(sessionId, topic));
+        if (unaryConsumer != null) {
+            notifyMessageArriving(unaryConsumer);
+        }
+    }
+
+    public void notifyMessageArriving(UnaryConsumer unaryConsumer) {
+        if (unaryConsumer.hasLongPulling()) {
+            arrivedConsumers.add(unaryConsumer);
+            longPullingThread.wakeup();
+        }
+    }
+
+    public Timeout newLongPullingTimeout(UnaryConsumer unaryConsumer, UnaryConsumer.LongPullingHold longPullingHold, long delay) {
+        return longPullingTimer.newTimeout(timeout -> unaryConsumer.expireLongPulling(longPullingHold),
+                delay, TimeUnit.MILLISECONDS);
+    }
+
+    public UnaryConsumer getUnaryConsumer(String indexKey) {
+        return unaryConsumerMap.get(indexKey);
+    }
+
+    /**
+     * 停止长轮询线程与时间轮，还在等待的长轮询请求按超时应答
+     */
+    public void shutdown() {
+        longPullingThread.shutdown();
+        monitorThread.shutdown();
+        Set<Timeout> unprocessed = longPullingTimer.stop();
+        for (Timeout timeout : unprocessed) {
+            try {
+                timeout.task().run(timeout);
+            } catch (Exception e) {
+                logger.error("answer long pulling on shutdown error", e);
+            }
+        }
+        logger.info("consumer manager shutdown, answer {} long pulling requests", unprocessed.size());
+    }
+
     public void onComplete(String indexKey) {
         if (this.unaryConsumerMap.containsKey(indexKey)) {
             this.unaryConsumerMap.get(indexKey).destroy();
@@ -23,9 +23,11 @@ import org.fedai.osx.core.constant.StatusCode;
 import org.fedai.osx.core.constant.TransferStatus;
 import org.fedai.osx.core.context.OsxContext;
 import org.fedai.osx.core.exceptions.AckIndexException;
+import org.fedai.osx.core.exceptions.TransferQueueNotExistException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Data
@@ -62,11 +64,15 @@ public class LocalQueueConsumer implements Consumer<TransferQueueConsumeResult>
     }
 
     public long ack(long index) {
+        return ack(index, 1);
+    }
+
+    public long ack(long index, int count) {
         long currentIndex = this.consumeOffset.get();
         if (index != currentIndex) {
             throw new AckIndexException("ack invalid index ,current : " + currentIndex + " ack : " + index);
         } else {
-            return this.consumeOffset.addAndGet(1);
+            return this.consumeOffset.addAndGet(count);
         }
     }
 
@@ -100,6 +106,29 @@ public class LocalQueueConsumer implements Consumer<TransferQueueConsumeResult>
 
     }
 
+    /**
+     * 批量消费，连续读取多条消息，整批读取完成后只提交一次消费进度
+     *
+     * @return 没有消息时返回空列表
+     */
+    public synchronized List<TransferQueueConsumeResult> consumeBatch(OsxContext context, long beginOffset, int maxCount, int maxBytes) {
+        long offset = beginOffset;
+        TransferQueue transferQueue = (TransferQueue) transferQueueManager.getQueue(sessionId, topic);
+        if (transferQueue == null) {
+            logger.error("session id {} topic {} is not found", sessionId, topic);
+            throw new TransferQueueNotExistException();
+        }
+        if (offset <= 0) {
+            offset = consumeOffset.get();
+        }
+        List<TransferQueueConsumeResult> results = transferQueue.consumeMessages(context, offset, maxCount, maxBytes);
+        //兼容互联互通 ，改成自动ack
+        if (!results.isEmpty()) {
+            this.ack(offset, results.size());
+        }
+        return results;
+    }
+
     @Override
     public void init() {
 
@@ -28,6 +28,7 @@ import org.fedai.osx.core.constant.StatusCode;
 import org.fedai.osx.core.context.OsxContext;
 import org.fedai.osx.core.exceptions.ErrorMessageUtil;
 import org.fedai.osx.core.exceptions.TransferQueueNotExistException;
+import org.fedai.osx.core.timer.Timeout;
 import org.fedai.osx.core.utils.FlowLogUtil;
 import org.fedai.osx.core.utils.JsonUtil;
 import org.ppc.ptp.Osx;
@@ -38,6 +39,7 @@ import javax.servlet.AsyncContext;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -56,6 +58,9 @@ public class UnaryConsumer extends LocalQueueConsumer {
 
         TransferQueue transferQueue = (TransferQueue) transferQueueManager.getQueue(sessionId, topic);
         if (transferQueue != null) {
+            if (transferQueue.getRecoveredConsumeOffset() > 0) {
+                this.consumeOffset.set(transferQueue.getRecoveredConsumeOffset());
+            }
             transferQueue.registerDestoryCallback(() -> {
                 String indexKey = TransferQueueManager.assembleTopic(sessionId, topic);
                 consumerManager.onComplete(indexKey);
@@ -72,9 +77,33 @@ public class UnaryConsumer extends LocalQueueConsumer {
         return longPullingQueue.poll();
     }
 
+    public boolean hasLongPulling() {
+        return !longPullingQueue.isEmpty();
+    }
+
     public void addLongPullingQueue(LongPullingHold longPullingHold) {
         longPullingQueue.add(longPullingHold);
         logger.info("add long pulling queue , queue size {}", longPullingQueue.size());
+        if (longPullingHold.getExpireTimestamp() > 0) {
+            long delay = Math.max(longPullingHold.getExpireTimestamp() - System.currentTimeMillis(), 0);
+            longPullingHold.setTimeout(consumerManager.newLongPullingTimeout(this, longPullingHold, delay));
+        }
+        /*
+         * 消息可能在加入队列之前已经到达，此时写入方的通知会被错过，这里需要再检查一次
+         */
+        long needOffset = longPullingHold.getNeedOffset();
+        if (this.checkMsgIsArrive(needOffset > 0 ? needOffset : this.consumeOffset.get())) {
+            consumerManager.notifyMessageArriving(this);
+        }
+    }
+
+    /**
+     * 时间轮线程调用，请求还在等待时返回超时
+     */
+    public synchronized void expireLongPulling(LongPullingHold longPullingHold) {
+        if (this.longPullingQueue.remove(longPullingHold)) {
+            handleExpire(longPullingHold);
+        }
     }
 
     public synchronized int answerLongPulling() {
@@ -91,6 +120,7 @@ public class UnaryConsumer extends LocalQueueConsumer {
                 if (grpcContext != null) {
                     if (grpcContext.isCancelled()) {
                         logger.error("session {} topic {} consumer grpc context is cancelled", sessionId, topic);
+                        longPullingHold.cancelTimeout();
                         continue;
                     }
                 }
@@ -98,6 +128,7 @@ public class UnaryConsumer extends LocalQueueConsumer {
                 long needOffset = longPullingHold.getNeedOffset();
                 if (transferQueue == null) {
                     // TODO: 2023/7/24  这里需要通知阻塞的客户端,最好是由队列清理时主动通知客户端
+                    longPullingHold.cancelTimeout();
                     longPullingHold.throwException(new TransferQueueNotExistException());
                     continue;
                 }
@@ -107,32 +138,36 @@ public class UnaryConsumer extends LocalQueueConsumer {
                 }
                 OsxContext context = longPullingHold.getContext();
                 context.setActionType(ActionType.LONG_PULLING_ANSWER.name());
-                TransferQueueConsumeResult consumeResult = null;
+                List<TransferQueueConsumeResult> consumeResults = null;
                 if (needOffset <= 0) {
                     long consumeOffset = this.consumeOffset.get();
                     if (this.checkMsgIsArrive(consumeOffset)) {
                         /*
                          *  服务器记录的消费进度小于等于 index，则可以消费
                          */
-                        consumeResult = this.consume(context, needOffset);
+                        consumeResults = this.consumeForLongPulling(context, longPullingHold);
                     }
                 } else {
                     if (this.checkMsgIsArrive(needOffset)) {
                         /*
                          *  client 传入的offset 小于等于index，可以消费
                          */
-                        consumeResult = this.consume(context, needOffset);
+                        consumeResults = this.consumeForLongPulling(context, longPullingHold);
                     }
                 }
-                if (consumeResult != null) {
-                    if (consumeResult.getMessage() != null && consumeResult.getMessage().getBody() != null)
-                        context.setDataSize(consumeResult.getMessage().getBody().length);
+                if (consumeResults != null && !consumeResults.isEmpty()) {
+                    int dataSize = 0;
+                    for (TransferQueueConsumeResult consumeResult : consumeResults) {
+                        dataSize += consumeResult.bodySize();
+                    }
+                    context.setDataSize(dataSize);
                     answerCount++;
-                    longPullingHold.answer(consumeResult, StatusCode.PTP_SUCCESS, Dict.SUCCESS);
+                    longPullingHold.cancelTimeout();
+                    longPullingHold.answerBatch(consumeResults, StatusCode.PTP_SUCCESS, Dict.SUCCESS);
                     context.setTopic(transferQueue.getTransferId());
                     context.setReturnCode(StatusCode.SUCCESS);
-                    context.setRequestMsgIndex(consumeResult.getRequestIndex());
-                    context.setCurrentMsgIndex(consumeResult.getLogicIndexTotal());
+                    context.setRequestMsgIndex(consumeResults.get(0).getRequestIndex());
+                    context.setCurrentMsgIndex(consumeResults.get(consumeResults.size() - 1).getLogicIndexTotal());
                     FlowLogUtil.printFlowLog(context);
                 } else {
                     /*
@@ -144,6 +179,7 @@ public class UnaryConsumer extends LocalQueueConsumer {
                 }
             } catch (Exception e) {
                 logger.error("session {} topic {} answer long pulling error ", sessionId, topic, e);
+                longPullingHold.cancelTimeout();
                 longPullingHold.throwException(e);
             }
         }
@@ -153,7 +189,15 @@ public class UnaryConsumer extends LocalQueueConsumer {
         return answerCount;
     }
 
+    private List<TransferQueueConsumeResult> consumeForLongPulling(OsxContext context, LongPullingHold longPullingHold) {
+        if (longPullingHold.getMaxCount() > 1) {
+            return this.consumeBatch(context, longPullingHold.getNeedOffset(), longPullingHold.getMaxCount(), longPullingHold.getMaxBytes());
+        }
+        return Collections.singletonList(this.consume(context, longPullingHold.getNeedOffset()));
+    }
+
     private void handleExpire(LongPullingHold longPullingHold) {
+        longPullingHold.cancelTimeout();
         longPullingHold.answer(null, StatusCode.PTP_TIME_OUT, "CONSUME_MSG_TIMEOUT");
     }
 
@@ -166,28 +210,79 @@ public class UnaryConsumer extends LocalQueueConsumer {
         AsyncContext asyncContext;
         long expireTimestamp;
         long needOffset;
+        /*
+         * 批量消费，maxCount 大于 1 时生效
+         */
+        int maxCount;
+        int maxBytes;
+        Timeout timeout;
 
-        public void answer(TransferQueueConsumeResult consumeResult, String statusCode, String message) {
-            if (streamObserver != null) {
-                Osx.TransportOutbound consumeResponse = TransferUtil.buildTransportOutbound(statusCode, message, consumeResult);
-                streamObserver.onNext(consumeResponse);
-                streamObserver.onCompleted();
-            } else if (asyncContext != null) {
-                byte[] content = null;
-                if (consumeResult != null && consumeResult.getMessage() != null) {
-                    content = consumeResult.getMessage().getBody();
+        public void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        public void answerBatch(List<TransferQueueConsumeResult> consumeResults, String statusCode, String message) {
+            if (maxCount <= 1) {
+                answer(consumeResults.get(0), statusCode, message);
+                return;
+            }
+            ConsumerResponse consumerResponse = new ConsumerResponse();
+            consumerResponse.setCode(statusCode);
+            consumerResponse.setMsg(message);
+            try {
+                if (streamObserver != null) {
+                    consumerResponse.setConsumeResults(consumeResults);
+                    streamObserver.onNext(consumerResponse.toTransportOutbound());
+                    streamObserver.onCompleted();
+                } else if (asyncContext != null) {
+                    List<byte[]> payloads = new ArrayList<>(consumeResults.size());
+                    for (TransferQueueConsumeResult consumeResult : consumeResults) {
+                        payloads.add(consumeResult.bodyBytes());
+                    }
+                    consumerResponse.setPayloads(payloads);
+                    String returnContent = JsonUtil.object2Json(consumerResponse);
+                    TransferUtil.writeHttpRespose(asyncContext.getResponse(), statusCode, message, returnContent.getBytes(StandardCharsets.UTF_8));
+                    asyncContext.complete();
+                }
+            } finally {
+                for (TransferQueueConsumeResult consumeResult : consumeResults) {
+                    consumeResult.release();
                 }
-                ConsumerResponse consumerResponse = new ConsumerResponse();
-                consumerResponse.setCode(statusCode);
-                consumerResponse.setMsg(message);
-                if (content != null)
-                    consumerResponse.setPayload(content);
-                String returnContent = JsonUtil.object2Json(consumerResponse);
+            }
+        }
 
-                TransferUtil.writeHttpRespose(asyncContext.getResponse(), statusCode, message, returnContent.getBytes(StandardCharsets.UTF_8));
-                asyncContext.complete();
+        public void answer(TransferQueueConsumeResult consumeResult, String statusCode, String message) {
+            try {
+                if (streamObserver != null) {
+                    Osx.TransportOutbound consumeResponse = TransferUtil.buildTransportOutbound(statusCode, message, consumeResult);
+                    streamObserver.onNext(consumeResponse);
+                    streamObserver.onCompleted();
+                } else if (asyncContext != null) {
+                    byte[] content = null;
+                    if (consumeResult != null) {
+                        content = consumeResult.bodyBytes();
+                    }
+                    ConsumerResponse consumerResponse = new ConsumerResponse();
+                    consumerResponse.setCode(statusCode);
+                    consumerResponse.setMsg(message);
+                    if (content != null)
+                        consumerResponse.setPayload(content);
+                    String returnContent = JsonUtil.object2Json(consumerResponse);
+
+                    TransferUtil.writeHttpRespose(asyncContext.getResponse(), statusCode, message, returnContent.getBytes(StandardCharsets.UTF_8));
+                    asyncContext.complete();
 
 
+                }
+            } finally {
+                /*
+                 * 响应已经序列化完成，可以释放对 mappedFile 的引用
+                 */
+                if (consumeResult != null) {
+                    consumeResult.release();
+                }
             }
         }
 
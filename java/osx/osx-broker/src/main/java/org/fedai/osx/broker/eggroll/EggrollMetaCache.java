@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.eggroll;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.exceptions.SysException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * eggroll session 与 store 元数据缓存，本方接收推送时不再为每个流都访问 cluster manager。
+ * <p>
+ * 1. 同一个 key 并发加载时只有一个线程访问 cluster manager，其余线程等待同一个结果
+ * 2. 超过刷新间隔后在后台异步刷新，刷新期间仍然返回旧值，不阻塞建流
+ * 3. 刷新发现 session 不再是 ACTIVE 或者调用方发现 session 已经停止时，主动清除该 session 及其 store
+ */
+public class EggrollMetaCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(EggrollMetaCache.class);
+
+    private static final LoadingCache<String, ErSession> sessionCache = CacheBuilder.newBuilder()
+            .maximumSize(MetaInfo.PROPERTY_EGGROLL_META_CACHE_MAX_SIZE)
+            .refreshAfterWrite(MetaInfo.PROPERTY_EGGROLL_META_CACHE_REFRESH_INTERVAL, TimeUnit.MILLISECONDS)
+            .expireAfterAccess(MetaInfo.PROPERTY_EGGROLL_META_CACHE_EXPIRE_TIME, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build(CacheLoader.asyncReloading(new CacheLoader<String, ErSession>() {
+                @Override
+                public ErSession load(String sessionId) {
+                    return new ErSession(sessionId, false);
+                }
+
+                @Override
+                public ListenableFuture<ErSession> reload(String sessionId, ErSession oldValue) {
+                    ErSession session = load(sessionId);
+                    if (!SessionStatus.ACTIVE.equals(session.getStatus())) {
+                        invalidateStores(sessionId);
+                    }
+                    return Futures.immediateFuture(session);
+                }
+            }, RollPairContext.executor));
+
+    private static final LoadingCache<StoreKey, ErStore> storeCache = CacheBuilder.newBuilder()
+            .maximumSize(MetaInfo.PROPERTY_EGGROLL_META_CACHE_MAX_SIZE)
+            .refreshAfterWrite(MetaInfo.PROPERTY_EGGROLL_META_CACHE_REFRESH_INTERVAL, TimeUnit.MILLISECONDS)
+            .expireAfterAccess(MetaInfo.PROPERTY_EGGROLL_META_CACHE_EXPIRE_TIME, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build(CacheLoader.asyncReloading(new CacheLoader<StoreKey, ErStore>() {
+                @Override
+                public ErStore load(StoreKey storeKey) throws Exception {
+                    ErSession session = sessionCache.get(storeKey.sessionId);
+                    ErStore loaded = session.getClusterManagerClient().getOrCreateStore(storeKey.request);
+                    if (loaded == null) {
+                        throw new SysException("get or create store " + storeKey + " failed");
+                    }
+                    return loaded;
+                }
+            }, RollPairContext.executor));
+
+    public static ErSession getSession(String sessionId) {
+        try {
+            return sessionCache.get(sessionId);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            logger.error("get eggroll session {} error", sessionId, e);
+            throw new SysException("get eggroll session " + sessionId + " error : " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * 获取或者创建 store，同一个 session 下 namespace、name、storeType、totalPartitions 相同的 store 只访问一次 cluster manager
+     */
+    public static ErStore getOrCreateStore(ErSession session, ErStore request) {
+        StoreKey storeKey = new StoreKey(session.getSessionId(), request);
+        try {
+            return storeCache.get(storeKey);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            logger.error("get or create store {} error", storeKey, e);
+            throw new SysException("get or create store " + storeKey + " error : " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * session 已经停止时调用，清除 session 以及该 session 下所有 store 的缓存
+     */
+    public static void invalidateSession(String sessionId) {
+        logger.info("invalidate eggroll session {} meta cache", sessionId);
+        sessionCache.invalidate(sessionId);
+        invalidateStores(sessionId);
+    }
+
+    private static void invalidateStores(String sessionId) {
+        storeCache.asMap().keySet().removeIf(storeKey -> storeKey.sessionId.equals(sessionId));
+    }
+
+    public static String stats() {
+        return "session " + sessionCache.stats() + " store " + storeCache.stats();
+    }
+
+    private static class StoreKey {
+        final String sessionId;
+        final String namespace;
+        final String name;
+        final String storeType;
+        final int totalPartitions;
+        final ErStore request;
+
+        StoreKey(String sessionId, ErStore request) {
+            ErStoreLocator storeLocator = request.getStoreLocator();
+            this.sessionId = sessionId;
+            this.namespace = storeLocator.getNamespace();
+            this.name = storeLocator.getName();
+            this.storeType = storeLocator.getStoreType();
+            this.totalPartitions = storeLocator.getTotalPartitions();
+            this.request = request;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StoreKey)) {
+                return false;
+            }
+            StoreKey storeKey = (StoreKey) o;
+            return totalPartitions == storeKey.totalPartitions
+                    && sessionId.equals(storeKey.sessionId)
+                    && Objects.equals(namespace, storeKey.namespace)
+                    && Objects.equals(name, storeKey.name)
+                    && Objects.equals(storeType, storeKey.storeType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sessionId, namespace, name, storeType, totalPartitions);
+        }
+
+        @Override
+        public String toString() {
+            return sessionId + "/" + namespace + "/" + name + "/" + storeType + "/" + totalPartitions;
+        }
+    }
+}
@@ -17,6 +17,8 @@ package org.fedai.osx.broker.eggroll;
 
 import com.webank.ai.eggroll.api.networking.proxy.Proxy;
 import com.webank.eggroll.core.transfer.Transfer;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.fedai.osx.core.config.MetaInfo;
 import org.fedai.osx.core.router.RouterInfo;
@@ -27,13 +29,14 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
-public class PutBatchSinkPushRespSO implements StreamObserver<Transfer.TransferBatch> {
+public class PutBatchSinkPushRespSO implements ClientResponseObserver<Transfer.TransferBatch, Transfer.TransferBatch> {
 
     StreamObserver<Proxy.Metadata> eggSiteServicerPushRespSO;
     Proxy.Metadata reqHeader;
     Future<ErTask> commandFuture;
     CountDownLatch finishLatch;
     RouterInfo routerInfo;
+    Runnable onReadyHandler;
     Logger logger = LoggerFactory.getLogger(PutBatchSinkPushRespSO.class);
 
     public PutBatchSinkPushRespSO(Proxy.Metadata reqHeader,
@@ -48,6 +51,20 @@ public class PutBatchSinkPushRespSO implements StreamObserver<Transfer.TransferB
         this.finishLatch = finishLatch;
     }
 
+    /**
+     * 写入 eggpair 的流可以继续写入时回调，需要在发起调用之前设置
+     */
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+        this.onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Transfer.TransferBatch> requestStream) {
+        if (onReadyHandler != null) {
+            requestStream.setOnReadyHandler(onReadyHandler);
+        }
+    }
+
     @Override
     public void onNext(Transfer.TransferBatch resp) {
         try {
@@ -45,7 +45,7 @@ public class RollPairContext {
         ErStoreLocator erStoreLocator = new ErStoreLocator(namespace, name, Dict.EMPTY, storeType, totalPartitions,
                 0, 0, 0);
         ErStore store = new ErStore(erStoreLocator, Lists.newArrayList(), options);
-        ErStore loaded = erSession.clusterManagerClient.getOrCreateStore(store);
+        ErStore loaded = EggrollMetaCache.getOrCreateStore(erSession, store);
         return new RollPair(loaded, this, Maps.newHashMap());
     }
 
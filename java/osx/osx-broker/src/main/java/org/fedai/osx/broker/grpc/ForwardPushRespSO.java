@@ -17,6 +17,8 @@ package org.fedai.osx.broker.grpc;
 
 import com.webank.ai.eggroll.api.networking.proxy.Proxy;
 import com.webank.eggroll.core.transfer.Transfer;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.fedai.osx.broker.callback.CompleteCallback;
 import org.fedai.osx.broker.callback.ErrorCallback;
@@ -24,12 +26,13 @@ import org.fedai.osx.core.context.OsxContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ForwardPushRespSO implements StreamObserver<Proxy.Metadata> {
+public class ForwardPushRespSO implements ClientResponseObserver<Proxy.Packet, Proxy.Metadata> {
     Logger logger = LoggerFactory.getLogger(ForwardPushRespSO.class);
     StreamObserver backPushRespSO;
     CompleteCallback completeCallback;
     ErrorCallback errorCallback;
     OsxContext context;
+    Runnable onReadyHandler;
 
     public ForwardPushRespSO(OsxContext context, StreamObserver backPushRespSO, CompleteCallback completeCallback, ErrorCallback errorCallback) {
         this.backPushRespSO = backPushRespSO;
@@ -47,6 +50,20 @@ public class ForwardPushRespSO implements StreamObserver<Proxy.Metadata> {
         this.backPushRespSO = backPushRespSO;
     }
 
+    /**
+     * 转发流可以继续写入时回调，需要在发起调用之前设置
+     */
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+        this.onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Proxy.Packet> requestStream) {
+        if (onReadyHandler != null) {
+            requestStream.setOnReadyHandler(onReadyHandler);
+        }
+    }
+
     @Override
     public void onNext(Proxy.Metadata value) {
         //     if(backPushRespClass.equals(Proxy.Metadata.class)) {
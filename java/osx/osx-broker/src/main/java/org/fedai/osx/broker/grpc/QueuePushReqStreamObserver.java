@@ -26,6 +26,8 @@ import com.webank.eggroll.core.meta.Meta;
 import com.webank.eggroll.core.transfer.Transfer;
 import com.webank.eggroll.core.transfer.TransferServiceGrpc;
 import io.grpc.ManagedChannel;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.apache.commons.lang3.StringUtils;
 import org.fedai.osx.broker.eggroll.*;
@@ -50,6 +52,7 @@ import org.slf4j.LoggerFactory;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class QueuePushReqStreamObserver implements StreamObserver<Proxy.Packet> {
@@ -72,6 +75,13 @@ public class QueuePushReqStreamObserver implements StreamObserver<Proxy.Packet>
     private RouterService routerService;
     private TransferQueueManager transferQueueManager;
     private ManagedChannel channel;
+    /**
+     * 入站流关闭了自动流控，每转发一个包之后，只有出站流可写时才向上游再请求一个包，
+     * 对端处理慢时数据积压在上游而不是本地的 netty 缓冲区
+     */
+    private ServerCallStreamObserver<Proxy.Metadata> inboundCallSO;
+    private CallStreamObserver<?> outboundCallSO;
+    private final AtomicBoolean waitingForReady = new AtomicBoolean(false);
 
     public QueuePushReqStreamObserver(OsxContext context, RouterService routerService, TransferQueueManager transferQueueManager,
                                       StreamObserver backRespSO
@@ -81,6 +91,11 @@ public class QueuePushReqStreamObserver implements StreamObserver<Proxy.Packet>
         this.backRespSO = backRespSO;
         this.context.setServiceName("pushTransfer");
         this.transferQueueManager = transferQueueManager;
+        if (backRespSO instanceof ServerCallStreamObserver) {
+            inboundCallSO = (ServerCallStreamObserver<Proxy.Metadata>) backRespSO;
+            inboundCallSO.disableAutoInboundFlowControl();
+            inboundCallSO.request(1);
+        }
     }
 
     public StreamObserver<Proxy.Packet> getForwardPushReqSO() {
@@ -138,7 +153,9 @@ public class QueuePushReqStreamObserver implements StreamObserver<Proxy.Packet>
                 }, (t) -> {
                     finishLatch.countDown();
                 });
+                forwardPushRespSO.setOnReadyHandler(this::requestNextIfReady);
                 forwardPushReqSO = stub.push(forwardPushRespSO);
+                setOutboundCallSO(forwardPushReqSO);
             }
         }
         transferStatus = TransferStatus.TRANSFERING;
@@ -156,7 +173,10 @@ public class QueuePushReqStreamObserver implements StreamObserver<Proxy.Packet>
         TransferServiceGrpc.TransferServiceStub stub = TransferServiceGrpc.newStub(channel);
         CompletableFuture<ErTask> commandFuture = new CompletableFuture<>();
         commandFuture.complete(new ErTask());
-        putBatchSinkPushReqSO = stub.send(new PutBatchSinkPushRespSO(metadata, commandFuture, backRespSO, finishLatch, routerInfo));
+        PutBatchSinkPushRespSO putBatchSinkPushRespSO = new PutBatchSinkPushRespSO(metadata, commandFuture, backRespSO, finishLatch, routerInfo);
+        putBatchSinkPushRespSO.setOnReadyHandler(this::requestNextIfReady);
+        putBatchSinkPushReqSO = stub.send(putBatchSinkPushRespSO);
+        setOutboundCallSO(putBatchSinkPushReqSO);
     }
 
     private void initEggroll(OsxContext context, Proxy.Packet firstRequest) {
@@ -170,13 +190,9 @@ public class QueuePushReqStreamObserver implements StreamObserver<Proxy.Packet>
         String rsKey = rsHeader.getRsKey("#", "__rsk");
         String sessionId = String.join("_", rsHeader.getRollSiteSessionId(), rsHeader.getDstRole(), rsHeader.getDstPartyId());
         context.setSessionId(sessionId);
-        ErSession session = null;
-        try {
-            session = PutBatchSinkUtil.sessionCache.get(sessionId);
-        } catch (ExecutionException e) {
-            logger.error("get session error ", e);
-        }
+        ErSession session = EggrollMetaCache.getSession(sessionId);
         if (!SessionStatus.ACTIVE.name().equals(session.getErSessionMeta().getStatus())) {
+            EggrollMetaCache.invalidateSession(sessionId);
             SessionInitException error = new SessionInitException("eggroll session " + sessionId + " invalid status : " + session.getErSessionMeta().getStatus());
             onError(error);
             throw error;
@@ -237,7 +253,31 @@ public class QueuePushReqStreamObserver implements StreamObserver<Proxy.Packet>
         context.setDesNodeId(routerInfo.getDesPartyId());
         ManagedChannel channel = GrpcConnectionFactory.createManagedChannel(routerInfo);
         TransferServiceGrpc.TransferServiceStub stub = TransferServiceGrpc.newStub(channel);
-        putBatchSinkPushReqSO = stub.send(new PutBatchSinkPushRespSO(metadata, commandFuture, backRespSO, finishLatch, routerInfo));
+        PutBatchSinkPushRespSO putBatchSinkPushRespSO = new PutBatchSinkPushRespSO(metadata, commandFuture, backRespSO, finishLatch, routerInfo);
+        putBatchSinkPushRespSO.setOnReadyHandler(this::requestNextIfReady);
+        putBatchSinkPushReqSO = stub.send(putBatchSinkPushRespSO);
+        setOutboundCallSO(putBatchSinkPushReqSO);
+    }
+
+    private void setOutboundCallSO(StreamObserver<?> outboundSO) {
+        if (outboundSO instanceof CallStreamObserver) {
+            outboundCallSO = (CallStreamObserver<?>) outboundSO;
+        }
+    }
+
+    /**
+     * 出站流可写时向上游请求下一个包，出站流不可写时等待 onReady 回调。
+     * 先标记等待再检查 isReady，避免在两次检查之间错过 onReady
+     */
+    private void requestNextIfReady() {
+        if (inboundCallSO == null) {
+            return;
+        }
+        if (outboundCallSO == null || outboundCallSO.isReady()) {
+            if (waitingForReady.compareAndSet(true, false)) {
+                inboundCallSO.request(1);
+            }
+        }
     }
 
 
@@ -268,6 +308,8 @@ public class QueuePushReqStreamObserver implements StreamObserver<Proxy.Packet>
                 } else {
                     forwardPushReqSO.onNext(value);
                 }
+                waitingForReady.set(true);
+                requestNextIfReady();
             }
         } catch (Exception e) {
             logger.error("push error1", e);
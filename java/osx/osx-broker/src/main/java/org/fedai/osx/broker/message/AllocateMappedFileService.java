@@ -17,7 +17,9 @@ package org.fedai.osx.broker.message;
 
 
 import org.fedai.osx.broker.queue.MappedFile;
+import org.fedai.osx.broker.store.FlushDiskType;
 import org.fedai.osx.broker.util.UtilAll;
+import org.fedai.osx.core.config.MetaInfo;
 import org.fedai.osx.core.frame.ServiceThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,10 +27,14 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Create MappedFile in advance
+ * <p>
+ * 写入线程切换文件时提交下一个以及下下个文件的创建请求，后台线程负责创建、映射以及可选的预热与 mlock，
+ * 下一次切换文件时直接取走已经准备好的文件，写锁内不再有文件创建与缺页中断的耗时
  */
 public class AllocateMappedFileService extends ServiceThread {
     private static final Logger log = LoggerFactory.getLogger(AllocateMappedFileService.class);
@@ -38,57 +44,39 @@ public class AllocateMappedFileService extends ServiceThread {
     private PriorityBlockingQueue<AllocateRequest> requestQueue =
             new PriorityBlockingQueue<AllocateRequest>();
     private volatile boolean hasException = false;
-//    private DefaultMessageStore messageStore;
-//
-//    public AllocateMappedFileService(DefaultMessageStore messageStore) {
-//        this.messageStore = messageStore;
-//    }
+    private final FlushDiskType flushDiskType = FlushDiskType.parse(MetaInfo.PROPERTY_STORE_FLUSH_DISK_TYPE);
 
-    public static void main(String[] args) {
+    private final AtomicLong requestTimes = new AtomicLong(0);
+    private final AtomicLong waitTimes = new AtomicLong(0);
+    private final AtomicLong waitCostTotal = new AtomicLong(0);
+    private final AtomicLong allocateTimes = new AtomicLong(0);
+    private volatile long maxWaitCost = 0;
+    private long lastReportTimestamp = System.currentTimeMillis();
 
-
-    }
-
-    public MappedFile putRequestAndReturnMappedFile(String nextFilePath, int fileSize) {
-        int canSubmitRequests = 2;
-//        if (this.messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
-//            if (this.messageStore.getMessageStoreConfig().isFastFailIfNoBufferInStorePool()
-//                && BrokerRole.SLAVE != this.messageStore.getMessageStoreConfig().getBrokerRole()) { //if broker is slave, don't fast fail even no buffer in pool
-//                canSubmitRequests = this.messageStore.getTransientStorePool().availableBufferNums() - this.requestQueue.size();
-//            }
-//        }
+    public MappedFile putRequestAndReturnMappedFile(String nextFilePath, String nextNextFilePath, int fileSize) {
+        int canSubmitRequests = Math.min(Math.max(MetaInfo.PROPERTY_STORE_PREALLOCATE_MAPPED_FILE_COUNT, 1), 2);
 
         AllocateRequest nextReq = new AllocateRequest(nextFilePath, fileSize);
         boolean nextPutOK = this.requestTable.putIfAbsent(nextFilePath, nextReq) == null;
 
         if (nextPutOK) {
-            if (canSubmitRequests <= 0) {
-//                log.warn("[NOTIFYME]TransientStorePool is not enough, so create mapped file error, " +
-//                    "RequestQueueSize : {}, StorePoolSize: {}", this.requestQueue.size(), this.messageStore.getTransientStorePool().availableBufferNums());
-                this.requestTable.remove(nextFilePath);
-                return null;
-            }
             boolean offerOK = this.requestQueue.offer(nextReq);
             if (!offerOK) {
                 log.warn("never expected here, add a request to preallocate queue failed");
             }
-            canSubmitRequests--;
         }
-
-//        AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize);
-//        boolean nextNextPutOK = this.requestTable.putIfAbsent(nextNextFilePath, nextNextReq) == null;
-//        if (nextNextPutOK) {
-//            if (canSubmitRequests <= 0) {
-////                log.warn("[NOTIFYME]TransientStorePool is not enough, so skip preallocate mapped file, " +
-////                    "RequestQueueSize : {}, StorePoolSize: {}", this.requestQueue.size(), this.messageStore.getTransientStorePool().availableBufferNums());
-//                this.requestTable.remove(nextNextFilePath);
-//            } else {
-//                boolean offerOK = this.requestQueue.offer(nextNextReq);
-//                if (!offerOK) {
-//                    log.warn("never expected here, add a request to preallocate queue failed");
-//                }
-//            }
-//        }
+        canSubmitRequests--;
+
+        if (canSubmitRequests > 0 && nextNextFilePath != null) {
+            AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize);
+            boolean nextNextPutOK = this.requestTable.putIfAbsent(nextNextFilePath, nextNextReq) == null;
+            if (nextNextPutOK) {
+                boolean offerOK = this.requestQueue.offer(nextNextReq);
+                if (!offerOK) {
+                    log.warn("never expected here, add a request to preallocate queue failed");
+                }
+            }
+        }
 
         if (hasException) {
             log.warn(this.getServiceName() + " service has exception. so return null");
@@ -98,7 +86,19 @@ public class AllocateMappedFileService extends ServiceThread {
         AllocateRequest result = this.requestTable.get(nextFilePath);
         try {
             if (result != null) {
+                requestTimes.incrementAndGet();
+                boolean ready = result.getCountDownLatch().getCount() == 0;
+                long beginTime = System.currentTimeMillis();
                 boolean waitOK = result.getCountDownLatch().await(waitTimeOut, TimeUnit.MILLISECONDS);
+                if (!ready) {
+                    // 预分配没有跟上写入速度，写入线程在写锁内等待了文件创建
+                    long cost = System.currentTimeMillis() - beginTime;
+                    waitTimes.incrementAndGet();
+                    waitCostTotal.addAndGet(cost);
+                    if (cost > maxWaitCost) {
+                        maxWaitCost = cost;
+                    }
+                }
                 if (!waitOK) {
                     log.warn("create mmap timeout " + result.getFilePath() + " " + result.getFileSize());
                     return null;
@@ -116,6 +116,24 @@ public class AllocateMappedFileService extends ServiceThread {
         return null;
     }
 
+    /**
+     * 写入线程切换文件的总次数
+     */
+    public long getRequestTimes() {
+        return requestTimes.get();
+    }
+
+    /**
+     * 切换文件时预分配尚未完成、写入线程需要等待的次数
+     */
+    public long getWaitTimes() {
+        return waitTimes.get();
+    }
+
+    public long getWaitCostTotal() {
+        return waitCostTotal.get();
+    }
+
     @Override
     public String getServiceName() {
         return AllocateMappedFileService.class.getSimpleName();
@@ -148,7 +166,11 @@ public class AllocateMappedFileService extends ServiceThread {
         boolean isSuccess = false;
         AllocateRequest req = null;
         try {
-            req = this.requestQueue.take();
+            req = this.requestQueue.poll(MetaInfo.PROPERTY_STORE_ALLOCATE_REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+            report();
+            if (req == null) {
+                return true;
+            }
             AllocateRequest expectedRequest = this.requestTable.get(req.getFilePath());
             if (null == expectedRequest) {
                 log.warn("this mmap request expired, maybe cause timeout " + req.getFilePath() + " "
@@ -164,19 +186,7 @@ public class AllocateMappedFileService extends ServiceThread {
             if (req.getMappedFile() == null) {
                 long beginTime = System.currentTimeMillis();
 
-                MappedFile mappedFile;
-//                if (messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
-//                    try {
-//                        mappedFile = ServiceLoader.load(MappedFile.class).iterator().next();
-//                        mappedFile.init(req.getFilePath(), req.getFileSize(), messageStore.getTransientStorePool());
-//                    } catch (RuntimeException e) {
-//                        log.warn("Use default implementation.");
-//                        mappedFile = new MappedFile(req.getFilePath(), req.getFileSize(), messageStore.getTransientStorePool());
-//                    }
-//                } else
-                {
-                    mappedFile = new MappedFile(req.getFilePath(), req.getFileSize());
-                }
+                MappedFile mappedFile = new MappedFile(req.getFilePath(), req.getFileSize());
 
                 long elapsedTime = UtilAll.computeElapsedTimeMilliseconds(beginTime);
                 if (elapsedTime > 10) {
@@ -186,15 +196,16 @@ public class AllocateMappedFileService extends ServiceThread {
                 }
 
                 // pre write mappedFile
-//                if (mappedFile.getFileSize() >= this.messageStore.getMessageStoreConfig()
-//                    .getMappedFileSizeCommitLog()
-//                    &&
-//                    this.messageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
-//                    mappedFile.warmMappedFile(this.messageStore.getMessageStoreConfig().getFlushDiskType(),
-//                        this.messageStore.getMessageStoreConfig().getFlushLeastPagesWhenWarmMapedFile());
-//                }
+                if (mappedFile.getFileSize() >= MetaInfo.MAP_FILE_SIZE
+                        && MetaInfo.PROPERTY_STORE_WARM_MAPPED_FILE_ENABLE) {
+                    mappedFile.warmMappedFile(flushDiskType, MetaInfo.PROPERTY_STORE_FLUSH_LEAST_PAGES);
+                }
+                if (MetaInfo.PROPERTY_STORE_MLOCK_MAPPED_FILE_ENABLE) {
+                    mappedFile.mlock();
+                }
 
                 req.setMappedFile(mappedFile);
+                allocateTimes.incrementAndGet();
                 this.hasException = false;
                 isSuccess = true;
             }
@@ -219,6 +230,18 @@ public class AllocateMappedFileService extends ServiceThread {
         return true;
     }
 
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReportTimestamp < MetaInfo.PROPERTY_STORE_ALLOCATE_REPORT_INTERVAL) {
+            return;
+        }
+        lastReportTimestamp = now;
+        long maxCost = maxWaitCost;
+        maxWaitCost = 0;
+        log.info("{} allocate monitor, allocate times {}, request times {}, wait times {}, wait cost total {} ms, max wait cost {} ms",
+                getServiceName(), allocateTimes.get(), requestTimes.get(), waitTimes.get(), waitCostTotal.get(), maxCost);
+    }
+
     static class AllocateRequest implements Comparable<AllocateRequest> {
         // Full file path
         private String filePath;
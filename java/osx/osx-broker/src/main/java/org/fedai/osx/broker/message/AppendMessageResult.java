@@ -87,7 +87,13 @@ public class AppendMessageResult {
         this.wroteBytes = wroteBytes;
     }
 
+    /**
+     * 写入时不生成 msgId，需要时再根据写入位置生成
+     */
     public String getMsgId() {
+        if (msgId == null) {
+            msgId = Long.toString(wroteOffset);
+        }
         return msgId;
     }
 
@@ -15,25 +15,34 @@
  */
 package org.fedai.osx.broker.message;
 
+import com.google.protobuf.ByteString;
+import org.fedai.osx.broker.util.Crc32CUtil;
+import org.fedai.osx.core.config.MetaInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.Checksum;
 
+/**
+ * 把消息直接编码到 mappedFile 的写入位置，不经过堆内的中间缓冲区。
+ * topic、partyId 以及 properties 按 UTF-8 直接写入，消息体如果是 ByteString 则从 grpc 收到的数据直接拷贝到 mappedFile，
+ * 写入过程中不再为每条消息分配字节数组。只在 MessageStore 的写锁内使用，不是线程安全的
+ */
 public class DefaultAppendMessageHandler implements AppendMessageHandler {
 
     // File at the end of the minimum fixed length empty
     private static final int END_FILE_MIN_BLANK_LENGTH = 4 + 4;
-    // Store the message content
-    private final ByteBuffer msgStoreItemMemory;
     // The maximum length of the message
     private final int maxMessageSize;
+    /*
+     * 复用的 CRC32C 计算对象，JDK 8 下为 null，退化为纯 java 实现
+     */
+    private final Checksum checksum = Crc32CUtil.createChecksum();
     Logger log = LoggerFactory.getLogger(DefaultAppendMessageHandler.class);
 
     public DefaultAppendMessageHandler(final int size) {
-
-        this.msgStoreItemMemory = ByteBuffer.allocate(size + END_FILE_MIN_BLANK_LENGTH);
         this.maxMessageSize = size;
     }
 
@@ -47,36 +56,121 @@ public class DefaultAppendMessageHandler implements AppendMessageHandler {
                 + 4 + (bodyLength > 0 ? bodyLength : 0) //BODY
                 + 2 + topicLength //TOPIC
                 + 2 + (propertiesLength > 0 ? propertiesLength : 0) //propertiesLength
-                + 0;
+                + (MessageSysFlag.hasCrc32C(sysFlag) ? 4 : 0); //CRC32C
         return msgLen;
     }
 
-    public ByteBuffer getMsgStoreItemMemory() {
-        return msgStoreItemMemory;
+    /**
+     * 与 String.getBytes(UTF_8) 的结果长度一致，不成对的代理字符按一个字节的 '?' 计算
+     */
+    public static int utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
     }
 
-    public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank,
-                                        final MessageExtBrokerInner msgInner) {
+    /**
+     * 按 UTF-8 直接写入 byteBuffer，结果与 String.getBytes(UTF_8) 一致，不创建中间的 byte 数组
+     */
+    public static void putUtf8(ByteBuffer byteBuffer, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                byteBuffer.put((byte) c);
+            } else if (c < 0x800) {
+                byteBuffer.put((byte) (0xC0 | (c >> 6)));
+                byteBuffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                byteBuffer.put((byte) (0xF0 | (codePoint >> 18)));
+                byteBuffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                byteBuffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                byteBuffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                byteBuffer.put((byte) '?');
+            } else {
+                byteBuffer.put((byte) (0xE0 | (c >> 12)));
+                byteBuffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                byteBuffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * 与 {@link MessageDecoder#messageProperties2String(Map)} 编码后的长度一致
+     */
+    public static int propertiesLength(Map<String, String> properties) {
+        if (properties == null) {
+            return 0;
+        }
+        int length = 0;
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            length += utf8Length(entry.getKey()) + 1 + utf8Length(entry.getValue()) + 1;
+        }
+        return length;
+    }
 
+    /**
+     * 按 {@link MessageDecoder#messageProperties2String(Map)} 的格式直接写入 byteBuffer，值为 null 的属性不写入
+     */
+    public static void putProperties(ByteBuffer byteBuffer, Map<String, String> properties) {
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            putUtf8(byteBuffer, entry.getKey());
+            byteBuffer.put((byte) MessageDecoder.NAME_VALUE_SEPARATOR);
+            putUtf8(byteBuffer, entry.getValue());
+            byteBuffer.put((byte) MessageDecoder.PROPERTY_SEPARATOR);
+        }
+    }
 
-        long wroteOffset = fileFromOffset + byteBuffer.position();
-        String msgId = Long.toString(wroteOffset);
-        Long queueOffset = new Long(0);
-        final byte[] propertiesData =
-                msgInner.getProperties() == null ? null : MessageDecoder.messageProperties2String(msgInner.getProperties()).getBytes(StandardCharsets.UTF_8);
+    public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank,
+                                        final MessageExtBrokerInner msgInner) {
 
-        final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+        final int startPosition = byteBuffer.position();
+        long wroteOffset = fileFromOffset + startPosition;
+        final Map<String, String> properties = msgInner.getProperties();
+        final int propertiesLength = propertiesLength(properties);
         if (propertiesLength > Short.MAX_VALUE) {
-            log.warn("putMessage message properties length too long. length={}", propertiesData.length);
+            log.warn("putMessage message properties length too long. length={}", propertiesLength);
             return new AppendMessageResult(AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED);
         }
-        final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
-        final byte[] srcPartyId = msgInner.getSrcPartyId() == null ? null : msgInner.getSrcPartyId().getBytes(MessageDecoder.CHARSET_UTF8);
-        final int srcPartyIdLength = srcPartyId != null ? srcPartyId.length : 0;
-        final byte[] desPartyId = msgInner.getDesPartyId() == null ? null : msgInner.getDesPartyId().getBytes(MessageDecoder.CHARSET_UTF8);
-        final int desPartyIdLength = desPartyId != null ? desPartyId.length : 0;
-        final int topicLength = topicData.length;
-        final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+        final String topic = msgInner.getTopic();
+        final String srcPartyId = msgInner.getSrcPartyId();
+        final String desPartyId = msgInner.getDesPartyId();
+        final int srcPartyIdLength = utf8Length(srcPartyId);
+        final int desPartyIdLength = utf8Length(desPartyId);
+        final int topicLength = utf8Length(topic);
+        final ByteString bodyData = msgInner.getBodyData();
+        final byte[] body = bodyData == null ? msgInner.getBody() : null;
+        final int bodyLength = bodyData != null ? bodyData.size() : (body == null ? 0 : body.length);
+        if (MetaInfo.PROPERTY_STORE_CRC_ENABLE) {
+            msgInner.setSysFlag(msgInner.getSysFlag() | MessageSysFlag.CRC32C_FLAG);
+        }
         final int msgLen = calMsgLength(msgInner.getSysFlag(), srcPartyIdLength, desPartyIdLength, bodyLength, topicLength, propertiesLength);
         // Exceeds the maximum message
         if (msgLen > this.maxMessageSize) {
@@ -85,50 +179,43 @@ public class DefaultAppendMessageHandler implements AppendMessageHandler {
         }
         // Determines whether there is sufficient free space
         if ((msgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
-            this.resetByteBuffer(this.msgStoreItemMemory, maxBlank);
-            // 1 TOTALSIZE
-            this.msgStoreItemMemory.putInt(maxBlank);
-            final long beginTimeMills = System.currentTimeMillis();
-            byteBuffer.put(this.msgStoreItemMemory.array(), 0, maxBlank);
-            return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, msgId, msgInner.getStoreTimestamp(),
-                    queueOffset, System.currentTimeMillis() - beginTimeMills);
+            // 1 TOTALSIZE，读取时只检查长度是否等于剩余空间，其余字节不需要写入
+            byteBuffer.putInt(maxBlank);
+            return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, null, msgInner.getStoreTimestamp(),
+                    0, 0);
         }
-        // Initialization of storage space
-        this.resetByteBuffer(msgStoreItemMemory, msgLen);
         // 1 TOTALSIZE
-        this.msgStoreItemMemory.putInt(msgLen);
+        byteBuffer.putInt(msgLen);
         // 5 FLAG
-        this.msgStoreItemMemory.putInt(msgInner.getFlag());
+        byteBuffer.putInt(msgInner.getFlag());
         // 6 QUEUEOFFSET
-        this.msgStoreItemMemory.put((byte) srcPartyIdLength);
-        if (srcPartyId != null)
-            this.msgStoreItemMemory.put(srcPartyId);
-        this.msgStoreItemMemory.put((byte) desPartyIdLength);
-        if (desPartyId != null)
-            this.msgStoreItemMemory.put(desPartyId);
+        byteBuffer.put((byte) srcPartyIdLength);
+        putUtf8(byteBuffer, srcPartyId);
+        byteBuffer.put((byte) desPartyIdLength);
+        putUtf8(byteBuffer, desPartyId);
         // 8 SYSFLAG
-        this.msgStoreItemMemory.putInt(msgInner.getSysFlag());
+        byteBuffer.putInt(msgInner.getSysFlag());
         // 9 BORNTIMESTAMP
-        this.msgStoreItemMemory.putLong(msgInner.getBornTimestamp());
-        this.msgStoreItemMemory.putInt(bodyLength);
-        if (bodyLength > 0)
-            this.msgStoreItemMemory.put(msgInner.getBody());
+        byteBuffer.putLong(msgInner.getBornTimestamp());
+        byteBuffer.putInt(bodyLength);
+        if (bodyData != null) {
+            bodyData.copyTo(byteBuffer);
+        } else if (bodyLength > 0) {
+            byteBuffer.put(body);
+        }
         // 16 TOPIC
-        this.msgStoreItemMemory.putShort((short) topicLength);
-        this.msgStoreItemMemory.put(topicData);
+        byteBuffer.putShort((short) topicLength);
+        putUtf8(byteBuffer, topic);
         // 17 PROPERTIES
-        this.msgStoreItemMemory.putShort((short) propertiesLength);
+        byteBuffer.putShort((short) propertiesLength);
         if (propertiesLength > 0) {
-            this.msgStoreItemMemory.put(propertiesData);
+            putProperties(byteBuffer, properties);
         }
-        byteBuffer.put(this.msgStoreItemMemory.array(), 0, msgLen);
-        AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgId,
-                msgInner.getStoreTimestamp(), queueOffset, 0);
-        return result;
-    }
-
-    private void resetByteBuffer(final ByteBuffer byteBuffer, final int limit) {
-        byteBuffer.flip();
-        byteBuffer.limit(limit);
+        // 18 CRC32C
+        if (MessageSysFlag.hasCrc32C(msgInner.getSysFlag())) {
+            byteBuffer.putInt(Crc32CUtil.crc32c(checksum, byteBuffer, startPosition, msgLen - 4));
+        }
+        return new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, null,
+                msgInner.getStoreTimestamp(), 0, 0);
     }
-}
\ No newline at end of file
+}
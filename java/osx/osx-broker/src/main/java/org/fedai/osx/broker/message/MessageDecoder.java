@@ -16,8 +16,12 @@
 package org.fedai.osx.broker.message;
 
 import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
 import org.fedai.osx.broker.constants.MessageFlag;
+import org.fedai.osx.broker.util.Crc32CUtil;
 import org.fedai.osx.broker.util.UtilAll;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.exceptions.MessageParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +57,37 @@ public class MessageDecoder {
         return UtilAll.bytes2string(input.array());
     }
 
+    public static MessageExtBrokerInner buildMessageExtBrokerInner(String topic, ByteString body,
+                                                                   String msgCode, MessageFlag flag, String srcPartyId, String desPartyId) {
+        MessageExtBrokerInner messageExtBrokerInner = buildMessageExtBrokerInner(topic, (byte[]) null, msgCode, flag, srcPartyId, desPartyId);
+        messageExtBrokerInner.setBodyData(body);
+        return messageExtBrokerInner;
+    }
+
+    /**
+     * 按写入的内容构建与 decode(byteBuffer, false) 结果相同的消息，用于不经过存储直接消费的场景。
+     * 消息体是只读的 ByteBuffer；grpc 写入的消息体可能引用请求的缓冲区，这里会拷贝一份
+     */
+    public static MessageExt buildStoredMessage(MessageExtBrokerInner msg, long wroteOffset, int wroteBytes) {
+        MessageExt message = new MessageExt();
+        message.setTopic(msg.getTopic());
+        message.setFlag(msg.getFlag());
+        message.setProperties(msg.getProperties());
+        message.setMsgId(msg.getMsgId());
+        message.setSrcPartyId(msg.getSrcPartyId());
+        message.setDesPartyId(msg.getDesPartyId());
+        message.setSysFlag(msg.getSysFlag());
+        message.setBornTimestamp(msg.getBornTimestamp());
+        message.setStoreTimestamp(msg.getStoreTimestamp());
+        message.setStoreSize(wroteBytes);
+        message.setCommitLogOffset(wroteOffset);
+        byte[] body = msg.getBody();
+        if (body != null && body.length > 0) {
+            message.setBodyBuffer(ByteBuffer.wrap(body).asReadOnlyBuffer());
+        }
+        return message;
+    }
+
     public static MessageExtBrokerInner buildMessageExtBrokerInner(String topic, byte[] body,
                                                                    String msgCode, MessageFlag flag, String srcPartyId, String desPartyId) {
         MessageExtBrokerInner messageExtBrokerInner = new MessageExtBrokerInner();
@@ -156,6 +191,16 @@ public class MessageDecoder {
 
     public static MessageExt decode(
             ByteBuffer byteBuffer, final boolean readBody, final boolean deCompressBody, final boolean isClient) {
+        return decode(byteBuffer, readBody, deCompressBody, isClient, MetaInfo.PROPERTY_STORE_CRC_CHECK_ON_READ);
+    }
+
+    /**
+     * @param checkCRC 消息带有 CRC32C 时是否校验，校验失败抛出 {@link MessageParseException}
+     */
+    public static MessageExt decode(
+            ByteBuffer byteBuffer, final boolean readBody, final boolean deCompressBody, final boolean isClient,
+            final boolean checkCRC) {
+        int beginPosition = byteBuffer.position();
         try {
 
             MessageExt msgExt = new MessageExt();
@@ -221,6 +266,9 @@ public class MessageDecoder {
                     byteBuffer.get(body);
                     msgExt.setBody(body);
                 } else {
+                    ByteBuffer bodyBuffer = byteBuffer.slice();
+                    bodyBuffer.limit(bodyLen);
+                    msgExt.setBodyBuffer(bodyBuffer.asReadOnlyBuffer());
                     byteBuffer.position(byteBuffer.position() + bodyLen);
                 }
             }
@@ -242,7 +290,21 @@ public class MessageDecoder {
                 msgExt.setProperties(map);
 
             }
+
+            // 18 CRC32C
+            if (MessageSysFlag.hasCrc32C(sysFlag)) {
+                int crc = byteBuffer.getInt();
+                if (checkCRC) {
+                    int expectCrc = Crc32CUtil.crc32c(byteBuffer, beginPosition, storeSize - 4);
+                    if (crc != expectCrc) {
+                        throw new MessageParseException("message crc32c check failed, expect " + expectCrc + " but " + crc);
+                    }
+                }
+            }
             return msgExt;
+        } catch (MessageParseException e) {
+            byteBuffer.position(byteBuffer.limit());
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             byteBuffer.position(byteBuffer.limit());
@@ -268,6 +330,78 @@ public class MessageDecoder {
 //        return msgExts;
 //    }
 
+    /**
+     * 校验 byteBuffer 当前位置的消息是否完整，用于重启时扫描 commit log
+     *
+     * @param byteBuffer 从消息起始位置开始的 buffer，不会修改其 position
+     * @param maxBlank   当前位置到文件末尾的剩余字节数
+     * @return 消息长度；0 表示遇到文件末尾的空白填充；-1 表示消息不完整或已经到达数据末尾
+     */
+    public static int checkMessageAndReturnSize(ByteBuffer byteBuffer, final int maxBlank) {
+        ByteBuffer buffer = byteBuffer.slice();
+        if (maxBlank < 4) {
+            return -1;
+        }
+        // 1 TOTALSIZE
+        int totalSize = buffer.getInt();
+        if (totalSize == maxBlank) {
+            return 0;
+        }
+        if (totalSize <= 0 || totalSize > maxBlank) {
+            return -1;
+        }
+        try {
+            buffer.limit(totalSize);
+            // 5 FLAG
+            buffer.getInt();
+            int srcPartyIdLength = buffer.get();
+            if (srcPartyIdLength < 0) {
+                return -1;
+            }
+            buffer.position(buffer.position() + srcPartyIdLength);
+            int desPartyIdLength = buffer.get();
+            if (desPartyIdLength < 0) {
+                return -1;
+            }
+            buffer.position(buffer.position() + desPartyIdLength);
+            // 8 SYSFLAG
+            int sysFlag = buffer.getInt();
+            // 9 BORNTIMESTAMP
+            buffer.getLong();
+            // 15 BODY
+            int bodyLen = buffer.getInt();
+            if (bodyLen < 0) {
+                return -1;
+            }
+            buffer.position(buffer.position() + bodyLen);
+            // 16 TOPIC
+            short topicLen = buffer.getShort();
+            if (topicLen <= 0) {
+                return -1;
+            }
+            buffer.position(buffer.position() + topicLen);
+            // 17 properties
+            short propertiesLength = buffer.getShort();
+            if (propertiesLength < 0) {
+                return -1;
+            }
+            int expectSize = DefaultAppendMessageHandler.calMsgLength(sysFlag, srcPartyIdLength, desPartyIdLength,
+                    bodyLen, topicLen, propertiesLength);
+            if (expectSize != totalSize) {
+                return -1;
+            }
+            if (MessageSysFlag.hasCrc32C(sysFlag)
+                    && buffer.getInt(totalSize - 4) != Crc32CUtil.crc32c(buffer, 0, totalSize - 4)) {
+                logger.warn("message crc32c check failed, size {}", totalSize);
+                return -1;
+            }
+        } catch (RuntimeException e) {
+            // 长度字段越界，说明消息在写入过程中被截断
+            return -1;
+        }
+        return totalSize;
+    }
+
     public static String messageProperties2String(Map<String, String> properties) {
         StringBuilder sb = new StringBuilder();
         if (properties != null) {
@@ -41,6 +41,11 @@ public class MessageExt extends Message {
     private long preparedTransactionOffset;
     private String srcPartyId;
     private String desPartyId;
+    /**
+     * 解码时不读取消息体则指向存储中消息体的只读切片，不做拷贝，
+     * 只在持有对应的 SelectMappedBufferResult 期间有效
+     */
+    private transient ByteBuffer bodyBuffer;
 
     public MessageExt() {
     }
@@ -120,6 +125,14 @@ public class MessageExt extends Message {
         return socketAddress2ByteBuffer(this.storeHost, byteBuffer);
     }
 
+    public ByteBuffer getBodyBuffer() {
+        return bodyBuffer;
+    }
+
+    public void setBodyBuffer(ByteBuffer bodyBuffer) {
+        this.bodyBuffer = bodyBuffer;
+    }
+
     public String getBrokerName() {
         return brokerName;
     }
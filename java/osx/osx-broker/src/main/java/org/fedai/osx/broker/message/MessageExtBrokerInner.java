@@ -15,9 +15,36 @@
  */
 package org.fedai.osx.broker.message;
 
+import com.google.protobuf.ByteString;
+
 public class MessageExtBrokerInner extends MessageExt {
     private static final long serialVersionUID = 7256001576878700634L;
     private String propertiesString;
+    /*
+     * grpc 收到的消息体，写入时直接拷贝到 mappedFile，不再先转换为字节数组
+     */
+    private transient ByteString bodyData;
+
+    public ByteString getBodyData() {
+        return bodyData;
+    }
+
+    public void setBodyData(ByteString bodyData) {
+        this.bodyData = bodyData;
+    }
+
+    /**
+     * 消息体是 ByteString 时只有在回调等需要字节数组的地方才拷贝一次
+     */
+    @Override
+    public byte[] getBody() {
+        byte[] body = super.getBody();
+        if (body == null && bodyData != null) {
+            body = bodyData.toByteArray();
+            setBody(body);
+        }
+        return body;
+    }
 
 
     public String getPropertiesString() {
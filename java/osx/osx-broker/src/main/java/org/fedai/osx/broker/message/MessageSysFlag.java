@@ -0,0 +1,31 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.message;
+
+/**
+ * 消息记录中 SYSFLAG 字段的标志位
+ */
+public class MessageSysFlag {
+
+    /**
+     * 记录末尾带有 4 字节的 CRC32C，覆盖从 TOTALSIZE 到 PROPERTIES 的全部内容
+     */
+    public final static int CRC32C_FLAG = 0x1;
+
+    public static boolean hasCrc32C(int sysFlag) {
+        return (sysFlag & CRC32C_FLAG) == CRC32C_FLAG;
+    }
+}
@@ -8,6 +8,11 @@ public class ConsumeRequest {
     boolean needBlock;
     String topic;
     int timeout;
+    /*
+     * 批量消费，maxCount 大于 1 时生效
+     */
+    int maxCount;
+    int maxBytes;
     public ConsumeRequest() {
 
     }
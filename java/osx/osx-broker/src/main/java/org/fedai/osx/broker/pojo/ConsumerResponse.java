@@ -3,9 +3,12 @@ package org.fedai.osx.broker.pojo;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.protobuf.ByteString;
 import lombok.Data;
+import org.fedai.osx.broker.queue.TransferQueueConsumeResult;
 import org.fedai.osx.core.router.RouterInfo;
 import org.ppc.ptp.Osx;
 
+import java.util.List;
+
 @Data
 public class ConsumerResponse {
     String code;
@@ -15,12 +18,50 @@ public class ConsumerResponse {
     boolean needRedirect = false;
     @JsonIgnore
     RouterInfo redirectRouterInfo;
+    /**
+     * grpc 返回时消息体直接引用存储中的数据，发送完成后需要调用 {@link #release()}
+     */
+    @JsonIgnore
+    TransferQueueConsumeResult consumeResult;
+    /**
+     * 批量消费时返回的多条消息
+     */
+    List<byte[]> payloads;
+    @JsonIgnore
+    List<TransferQueueConsumeResult> consumeResults;
 
     public Osx.TransportOutbound toTransportOutbound() {
         Osx.TransportOutbound.Builder builder = Osx.TransportOutbound.newBuilder();
         builder.setCode(code).setMessage(msg);
-        if (payload != null)
+        if (payload != null) {
             builder.setPayload(ByteString.copyFrom(payload)).build();
+        } else if (consumeResult != null) {
+            ByteString body = consumeResult.bodyByteString();
+            if (body != null) {
+                builder.setPayload(body);
+            }
+        }
+        if (payloads != null) {
+            for (byte[] content : payloads) {
+                builder.addPayloads(content != null ? ByteString.copyFrom(content) : ByteString.EMPTY);
+            }
+        } else if (consumeResults != null) {
+            for (TransferQueueConsumeResult result : consumeResults) {
+                ByteString body = result.bodyByteString();
+                builder.addPayloads(body != null ? body : ByteString.EMPTY);
+            }
+        }
         return builder.build();
     }
+
+    public void release() {
+        if (consumeResult != null) {
+            consumeResult.release();
+        }
+        if (consumeResults != null) {
+            for (TransferQueueConsumeResult result : consumeResults) {
+                result.release();
+            }
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package org.fedai.osx.broker.pojo;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.protobuf.ByteString;
 import lombok.Data;
 import org.fedai.osx.core.utils.JsonUtil;
 
@@ -10,9 +12,28 @@ import java.nio.charset.StandardCharsets;
 public class ProduceRequest implements SerializeAware{
     String topic;
     byte[] payload;
+    /*
+     * grpc 请求中的消息体，本地写入时直接使用，避免先拷贝成字节数组
+     */
+    @JsonIgnore
+    ByteString payloadData;
     String msgCode = "";
     String msgFlag = "";
 
+    public int payloadSize() {
+        if (payloadData != null) {
+            return payloadData.size();
+        }
+        return payload != null ? payload.length : 0;
+    }
+
+    /**
+     * 写入队列的消息体，grpc 请求时为 ByteString，其余为字节数组
+     */
+    public Object payloadObject() {
+        return payloadData != null ? payloadData : payload;
+    }
+
     public  byte[] serialize(){
         return JsonUtil.object2Json(this).getBytes(StandardCharsets.UTF_8);
     }
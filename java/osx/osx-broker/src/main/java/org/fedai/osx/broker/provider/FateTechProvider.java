@@ -52,6 +52,8 @@ import java.io.IOException;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
 
 import static org.fedai.osx.core.constant.ActionType.MSG_REDIRECT;
 
@@ -108,6 +110,9 @@ public class FateTechProvider implements TechProvider {
             context.setProtocol(Protocol.grpc);
             context.putData(Dict.RESPONSE_STREAM_OBSERVER, responseObserver);
             OsxContext.pushThreadLocalContext(context);
+            if (redirectInvokeAsync(context, request, responseObserver)) {
+                return;
+            }
             Osx.Outbound result = (Osx.Outbound) handleInvoke(context, request,interInvoke);
             if (result != null) {
                 responseObserver.onNext(result);
@@ -212,6 +217,14 @@ public class FateTechProvider implements TechProvider {
                                 if (respContent != null) {
                                     consumerResponse.setPayload(base64Encoder.encode(respContent));
                                 }
+                                List<byte[]> payloads = consumerResponse.getPayloads();
+                                if (payloads != null) {
+                                    for (int i = 0; i < payloads.size(); i++) {
+                                        if (payloads.get(i) != null) {
+                                            payloads.set(i, base64Encoder.encode(payloads.get(i)));
+                                        }
+                                    }
+                                }
                                 TransferUtil.writeHttpRespose(ctxt.getResponse(), consumerResponse.getCode(),
                                         consumerResponse.getMsg(), JsonUtil.object2Json(consumerResponse).getBytes(StandardCharsets.UTF_8));
                                 ctxt.complete();
@@ -316,6 +329,88 @@ public class FateTechProvider implements TechProvider {
         return exceptionInfo;
     }
 
+    /**
+     * 目的方不是本方并且路由为 grpc 时异步转发，服务端线程不再等待下一跳返回
+     *
+     * @return 已经异步转发时返回 true，其余情况仍然走 handleInvoke
+     */
+    private boolean redirectInvokeAsync(OsxContext context, Osx.Inbound request, StreamObserver<Osx.Outbound> responseObserver) {
+        String nodeId = context.getDesNodeId();
+        if (nodeId == null || MetaInfo.PROPERTY_SELF_PARTY.contains(nodeId)) {
+            return false;
+        }
+        try {
+            RouterInfo routerInfo = routerServiceRegister.select(MetaInfo.PROPERTY_FATE_TECH_PROVIDER).route(context.getSrcNodeId(), "", nodeId, "");
+            if (routerInfo == null || (routerInfo.getProtocol() != null && !Protocol.grpc.equals(routerInfo.getProtocol()))) {
+                return false;
+            }
+            TransferUtil.redirectAsync(context, request, routerInfo, new RedirectCallback<>(context, responseObserver,
+                    outbound -> outbound, this::buildErrorOutbound));
+        } catch (Exception e) {
+            logger.error("", e);
+            Osx.Outbound result = buildErrorOutbound(handleExceptionInfo(context, e));
+            FlowLogUtil.printFlowLog(context);
+            responseObserver.onNext(result);
+            responseObserver.onCompleted();
+        }
+        return true;
+    }
+
+    private Osx.Outbound buildErrorOutbound(ExceptionInfo exceptionInfo) {
+        Osx.Outbound.Builder builder = Osx.Outbound.newBuilder();
+        if (exceptionInfo.getCode() != null)
+            builder.setCode(exceptionInfo.getCode());
+        return builder.setMessage(exceptionInfo.getMessage()).build();
+    }
+
+    private Osx.TransportOutbound buildErrorTransportOutbound(ExceptionInfo exceptionInfo) {
+        return Osx.TransportOutbound.newBuilder().setCode(exceptionInfo.getCode()).setMessage(exceptionInfo.getMessage()).build();
+    }
+
+    /**
+     * 异步转发的回调，在 grpc 客户端线程上打印流水日志并完成上游的 responseObserver
+     */
+    private class RedirectCallback<T, R> implements StreamObserver<T> {
+
+        private final OsxContext context;
+        private final StreamObserver<R> responseObserver;
+        private final Function<T, R> resultConverter;
+        private final Function<ExceptionInfo, R> errorConverter;
+        private R result;
+
+        RedirectCallback(OsxContext context, StreamObserver<R> responseObserver, Function<T, R> resultConverter, Function<ExceptionInfo, R> errorConverter) {
+            this.context = context;
+            this.responseObserver = responseObserver;
+            this.resultConverter = resultConverter;
+            this.errorConverter = errorConverter;
+        }
+
+        @Override
+        public void onNext(T value) {
+            result = resultConverter.apply(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            result = errorConverter.apply(handleExceptionInfo(context, t));
+            onCompleted();
+        }
+
+        @Override
+        public void onCompleted() {
+            FlowLogUtil.printFlowLog(context);
+            try {
+                if (result != null) {
+                    responseObserver.onNext(result);
+                }
+                responseObserver.onCompleted();
+            } catch (Exception e) {
+                // 上游已经取消或者超时
+                logger.error("complete redirect response error", e);
+            }
+        }
+    }
+
     @Override
     public void processGrpcPeek(OsxContext context, Osx.PeekInbound inbound, StreamObserver<Osx.TransportOutbound> responseObserver) {
         context.setProtocol(Protocol.grpc);
@@ -323,16 +418,20 @@ public class FateTechProvider implements TechProvider {
         context.putData(Dict.INPUT_DATA, inbound);
         OsxContext.pushThreadLocalContext(context);
         Osx.TransportOutbound result = null;
+        ConsumerResponse consumerResponse = null;
+        boolean redirected = false;
         try {
             ServiceRegisterInfo serviceRegisterInfo = this.serviceRegisterManager.getServiceWithLoadBalance(context, "", UriConstants.PEEK, false);
             Object serviceAdaptorObject = serviceRegisterInfo.getServiceAdaptor();
             ServiceAdaptorNew serviceAdaptor = (ServiceAdaptorNew) serviceAdaptorObject;
             ConsumeRequest consumeRequest = new ConsumeRequest();
             consumeRequest.setTopic(inbound.getTopic());
-            ConsumerResponse consumerResponse = (ConsumerResponse) serviceAdaptor.service(context, consumeRequest);
+            consumerResponse = (ConsumerResponse) serviceAdaptor.service(context, consumeRequest);
             if (consumerResponse != null) {
                 if (consumerResponse.isNeedRedirect()) {
-                    result = TransferUtil.redirectPeek(context, consumerResponse.getRedirectRouterInfo(), inbound);
+                    TransferUtil.redirectPeekAsync(context, consumerResponse.getRedirectRouterInfo(), inbound,
+                            new RedirectCallback<>(context, responseObserver, outbound -> outbound, this::buildErrorTransportOutbound));
+                    redirected = true;
                 } else {
                     result = consumerResponse.toTransportOutbound();
                 }
@@ -341,13 +440,21 @@ public class FateTechProvider implements TechProvider {
             ExceptionInfo exceptionInfo = this.handleExceptionInfo(context, e);
             result = Osx.TransportOutbound.newBuilder().setCode(exceptionInfo.getCode()).setMessage(exceptionInfo.getMessage()).build();
         } finally {
-            FlowLogUtil.printFlowLog(context);
+            if (!redirected) {
+                FlowLogUtil.printFlowLog(context);
+            }
             OsxContext.popThreadLocalContext();
             OsxContext.release();
         }
-        if (result != null) {
-            responseObserver.onNext(result);
-            responseObserver.onCompleted();
+        try {
+            if (result != null) {
+                responseObserver.onNext(result);
+                responseObserver.onCompleted();
+            }
+        } finally {
+            if (consumerResponse != null) {
+                consumerResponse.release();
+            }
         }
     }
 
@@ -365,12 +472,14 @@ public class FateTechProvider implements TechProvider {
         OsxContext.pushThreadLocalContext(context);
         String desNodeId = context.getDesNodeId();
         String srcNodeId = context.getSrcNodeId();
-
+        boolean redirected = false;
         try {
             if (MetaInfo.PROPERTY_SELF_PARTY.contains(desNodeId)) {
                 ServiceRegisterInfo serviceRegisterInfo = this.serviceRegisterManager.getServiceWithLoadBalance(context, "", UriConstants.PUSH, false);
                 AbstractServiceAdaptorNew serviceAdaptor = serviceRegisterInfo.getServiceAdaptor();
-                ProduceRequest produceRequest  = buildProduceRequestFromGrpc(inbound);
+                ProduceRequest produceRequest = new ProduceRequest();
+                produceRequest.setPayloadData(inbound.getPayload());
+                produceRequest.setTopic(inbound.getTopic());
                 ProduceResponse produceResponse = (ProduceResponse) serviceAdaptor.service(context, produceRequest);
                 if (produceResponse != null) {
                     result = Osx.TransportOutbound.newBuilder().setCode(produceResponse.getCode()).setMessage(produceResponse.getMsg()).build();
@@ -392,19 +501,21 @@ public class FateTechProvider implements TechProvider {
                 context.setUri(UriConstants.PUSH);
                 context.setTopic(inbound.getTopic());
                 context.setRouterInfo(routerInfo);
-                Osx.Outbound outbound = (Osx.Outbound) TransferUtil.redirect(context, sendObject, routerInfo, true);
-                Osx.TransportOutbound.Builder transportOutboundBuilder = Osx.TransportOutbound.newBuilder();
-                context.setReturnCode(outbound.getCode());
-                context.setReturnMsg(outbound.getMessage());
-                transportOutboundBuilder.setCode(outbound.getCode());
-                transportOutboundBuilder.setMessage(outbound.getMessage());
-                result = transportOutboundBuilder.build();
+                if (Protocol.http.equals(routerInfo.getProtocol())) {
+                    result = toTransportOutbound(context, (Osx.Outbound) TransferUtil.redirect(context, sendObject, routerInfo, true));
+                } else {
+                    TransferUtil.redirectAsync(context, sendObject, routerInfo, new RedirectCallback<>(context, responseObserver,
+                            outbound -> toTransportOutbound(context, outbound), this::buildErrorTransportOutbound));
+                    redirected = true;
+                }
             }
         } catch (Exception e) {
             ExceptionInfo exceptionInfo = this.handleExceptionInfo(context, e);
             result = Osx.TransportOutbound.newBuilder().setCode(exceptionInfo.getCode()).setMessage(exceptionInfo.getMessage()).build();
         } finally {
-            FlowLogUtil.printFlowLog(context);
+            if (!redirected) {
+                FlowLogUtil.printFlowLog(context);
+            }
             OsxContext.popThreadLocalContext();
             OsxContext.release();
         }
@@ -414,6 +525,15 @@ public class FateTechProvider implements TechProvider {
         }
     }
 
+    private Osx.TransportOutbound toTransportOutbound(OsxContext context, Osx.Outbound outbound) {
+        Osx.TransportOutbound.Builder transportOutboundBuilder = Osx.TransportOutbound.newBuilder();
+        context.setReturnCode(outbound.getCode());
+        context.setReturnMsg(outbound.getMessage());
+        transportOutboundBuilder.setCode(outbound.getCode());
+        transportOutboundBuilder.setMessage(outbound.getMessage());
+        return transportOutboundBuilder.build();
+    }
+
     //只有集群内部可以访问
     @Override
     public void processGrpcPop(OsxContext context, Osx.PopInbound inbound, StreamObserver<Osx.TransportOutbound> responseObserver) {
@@ -422,6 +542,8 @@ public class FateTechProvider implements TechProvider {
         context.putData(Dict.INPUT_DATA, inbound);
         OsxContext.pushThreadLocalContext(context);
         Osx.TransportOutbound result = null;
+        ConsumerResponse consumerResponse = null;
+        boolean redirected = false;
         try {
             ServiceRegisterInfo serviceRegisterInfo = this.serviceRegisterManager.getServiceWithLoadBalance(context, "", UriConstants.POP, false);
             Object serviceAdaptorObject = serviceRegisterInfo.getServiceAdaptor();
@@ -430,10 +552,14 @@ public class FateTechProvider implements TechProvider {
             consumeRequest.setTopic(inbound.getTopic());
             consumeRequest.setNeedBlock(true);
             consumeRequest.setTimeout(inbound.getTimeout());
-            ConsumerResponse consumerResponse = (ConsumerResponse) serviceAdaptor.service(context, consumeRequest);
+            consumeRequest.setMaxCount(inbound.getMaxCount());
+            consumeRequest.setMaxBytes(inbound.getMaxBytes());
+            consumerResponse = (ConsumerResponse) serviceAdaptor.service(context, consumeRequest);
             if (consumerResponse != null) {
                 if (consumerResponse.isNeedRedirect()) {
-                    result = TransferUtil.redirectPop(context, consumerResponse.getRedirectRouterInfo(), inbound);
+                    TransferUtil.redirectPopAsync(context, consumerResponse.getRedirectRouterInfo(), inbound,
+                            new RedirectCallback<>(context, responseObserver, outbound -> outbound, this::buildErrorTransportOutbound));
+                    redirected = true;
                 } else {
                     result = consumerResponse.toTransportOutbound();
                 }
@@ -442,13 +568,24 @@ public class FateTechProvider implements TechProvider {
             ExceptionInfo exceptionInfo = this.handleExceptionInfo(context, e);
             result = Osx.TransportOutbound.newBuilder().setCode(exceptionInfo.getCode()).setMessage(exceptionInfo.getMessage()).build();
         } finally {
-            FlowLogUtil.printFlowLog(context);
+            if (!redirected) {
+                FlowLogUtil.printFlowLog(context);
+            }
             OsxContext.popThreadLocalContext();
             OsxContext.release();
         }
-        if (result != null) {
-            responseObserver.onNext(result);
-            responseObserver.onCompleted();
+        try {
+            if (result != null) {
+                responseObserver.onNext(result);
+                responseObserver.onCompleted();
+            }
+        } finally {
+            /*
+             * onNext 中已经完成序列化，此时可以释放对 mappedFile 的引用
+             */
+            if (consumerResponse != null) {
+                consumerResponse.release();
+            }
         }
     }
 
@@ -30,6 +30,7 @@ import org.fedai.osx.broker.service.Register;
 import org.fedai.osx.core.config.MetaInfo;
 import org.fedai.osx.core.constant.*;
 import org.fedai.osx.core.context.OsxContext;
+import org.fedai.osx.core.context.Protocol;
 import org.fedai.osx.core.exceptions.ExceptionInfo;
 import org.fedai.osx.core.exceptions.TransferQueueNotExistException;
 import org.fedai.osx.core.frame.GrpcConnectionFactory;
@@ -41,6 +42,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.AsyncContext;
+import java.util.ArrayList;
+import java.util.List;
 
 @Singleton
 @Register(uris = {UriConstants.POP, UriConstants.PEEK}, allowInterUse = false)
@@ -108,33 +111,84 @@ public class ConsumeService extends AbstractServiceAdaptorNew<ConsumeRequest, Co
         }
 
         UnaryConsumer consumer = consumerManager.getOrCreateUnaryConsumer(sessionId, topic);
+        if (inbound.getMaxCount() > 1) {
+            return consumeBatch(context, inbound, consumer, timeout);
+        }
         TransferQueueConsumeResult transferQueueConsumeResult = consumer.consume(context, -1);
         transferQueueConsumeResult.getLogicIndexTotal();
         context.setReturnCode(transferQueueConsumeResult.getCode());
         if (transferQueueConsumeResult.getCode().equals(StatusCode.CONSUME_NO_MESSAGE)) {
             // 由其他扫描线程应答
             if (inbound.isNeedBlock()) {
-                StreamObserver streamObserver = (StreamObserver) context.getData(Dict.RESPONSE_STREAM_OBSERVER);
-                UnaryConsumer.LongPullingHold longPullingHold = new UnaryConsumer.LongPullingHold();
-                longPullingHold.setGrpcContext(io.grpc.Context.current());
-                longPullingHold.setNeedOffset(-1);
-                longPullingHold.setStreamObserver(streamObserver);
-                longPullingHold.setAsyncContext((AsyncContext) context.getData(Dict.HTTP_ASYNC_CONTEXT));
-                longPullingHold.setContext(context.subContext());
-                long current = System.currentTimeMillis();
-                longPullingHold.setExpireTimestamp(current + Long.valueOf(timeout));
-                consumer.addLongPullingQueue(longPullingHold);
-                logger.info("add long pulling {} {}", longPullingHold, timeout);
+                addLongPulling(context, consumer, timeout, 0, 0);
                 return null;
             }
         }
         ConsumerResponse consumeResponse = new ConsumerResponse();
         consumeResponse.setCode(StatusCode.PTP_SUCCESS);
-        if (transferQueueConsumeResult.getMessage() != null)
-            consumeResponse.setPayload(transferQueueConsumeResult.getMessage().getBody());
+        if (transferQueueConsumeResult.getMessage() != null) {
+            if (context.getProtocol() == Protocol.grpc) {
+                /*
+                 * grpc 直接包装存储中的消息体，由调用方在响应发出之后释放
+                 */
+                consumeResponse.setConsumeResult(transferQueueConsumeResult);
+            } else {
+                consumeResponse.setPayload(transferQueueConsumeResult.bodyBytes());
+                transferQueueConsumeResult.release();
+            }
+        }
         return consumeResponse;
     }
 
+    /**
+     * 批量消费，最多返回 maxCount 条或者 maxBytes 字节的消息，整批只提交一次消费进度
+     */
+    private ConsumerResponse consumeBatch(OsxContext context, ConsumeRequest inbound, UnaryConsumer consumer, int timeout) {
+        int maxCount = Math.min(inbound.getMaxCount(), MetaInfo.PROPERTY_CONSUME_BATCH_MAX_COUNT);
+        int maxBytes = inbound.getMaxBytes() > 0 ? Math.min(inbound.getMaxBytes(), MetaInfo.PROPERTY_CONSUME_BATCH_MAX_BYTES)
+                : MetaInfo.PROPERTY_CONSUME_BATCH_MAX_BYTES;
+        List<TransferQueueConsumeResult> consumeResults = consumer.consumeBatch(context, -1, maxCount, maxBytes);
+        if (consumeResults.isEmpty()) {
+            context.setReturnCode(StatusCode.CONSUME_NO_MESSAGE);
+            // 由其他扫描线程应答
+            if (inbound.isNeedBlock()) {
+                addLongPulling(context, consumer, timeout, maxCount, maxBytes);
+                return null;
+            }
+        } else {
+            context.setReturnCode(StatusCode.SUCCESS);
+        }
+        ConsumerResponse consumeResponse = new ConsumerResponse();
+        consumeResponse.setCode(StatusCode.PTP_SUCCESS);
+        if (context.getProtocol() == Protocol.grpc) {
+            consumeResponse.setConsumeResults(consumeResults);
+        } else {
+            List<byte[]> payloads = new ArrayList<>(consumeResults.size());
+            for (TransferQueueConsumeResult consumeResult : consumeResults) {
+                payloads.add(consumeResult.bodyBytes());
+                consumeResult.release();
+            }
+            consumeResponse.setPayloads(payloads);
+        }
+        return consumeResponse;
+    }
+
+    private void addLongPulling(OsxContext context, UnaryConsumer consumer, int timeout, int maxCount, int maxBytes) {
+        StreamObserver streamObserver = (StreamObserver) context.getData(Dict.RESPONSE_STREAM_OBSERVER);
+        UnaryConsumer.LongPullingHold longPullingHold = new UnaryConsumer.LongPullingHold();
+        longPullingHold.setGrpcContext(io.grpc.Context.current());
+        longPullingHold.setNeedOffset(-1);
+        longPullingHold.setMaxCount(maxCount);
+        longPullingHold.setMaxBytes(maxBytes);
+        longPullingHold.setStreamObserver(streamObserver);
+        longPullingHold.setAsyncContext((AsyncContext) context.getData(Dict.HTTP_ASYNC_CONTEXT));
+        longPullingHold.setContext(context.subContext());
+        long current = System.currentTimeMillis();
+        longPullingHold.setExpireTimestamp(current + Long.valueOf(timeout));
+        consumer.addLongPullingQueue(longPullingHold);
+        logger.info("add long pulling {} {}", longPullingHold, timeout);
+    }
+
     @Override
     protected ConsumerResponse transformExceptionInfo(OsxContext context, ExceptionInfo exceptionInfo) {
         ConsumerResponse consumerResponse = new ConsumerResponse();
@@ -17,6 +17,7 @@ package org.fedai.osx.broker.ptp;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.webank.ai.eggroll.api.networking.proxy.Proxy;
 import lombok.Data;
@@ -78,7 +79,7 @@ public class ProduceService extends AbstractServiceAdaptorNew<ProduceRequest, Pr
         if (StringUtils.isEmpty(sessionId)) {
             throw new ParameterException(StatusCode.PARAM_ERROR, "sessionId is null");
         }
-        int dataSize = produceRequest.getPayload().length;
+        int dataSize = produceRequest.payloadSize();
         context.setActionType(ActionType.MSG_DOWNLOAD.name());
         context.setRouterInfo(null);
         context.setDataSize(dataSize);
@@ -98,12 +99,18 @@ public class ProduceService extends AbstractServiceAdaptorNew<ProduceRequest, Pr
         }
         if (queue != null) {
             context.putData(Dict.TRANSFER_QUEUE, queue);
-            byte[] msgBytes = produceRequest.getPayload();
+            /*
+             * 普通队列直接把 grpc 收到的 ByteString 写入存储，DirectQueue 的解析器仍然需要字节数组
+             */
+            Object msgData = produceRequest.payloadObject();
+            if (!(queue instanceof TransferQueue) && msgData instanceof ByteString) {
+                msgData = ((ByteString) msgData).toByteArray();
+            }
             MessageFlag messageFlag = MessageFlag.SENDMSG;
             if (StringUtils.isNotEmpty(context.getMessageFlag())) {
                 messageFlag = MessageFlag.valueOf(context.getMessageFlag());
             }
-            queue.putMessage(context, msgBytes, messageFlag, produceRequest.getMsgCode());
+            queue.putMessage(context, msgData, messageFlag, produceRequest.getMsgCode());
             context.setReturnCode(StatusCode.PTP_SUCCESS);
             ProduceResponse produceResponse = new ProduceResponse(StatusCode.PTP_SUCCESS, Dict.SUCCESS);
             return produceResponse;
@@ -155,7 +162,7 @@ public class ProduceService extends AbstractServiceAdaptorNew<ProduceRequest, Pr
 
     private ProduceRequest buildProduceRequest(Osx.PushInbound inbound) {
         ProduceRequest produceRequest = new ProduceRequest();
-        produceRequest.setPayload(inbound.getPayload().toByteArray());
+        produceRequest.setPayloadData(inbound.getPayload());
         produceRequest.setTopic(inbound.getTopic());
         return produceRequest;
     }
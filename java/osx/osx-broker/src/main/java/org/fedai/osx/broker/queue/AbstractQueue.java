@@ -13,6 +13,7 @@ import org.fedai.osx.core.context.OsxContext;
 import org.fedai.osx.core.exceptions.TransferQueueInvalidStatusException;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -35,7 +36,10 @@ public class AbstractQueue {
     List<ErrorCallback> errorCallbacks = new ArrayList<>();
     List<CompleteCallback> completeCallbacks = new ArrayList<>();
     List<DestoryCallback> destoryCallbacks = new ArrayList<>();
-    List<MsgEventCallback> msgCallbacks = new ArrayList<>();
+    /*
+     * 注册时整体替换为新的不可变列表，写入消息时取到的列表会交给分发线程读取，之后不会再被修改
+     */
+    volatile List<MsgEventCallback> msgCallbacks = Collections.emptyList();
 
     public synchronized void putMessage(OsxContext context, Object data, MessageFlag messageFlag, String msgCode) {
 
@@ -63,7 +67,9 @@ public class AbstractQueue {
 
     public synchronized void registerMsgCallback(List<MsgEventCallback> msgCallbacks) {
         if (transferStatus == TransferStatus.TRANSFERING) {
-            this.msgCallbacks.addAll(msgCallbacks);
+            List<MsgEventCallback> newCallbacks = new ArrayList<>(this.msgCallbacks);
+            newCallbacks.addAll(msgCallbacks);
+            this.msgCallbacks = Collections.unmodifiableList(newCallbacks);
         } else
             throw new TransferQueueInvalidStatusException("status is " + transferStatus);
     }
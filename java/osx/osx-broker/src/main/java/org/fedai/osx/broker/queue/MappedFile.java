@@ -18,8 +18,10 @@ package org.fedai.osx.broker.queue;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 import org.fedai.osx.broker.message.*;
+import org.fedai.osx.broker.store.FlushDiskType;
 import org.fedai.osx.broker.util.LibC;
 import org.fedai.osx.broker.util.UtilAll;
+import org.fedai.osx.core.config.MetaInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.nio.ch.DirectBuffer;
@@ -35,16 +37,25 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class MappedFile extends ReferenceResource {
     public static final int OS_PAGE_SIZE = 1024 * 4;
+    /*
+     * 重新映射时从访问位置开始提示内核预读的长度
+     */
+    private static final int REMAP_READ_AHEAD_SIZE = 1024 * 1024 * 4;
     protected static final Logger log = LoggerFactory.getLogger(MappedFile.class);
 
     private static final AtomicLong TOTAL_MAPPED_VIRTUAL_MEMORY = new AtomicLong(0);
 
     private static final AtomicInteger TOTAL_MAPPED_FILES = new AtomicInteger(0);
+    /*
+     * 当前被 mlock 锁定的文件数，不超过 store.mlock.max.file.count
+     */
+    private static final AtomicInteger TOTAL_LOCKED_FILES = new AtomicInteger(0);
     protected final AtomicInteger wrotePosition = new AtomicInteger(0);
     protected final AtomicInteger committedPosition = new AtomicInteger(0);
     private final AtomicInteger flushedPosition = new AtomicInteger(0);
@@ -58,9 +69,14 @@ public class MappedFile extends ReferenceResource {
     private String fileName;
     private long fileFromOffset;
     private File file;
-    private MappedByteBuffer mappedByteBuffer;
+    /*
+     * 被 MappedMemoryManager 解除映射之后为 null，下一次访问时重新映射
+     */
+    private volatile MappedByteBuffer mappedByteBuffer;
+    private volatile long lastAccessTimestamp = System.currentTimeMillis();
     private volatile long storeTimestamp = 0;
     private boolean firstCreateInQueue = false;
+    private final AtomicBoolean locked = new AtomicBoolean(false);
 
     public MappedFile() {
     }
@@ -134,6 +150,10 @@ public class MappedFile extends ReferenceResource {
         return TOTAL_MAPPED_FILES.get();
     }
 
+    public static int getTotalLockedFiles() {
+        return TOTAL_LOCKED_FILES.get();
+    }
+
     public static long getTotalMappedVirtualMemory() {
         return TOTAL_MAPPED_VIRTUAL_MEMORY.get();
     }
@@ -158,6 +178,7 @@ public class MappedFile extends ReferenceResource {
             this.mappedByteBuffer = this.fileChannel.map(MapMode.READ_WRITE, 0, fileSize);
             TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(fileSize);
             TOTAL_MAPPED_FILES.incrementAndGet();
+            MappedMemoryManager.register(this);
             ok = true;
         } catch (FileNotFoundException e) {
             log.error("Failed to create file " + this.fileName, e);
@@ -199,7 +220,7 @@ public class MappedFile extends ReferenceResource {
         int currentPos = this.wrotePosition.get();
 
         if (currentPos < this.fileSize) {
-            ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.mappedByteBuffer.slice();
+            ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.mappedBuffer(currentPos).slice();
             byteBuffer.position(currentPos);
             AppendMessageResult result;
             if (messageExt instanceof MessageExtBrokerInner) {
@@ -276,13 +297,17 @@ public class MappedFile extends ReferenceResource {
                     if (writeBuffer != null || this.fileChannel.position() != 0) {
                         this.fileChannel.force(false);
                     } else {
-                        this.mappedByteBuffer.force();
+                        this.mappedBuffer(0).force();
                     }
                 } catch (Throwable e) {
                     log.error("Error occurred when force data to disk.", e);
                 }
 
                 this.flushedPosition.set(value);
+                // 写满并全部刷盘之后不再需要常驻内存
+                if (value == this.fileSize) {
+                    this.munlock();
+                }
                 this.release();
             } else {
                 log.warn("in flush, hold failed, flush offset = " + this.flushedPosition.get());
@@ -379,7 +404,7 @@ public class MappedFile extends ReferenceResource {
         int readPosition = getReadPosition();
         if ((pos + size) <= readPosition) {
             if (this.hold()) {
-                ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+                ByteBuffer byteBuffer = this.mappedBuffer(pos).slice();
                 byteBuffer.position(pos);
                 ByteBuffer byteBufferNew = byteBuffer.slice();
                 byteBufferNew.limit(size);
@@ -400,7 +425,7 @@ public class MappedFile extends ReferenceResource {
         int readPosition = getReadPosition();
         if (pos < readPosition && pos >= 0) {
             if (this.hold()) {
-                ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+                ByteBuffer byteBuffer = this.mappedBuffer(pos).slice();
                 byteBuffer.position(pos);
                 int size = readPosition - pos;
                 ByteBuffer byteBufferNew = byteBuffer.slice();
@@ -426,9 +451,15 @@ public class MappedFile extends ReferenceResource {
             return true;
         }
 
-        clean(this.mappedByteBuffer);
-        TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
-        TOTAL_MAPPED_FILES.decrementAndGet();
+        MappedMemoryManager.unregister(this);
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (buffer != null) {
+            this.mappedByteBuffer = null;
+            munlock(buffer);
+            clean(buffer);
+            TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
+            TOTAL_MAPPED_FILES.decrementAndGet();
+        }
         log.info("unmap file[REF:" + currentRef + "] " + this.fileName + " OK");
         return true;
     }
@@ -479,55 +510,154 @@ public class MappedFile extends ReferenceResource {
         this.committedPosition.set(pos);
     }
 
-//    public void warmMappedFile(FlushDiskType type, int pages) {
-//        long beginTime = System.currentTimeMillis();
-//        ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
-//        int flush = 0;
-//        long time = System.currentTimeMillis();
-//        for (int i = 0, j = 0; i < this.fileSize; i += MappedFile.OS_PAGE_SIZE, j++) {
-//            byteBuffer.put(i, (byte) 0);
-//            // force flush when flush disk type is sync
-//            if (type == FlushDiskType.SYNC_FLUSH) {
-//                if ((i / OS_PAGE_SIZE) - (flush / OS_PAGE_SIZE) >= pages) {
-//                    flush = i;
-//                    mappedByteBuffer.force();
-//                }
-//            }
-//
-//            // prevent gc
-//            if (j % 1000 == 0) {
-//                log.info("j={}, costTime={}", j, System.currentTimeMillis() - time);
-//                time = System.currentTimeMillis();
-//                try {
-//                    Thread.sleep(0);
-//                } catch (InterruptedException e) {
-//                    log.error("Interrupted", e);
-//                }
-//            }
-//        }
-//
-//        // force flush when prepare load finished
-//        if (type == FlushDiskType.SYNC_FLUSH) {
-//            log.info("mapped file warm-up done, force to disk, mappedFile={}, costTime={}",
-//                this.getFileName(), System.currentTimeMillis() - beginTime);
-//            mappedByteBuffer.force();
-//        }
-//        log.info("mapped file warm-up done. mappedFile={}, costTime={}", this.getFileName(),
-//            System.currentTimeMillis() - beginTime);
-//
-//        this.mlock();
-//    }
+    /**
+     * 预先写满每一页，让缺页中断发生在预分配线程上而不是写消息的线程上。
+     * 同步刷盘时每写 pages 页强制刷一次盘，避免预热结束时一次性刷出整个文件
+     */
+    public void warmMappedFile(FlushDiskType type, int pages) {
+        long beginTime = System.currentTimeMillis();
+        MappedByteBuffer mappedByteBuffer = this.mappedBuffer(0);
+        ByteBuffer byteBuffer = mappedByteBuffer.slice();
+        int flush = 0;
+        for (int i = 0, j = 0; i < this.fileSize; i += MappedFile.OS_PAGE_SIZE, j++) {
+            byteBuffer.put(i, (byte) 0);
+            // force flush when flush disk type is sync
+            if (type == FlushDiskType.SYNC_FLUSH) {
+                if ((i / OS_PAGE_SIZE) - (flush / OS_PAGE_SIZE) >= pages) {
+                    flush = i;
+                    mappedByteBuffer.force();
+                }
+            }
+
+            // prevent gc
+            if (j % 1000 == 0) {
+                try {
+                    Thread.sleep(0);
+                } catch (InterruptedException e) {
+                    log.error("Interrupted", e);
+                }
+            }
+        }
+
+        // force flush when prepare load finished
+        if (type == FlushDiskType.SYNC_FLUSH) {
+            mappedByteBuffer.force();
+        }
+        log.info("mapped file warm-up done. mappedFile={}, costTime={}", this.getFileName(),
+                System.currentTimeMillis() - beginTime);
+    }
 
     public String getFileName() {
         return fileName;
     }
 
     public MappedByteBuffer getMappedByteBuffer() {
-        return mappedByteBuffer;
+        return mappedBuffer(0);
     }
 
     public ByteBuffer sliceByteBuffer() {
-        return this.mappedByteBuffer.slice();
+        return this.mappedBuffer(0).slice();
+    }
+
+    public boolean isMapped() {
+        return this.mappedByteBuffer != null;
+    }
+
+    public long getLastAccessTimestamp() {
+        return lastAccessTimestamp;
+    }
+
+    /**
+     * 所有对映射内存的访问都经过这里，记录访问时间，已经解除映射时重新映射
+     *
+     * @param position 本次访问的位置，重新映射时从这里开始提示内核预读
+     */
+    private MappedByteBuffer mappedBuffer(int position) {
+        this.lastAccessTimestamp = System.currentTimeMillis();
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (buffer != null) {
+            return buffer;
+        }
+        return remap(position);
+    }
+
+    private synchronized MappedByteBuffer remap(int position) {
+        if (this.mappedByteBuffer != null) {
+            return this.mappedByteBuffer;
+        }
+        if (!this.isAvailable() && this.getRefCount() <= 0) {
+            throw new IllegalStateException("mapped file " + this.fileName + " has been cleaned up");
+        }
+        try {
+            MappedByteBuffer buffer = this.fileChannel.map(MapMode.READ_WRITE, 0, this.fileSize);
+            TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize);
+            TOTAL_MAPPED_FILES.incrementAndGet();
+            int start = Math.max(0, Math.min(position, this.fileSize - 1)) / OS_PAGE_SIZE * OS_PAGE_SIZE;
+            madvise(buffer, start, Math.min(REMAP_READ_AHEAD_SIZE, this.fileSize - start), LibC.MADV_WILLNEED);
+            this.mappedByteBuffer = buffer;
+            log.info("remap file {} at position {}", this.fileName, position);
+            return buffer;
+        } catch (IOException e) {
+            log.error("Failed to remap file " + this.fileName, e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 由 {@link MappedMemoryManager} 调用，解除已经写满并全部刷盘、没有被 hold、accessBefore 之后没有访问过的文件的映射。
+     * 先置空再检查访问时间，在检查之前拿到旧映射的读取方一定已经更新了访问时间，此时恢复映射并放弃
+     *
+     * @return 是否解除了映射
+     */
+    synchronized boolean unmap(long accessBefore) {
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (buffer == null || !this.isAvailable() || this.getRefCount() != 1
+                || !this.isFull() || this.getFlushedPosition() < this.fileSize) {
+            return false;
+        }
+        this.mappedByteBuffer = null;
+        if (this.lastAccessTimestamp > accessBefore) {
+            this.mappedByteBuffer = buffer;
+            return false;
+        }
+        munlock(buffer);
+        madvise(buffer, 0, this.fileSize, LibC.MADV_DONTNEED);
+        clean(buffer);
+        TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
+        TOTAL_MAPPED_FILES.decrementAndGet();
+        log.info("unmap cold file {}", this.fileName);
+        return true;
+    }
+
+    /**
+     * 提示内核异步预读 [position, position + length)，让落后的消费者读取时不再同步等待缺页。
+     * 已经解除映射时会重新映射
+     *
+     * @return 文件已经关闭时返回 false
+     */
+    public boolean readAhead(int position, int length) {
+        if (!this.hold()) {
+            return false;
+        }
+        try {
+            int start = Math.max(0, position) / OS_PAGE_SIZE * OS_PAGE_SIZE;
+            madvise(this.mappedBuffer(start), start, Math.min(position + length, this.fileSize) - start, LibC.MADV_WILLNEED);
+            return true;
+        } finally {
+            this.release();
+        }
+    }
+
+    private void madvise(MappedByteBuffer buffer, int position, int length, int advice) {
+        if (length <= 0) {
+            return;
+        }
+        try {
+            Pointer pointer = new Pointer(((DirectBuffer) buffer).address() + position);
+            LibC.INSTANCE.madvise(pointer, new NativeLong(length), advice);
+        } catch (Throwable e) {
+            log.warn("madvise {} {} {} {} error", this.fileName, position, length, advice, e);
+        }
     }
 
     public long getStoreTimestamp() {
@@ -542,24 +672,57 @@ public class MappedFile extends ReferenceResource {
         this.firstCreateInQueue = firstCreateInQueue;
     }
 
-    public void mlock() {
+    /**
+     * 锁定整个文件的内存并提示内核预读。同时锁定的文件数达到 store.mlock.max.file.count 时不再锁定，
+     * 文件写满并刷盘、解除映射或者销毁时调用 {@link #munlock()} 释放
+     *
+     * @return 是否锁定成功
+     */
+    public boolean mlock() {
+        if (TOTAL_LOCKED_FILES.incrementAndGet() > MetaInfo.PROPERTY_STORE_MLOCK_MAX_FILE_COUNT) {
+            TOTAL_LOCKED_FILES.decrementAndGet();
+            log.info("skip mlock {}, locked files reach the limit {}", this.fileName, MetaInfo.PROPERTY_STORE_MLOCK_MAX_FILE_COUNT);
+            return false;
+        }
         final long beginTime = System.currentTimeMillis();
-        final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
+        final long address = ((DirectBuffer) (this.mappedBuffer(0))).address();
         Pointer pointer = new Pointer(address);
+        boolean success;
         {
             int ret = LibC.INSTANCE.mlock(pointer, new NativeLong(this.fileSize));
             log.info("mlock {} {} {} ret = {} time consuming = {}", address, this.fileName, this.fileSize, ret, System.currentTimeMillis() - beginTime);
+            success = ret == 0;
+            if (success) {
+                this.locked.set(true);
+            } else {
+                TOTAL_LOCKED_FILES.decrementAndGet();
+            }
         }
 
         {
             int ret = LibC.INSTANCE.madvise(pointer, new NativeLong(this.fileSize), LibC.MADV_WILLNEED);
             log.info("madvise {} {} {} ret = {} time consuming = {}", address, this.fileName, this.fileSize, ret, System.currentTimeMillis() - beginTime);
         }
+        return success;
     }
 
+    /**
+     * 释放 {@link #mlock()} 锁定的内存，没有锁定时什么也不做
+     */
     public void munlock() {
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (buffer != null) {
+            munlock(buffer);
+        }
+    }
+
+    private void munlock(MappedByteBuffer buffer) {
+        if (!this.locked.compareAndSet(true, false)) {
+            return;
+        }
+        TOTAL_LOCKED_FILES.decrementAndGet();
         final long beginTime = System.currentTimeMillis();
-        final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
+        final long address = ((DirectBuffer) buffer).address();
         Pointer pointer = new Pointer(address);
         int ret = LibC.INSTANCE.munlock(pointer, new NativeLong(this.fileSize));
         log.info("munlock {} {} {} ret = {} time consuming = {}", address, this.fileName, this.fileSize, ret, System.currentTimeMillis() - beginTime);
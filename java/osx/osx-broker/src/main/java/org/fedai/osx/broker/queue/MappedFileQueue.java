@@ -34,7 +34,7 @@ public class MappedFileQueue {
     private final CopyOnWriteArrayList<MappedFile> mappedFiles = new CopyOnWriteArrayList<MappedFile>();
     private final AllocateMappedFileService allocateMappedFileService;
 
-    private long flushedWhere = 0;
+    private volatile long flushedWhere = 0;
     private long committedWhere = 0;
 
     private volatile long storeTimestamp = 0;
@@ -136,11 +136,10 @@ public class MappedFileQueue {
     }
 
     public boolean load() {
-        File dir = new File(this.storePath);
-        File[] files = dir.listFiles();
+        File[] files = listFiles();
         if (files != null) {
             // ascending order
-            Arrays.sort(files);
+            Arrays.sort(files, Comparator.comparing(File::getName));
             for (File file : files) {
 
                 if (file.length() != this.mappedFileSize) {
@@ -182,6 +181,17 @@ public class MappedFileQueue {
         return 0;
     }
 
+    protected File[] listFiles() {
+        return new File(this.storePath).listFiles();
+    }
+
+    /**
+     * 新文件的完整路径，文件名为文件起始位置的全局偏移量
+     */
+    protected String buildFilePath(long createOffset) {
+        return this.storePath + File.separator + UtilAll.offset2FileName(createOffset);
+    }
+
     public MappedFile getLastMappedFile(final long startOffset, boolean needCreate) {
         long createOffset = -1;
         MappedFile mappedFileLast = getLastMappedFile();
@@ -195,13 +205,13 @@ public class MappedFileQueue {
         }
 
         if (createOffset != -1 && needCreate) {
-            String nextFilePath = this.storePath + File.separator + UtilAll.offset2FileName(createOffset);
-            String nextNextFilePath = this.storePath + File.separator
-                    + UtilAll.offset2FileName(createOffset + this.mappedFileSize);
+            String nextFilePath = buildFilePath(createOffset);
+            String nextNextFilePath = buildFilePath(createOffset + this.mappedFileSize);
             MappedFile mappedFile = null;
 
             if (this.allocateMappedFileService != null) {
-                mappedFile = this.allocateMappedFileService.putRequestAndReturnMappedFile(nextFilePath, this.mappedFileSize);
+                mappedFile = this.allocateMappedFileService.putRequestAndReturnMappedFile(nextFilePath,
+                        nextNextFilePath, this.mappedFileSize);
             } else {
                 try {
                     mappedFile = new MappedFile(nextFilePath, this.mappedFileSize);
@@ -369,6 +379,47 @@ public class MappedFileQueue {
         return deleteCount;
     }
 
+    /**
+     * 从第一个文件开始删除整个文件都在 offset 之前的文件，最后一个文件不删除。
+     * 每删除一个文件等待 deleteFilesInterval 毫秒，单次最多删除 DELETE_FILES_BATCH_MAX 个，避免集中删除影响前台读写
+     */
+    public int deleteFilesBeforeOffset(final long offset,
+                                       final int deleteFilesInterval,
+                                       final long intervalForcibly) {
+        Object[] mfs = this.copyMappedFiles(0);
+
+        if (null == mfs)
+            return 0;
+
+        int mfsLength = mfs.length - 1;
+        int deleteCount = 0;
+        List<MappedFile> files = new ArrayList<MappedFile>();
+        for (int i = 0; i < mfsLength; i++) {
+            MappedFile mappedFile = (MappedFile) mfs[i];
+            if (mappedFile.getFileFromOffset() + this.mappedFileSize > offset) {
+                break;
+            }
+            if (!mappedFile.destroy(intervalForcibly)) {
+                break;
+            }
+            files.add(mappedFile);
+            deleteCount++;
+            if (files.size() >= DELETE_FILES_BATCH_MAX) {
+                break;
+            }
+            if (deleteFilesInterval > 0 && (i + 1) < mfsLength) {
+                try {
+                    Thread.sleep(deleteFilesInterval);
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+
+        deleteExpiredFile(files);
+
+        return deleteCount;
+    }
+
     public int deleteExpiredFileByOffset(long offset, int unitSize) {
         Object[] mfs = this.copyMappedFiles(0);
 
@@ -564,10 +615,13 @@ public class MappedFileQueue {
         this.flushedWhere = 0;
 
         // delete parent directory
+        deleteStoreDir(storePath);
+    }
 
-        File file = new File(storePath);
+    protected void deleteStoreDir(String path) {
+        File file = new File(path);
         if (file.isDirectory()) {
-            log.info("delete {}", storePath);
+            log.info("delete {}", path);
             file.delete();
         }
     }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.queue;
+
+import org.fedai.osx.core.frame.ServiceThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 限制所有 {@link MappedFile} 映射的内存总量。
+ * <p>
+ * 映射总量超过预算时，按最近一次访问时间从早到晚解除冷文件的映射，直到回到预算以内；
+ * 解除映射的文件在下一次读取时重新映射。冷文件指已经写满并且全部刷盘、超过 coldTime 没有访问、没有被 hold 的文件，
+ * 正在写入的文件以及正在被读取的文件不会解除映射。
+ * <p>
+ * 所有文件在映射时注册到这里，没有启动该线程时只记录不解除映射
+ */
+public class MappedMemoryManager extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(MappedMemoryManager.class);
+    private static final Set<MappedFile> MAPPED_FILES = ConcurrentHashMap.newKeySet();
+
+    private final long budget;
+    private final long coldTime;
+    private final long checkInterval;
+    private final AtomicLong unmapTimes = new AtomicLong(0);
+    private final AtomicLong unmapBytes = new AtomicLong(0);
+
+    /**
+     * @param budget        映射内存的上限，单位字节
+     * @param coldTime      超过该时间没有访问的文件才会解除映射，单位毫秒
+     * @param checkInterval 检查间隔，单位毫秒
+     */
+    public MappedMemoryManager(long budget, long coldTime, long checkInterval) {
+        this.budget = budget;
+        this.coldTime = coldTime;
+        this.checkInterval = checkInterval;
+    }
+
+    static void register(MappedFile mappedFile) {
+        MAPPED_FILES.add(mappedFile);
+    }
+
+    static void unregister(MappedFile mappedFile) {
+        MAPPED_FILES.remove(mappedFile);
+    }
+
+    /**
+     * 超过预算时解除最久没有访问的冷文件的映射
+     *
+     * @return 本次解除映射的文件数
+     */
+    public int checkAndUnmap() {
+        long mapped = MappedFile.getTotalMappedVirtualMemory();
+        if (mapped <= budget) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        List<MappedFile> candidates = new ArrayList<>();
+        for (MappedFile mappedFile : MAPPED_FILES) {
+            if (mappedFile.isMapped() && now - mappedFile.getLastAccessTimestamp() >= coldTime) {
+                candidates.add(mappedFile);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(MappedFile::getLastAccessTimestamp));
+        int count = 0;
+        for (MappedFile mappedFile : candidates) {
+            if (MappedFile.getTotalMappedVirtualMemory() <= budget) {
+                break;
+            }
+            if (mappedFile.unmap(now - coldTime)) {
+                count++;
+                unmapTimes.incrementAndGet();
+                unmapBytes.addAndGet(mappedFile.getFileSize());
+            }
+        }
+        if (MappedFile.getTotalMappedVirtualMemory() > budget) {
+            log.warn("mapped memory {} still over budget {} after unmapping {} cold files, candidates {}",
+                    MappedFile.getTotalMappedVirtualMemory(), budget, count, candidates.size());
+        }
+        return count;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getUnmapTimes() {
+        return unmapTimes.get();
+    }
+
+    public long getUnmapBytes() {
+        return unmapBytes.get();
+    }
+
+    @Override
+    public String getServiceName() {
+        return "MappedMemoryManager";
+    }
+
+    @Override
+    public void run() {
+        log.info("{} service started, budget {} bytes", this.getServiceName(), budget);
+        while (!this.isStopped()) {
+            this.waitForRunning(checkInterval);
+            try {
+                int count = checkAndUnmap();
+                if (count > 0) {
+                    log.info("unmap {} cold files, mapped files {}, mapped memory {}/{} bytes, total unmap times {}",
+                            count, MappedFile.getTotalMappedFiles(), MappedFile.getTotalMappedVirtualMemory(), budget, unmapTimes.get());
+                }
+            } catch (Exception e) {
+                log.error("{} check mapped memory error", this.getServiceName(), e);
+            }
+        }
+        log.info("{} service end", this.getServiceName());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.queue;
+
+import com.lmax.disruptor.*;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.fedai.osx.broker.callback.MsgEventCallback;
+import org.fedai.osx.broker.consumer.ConsumerManager;
+import org.fedai.osx.broker.message.MessageExt;
+import org.fedai.osx.core.datasource.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 消息事件回调的分发器，写入消息之后只把事件放入 ring buffer，回调在分发线程上执行，
+ * 生产者的耗时不再受回调耗时影响。
+ * <p>
+ * 每个分发线程对应一条通道，topic 按 hash 固定分配到一条通道上，同一个 topic 的回调按写入顺序串行执行。
+ * 每条通道有独立的 ring buffer，ring buffer 满时只有写入该通道的生产者等待空位，
+ * 某个 topic 的回调变慢不会阻塞其他通道上的 topic，内存占用有上限
+ */
+public class MsgEventDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(MsgEventDispatcher.class);
+    private static final EventTranslatorVararg<MsgEvent> TRANSLATOR = (event, sequence, args) -> {
+        event.consumerManager = (ConsumerManager) args[0];
+        event.transferQueue = (TransferQueue) args[1];
+        event.message = (MessageExt) args[2];
+        event.callbacks = (List<MsgEventCallback>) args[3];
+    };
+
+    private final Disruptor<MsgEvent>[] disruptors;
+    private final int laneCount;
+    private final int ringSize;
+
+    /**
+     * @param bufferSize 每条通道的 ring buffer 大小，向上取整为 2 的幂
+     */
+    @SuppressWarnings("unchecked")
+    public MsgEventDispatcher(int laneCount, int bufferSize, String waitStrategy) {
+        this.laneCount = Math.max(laneCount, 1);
+        this.ringSize = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+        NamedThreadFactory threadFactory = new NamedThreadFactory("msg-event-dispatch", true);
+        this.disruptors = new Disruptor[this.laneCount];
+        for (int i = 0; i < this.laneCount; i++) {
+            Disruptor<MsgEvent> disruptor = new Disruptor<>(MsgEvent::new, ringSize, threadFactory,
+                    ProducerType.MULTI, createWaitStrategy(waitStrategy));
+            disruptor.handleEventsWith(new LaneHandler());
+            disruptor.setDefaultExceptionHandler(new LogExceptionHandler());
+            disruptors[i] = disruptor;
+        }
+    }
+
+    static WaitStrategy createWaitStrategy(String waitStrategy) {
+        switch (waitStrategy == null ? "" : waitStrategy.toLowerCase()) {
+            case "sleeping":
+                return new SleepingWaitStrategy();
+            case "yielding":
+                return new YieldingWaitStrategy();
+            case "busyspin":
+                return new BusySpinWaitStrategy();
+            case "blocking":
+                return new BlockingWaitStrategy();
+            default:
+                logger.warn("unknown msg event dispatch wait strategy {}, use blocking", waitStrategy);
+                return new BlockingWaitStrategy();
+        }
+    }
+
+    public void start() {
+        for (Disruptor<MsgEvent> disruptor : disruptors) {
+            disruptor.start();
+        }
+        logger.info("msg event dispatcher started, lane count {} buffer size {}", laneCount, ringSize);
+    }
+
+    /**
+     * 在队列的写锁内调用，保证同一个 topic 的事件按写入顺序进入 ring buffer。
+     * callbacks 会在分发线程上读取，调用方需要传入不会再被修改的列表
+     */
+    public void dispatch(ConsumerManager consumerManager, TransferQueue transferQueue, MessageExt message, List<MsgEventCallback> callbacks) {
+        disruptors[getLane(transferQueue.getTransferId())].publishEvent(TRANSLATOR, consumerManager, transferQueue, message, callbacks);
+    }
+
+    public int getLane(String transferId) {
+        return (transferId.hashCode() & Integer.MAX_VALUE) % laneCount;
+    }
+
+    public long getPendingCount() {
+        long pendingCount = 0;
+        for (int i = 0; i < laneCount; i++) {
+            pendingCount += getPendingCount(i);
+        }
+        return pendingCount;
+    }
+
+    public long getPendingCount(int lane) {
+        RingBuffer<MsgEvent> ringBuffer = disruptors[lane].getRingBuffer();
+        return ringBuffer.getBufferSize() - ringBuffer.remainingCapacity();
+    }
+
+    /**
+     * 等待已经放入的事件处理完成后停止分发线程，timeout 为所有通道共用的等待时间
+     */
+    public void shutdown(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (int i = 0; i < laneCount; i++) {
+            try {
+                disruptors[i].shutdown(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                logger.warn("msg event dispatcher lane {} shutdown timeout, pending {}", i, getPendingCount(i));
+                disruptors[i].halt();
+            }
+        }
+    }
+
+    static class MsgEvent {
+        ConsumerManager consumerManager;
+        TransferQueue transferQueue;
+        MessageExt message;
+        List<MsgEventCallback> callbacks;
+
+        void clear() {
+            consumerManager = null;
+            transferQueue = null;
+            message = null;
+            callbacks = null;
+        }
+    }
+
+    /**
+     * 每条通道只有一个处理线程，按 ring buffer 中的顺序执行回调
+     */
+    private static class LaneHandler implements EventHandler<MsgEvent> {
+
+        @Override
+        public void onEvent(MsgEvent event, long sequence, boolean endOfBatch) {
+            try {
+                for (MsgEventCallback msgCallback : event.callbacks) {
+                    msgCallback.callback(event.consumerManager, event.transferQueue, event.message);
+                }
+            } catch (Exception e) {
+                logger.error("topic {} msg {} callback error", event.transferQueue.getTransferId(), event.message.getMsgId(), e);
+            } finally {
+                event.clear();
+            }
+        }
+    }
+
+    private static class LogExceptionHandler implements ExceptionHandler<MsgEvent> {
+        @Override
+        public void handleEventException(Throwable ex, long sequence, MsgEvent event) {
+            logger.error("msg event dispatch error, sequence {}", sequence, ex);
+        }
+
+        @Override
+        public void handleOnStartException(Throwable ex) {
+            logger.error("msg event dispatcher start error", ex);
+        }
+
+        @Override
+        public void handleOnShutdownException(Throwable ex) {
+            logger.error("msg event dispatcher shutdown error", ex);
+        }
+    }
+}
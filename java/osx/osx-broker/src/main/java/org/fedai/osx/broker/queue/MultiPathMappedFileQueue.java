@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.queue;
+
+import org.fedai.osx.broker.message.AllocateMappedFileService;
+import org.fedai.osx.broker.util.UtilAll;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * commit log 文件分布在多个目录上，每个目录通常对应一块磁盘。
+ * <p>
+ * 新文件放在未刷盘文件最少的目录，相同时选择剩余空间最大的目录，正在写入的文件与正在刷盘的文件落在不同的磁盘上；
+ * 剩余空间不足两个文件的目录不再放入新文件。
+ * 文件名仍然是全局偏移量，加载时合并所有目录按文件名排序，恢复、清理以及索引中记录的位置都不受影响
+ */
+public class MultiPathMappedFileQueue extends MappedFileQueue {
+    private static final Logger log = LoggerFactory.getLogger(MultiPathMappedFileQueue.class);
+
+    private final List<String> storePaths = new ArrayList<>();
+    /*
+     * 已经选定目录但还没有创建的文件，预分配提交的下下个文件在真正切换时必须使用同一个路径
+     */
+    private final ConcurrentSkipListMap<Long, String> plannedPaths = new ConcurrentSkipListMap<>();
+
+    public MultiPathMappedFileQueue(List<String> storePaths, int mappedFileSize,
+                                    AllocateMappedFileService allocateMappedFileService) {
+        super(storePaths.get(0), mappedFileSize, allocateMappedFileService);
+        for (String storePath : storePaths) {
+            this.storePaths.add(new File(storePath).getPath());
+        }
+    }
+
+    public List<String> getStorePaths() {
+        return storePaths;
+    }
+
+    @Override
+    protected File[] listFiles() {
+        List<File> files = new ArrayList<>();
+        for (String storePath : storePaths) {
+            File[] pathFiles = new File(storePath).listFiles();
+            if (pathFiles != null) {
+                for (File file : pathFiles) {
+                    files.add(file);
+                }
+            }
+        }
+        return files.toArray(new File[0]);
+    }
+
+    @Override
+    protected String buildFilePath(long createOffset) {
+        // 更早的文件已经创建，不再需要保留选定的目录
+        plannedPaths.headMap(createOffset).clear();
+        String storePath = plannedPaths.computeIfAbsent(createOffset, this::chooseStorePath);
+        return storePath + File.separator + UtilAll.offset2FileName(createOffset);
+    }
+
+    private String chooseStorePath(long createOffset) {
+        String best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        long bestFree = -1;
+        for (String storePath : storePaths) {
+            File dir = new File(storePath);
+            MappedFile.ensureDirOK(storePath);
+            long free = dir.getUsableSpace();
+            if (free < 2L * getMappedFileSize()) {
+                continue;
+            }
+            int load = writeLoad(storePath);
+            if (load < bestLoad || (load == bestLoad && free > bestFree)) {
+                best = storePath;
+                bestLoad = load;
+                bestFree = free;
+            }
+        }
+        if (best == null) {
+            best = storePaths.get(0);
+            log.warn("no store path has enough space for mapped file {}, use {}", createOffset, best);
+        }
+        return best;
+    }
+
+    /**
+     * 目录上还没有刷盘的文件数加上已经选定该目录但还没有创建的文件数
+     */
+    private int writeLoad(String storePath) {
+        int load = 0;
+        long flushedWhere = getFlushedWhere();
+        for (MappedFile mappedFile : getMappedFiles()) {
+            if (mappedFile.getFileFromOffset() + getMappedFileSize() > flushedWhere
+                    && storePath.equals(new File(mappedFile.getFileName()).getParent())) {
+                load++;
+            }
+        }
+        for (String plannedPath : plannedPaths.values()) {
+            if (storePath.equals(plannedPath)) {
+                load++;
+            }
+        }
+        return load;
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        plannedPaths.clear();
+        for (int i = 1; i < storePaths.size(); i++) {
+            deleteStoreDir(storePaths.get(i));
+        }
+    }
+}
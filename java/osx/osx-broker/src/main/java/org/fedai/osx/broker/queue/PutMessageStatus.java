@@ -26,4 +26,8 @@ public enum PutMessageStatus {
     PROPERTIES_SIZE_EXCEEDED,
     OS_PAGECACHE_BUSY,
     UNKNOWN_ERROR,
+    /**
+     * 去重窗口中已经存在相同的 msgCode，消息没有再次写入
+     */
+    MESSAGE_DUPLICATED,
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.queue;
+
+import org.fedai.osx.broker.consumer.ConsumerManager;
+import org.fedai.osx.broker.consumer.UnaryConsumer;
+import org.fedai.osx.broker.store.IndexQueue;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.frame.ServiceThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * 落后的消费者的预读。
+ * <p>
+ * 定期检查每个队列的消费进度，尚未消费的消息超过 store.read.ahead.lag.threshold 时，
+ * 对消费者接下来要读取的 commit log 范围调用 madvise(WILLNEED)，由内核在后台把数据读入 page cache，
+ * 消费线程读取时不再同步等待缺页。消费者读到已预读范围的一半时继续向后预读，每次最多领先 store.read.ahead.size。
+ * <p>
+ * 同一分片的 commit log 中交错存放多个队列的消息，预读范围按 commit log 位置计算，会包含其他队列的消息
+ */
+public class ReadAheadService extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(ReadAheadService.class);
+    private static final long REPORT_INTERVAL = 60 * 1000;
+
+    private final TransferQueueManager transferQueueManager;
+    private final long lagThreshold = (long) MetaInfo.PROPERTY_STORE_READ_AHEAD_LAG_THRESHOLD << 20;
+    private final long readAheadSize = (long) MetaInfo.PROPERTY_STORE_READ_AHEAD_SIZE << 20;
+    private long readAheadTimes;
+    private long readAheadBytes;
+    private long lastReportTimestamp = System.currentTimeMillis();
+
+    public ReadAheadService(TransferQueueManager transferQueueManager) {
+        this.transferQueueManager = transferQueueManager;
+    }
+
+    /**
+     * 检查所有队列并对落后的消费者提示预读
+     */
+    public void checkAndReadAhead() {
+        for (Map.Entry<String, AbstractQueue> entry : transferQueueManager.queueMap.entrySet()) {
+            if (!(entry.getValue() instanceof TransferQueue)) {
+                continue;
+            }
+            ConsumerManager consumerManager = transferQueueManager.consumerManager;
+            UnaryConsumer unaryConsumer = consumerManager != null ? consumerManager.getUnaryConsumer(entry.getKey()) : null;
+            if (unaryConsumer == null) {
+                continue;
+            }
+            try {
+                readAhead((TransferQueue) entry.getValue(), unaryConsumer.getConsumeOffset());
+            } catch (Exception e) {
+                log.error("read ahead topic {} error", entry.getKey(), e);
+            }
+        }
+    }
+
+    private void readAhead(TransferQueue transferQueue, long consumeOffset) {
+        IndexQueue indexQueue = transferQueue.getIndexQueue();
+        long needIndex = Math.max(consumeOffset, 1);
+        if (needIndex > indexQueue.getLogicOffset().get()) {
+            return;
+        }
+        long phyOffset = indexQueue.readPhyOffset(needIndex);
+        if (phyOffset < 0 || indexQueue.getMaxPhysicOffset() - phyOffset < lagThreshold) {
+            return;
+        }
+        long readAheadEnd = transferQueue.getReadAheadEnd();
+        if (readAheadEnd > phyOffset + readAheadSize) {
+            // 消费者回退到更早的位置，重新开始预读
+            readAheadEnd = 0;
+        }
+        if (readAheadEnd - phyOffset > readAheadSize / 2) {
+            return;
+        }
+        long start = Math.max(phyOffset, readAheadEnd);
+        long end = transferQueue.getMessageStore().readAhead(start, phyOffset + readAheadSize - start);
+        transferQueue.setReadAheadEnd(end);
+        if (end > start) {
+            readAheadTimes++;
+            readAheadBytes += end - start;
+        }
+    }
+
+    @Override
+    public String getServiceName() {
+        return "ReadAheadService";
+    }
+
+    @Override
+    public void run() {
+        log.info("{} service started", this.getServiceName());
+        while (!this.isStopped()) {
+            this.waitForRunning(MetaInfo.PROPERTY_STORE_READ_AHEAD_INTERVAL);
+            try {
+                checkAndReadAhead();
+            } catch (Exception e) {
+                log.error("{} read ahead error", this.getServiceName(), e);
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastReportTimestamp >= REPORT_INTERVAL) {
+                if (readAheadTimes > 0) {
+                    log.info("read ahead monitor, times {}, bytes {}", readAheadTimes, readAheadBytes);
+                }
+                readAheadTimes = 0;
+                readAheadBytes = 0;
+                lastReportTimestamp = now;
+            }
+        }
+        log.info("{} service end", this.getServiceName());
+    }
+}
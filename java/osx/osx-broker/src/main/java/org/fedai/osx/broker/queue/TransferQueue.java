@@ -15,7 +15,9 @@
  */
 package org.fedai.osx.broker.queue;
 
+import com.google.protobuf.ByteString;
 import lombok.Data;
+import org.apache.commons.lang3.StringUtils;
 import org.fedai.osx.broker.callback.MsgEventCallback;
 import org.fedai.osx.broker.constants.MessageFlag;
 import org.fedai.osx.broker.consumer.ConsumerManager;
@@ -23,7 +25,11 @@ import org.fedai.osx.broker.message.MessageDecoder;
 import org.fedai.osx.broker.message.MessageExt;
 import org.fedai.osx.broker.message.MessageExtBrokerInner;
 import org.fedai.osx.broker.message.SelectMappedBufferResult;
+import org.fedai.osx.broker.store.HotTailCache;
 import org.fedai.osx.broker.store.IndexQueue;
+import org.fedai.osx.broker.store.MessageStore;
+import org.fedai.osx.broker.store.MsgCodeDedupWindow;
+import org.fedai.osx.broker.store.SharedIndexStore;
 import org.fedai.osx.core.config.MetaInfo;
 import org.fedai.osx.core.constant.Dict;
 import org.fedai.osx.core.constant.StatusCode;
@@ -35,35 +41,79 @@ import org.fedai.osx.core.queue.TranferQueueInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Data
 public class TransferQueue extends AbstractQueue {
     Logger logger = LoggerFactory.getLogger(TransferQueue.class);
-    AtomicReferenceArray<String> receivedMsgIds = new AtomicReferenceArray<>(MetaInfo.PROPERTY_TRANSFER_CACHED_MSGID_SIZE);
+    /*
+     * 按 msgCode 去重的窗口，与索引队列放在同一目录下持久化，关闭去重时为 null
+     */
+    MsgCodeDedupWindow dedupWindow;
+    String dedupSnapshotPath;
+    /*
+     * 因 msgCode 重复而没有写入的消息数
+     */
+    AtomicLong duplicateCount = new AtomicLong(0);
+    long lastDedupSnapshotTimestamp;
     //    private Cache<String, OutboundPackage<Osx.Outbound>> receivedMsgCache;
     IndexQueue indexQueue;
+    /*
+     * 队列所在的 commit log 分片，同一个 session 的队列在同一个分片中
+     */
+    MessageStore messageStore;
+    /*
+     * 最近写入的消息，追上写入进度的消费者直接从这里读取，关闭缓存时为 null
+     */
+    HotTailCache.Tail hotTail;
+    /*
+     * 已经提示预读到的 commit log 位置，只由 ReadAheadService 读写
+     */
+    long readAheadEnd = 0;
     boolean hasEventMsgDestoryCallback = false;
+    /*
+     * 重启恢复时从检查点中读取的消费进度，消费者接入时使用
+     */
+    long recoveredConsumeOffset = 0;
 
-    public TransferQueue(String transferId, TransferQueueManager transferQueueManager, ConsumerManager consumerManager, String path) {
+    public TransferQueue(String transferId, TransferQueueManager transferQueueManager, ConsumerManager consumerManager,
+                         MessageStore messageStore, SharedIndexStore sharedIndexStore, String path) {
         this.transferId = transferId;
         this.transferQueueManager = transferQueueManager;
+        this.messageStore = messageStore;
         this.createTimestamp = System.currentTimeMillis();
         this.lastStatusChangeTimestamp = this.createTimestamp;
         this.lastWriteTimestamp = this.createTimestamp;
-        this.indexQueue = new IndexQueue(transferId, path, MetaInfo.PROPERTY_INDEX_MAP_FILE_SIZE);
+        this.indexQueue = new IndexQueue(transferId, path, MetaInfo.PROPERTY_INDEX_MAP_FILE_SIZE,
+                sharedIndexStore, MetaInfo.PROPERTY_STORE_INDEX_COMPACT_THRESHOLD);
+        this.dedupSnapshotPath = path + File.separator + transferId + ".dedup";
+        if (transferQueueManager.getHotTailCache() != null) {
+            this.hotTail = transferQueueManager.getHotTailCache().newTail(transferId);
+        }
+        if (MetaInfo.PROPERTY_TRANSFER_DEDUP_ENABLE) {
+            this.dedupWindow = new MsgCodeDedupWindow(MetaInfo.PROPERTY_TRANSFER_DEDUP_WINDOW_COUNT, MetaInfo.PROPERTY_TRANSFER_DEDUP_WINDOW_TIME);
+        }
         this.consumerManager = consumerManager;
 //        initReceivedMsgCache();
     }
 
     public synchronized boolean checkMsgIdDuplicate(String msgId) {
-        for (int i = 0; i < receivedMsgIds.length(); i++) {
-            String tempMsgId = receivedMsgIds.get(i);
-            if (msgId.equals(tempMsgId)) {
-                return true;
-            }
-        }
-        return false;
+        return dedupWindow != null && StringUtils.isNotEmpty(msgId) && dedupWindow.contains(msgId, System.currentTimeMillis());
+    }
+
+    /**
+     * 单独设置该队列的去重窗口，已经记录的 msgCode 会被清空
+     *
+     * @param maxCount   窗口内最多保留的 msgCode 个数
+     * @param windowTime 窗口保留时间，小于等于 0 时只按个数淘汰
+     */
+    public synchronized void configDedupWindow(int maxCount, long windowTime) {
+        this.dedupWindow = new MsgCodeDedupWindow(maxCount, windowTime);
     }
 
     private synchronized PutMessageResult putMessage(final MessageExtBrokerInner msg) {
@@ -71,18 +121,44 @@ public class TransferQueue extends AbstractQueue {
         if (transferStatus == TransferStatus.TRANSFERING) {
             String msgId = msg.getMsgId();
             this.lastWriteTimestamp = System.currentTimeMillis();
-            PutMessageResult putMessageResult = transferQueueManager.messageStore.putMessage(msg);
+            boolean dedup = dedupWindow != null && StringUtils.isNotEmpty(msgId);
+            if (dedup && dedupWindow.contains(msgId, this.lastWriteTimestamp)) {
+                return new PutMessageResult(PutMessageStatus.MESSAGE_DUPLICATED, null);
+            }
+            if (dedup) {
+                // 重启时从消息属性中恢复快照之后写入的 msgCode
+                msg.getProperties().put(Dict.MESSAGE_CODE, msgId);
+            }
+            // 取一次回调列表的快照，注册新的回调不影响本条消息
+            List<MsgEventCallback> callbacks = this.msgCallbacks;
+            PutMessageResult putMessageResult = messageStore.putMessage(msg);
             if (putMessageResult.isOk()) {
 
-                int cacheIdx = wrotePosition.addAndGet(1) % MetaInfo.PROPERTY_TRANSFER_CACHED_MSGID_SIZE;
-                receivedMsgIds.set(cacheIdx, msgId);
+                wrotePosition.addAndGet(1);
                 long beginWriteOffset = putMessageResult.getAppendMessageResult().getWroteOffset();
                 int size = putMessageResult.getAppendMessageResult().getWroteBytes();
-                putMessageResult.setMsgLogicOffset(indexQueue.putMessagePositionInfoWrapper(beginWriteOffset, size));
+                long logicOffset = indexQueue.putMessagePositionInfoWrapper(beginWriteOffset, size);
+                putMessageResult.setMsgLogicOffset(logicOffset);
+                if (dedup) {
+                    dedupWindow.add(msgId, this.lastWriteTimestamp, logicOffset);
+                }
+                if (hotTail != null && callbacks.size() == 0) {
+                    // 注册了回调的队列在写入时已经交给回调处理，不会再被消费
+                    hotTail.append(logicOffset, msg, beginWriteOffset, size);
+                }
+                if (consumerManager != null) {
+                    consumerManager.notifyMessageArriving(sessionId, transferId);
+                }
                 //todo 这里需要修改，用另外的队列类型来做，就不再需要持久化
-                if (this.msgCallbacks.size() > 0) {
+                MsgEventDispatcher msgEventDispatcher = transferQueueManager.getMsgEventDispatcher();
+                if (callbacks.size() > 0 && msgEventDispatcher != null) {
+                    /*
+                     * 回调交给分发线程执行，仍在队列锁内放入 ring buffer，保证同一个 topic 的回调顺序与写入顺序一致
+                     */
+                    msgEventDispatcher.dispatch(consumerManager, this, msg, callbacks);
+                } else if (callbacks.size() > 0) {
                     try {
-                        for (MsgEventCallback msgCallback : this.msgCallbacks) {
+                        for (MsgEventCallback msgCallback : callbacks) {
                             msgCallback.callback(consumerManager, this, msg);
                         }
                     } catch (Exception e) {
@@ -105,13 +181,22 @@ public class TransferQueue extends AbstractQueue {
     @Override
     public synchronized void putMessage(OsxContext context, Object data, MessageFlag messageFlag, String msgCode) {
         context.putData(Dict.MESSAGE_FLAG, messageFlag.name());
-        MessageExtBrokerInner messageExtBrokerInner = MessageDecoder.buildMessageExtBrokerInner(context.getTopic(), (byte[]) data, msgCode, messageFlag,
-                context.getSrcNodeId(),
-                context.getDesNodeId());
+        MessageExtBrokerInner messageExtBrokerInner = data instanceof ByteString ?
+                MessageDecoder.buildMessageExtBrokerInner(context.getTopic(), (ByteString) data, msgCode, messageFlag,
+                        context.getSrcNodeId(), context.getDesNodeId()) :
+                MessageDecoder.buildMessageExtBrokerInner(context.getTopic(), (byte[]) data, msgCode, messageFlag,
+                        context.getSrcNodeId(), context.getDesNodeId());
         messageExtBrokerInner.getProperties().put(Dict.SESSION_ID, sessionId);
         messageExtBrokerInner.getProperties().put(Dict.SOURCE_COMPONENT, context.getSrcComponent() != null ? context.getSrcComponent() : "");
         messageExtBrokerInner.getProperties().put(Dict.DES_COMPONENT, context.getDesComponent() != null ? context.getDesComponent() : "");
         PutMessageResult putMessageResult = this.putMessage(messageExtBrokerInner);
+        if (putMessageResult.getPutMessageStatus() == PutMessageStatus.MESSAGE_DUPLICATED) {
+            // 重试的消息已经写入过，直接按成功返回
+            logger.warn("topic {} msg code {} is duplicated, skip it, total duplicate count {}",
+                    transferId, msgCode, duplicateCount.incrementAndGet());
+            context.putData(Dict.CURRENT_INDEX, this.getIndexQueue().getLogicOffset().get());
+            return;
+        }
         if (putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
             throw new PutMessageException("put status " + putMessageResult.getPutMessageStatus());
         }
@@ -130,14 +215,22 @@ public class TransferQueue extends AbstractQueue {
             context.putData(Dict.REQUEST_INDEX, requestIndex);
             //context.setCurrentMsgIndex(logicIndex);
             context.putData(Dict.CURRENT_INDEX, logicIndex);
-            if (requestIndex <= logicIndex) {
+            MessageExt cachedMessage = requestIndex <= logicIndex ? getCachedMessage(requestIndex) : null;
+            if (cachedMessage != null) {
+                transferQueueConsumeResult = new TransferQueueConsumeResult(StatusCode.SUCCESS, null, requestIndex, logicIndex);
+                transferQueueConsumeResult.setMessage(cachedMessage);
+            } else if (requestIndex <= logicIndex) {
                 SelectMappedBufferResult indexBufferResult = this.indexQueue.getIndexBuffer(requestIndex);
                 if (indexBufferResult != null) {
-                    long pyOffset = indexBufferResult.getByteBuffer().getLong();
-                    SelectMappedBufferResult msgBufferResult = this.transferQueueManager.getMessageStore().consumeOneMessage(pyOffset);
-                    transferQueueConsumeResult = new TransferQueueConsumeResult(StatusCode.SUCCESS, msgBufferResult, requestIndex, logicIndex);
-                    MessageExt message = MessageDecoder.decode(transferQueueConsumeResult.getSelectMappedBufferResult().getByteBuffer());
-                    transferQueueConsumeResult.setMessage(message);
+                    long pyOffset;
+                    int size;
+                    try {
+                        pyOffset = indexBufferResult.getByteBuffer().getLong();
+                        size = indexBufferResult.getByteBuffer().getInt();
+                    } finally {
+                        indexBufferResult.release();
+                    }
+                    transferQueueConsumeResult = readMessage(pyOffset, size, requestIndex, logicIndex);
                 } else {
                     transferQueueConsumeResult = new TransferQueueConsumeResult(StatusCode.INVALID_INDEXFILE_DETAIL, null, requestIndex, logicIndex);
                 }
@@ -150,9 +243,198 @@ public class TransferQueue extends AbstractQueue {
         return transferQueueConsumeResult;
     }
 
+    /**
+     * 从 requestIndex 开始批量读取消息，连续的索引只读取一次索引文件。
+     * 条数达到 maxCount 或者消息累计达到 maxBytes 时停止，至少返回一条，消息大小按存储中的大小计算；
+     * 跨越索引文件时只返回当前索引文件中的消息，剩余的由下一次请求读取；
+     * 从缓存中读取时不受索引文件的限制
+     *
+     * @return 没有消息时返回空列表
+     */
+    public List<TransferQueueConsumeResult> consumeMessages(OsxContext context, long requestIndex, int maxCount, int maxBytes) {
+        if (transferStatus != TransferStatus.TRANSFERING) {
+            throw new TransferQueueInvalidStatusException("transfer queue invalid status : " + transferStatus);
+        }
+        this.lastReadTimestamp = System.currentTimeMillis();
+        long logicIndex = indexQueue.getLogicOffset().get();
+        context.putData(Dict.REQUEST_INDEX, requestIndex);
+        context.putData(Dict.CURRENT_INDEX, logicIndex);
+        List<TransferQueueConsumeResult> results = new ArrayList<>();
+        if (requestIndex > logicIndex) {
+            return results;
+        }
+        long totalBytes = 0;
+        MessageExt cachedMessage = getCachedMessage(requestIndex);
+        if (cachedMessage != null) {
+            long index = requestIndex;
+            while (cachedMessage != null) {
+                int size = cachedMessage.getStoreSize();
+                if (!results.isEmpty() && totalBytes + size > maxBytes) {
+                    break;
+                }
+                TransferQueueConsumeResult result = new TransferQueueConsumeResult(StatusCode.SUCCESS, null, index, logicIndex);
+                result.setMessage(cachedMessage);
+                results.add(result);
+                totalBytes += size;
+                index++;
+                cachedMessage = index <= logicIndex && results.size() < maxCount ? hotTail.get(index) : null;
+            }
+            return results;
+        }
+        SelectMappedBufferResult indexBufferResult = this.indexQueue.getIndexBuffer(requestIndex);
+        if (indexBufferResult == null) {
+            return results;
+        }
+        try {
+            ByteBuffer indexBuffer = indexBufferResult.getByteBuffer();
+            long index = requestIndex;
+            while (index <= logicIndex && results.size() < maxCount
+                    && indexBuffer.remaining() >= IndexQueue.CQ_STORE_UNIT_SIZE) {
+                long pyOffset = indexBuffer.getLong();
+                int size = indexBuffer.getInt();
+                if (!results.isEmpty() && totalBytes + size > maxBytes) {
+                    break;
+                }
+                TransferQueueConsumeResult result = readMessage(pyOffset, size, index, logicIndex);
+                results.add(result);
+                totalBytes += size;
+                index++;
+            }
+        } catch (RuntimeException e) {
+            for (TransferQueueConsumeResult result : results) {
+                result.release();
+            }
+            throw e;
+        } finally {
+            indexBufferResult.release();
+        }
+        return results;
+    }
+
+    /**
+     * 从缓存中读取 requestIndex 处的消息，同时淘汰之前已经消费的消息
+     *
+     * @return 不在缓存中时返回 null
+     */
+    private MessageExt getCachedMessage(long requestIndex) {
+        if (hotTail == null) {
+            return null;
+        }
+        hotTail.evictBefore(requestIndex);
+        MessageExt message = hotTail.get(requestIndex);
+        transferQueueManager.getHotTailCache().report();
+        return message;
+    }
+
+    private TransferQueueConsumeResult readMessage(long pyOffset, int size, long requestIndex, long logicIndex) {
+        SelectMappedBufferResult msgBufferResult = this.messageStore.consumeOneMessage(pyOffset, size);
+        TransferQueueConsumeResult transferQueueConsumeResult = new TransferQueueConsumeResult(StatusCode.SUCCESS, msgBufferResult, requestIndex, logicIndex);
+        /*
+         * 还没有刷盘的数据一直在 page cache 中，没有经过磁盘，可以跳过 crc 校验
+         */
+        boolean checkCRC = MetaInfo.PROPERTY_STORE_CRC_CHECK_ON_READ &&
+                !(MetaInfo.PROPERTY_STORE_CRC_SKIP_HOT_TAIL && pyOffset >= this.messageStore.getFlushedWhere());
+        /*
+         * 开启零拷贝时消息体不拷贝出来，直接引用 mappedFile 中的切片，
+         * 由调用方在响应发出之后调用 release 释放 mappedFile 的引用
+         */
+        boolean zeroCopy = MetaInfo.PROPERTY_STORE_CONSUME_ZERO_COPY;
+        try {
+            MessageExt message = MessageDecoder.decode(msgBufferResult.getByteBuffer(),
+                    !zeroCopy, true, false, checkCRC);
+            transferQueueConsumeResult.setMessage(message);
+        } catch (RuntimeException e) {
+            transferQueueConsumeResult.release();
+            throw e;
+        }
+        if (!zeroCopy) {
+            transferQueueConsumeResult.release();
+        }
+        return transferQueueConsumeResult;
+    }
+
+    /**
+     * 从 consumeOffset 开始尚未消费的消息在 commit log 中的最小位置，全部消费完时返回 Long.MAX_VALUE。
+     * 注册了回调的队列在写入时已经把消息交给回调处理，不再需要保留
+     */
+    public long getRetainPhyOffset(long consumeOffset) {
+        if (this.msgCallbacks.size() > 0) {
+            return Long.MAX_VALUE;
+        }
+        long needIndex = Math.max(consumeOffset, 1);
+        if (needIndex > indexQueue.getLogicOffset().get()) {
+            return Long.MAX_VALUE;
+        }
+        long phyOffset = indexQueue.readPhyOffset(needIndex);
+        return phyOffset >= 0 ? phyOffset : Long.MAX_VALUE;
+    }
+
+    /**
+     * 写入去重窗口的快照，没有变化或者距离上次写入不足 transfer.dedup.snapshot.interval 时跳过。
+     * 只在队列锁内复制窗口，写文件在锁外进行
+     */
+    public void saveDedupSnapshot(boolean force) throws IOException {
+        MsgCodeDedupWindow.Snapshot snapshot;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (dedupWindow == null || !dedupWindow.isChanged()
+                    || (!force && now - lastDedupSnapshotTimestamp < MetaInfo.PROPERTY_TRANSFER_DEDUP_SNAPSHOT_INTERVAL)) {
+                return;
+            }
+            snapshot = dedupWindow.snapshot(indexQueue.getLogicOffset().get());
+            lastDedupSnapshotTimestamp = now;
+        }
+        snapshot.save(dedupSnapshotPath);
+    }
+
+    /**
+     * 重启时恢复去重窗口：先加载快照，再从消息属性中补上快照之后写入的 msgCode。
+     * 没有快照时从最近 maxCount 条消息中恢复
+     */
+    public void recoverDedupWindow() {
+        if (dedupWindow == null) {
+            return;
+        }
+        long logicOffset = indexQueue.getLogicOffset().get();
+        MsgCodeDedupWindow.Snapshot snapshot = MsgCodeDedupWindow.Snapshot.load(dedupSnapshotPath);
+        long replayFrom;
+        if (snapshot != null) {
+            dedupWindow.restore(snapshot, logicOffset);
+            replayFrom = snapshot.getLogicOffset() + 1;
+        } else {
+            replayFrom = logicOffset - dedupWindow.getMaxCount() + 1;
+        }
+        replayFrom = Math.max(replayFrom, Math.max(1, indexQueue.getMinOffsetInQueue()));
+        int replayCount = 0;
+        for (long index = replayFrom; index <= logicOffset; index++) {
+            long pyOffset = indexQueue.readPhyOffset(index);
+            SelectMappedBufferResult msgBufferResult = pyOffset >= 0 ? messageStore.selectOneMessageByOffset(pyOffset) : null;
+            if (msgBufferResult == null) {
+                continue;
+            }
+            try {
+                MessageExt message = MessageDecoder.decode(msgBufferResult.getByteBuffer(), false);
+                String msgCode = message != null && message.getProperties() != null ? message.getProperties().get(Dict.MESSAGE_CODE) : null;
+                if (StringUtils.isNotEmpty(msgCode)) {
+                    dedupWindow.add(msgCode, message.getBornTimestamp(), index);
+                    replayCount++;
+                }
+            } finally {
+                msgBufferResult.release();
+            }
+        }
+        dedupWindow.evictExpired(System.currentTimeMillis());
+        logger.info("recover topic {} dedup window, snapshot size {}, replay {}, window size {}",
+                transferId, snapshot != null ? snapshot.size() : 0, replayCount, dedupWindow.size());
+    }
+
     public synchronized void destory() {
 
         this.indexQueue.destroy();
+        new File(dedupSnapshotPath).delete();
+        if (hotTail != null) {
+            hotTail.close();
+        }
         super.destory();
     }
 
@@ -1,9 +1,13 @@
 package org.fedai.osx.broker.queue;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import lombok.Data;
 import org.fedai.osx.broker.message.MessageExt;
 import org.fedai.osx.broker.message.SelectMappedBufferResult;
 
+import java.nio.ByteBuffer;
+
 @Data
 public class TransferQueueConsumeResult {
 
@@ -22,4 +26,60 @@ public class TransferQueueConsumeResult {
         this.requestIndex = requestIndex;
         this.logicIndexTotal = logicIndex;
     }
+
+    public int bodySize() {
+        if (message == null) {
+            return 0;
+        }
+        if (message.getBody() != null) {
+            return message.getBody().length;
+        }
+        return message.getBodyBuffer() != null ? message.getBodyBuffer().remaining() : 0;
+    }
+
+    /**
+     * 消息体为存储切片时会拷贝一份，只用于需要 byte[] 的场景，比如 http 返回
+     */
+    public byte[] bodyBytes() {
+        if (message == null) {
+            return null;
+        }
+        if (message.getBody() != null) {
+            return message.getBody();
+        }
+        ByteBuffer bodyBuffer = message.getBodyBuffer();
+        if (bodyBuffer == null) {
+            return null;
+        }
+        byte[] body = new byte[bodyBuffer.remaining()];
+        bodyBuffer.duplicate().get(body);
+        return body;
+    }
+
+    /**
+     * 消息体为存储切片时直接包装，不做拷贝。返回的 ByteString 在 {@link #release()} 之前有效，
+     * grpc 在 onNext 中会同步序列化，所以在 onNext 返回之后再释放
+     */
+    public ByteString bodyByteString() {
+        if (message == null) {
+            return null;
+        }
+        if (message.getBody() != null) {
+            return ByteString.copyFrom(message.getBody());
+        }
+        ByteBuffer bodyBuffer = message.getBodyBuffer();
+        if (bodyBuffer == null) {
+            return null;
+        }
+        return UnsafeByteOperations.unsafeWrap(bodyBuffer.duplicate());
+    }
+
+    /**
+     * 释放对 mappedFile 的引用，可以重复调用
+     */
+    public void release() {
+        if (selectMappedBufferResult != null) {
+            selectMappedBufferResult.release();
+        }
+    }
 }
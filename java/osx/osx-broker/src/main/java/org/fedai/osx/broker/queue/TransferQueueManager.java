@@ -23,16 +23,27 @@ import org.apache.commons.lang3.StringUtils;
 import org.fedai.osx.broker.callback.MsgEventCallback;
 import org.fedai.osx.broker.consumer.ConsumerManager;
 import org.fedai.osx.broker.consumer.EventDriverRule;
+import org.fedai.osx.broker.consumer.UnaryConsumer;
 import org.fedai.osx.broker.message.AllocateMappedFileService;
+import org.fedai.osx.broker.message.MessageDecoder;
+import org.fedai.osx.broker.message.MessageExt;
+import org.fedai.osx.broker.message.SelectMappedBufferResult;
+import org.fedai.osx.broker.store.HotTailCache;
+import org.fedai.osx.broker.store.IndexQueue;
 import org.fedai.osx.broker.store.MessageStore;
+import org.fedai.osx.broker.store.SharedIndexStore;
+import org.fedai.osx.broker.store.StoreCheckpoint;
 import org.fedai.osx.core.config.MetaInfo;
 import org.fedai.osx.core.constant.*;
 import org.fedai.osx.core.exceptions.SysException;
 import org.fedai.osx.core.frame.ServiceThread;
+import org.fedai.osx.core.service.ApplicationStartedRunner;
 import org.fedai.osx.core.utils.NetUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -42,7 +53,11 @@ import java.util.concurrent.locks.ReentrantLock;
 import static org.fedai.osx.core.config.MetaInfo.*;
 
 @Singleton
-public class TransferQueueManager {
+public class TransferQueueManager implements ApplicationStartedRunner {
+    private static final long MSG_EVENT_DISPATCHER_SHUTDOWN_TIMEOUT = 10000;
+    private static final String MESSAGE_STORE_DIR = "message-store";
+    private static final String SHARD_DIR_PREFIX = "shard-";
+    private static final String SHARED_INDEX_DIR = "shared-index";
     ThreadPoolExecutor errorCallBackExecutor = new ThreadPoolExecutor(1, 2, 1000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(100));
     Logger logger = LoggerFactory.getLogger(TransferQueueManager.class);
     volatile Map<String, TransferQueueApplyInfo> transferQueueApplyInfoMap = new ConcurrentHashMap<>();
@@ -61,11 +76,34 @@ public class TransferQueueManager {
             });
 
     ConcurrentHashMap<EventDriverRule, List<MsgEventCallback>> msgCallBackRuleMap = new ConcurrentHashMap<>();
+    /*
+     * 注册第一条回调规则时才创建，没有回调时不启动分发线程
+     */
+    volatile MsgEventDispatcher msgEventDispatcher;
 
     @Inject
     ConsumerManager consumerManager;
-    MessageStore messageStore;
+    /*
+     * commit log 分片，按 sessionId 选择分片，每个分片有独立的文件队列、写锁、刷盘与清理线程
+     */
+    List<MessageStore> messageStores = new ArrayList<>();
+    /*
+     * 每个分片一个共用索引文件，消息较少的队列只写这里，不再单独创建索引文件；关闭 store.index.compact.enable 时为空
+     */
+    List<SharedIndexStore> sharedIndexStores = new ArrayList<>();
     AllocateMappedFileService allocateMappedFileService;
+    /*
+     * 关闭 store.mapped.memory.budget.enable 时为 null
+     */
+    MappedMemoryManager mappedMemoryManager;
+    /*
+     * 关闭 store.read.ahead.enable 时为 null
+     */
+    ReadAheadService readAheadService;
+    /*
+     * 关闭 store.hot.tail.cache.enable 时为 null
+     */
+    HotTailCache hotTailCache;
     volatile long transferApplyInfoVersion = -1;
     private ServiceThread cleanTask = new ServiceThread() {
         @Override
@@ -80,9 +118,42 @@ public class TransferQueueManager {
             return "TransferQueueCleanTask";
         }
     };
+    private ServiceThread checkpointTask = new ServiceThread() {
+        @Override
+        public void run() {
+            while (!this.isStopped()) {
+                this.waitForRunning(MetaInfo.PROPERTY_STORE_CHECKPOINT_INTERVAL);
+                try {
+                    doCheckpoint();
+                } catch (Exception e) {
+                    logger.error("store checkpoint error", e);
+                }
+            }
+        }
+        @Override
+        public String getServiceName() {
+            return "StoreCheckpointTask";
+        }
+    };
     public TransferQueueManager() {
         allocateMappedFileService = createAllocateMappedFileService();
-        messageStore = createMessageStore(allocateMappedFileService);
+        if (MetaInfo.PROPERTY_STORE_MAPPED_MEMORY_BUDGET_ENABLE) {
+            mappedMemoryManager = new MappedMemoryManager((long) MetaInfo.PROPERTY_STORE_MAPPED_MEMORY_BUDGET << 20,
+                    MetaInfo.PROPERTY_STORE_MAPPED_MEMORY_COLD_TIME, MetaInfo.PROPERTY_STORE_MAPPED_MEMORY_CHECK_INTERVAL);
+            mappedMemoryManager.start();
+        }
+        int shardCount = getShardCount();
+        for (int shard = 0; shard < shardCount; shard++) {
+            messageStores.add(createMessageStore(allocateMappedFileService, shard));
+            if (MetaInfo.PROPERTY_STORE_INDEX_COMPACT_ENABLE) {
+                sharedIndexStores.add(new SharedIndexStore(getShardPath(shard) + File.separator + SHARED_INDEX_DIR,
+                        MetaInfo.PROPERTY_INDEX_MAP_FILE_SIZE));
+            }
+        }
+        if (MetaInfo.PROPERTY_STORE_HOT_TAIL_CACHE_ENABLE) {
+            hotTailCache = new HotTailCache((long) MetaInfo.PROPERTY_STORE_HOT_TAIL_CACHE_SIZE << 20,
+                    MetaInfo.PROPERTY_STORE_HOT_TAIL_CACHE_MESSAGE_MAX_SIZE, MetaInfo.PROPERTY_STORE_HOT_TAIL_CACHE_REPORT_INTERVAL);
+        }
         instanceIds.add(MetaInfo.INSTANCE_ID);
         cleanTask.start();
     }
@@ -93,18 +164,370 @@ public class TransferQueueManager {
         return sb.toString();
     }
 
+    private static String getStorePath() {
+        return MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE + File.separator + MetaInfo.INSTANCE_ID;
+    }
+
+    /**
+     * 第 0 个分片与不分片时的目录相同，其余分片在 shard-{n} 子目录中，分片的 commit log、队列索引与检查点都在各自的目录下
+     */
+    private static String getShardPath(int shard) {
+        return shard == 0 ? getStorePath() : getStorePath() + File.separator + SHARD_DIR_PREFIX + shard;
+    }
+
+    private static String getCheckpointPath(int shard) {
+        return getShardPath(shard) + File.separator + "checkpoint";
+    }
+
+    /**
+     * 配置的分片数与磁盘上已有的分片数取较大值，减少分片数之后已有分片中的队列仍然可以恢复，但不再分配新的 session
+     */
+    private int getShardCount() {
+        int shardCount = Math.max(1, MetaInfo.PROPERTY_STORE_COMMIT_LOG_SHARD_COUNT);
+        File[] shardDirs = new File(getStorePath()).listFiles(File::isDirectory);
+        if (shardDirs != null) {
+            for (File shardDir : shardDirs) {
+                int shard = parseShard(shardDir);
+                if (shard >= shardCount) {
+                    logger.warn("store shard {} exceeds store.commit.log.shard.count {}, only recover it", shard, MetaInfo.PROPERTY_STORE_COMMIT_LOG_SHARD_COUNT);
+                    shardCount = shard + 1;
+                }
+            }
+        }
+        return shardCount;
+    }
+
+    /**
+     * @return 不是分片目录时返回 -1
+     */
+    private static int parseShard(File dir) {
+        String name = dir.getName();
+        if (!name.startsWith(SHARD_DIR_PREFIX) || !new File(dir, MESSAGE_STORE_DIR).isDirectory()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SHARD_DIR_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return 没有开启索引紧凑存储时返回 null
+     */
+    private SharedIndexStore getSharedIndexStore(int shard) {
+        return shard < sharedIndexStores.size() ? sharedIndexStores.get(shard) : null;
+    }
+
+    /**
+     * 按 sessionId 的 hash 选择分片，同一个 session 的队列总是写入同一个分片
+     */
+    public MessageStore selectMessageStore(String sessionId) {
+        return messageStores.get(selectShard(sessionId));
+    }
+
+    private int selectShard(String sessionId) {
+        int shardCount = Math.min(Math.max(1, MetaInfo.PROPERTY_STORE_COMMIT_LOG_SHARD_COUNT), messageStores.size());
+        return sessionId == null ? 0 : Math.floorMod(sessionId.hashCode(), shardCount);
+    }
+
+    @Override
+    public void run(String[] args) {
+        if (MetaInfo.PROPERTY_STORE_RECOVER_ENABLE) {
+            recover();
+            checkpointTask.start();
+        }
+        /*
+         * 恢复完成、队列都已注册之后才按消费进度清理 commit log，否则会把尚未注册的队列的数据当作已消费删除
+         */
+        for (MessageStore messageStore : messageStores) {
+            messageStore.setRetainOffsetSupplier(() -> getMinRetainOffset(messageStore));
+        }
+        if (MetaInfo.PROPERTY_STORE_READ_AHEAD_ENABLE) {
+            readAheadService = new ReadAheadService(this);
+            readAheadService.start();
+        }
+    }
+
+    /**
+     * 分片中所有队列尚未消费的消息在 commit log 中的最小位置，该位置之前的文件已经没有队列引用，可以删除。
+     * 已经销毁的队列不在 queueMap 中，不再参与计算
+     */
+    public long getMinRetainOffset(MessageStore messageStore) {
+        long minRetainOffset = Long.MAX_VALUE;
+        for (Map.Entry<String, AbstractQueue> entry : queueMap.entrySet()) {
+            if (!(entry.getValue() instanceof TransferQueue)) {
+                continue;
+            }
+            TransferQueue transferQueue = (TransferQueue) entry.getValue();
+            if (transferQueue.getMessageStore() != messageStore) {
+                continue;
+            }
+            UnaryConsumer unaryConsumer = consumerManager != null ? consumerManager.getUnaryConsumer(entry.getKey()) : null;
+            long consumeOffset = unaryConsumer != null ? unaryConsumer.getConsumeOffset() : transferQueue.getRecoveredConsumeOffset();
+            minRetainOffset = Math.min(minRetainOffset, transferQueue.getRetainPhyOffset(consumeOffset));
+        }
+        return minRetainOffset;
+    }
+
+    /**
+     * 从检查点开始恢复每个分片的 commit log 与其中各个队列的索引，并把磁盘上已有的队列重新注册到 queueMap 中
+     */
+    public void recover() {
+        for (int shard = 0; shard < messageStores.size(); shard++) {
+            recoverShard(shard);
+        }
+    }
+
+    private void recoverShard(int shard) {
+        long beginTime = System.currentTimeMillis();
+        MessageStore messageStore = messageStores.get(shard);
+        StoreCheckpoint checkpoint = StoreCheckpoint.load(getCheckpointPath(shard));
+        long commitLogOffset = messageStore.load(checkpoint != null ? checkpoint.getCommitLogOffset() : -1);
+        SharedIndexStore sharedIndexStore = getSharedIndexStore(shard);
+        Map<Long, SharedIndexStore.Group> groups = sharedIndexStore != null ? sharedIndexStore.load(commitLogOffset) : null;
+        if (groups == null) {
+            groups = new HashMap<>();
+        }
+        File[] queueDirs = new File(getShardPath(shard)).listFiles(File::isDirectory);
+        int recoverCount = 0;
+        if (queueDirs != null) {
+            for (File queueDir : queueDirs) {
+                if (MESSAGE_STORE_DIR.equals(queueDir.getName()) || SHARED_INDEX_DIR.equals(queueDir.getName())
+                        || (shard == 0 && parseShard(queueDir) > 0)) {
+                    continue;
+                }
+                StoreCheckpoint.QueueCheckpoint queueCheckpoint = checkpoint != null ? checkpoint.getQueues().get(queueDir.getName()) : null;
+                SharedIndexStore.Group group = groups.remove(SharedIndexStore.topicHash(queueDir.getName()));
+                try {
+                    if (recoverQueue(shard, queueDir.getName(), queueCheckpoint, commitLogOffset, group)) {
+                        recoverCount++;
+                    }
+                } catch (Exception e) {
+                    logger.error("recover topic {} error", queueDir.getName(), e);
+                }
+            }
+        }
+        // 剩下的是只写过共用索引文件的队列，从第一条消息中读取 topic
+        for (SharedIndexStore.Group group : groups.values()) {
+            String topic = readTopic(messageStore, group);
+            if (topic == null) {
+                logger.error("can not find topic of shared index group {}, skip it", group.getTopicHash());
+                continue;
+            }
+            StoreCheckpoint.QueueCheckpoint queueCheckpoint = checkpoint != null ? checkpoint.getQueues().get(topic) : null;
+            try {
+                if (recoverQueue(shard, topic, queueCheckpoint, commitLogOffset, group)) {
+                    recoverCount++;
+                }
+            } catch (Exception e) {
+                logger.error("recover topic {} error", topic, e);
+            }
+        }
+        logger.info("store shard {} recover end, commit log offset {}, recover queue count {}, cost {} ms",
+                shard, commitLogOffset, recoverCount, System.currentTimeMillis() - beginTime);
+    }
+
+    private boolean recoverQueue(int shard, String topic, StoreCheckpoint.QueueCheckpoint queueCheckpoint, long commitLogOffset,
+                                 SharedIndexStore.Group group) {
+        TransferQueue queue = new TransferQueue(topic, this, consumerManager, messageStores.get(shard), getSharedIndexStore(shard), getShardPath(shard));
+        long logicOffset = queue.getIndexQueue().recover(commitLogOffset, queueCheckpoint != null ? queueCheckpoint.getLogicOffset() : 0, group);
+        if (logicOffset < 0) {
+            logger.error("load index queue of topic {} error, skip it", topic);
+            return false;
+        }
+        if (logicOffset == 0) {
+            logger.info("topic {} has no valid message, destroy it", topic);
+            queue.getIndexQueue().destroy();
+            return false;
+        }
+        String sessionId = queueCheckpoint != null ? queueCheckpoint.getSessionId() : readSessionId(queue);
+        if (StringUtils.isEmpty(sessionId)) {
+            logger.error("can not find session of topic {}, skip it", topic);
+            return false;
+        }
+        if (queueCheckpoint != null) {
+            queue.setRecoveredConsumeOffset(queueCheckpoint.getConsumeOffset());
+        }
+        queue.recoverDedupWindow();
+        queue.setSessionId(sessionId);
+        registerQueue(queue);
+        logger.info("recover topic {} session {} logic offset {}", topic, sessionId, logicOffset);
+        return true;
+    }
+
+    /**
+     * 读取共用索引文件中某个队列的第一条消息的 topic，并校验与记录中的 topic hash 一致
+     */
+    private String readTopic(MessageStore messageStore, SharedIndexStore.Group group) {
+        SelectMappedBufferResult msgBufferResult = messageStore.selectOneMessageByOffset(group.getPhyOffset(group.getFirstIndex()));
+        if (msgBufferResult == null) {
+            return null;
+        }
+        try {
+            MessageExt message = MessageDecoder.decode(msgBufferResult.getByteBuffer(), false);
+            if (message == null || message.getTopic() == null || SharedIndexStore.topicHash(message.getTopic()) != group.getTopicHash()) {
+                return null;
+            }
+            return message.getTopic();
+        } finally {
+            msgBufferResult.release();
+        }
+    }
+
+    /**
+     * 没有检查点时，从队列中第一条消息的属性里读取 sessionId
+     */
+    private String readSessionId(TransferQueue queue) {
+        IndexQueue indexQueue = queue.getIndexQueue();
+        long firstIndex = Math.max(1, indexQueue.getMinOffsetInQueue());
+        SelectMappedBufferResult indexBufferResult = indexQueue.getIndexBuffer(firstIndex);
+        if (indexBufferResult == null) {
+            return null;
+        }
+        long pyOffset;
+        try {
+            pyOffset = indexBufferResult.getByteBuffer().getLong();
+        } finally {
+            indexBufferResult.release();
+        }
+        SelectMappedBufferResult msgBufferResult = queue.getMessageStore().selectOneMessageByOffset(pyOffset);
+        if (msgBufferResult == null) {
+            return null;
+        }
+        try {
+            MessageExt message = MessageDecoder.decode(msgBufferResult.getByteBuffer(), false);
+            return message != null && message.getProperties() != null ? message.getProperties().get(Dict.SESSION_ID) : null;
+        } finally {
+            msgBufferResult.release();
+        }
+    }
+
+    /**
+     * 每个分片写入各自的检查点：先记录各队列的 logicOffset，再把 commit log 与索引刷盘，保证检查点记录的位置都已经落盘
+     */
+    public synchronized void doCheckpoint() throws Exception {
+        doCheckpoint(false);
+    }
+
+    /**
+     * @param shutdown 停止时无论间隔都写入去重窗口快照
+     */
+    public synchronized void doCheckpoint(boolean shutdown) throws Exception {
+        for (int shard = 0; shard < messageStores.size(); shard++) {
+            doCheckpoint(shard, shutdown);
+        }
+    }
+
+    private void doCheckpoint(int shard, boolean shutdown) throws Exception {
+        MessageStore messageStore = messageStores.get(shard);
+        StoreCheckpoint checkpoint = new StoreCheckpoint();
+        Map<String, TransferQueue> transferQueues = new HashMap<>();
+        queueMap.forEach((indexKey, queue) -> {
+            if (queue instanceof TransferQueue && ((TransferQueue) queue).getMessageStore() == messageStore) {
+                TransferQueue transferQueue = (TransferQueue) queue;
+                StoreCheckpoint.QueueCheckpoint queueCheckpoint = new StoreCheckpoint.QueueCheckpoint();
+                queueCheckpoint.setSessionId(transferQueue.getSessionId());
+                queueCheckpoint.setTopic(transferQueue.getTransferId());
+                queueCheckpoint.setLogicOffset(transferQueue.getIndexQueue().getLogicOffset().get());
+                UnaryConsumer unaryConsumer = consumerManager != null ? consumerManager.getUnaryConsumer(indexKey) : null;
+                if (unaryConsumer != null) {
+                    queueCheckpoint.setConsumeOffset(unaryConsumer.getConsumeOffset());
+                }
+                checkpoint.getQueues().put(transferQueue.getTransferId(), queueCheckpoint);
+                transferQueues.put(transferQueue.getTransferId(), transferQueue);
+            }
+        });
+        long commitLogOffset = messageStore.flushUntil(messageStore.getMaxWrotePosition());
+        transferQueues.forEach((topic, transferQueue) -> {
+            IndexQueue indexQueue = transferQueue.getIndexQueue();
+            // flush 每次只处理一个文件，返回 true 表示已经没有需要刷盘的数据
+            while (!indexQueue.flush(0)) {
+            }
+        });
+        SharedIndexStore sharedIndexStore = getSharedIndexStore(shard);
+        if (sharedIndexStore != null) {
+            while (!sharedIndexStore.flush(0)) {
+            }
+        }
+        checkpoint.setCommitLogOffset(commitLogOffset);
+        checkpoint.setTimestamp(System.currentTimeMillis());
+        checkpoint.save(getCheckpointPath(shard));
+        for (TransferQueue transferQueue : transferQueues.values()) {
+            try {
+                transferQueue.saveDedupSnapshot(shutdown);
+            } catch (Exception e) {
+                logger.error("save dedup snapshot of topic {} error", transferQueue.getTransferId(), e);
+            }
+        }
+    }
+
+    /**
+     * 停止时写入最后一次检查点，重启之后队列可以继续使用；关闭恢复时与之前一样直接销毁所有队列
+     */
+    public void shutdown() {
+        checkpointTask.makeStop();
+        if (readAheadService != null) {
+            readAheadService.shutdown();
+        }
+        if (MetaInfo.PROPERTY_STORE_RECOVER_ENABLE) {
+            try {
+                doCheckpoint(true);
+            } catch (Exception e) {
+                logger.error("store checkpoint on shutdown error", e);
+            }
+        } else {
+            destroyAll();
+        }
+        if (msgEventDispatcher != null) {
+            msgEventDispatcher.shutdown(MSG_EVENT_DISPATCHER_SHUTDOWN_TIMEOUT);
+        }
+        for (MessageStore messageStore : messageStores) {
+            messageStore.shutdown();
+        }
+        for (SharedIndexStore sharedIndexStore : sharedIndexStores) {
+            sharedIndexStore.shutdown();
+        }
+        if (mappedMemoryManager != null) {
+            mappedMemoryManager.shutdown();
+        }
+        allocateMappedFileService.shutdown();
+    }
+
+    /**
+     * 第 0 个分片，不分片时就是唯一的 commit log
+     */
     public MessageStore getMessageStore() {
-        return messageStore;
+        return messageStores.get(0);
+    }
+
+    public List<MessageStore> getMessageStores() {
+        return messageStores;
+    }
+
+    public HotTailCache getHotTailCache() {
+        return hotTailCache;
     }
 
     public void setMessageStore(MessageStore messageStore) {
-        this.messageStore = messageStore;
+        this.messageStores.set(0, messageStore);
     }
 
     public MessageStore createMessageStore(
-            AllocateMappedFileService allocateMappedFileService) {
-        MessageStore messageStore = new MessageStore(allocateMappedFileService
-                , MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE + File.separator + MetaInfo.INSTANCE_ID + File.separator + "message-store");
+            AllocateMappedFileService allocateMappedFileService, int shard) {
+        List<String> paths = new ArrayList<>();
+        paths.add(getShardPath(shard) + File.separator + MESSAGE_STORE_DIR);
+        // 其余目录通常位于其他磁盘上，同样按实例与分片区分
+        if (StringUtils.isNotBlank(MetaInfo.PROPERTY_STORE_COMMIT_LOG_EXTRA_PATHS)) {
+            for (String path : MetaInfo.PROPERTY_STORE_COMMIT_LOG_EXTRA_PATHS.split(",")) {
+                if (StringUtils.isNotBlank(path)) {
+                    String shardPath = path.trim() + File.separator + MetaInfo.INSTANCE_ID
+                            + (shard == 0 ? "" : File.separator + SHARD_DIR_PREFIX + shard);
+                    paths.add(shardPath + File.separator + MESSAGE_STORE_DIR);
+                }
+            }
+        }
+        MessageStore messageStore = new MessageStore(allocateMappedFileService, paths);
         messageStore.start();
         return messageStore;
     }
@@ -183,6 +606,14 @@ public class TransferQueueManager {
                 logger.error("transferQueue clean error ", igrone);
             }
         });
+        // 共用索引文件中的记录指向的 commit log 都已经删除之后删除该文件
+        for (int shard = 0; shard < sharedIndexStores.size(); shard++) {
+            try {
+                sharedIndexStores.get(shard).deleteExpiredFiles(messageStores.get(shard).getMinOffset());
+            } catch (Exception e) {
+                logger.error("clean shared index of shard {} error", shard, e);
+            }
+        }
     }
     public ReentrantLock getLock(String transferId) throws ExecutionException {
         return transferIdLockMap.get(transferId);
@@ -236,13 +667,21 @@ public class TransferQueueManager {
         AbstractQueue queue = null;
         switch (queueType) {
             case NORMAL:
-                queue = new TransferQueue(topic, this, consumerManager, MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE + File.separator + MetaInfo.INSTANCE_ID);
+                int shard = selectShard(sessionId);
+                queue = new TransferQueue(topic, this, consumerManager, messageStores.get(shard), getSharedIndexStore(shard), getShardPath(shard));
                 break;
             case DIRECT:
                 queue = new DirectQueue(topic);
                 break;
         }
         queue.setSessionId(sessionId);
+        registerQueue(queue);
+        return queue;
+    }
+
+    private void registerQueue(AbstractQueue queue) {
+        String sessionId = queue.getSessionId();
+        String topic = queue.getTransferId();
         queue.start();
         queue.registerDestoryCallback(() -> {
             this.queueMap.remove(assembleTopic(sessionId, topic));
@@ -256,7 +695,6 @@ public class TransferQueueManager {
         if (sessionQueueMap.get(sessionId) == null)
             sessionQueueMap.put(sessionId, new HashSet<>());
         sessionQueueMap.get(sessionId).add(topic);
-        return queue;
     }
 
     public AbstractQueue getQueue(String sessionId, String topic) {
@@ -328,8 +766,21 @@ public class TransferQueueManager {
         });
     }
 
-    public void addMsgCallBackRule(EventDriverRule rule, List<MsgEventCallback> callbacks) {
+    public synchronized void addMsgCallBackRule(EventDriverRule rule, List<MsgEventCallback> callbacks) {
         this.msgCallBackRuleMap.put(rule, callbacks);
+        if (MetaInfo.PROPERTY_MSG_CALLBACK_DISPATCH_ASYNC && msgEventDispatcher == null) {
+            MsgEventDispatcher dispatcher = new MsgEventDispatcher(MetaInfo.PROPERTY_MSG_CALLBACK_DISPATCH_THREAD_NUM,
+                    MetaInfo.PROPERTY_MSG_CALLBACK_DISPATCH_BUFFER_SIZE, MetaInfo.PROPERTY_MSG_CALLBACK_DISPATCH_WAIT_STRATEGY);
+            dispatcher.start();
+            msgEventDispatcher = dispatcher;
+        }
+    }
+
+    /**
+     * @return 关闭异步分发或者没有注册回调规则时返回 null，此时回调在写入线程上执行
+     */
+    public MsgEventDispatcher getMsgEventDispatcher() {
+        return msgEventDispatcher;
     }
 
 
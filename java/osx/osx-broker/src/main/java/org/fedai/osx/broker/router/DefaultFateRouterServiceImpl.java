@@ -44,6 +44,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -71,6 +72,10 @@ public class DefaultFateRouterServiceImpl implements RouterService, Lifecycle, A
     Map<String, List<RouterInfo>> routerInfoMap = new ConcurrentHashMap<String, List<RouterInfo>>();
     Map<String, Map<String, List<Map>>> endPointMap = new ConcurrentHashMap<>();
     Map totalConfig;
+    /**
+     * 由 endPointMap 编译出的只读路由表，路由表加载或修改时整体替换
+     */
+    volatile RouteTable routeTable = new RouteTable(Collections.emptyMap());
 
     FileRefreshableDataSource fileRefreshableDataSource;
 
@@ -102,6 +107,7 @@ public class DefaultFateRouterServiceImpl implements RouterService, Lifecycle, A
             }
            this.endPointMap.putIfAbsent(desPartyId,newElem);
        }
+       this.routeTable = new RouteTable(this.endPointMap);
        totalConfig.put(ROUTE_TABLE,this.endPointMap);
        String content = JsonUtil.object2Json(totalConfig);
        this.saveRouterTable(content);
@@ -177,30 +183,8 @@ public class DefaultFateRouterServiceImpl implements RouterService, Lifecycle, A
     }
 
     public RouterInfo route(String srcPartyId, String srcRole, String dstPartyId, String desRole) {
-        RouterInfo routerInfo = null;
         Preconditions.checkArgument(StringUtils.isNotEmpty(dstPartyId), "des party id is null");
-        Map<String, List<Map>> partyIdMap = this.endPointMap.containsKey(dstPartyId) ? this.endPointMap.get(dstPartyId) : this.endPointMap.get(DEFAULT);
-        if (partyIdMap != null) {
-            if (StringUtils.isNotEmpty(desRole) && partyIdMap.get(desRole) != null) {
-                List<Map> ips = partyIdMap.getOrDefault(desRole, null);
-                if (ips != null && ips.size() > 0) {
-                    Map endpoint = ips.get((int) (System.currentTimeMillis() % ips.size()));
-                    routerInfo = buildRouterInfo(endpoint, srcPartyId, srcRole, dstPartyId, desRole);
-                }
-            } else {
-
-                List<Map> ips = partyIdMap.getOrDefault(DEFAULT, null);
-                if (ips != null && ips.size() > 0) {
-                    Map endpoint = ips.get((int) (System.currentTimeMillis() % ips.size()));
-                    routerInfo = buildRouterInfo(endpoint, srcPartyId, srcRole, dstPartyId, desRole);
-                }
-                if (StringUtils.isNotEmpty(desRole)) {
-                    //    logger.warn("role {} is not found,return default router info ",desRole);
-                }
-            }
-        }
-
-        return routerInfo;
+        return routeTable.route(srcPartyId, srcRole, dstPartyId, desRole);
     }
 
 
@@ -328,6 +312,7 @@ public class DefaultFateRouterServiceImpl implements RouterService, Lifecycle, A
                 return "cycle_checker";
             }
         };
+        routerInfoChecker.setDaemon(true);
         routerInfoChecker.start();
     }
 
@@ -488,6 +473,7 @@ public class DefaultFateRouterServiceImpl implements RouterService, Lifecycle, A
             loadSelfParty(tempConf);
             Map content = (Map) tempConf.get(ROUTE_TABLE);
             endPointMap = initRouteTable(content);
+            routeTable = new RouteTable(endPointMap);
             logger.info("load router table {}", JsonUtil.formatJson(JsonUtil.object2Json(endPointMap)));
         } else {
             logger.error("content of route_table.json is invalid , content is {}", conf);
@@ -497,6 +483,112 @@ public class DefaultFateRouterServiceImpl implements RouterService, Lifecycle, A
     }
 
 
+    /**
+     * 编译后的路由表，按 partyId -> role 索引。每个 endpoint 只在编译时解析一次，
+     * 以本方 party 为源的 RouterInfo 也在编译时生成，路由时只做几次 hash 查找，不创建对象。
+     * 缓存只包含路由表本身能确定的内容，路由表重新编译时随旧的路由表一起丢弃
+     */
+    private class RouteTable {
+
+        private final Map<String, Map<String, RouteGroup>> parties;
+        private final Map<String, RouteGroup> defaultParty;
+
+        RouteTable(Map<String, Map<String, List<Map>>> endPointMap) {
+            Map<String, Map<String, RouteGroup>> newParties = new HashMap<>(endPointMap.size() * 2);
+            endPointMap.forEach((partyId, roleMap) -> {
+                Map<String, RouteGroup> roles = new HashMap<>(roleMap.size() * 2);
+                roleMap.forEach((role, endpoints) -> {
+                    if (endpoints != null && endpoints.size() > 0) {
+                        roles.put(role, new RouteGroup(partyId, role, endpoints));
+                    }
+                });
+                newParties.put(partyId, roles);
+            });
+            this.parties = newParties;
+            this.defaultParty = newParties.get(DEFAULT);
+        }
+
+        RouterInfo route(String srcPartyId, String srcRole, String dstPartyId, String desRole) {
+            Map<String, RouteGroup> roles = parties.get(dstPartyId);
+            if (roles == null) {
+                roles = defaultParty;
+            }
+            if (roles == null) {
+                return null;
+            }
+            RouteGroup routeGroup = null;
+            if (StringUtils.isNotEmpty(desRole)) {
+                routeGroup = roles.get(desRole);
+            }
+            if (routeGroup == null) {
+                routeGroup = roles.get(DEFAULT);
+            }
+            return routeGroup != null ? routeGroup.select(srcPartyId, srcRole, dstPartyId, desRole) : null;
+        }
+    }
+
+    /**
+     * 同一个 party、role 下的多个 endpoint，轮询选择
+     */
+    private class RouteGroup {
+
+        private final RouteEndpoint[] endpoints;
+        private final AtomicInteger index = new AtomicInteger(0);
+
+        RouteGroup(String partyId, String role, List<Map> endpointMaps) {
+            endpoints = new RouteEndpoint[endpointMaps.size()];
+            for (int i = 0; i < endpoints.length; i++) {
+                endpoints[i] = new RouteEndpoint(endpointMaps.get(i), partyId, role);
+            }
+        }
+
+        RouterInfo select(String srcPartyId, String srcRole, String dstPartyId, String desRole) {
+            RouteEndpoint endpoint = endpoints.length == 1 ? endpoints[0]
+                    : endpoints[(index.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length];
+            return endpoint.get(srcPartyId, srcRole, dstPartyId, desRole);
+        }
+    }
+
+    private class RouteEndpoint {
+
+        private final Map endpoint;
+        private final String partyId;
+        /**
+         * 请求命中这个 endpoint 时带的 desRole，default role 对应请求中没有指定 role
+         */
+        private final String requestRole;
+        /**
+         * 以本方 party 为源的路由，srcPartyId -> RouterInfo，编译时生成之后只读。
+         * 其他源 party、使用 default party 或者 role 回退到 default 时按请求生成，与编译之前的行为一致
+         */
+        private final Map<String, RouterInfo> selfRouterInfos;
+
+        RouteEndpoint(Map endpoint, String partyId, String role) {
+            this.endpoint = endpoint;
+            this.partyId = partyId;
+            this.requestRole = DEFAULT.equals(role) ? "" : role;
+            // 编译时校验 endpoint
+            buildRouterInfo(endpoint, "", "", partyId, role);
+            Map<String, RouterInfo> routerInfos = new HashMap<>(4);
+            if (!DEFAULT.equals(partyId) && MetaInfo.PROPERTY_SELF_PARTY != null) {
+                for (String selfPartyId : MetaInfo.PROPERTY_SELF_PARTY) {
+                    routerInfos.put(selfPartyId, buildRouterInfo(endpoint, selfPartyId, "", partyId, requestRole));
+                }
+            }
+            this.selfRouterInfos = routerInfos;
+        }
+
+        RouterInfo get(String srcPartyId, String srcRole, String dstPartyId, String desRole) {
+            if (srcPartyId != null && partyId.equals(dstPartyId) && requestRole.equals(desRole)) {
+                RouterInfo routerInfo = selfRouterInfos.get(srcPartyId);
+                if (routerInfo != null) {
+                    return routerInfo;
+                }
+            }
+            return buildRouterInfo(endpoint, srcPartyId, srcRole, dstPartyId, desRole);
+        }
+    }
+
     private class RouterTableListener implements PropertyListener<String> {
 
         @Override
@@ -41,6 +41,8 @@ import org.fedai.osx.broker.http.InnerServlet;
 import org.fedai.osx.broker.http.InterServlet;
 import org.fedai.osx.core.config.MetaInfo;
 import org.fedai.osx.core.frame.ContextPrepareInterceptor;
+import org.fedai.osx.core.frame.ExecutorAdmissionInterceptor;
+import org.fedai.osx.core.frame.OsxServerExecutor;
 import org.fedai.osx.core.service.ApplicationStartedRunner;
 import org.fedai.osx.core.utils.OSXCertUtils;
 import org.fedai.osx.core.utils.OsxX509TrustManager;
@@ -57,7 +59,6 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.security.KeyStore;
 import java.security.SecureRandom;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static org.fedai.osx.core.config.MetaInfo.*;
@@ -72,6 +73,11 @@ public class OsxServer implements ApplicationStartedRunner {
     io.grpc.Server tlsServer;
     org.eclipse.jetty.server.Server httpServer;
     org.eclipse.jetty.server.Server httpsServer;
+    /**
+     * grpc 与 grpc tls 端口共用的有界线程池
+     */
+    OsxServerExecutor serverExecutor;
+    ExecutorAdmissionInterceptor admissionInterceptor;
     @Inject
     ProxyGrpcService proxyGrpcService;
     @Inject
@@ -93,7 +99,12 @@ public class OsxServer implements ApplicationStartedRunner {
 
     private synchronized void init() {
         try {
-
+            serverExecutor = new OsxServerExecutor("grpc-server", MetaInfo.PROPERTY_GRPC_SERVER_EXECUTOR_MODE,
+                    MetaInfo.PROPERTY_GRPC_SERVER_EXECUTOR_CORE_SIZE, MetaInfo.PROPERTY_GRPC_SERVER_EXECUTOR_MAX_SIZE,
+                    MetaInfo.PROPERTY_GRPC_SERVER_EXECUTOR_QUEUE_SIZE, MetaInfo.PROPERTY_GRPC_SERVER_EXECUTOR_KEEPALIVE_TIME,
+                    MetaInfo.PROPERTY_GRPC_SERVER_EXECUTOR_ADMISSION_PERCENT);
+            serverExecutor.startReport(MetaInfo.PROPERTY_GRPC_SERVER_EXECUTOR_REPORT_INTERVAL);
+            admissionInterceptor = new ExecutorAdmissionInterceptor(serverExecutor);
             server = buildServer();
             if (MetaInfo.PROPERTY_OPEN_HTTP_SERVER) {
                 log.info("prepare to create http server");
@@ -308,10 +319,10 @@ public class OsxServer implements ApplicationStartedRunner {
                         serverCertChainFile, privateKeyFilePath, serverCaFilePath);
                 //serverBuilder.executor(executor);
                 nettyServerBuilder.sslContext(GrpcSslContexts.configure(sslContextBuilder, SslProvider.OPENSSL).build());
-                nettyServerBuilder.addService(ServerInterceptors.intercept(proxyGrpcService, new ServiceExceptionHandler(), new ContextPrepareInterceptor()));
-                nettyServerBuilder.addService(ServerInterceptors.intercept(pcpInterService, new ServiceExceptionHandler(), new ContextPrepareInterceptor()));
+                nettyServerBuilder.addService(ServerInterceptors.intercept(proxyGrpcService, new ServiceExceptionHandler(), new ContextPrepareInterceptor(), admissionInterceptor));
+                nettyServerBuilder.addService(ServerInterceptors.intercept(pcpInterService, new ServiceExceptionHandler(), new ContextPrepareInterceptor(), admissionInterceptor));
                 nettyServerBuilder
-                        .executor(Executors.newCachedThreadPool())
+                        .executor(serverExecutor)
                         .maxConcurrentCallsPerConnection(MetaInfo.PROPERTY_GRPC_SERVER_MAX_CONCURRENT_CALL_PER_CONNECTION)
                         .maxInboundMessageSize(MetaInfo.PROPERTY_GRPC_SERVER_MAX_INBOUND_MESSAGE_SIZE)
                         .maxInboundMetadataSize(MetaInfo.PROPERTY_GRPC_SERVER_MAX_INBOUND_METADATA_SIZE)
@@ -344,11 +355,11 @@ public class OsxServer implements ApplicationStartedRunner {
     private io.grpc.Server buildServer() {
         SocketAddress address = new InetSocketAddress(MetaInfo.PROPERTY_BIND_HOST, MetaInfo.PROPERTY_GRPC_PORT);
         NettyServerBuilder nettyServerBuilder = NettyServerBuilder.forAddress(address);
-        nettyServerBuilder.addService(ServerInterceptors.intercept(proxyGrpcService, new ServiceExceptionHandler(), new ContextPrepareInterceptor()));
-        nettyServerBuilder.addService(ServerInterceptors.intercept(pcpInterService, new ServiceExceptionHandler(), new ContextPrepareInterceptor()));
-        nettyServerBuilder.addService(ServerInterceptors.intercept(pcpInnerService, new ServiceExceptionHandler(), new ContextPrepareInterceptor()));
+        nettyServerBuilder.addService(ServerInterceptors.intercept(proxyGrpcService, new ServiceExceptionHandler(), new ContextPrepareInterceptor(), admissionInterceptor));
+        nettyServerBuilder.addService(ServerInterceptors.intercept(pcpInterService, new ServiceExceptionHandler(), new ContextPrepareInterceptor(), admissionInterceptor));
+        nettyServerBuilder.addService(ServerInterceptors.intercept(pcpInnerService, new ServiceExceptionHandler(), new ContextPrepareInterceptor(), admissionInterceptor));
         nettyServerBuilder
-                .executor(Executors.newCachedThreadPool())
+                .executor(serverExecutor)
                 .maxConcurrentCallsPerConnection(MetaInfo.PROPERTY_GRPC_SERVER_MAX_CONCURRENT_CALL_PER_CONNECTION)
                 .maxInboundMessageSize(MetaInfo.PROPERTY_GRPC_SERVER_MAX_INBOUND_MESSAGE_SIZE)
                 .maxInboundMetadataSize(MetaInfo.PROPERTY_GRPC_SERVER_MAX_INBOUND_METADATA_SIZE)
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public enum FlushDiskType {
+    /**
+     * 后台线程按脏页数或时间间隔刷盘，写入即返回
+     */
+    ASYNC_FLUSH,
+    /**
+     * 生产者的应答需要等待所在批次 force 到磁盘
+     */
+    SYNC_FLUSH;
+
+    private static final Logger logger = LoggerFactory.getLogger(FlushDiskType.class);
+
+    public static FlushDiskType parse(String value) {
+        try {
+            return FlushDiskType.valueOf(value.trim().toUpperCase());
+        } catch (Exception e) {
+            logger.error("invalid flush disk type {}, use {}", value, ASYNC_FLUSH);
+            return ASYNC_FLUSH;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.store;
+
+import org.fedai.osx.broker.message.MessageDecoder;
+import org.fedai.osx.broker.message.MessageExt;
+import org.fedai.osx.broker.message.MessageExtBrokerInner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 最近写入消息的内存缓存，已经追上写入进度的消费者直接从这里取消息，不再读取索引文件与 commit log，也不再解码。
+ * <p>
+ * 1. 每个队列持有一个 {@link Tail}，按索引位置连续保存该队列最近写入的消息，所有队列共用一个内存上限
+ * 2. 消费到某个位置时淘汰该位置之前的消息；超过内存上限时淘汰所有队列中最早写入的消息，不会只淘汰正在写入的队列
+ * 3. 消费者请求的位置已经早于缓存中最早的消息时，说明消费者落后，清空该队列的缓存，把内存留给追上进度的队列
+ * <p>
+ * 缓存的消息与存储中的消息内容相同，消息体是只读的 ByteBuffer，多个读取方共享同一个对象，不能修改
+ */
+public class HotTailCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HotTailCache.class);
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long maxBytes;
+    private final int maxMessageSize;
+    private final long reportInterval;
+    private final AtomicLong usedBytes = new AtomicLong(0);
+    /*
+     * 写入顺序号，按这个顺序号在所有队列之间找最早写入的消息
+     */
+    private final AtomicLong appendSequence = new AtomicLong(0);
+    private final Set<Tail> tails = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictByConsume = new AtomicLong(0);
+    private final AtomicLong evictBySize = new AtomicLong(0);
+    private final AtomicLong rejects = new AtomicLong(0);
+    private volatile long lastReportTimestamp = System.currentTimeMillis();
+
+    /**
+     * @param maxBytes       所有队列缓存的消息总大小上限
+     * @param maxMessageSize 超过该大小的消息不缓存
+     * @param reportInterval 统计日志的打印间隔
+     */
+    public HotTailCache(long maxBytes, int maxMessageSize, long reportInterval) {
+        this.maxBytes = maxBytes;
+        this.maxMessageSize = maxMessageSize;
+        this.reportInterval = reportInterval;
+    }
+
+    public Tail newTail(String name) {
+        Tail tail = new Tail(name);
+        tails.add(tail);
+        return tail;
+    }
+
+    /**
+     * 为 size 大小的消息预留内存，超过上限时淘汰所有队列中最早写入的消息。
+     * 调用时不能持有任何 {@link Tail} 的锁，淘汰时会锁住被淘汰的队列
+     *
+     * @return 没有可以淘汰的消息仍然放不下时返回 false
+     */
+    private boolean reserve(int size) {
+        while (true) {
+            long used = usedBytes.get();
+            if (used + size <= maxBytes) {
+                if (usedBytes.compareAndSet(used, used + size)) {
+                    return true;
+                }
+                continue;
+            }
+            Tail oldest = null;
+            long oldestSequence = Long.MAX_VALUE;
+            for (Tail tail : tails) {
+                long sequence = tail.firstSequence;
+                if (sequence < oldestSequence) {
+                    oldestSequence = sequence;
+                    oldest = tail;
+                }
+            }
+            if (oldest == null) {
+                return false;
+            }
+            if (oldest.evictFirst()) {
+                evictBySize.incrementAndGet();
+            }
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictByConsume() {
+        return evictByConsume.get();
+    }
+
+    public long getEvictBySize() {
+        return evictBySize.get();
+    }
+
+    public long getRejects() {
+        return rejects.get();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total > 0 ? (double) hitCount / total : 0;
+    }
+
+    /**
+     * 距离上次打印超过 reportInterval 时打印命中率等统计并清零计数，由消费线程顺带调用
+     */
+    public void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReportTimestamp < reportInterval) {
+            return;
+        }
+        synchronized (this) {
+            if (now - lastReportTimestamp < reportInterval) {
+                return;
+            }
+            lastReportTimestamp = now;
+        }
+        long hitCount = hits.getAndSet(0);
+        long missCount = misses.getAndSet(0);
+        long total = hitCount + missCount;
+        logger.info("hot tail cache monitor, hits {}, misses {}, hit rate {}%, used {}/{} bytes, evict by consume {}, evict by size {}, rejects {}",
+                hitCount, missCount, total > 0 ? hitCount * 100 / total : 0, usedBytes.get(), maxBytes,
+                evictByConsume.getAndSet(0), evictBySize.getAndSet(0), rejects.getAndSet(0));
+    }
+
+    /**
+     * 单个队列的缓存，保存 [firstIndex, firstIndex + count) 范围内的消息
+     */
+    public class Tail {
+        private final String name;
+        private MessageExt[] messages = new MessageExt[INITIAL_CAPACITY];
+        private int[] sizes = new int[INITIAL_CAPACITY];
+        private long[] sequences = new long[INITIAL_CAPACITY];
+        private int head;
+        private int count;
+        private long firstIndex;
+        private long bytes;
+        /*
+         * 最早一条消息的写入顺序号，没有消息时为 Long.MAX_VALUE，淘汰时不加锁读取
+         */
+        private volatile long firstSequence = Long.MAX_VALUE;
+
+        Tail(String name) {
+            this.name = name;
+        }
+
+        /**
+         * 写入成功之后放入缓存，logicIndex 与已缓存的消息不连续时先清空。
+         * 先在锁外预留内存，确定放入缓存之后才创建缓存的消息，放不下时不再拷贝消息体
+         *
+         * @param msg        写入的消息
+         * @param wroteOffset 消息在存储中的位置
+         * @param size       消息在存储中的大小，按这个大小计算内存占用
+         * @return 是否放入了缓存
+         */
+        public boolean append(long logicIndex, MessageExtBrokerInner msg, long wroteOffset, int size) {
+            if (size > maxMessageSize || size > maxBytes) {
+                rejects.incrementAndGet();
+                clear();
+                return false;
+            }
+            if (!reserve(size)) {
+                // 没有放入缓存，下一条消息与缓存不连续，放入时会清空
+                rejects.incrementAndGet();
+                return false;
+            }
+            MessageExt message = MessageDecoder.buildStoredMessage(msg, wroteOffset, size);
+            synchronized (this) {
+                if (count > 0 && logicIndex != firstIndex + count) {
+                    clear();
+                }
+                if (count == messages.length) {
+                    grow();
+                }
+                long sequence = appendSequence.incrementAndGet();
+                if (count == 0) {
+                    firstIndex = logicIndex;
+                    firstSequence = sequence;
+                }
+                int slot = (head + count) % messages.length;
+                messages[slot] = message;
+                sizes[slot] = size;
+                sequences[slot] = sequence;
+                count++;
+                bytes += size;
+            }
+            return true;
+        }
+
+        /**
+         * @return 不在缓存中时返回 null
+         */
+        public synchronized MessageExt get(long logicIndex) {
+            if (count > 0 && logicIndex >= firstIndex && logicIndex < firstIndex + count) {
+                hits.incrementAndGet();
+                return messages[(int) ((head + logicIndex - firstIndex) % messages.length)];
+            }
+            if (count > 0 && logicIndex < firstIndex) {
+                // 消费者落后于缓存，读取磁盘追赶期间缓存中的消息大多会被淘汰，提前释放
+                clear();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+
+        /**
+         * 淘汰 logicIndex 之前的消息，消费者请求 logicIndex 时说明之前的消息已经消费
+         */
+        public synchronized void evictBefore(long logicIndex) {
+            while (count > 0 && firstIndex < logicIndex) {
+                removeFirst();
+                evictByConsume.incrementAndGet();
+            }
+        }
+
+        public synchronized void clear() {
+            for (int i = 0; i < count; i++) {
+                messages[(head + i) % messages.length] = null;
+            }
+            usedBytes.addAndGet(-bytes);
+            head = 0;
+            count = 0;
+            bytes = 0;
+            firstSequence = Long.MAX_VALUE;
+        }
+
+        /**
+         * 队列销毁时调用，清空缓存并且不再参与淘汰
+         */
+        public void close() {
+            tails.remove(this);
+            clear();
+        }
+
+        public synchronized int size() {
+            return count;
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        public synchronized long getFirstIndex() {
+            return firstIndex;
+        }
+
+        /**
+         * 淘汰最早的一条消息，由 {@link #reserve(int)} 调用
+         *
+         * @return 没有消息时返回 false
+         */
+        synchronized boolean evictFirst() {
+            if (count == 0) {
+                return false;
+            }
+            removeFirst();
+            return true;
+        }
+
+        private void removeFirst() {
+            int size = sizes[head];
+            messages[head] = null;
+            head = (head + 1) % messages.length;
+            count--;
+            firstIndex++;
+            bytes -= size;
+            usedBytes.addAndGet(-size);
+            firstSequence = count > 0 ? sequences[head] : Long.MAX_VALUE;
+        }
+
+        private void grow() {
+            int capacity = messages.length << 1;
+            MessageExt[] newMessages = new MessageExt[capacity];
+            int[] newSizes = new int[capacity];
+            long[] newSequences = new long[capacity];
+            for (int i = 0; i < count; i++) {
+                int slot = (head + i) % messages.length;
+                newMessages[i] = messages[slot];
+                newSizes[i] = sizes[slot];
+                newSequences[i] = sequences[slot];
+            }
+            messages = newMessages;
+            sizes = newSizes;
+            sequences = newSequences;
+            head = 0;
+        }
+
+        @Override
+        public String toString() {
+            return "HotTailCache.Tail{" + name + ", count=" + count + ", bytes=" + bytes + "}";
+        }
+    }
+}
@@ -25,12 +25,28 @@ import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicLong;
 
-
+/**
+ * 队列的索引，每条 12 字节：commit log 位置(8) + 消息大小(4)。
+ * <p>
+ * 指定了 {@link SharedIndexStore} 时先使用紧凑模式：索引保存在内存中，同时追加到共用的索引文件，创建队列不需要创建文件；
+ * 条数达到 compactThreshold 时把已有的索引写入独立的索引文件并刷盘，之后与原来一样只写独立的索引文件
+ */
 public class IndexQueue {
     public static final int CQ_STORE_UNIT_SIZE = 12;
+    private static final int COMPACT_INITIAL_CAPACITY = 16;
     private static final Logger log = LoggerFactory.getLogger(IndexQueue.class);
     private final MappedFileQueue mappedFileQueue;
     private final String transferId;
+    private final SharedIndexStore sharedIndexStore;
+    private final long topicHash;
+    private final int compactThreshold;
+    /*
+     * 紧凑模式下内存中的索引，格式与索引文件相同；转为独立索引文件之后为 null。
+     * 先写内容再增加 compactCount，读取时先读 compactCount 再读 compactTable
+     */
+    private volatile ByteBuffer compactTable;
+    private volatile int compactCount;
+    private long compactFirstIndex = 1;
 
     private final ByteBuffer byteBufferIndex;
 
@@ -45,6 +61,19 @@ public class IndexQueue {
             final String transferId,
             final String storePath,
             final int mappedFileSize) {
+        this(transferId, storePath, mappedFileSize, null, 0);
+    }
+
+    /**
+     * @param sharedIndexStore 为 null 时直接使用独立的索引文件
+     * @param compactThreshold 紧凑模式下最多保存的索引条数
+     */
+    public IndexQueue(
+            final String transferId,
+            final String storePath,
+            final int mappedFileSize,
+            final SharedIndexStore sharedIndexStore,
+            final int compactThreshold) {
         this.storePath = storePath;
         this.mappedFileSize = mappedFileSize;
         this.transferId = transferId;
@@ -52,6 +81,16 @@ public class IndexQueue {
                 + File.separator + transferId;
         this.mappedFileQueue = new MappedFileQueue(queueDir, mappedFileSize, null);
         this.byteBufferIndex = ByteBuffer.allocate(CQ_STORE_UNIT_SIZE);
+        this.sharedIndexStore = sharedIndexStore;
+        this.topicHash = SharedIndexStore.topicHash(transferId);
+        this.compactThreshold = compactThreshold;
+        if (sharedIndexStore != null) {
+            this.compactTable = ByteBuffer.allocate(COMPACT_INITIAL_CAPACITY * CQ_STORE_UNIT_SIZE);
+        }
+    }
+
+    public boolean isCompact() {
+        return compactTable != null;
     }
 
     public AtomicLong getLogicOffset() {
@@ -67,6 +106,167 @@ public class IndexQueue {
         return result;
     }
 
+    /**
+     * 重启时恢复索引。独立的索引文件中的条数少于共用索引文件中的记录时，说明转为独立索引文件的过程没有完成，
+     * 删除独立的索引文件，按共用索引文件中的记录恢复为紧凑模式
+     *
+     * @param group 共用索引文件中该队列的记录，没有时为 null
+     * @return 恢复之后的 logicOffset，-1 表示加载索引文件失败
+     */
+    public long recover(final long maxPhyOffset, final long checkpointLogicOffset, final SharedIndexStore.Group group) {
+        long index = recover(maxPhyOffset, checkpointLogicOffset);
+        if (group == null) {
+            if (index > 0) {
+                this.compactTable = null;
+            }
+            return index;
+        }
+        if (index >= group.getLastIndex()) {
+            this.compactTable = null;
+            return index;
+        }
+        if (index != 0) {
+            log.warn("index queue {} recover logic offset {} less than shared index {}, recover from shared index",
+                    transferId, index, group.getLastIndex());
+            this.mappedFileQueue.destroy();
+        }
+        ByteBuffer table = ByteBuffer.allocate(Math.max(COMPACT_INITIAL_CAPACITY, group.getCount()) * CQ_STORE_UNIT_SIZE);
+        System.arraycopy(group.getEntries().array(), 0, table.array(), 0, group.getCount() * CQ_STORE_UNIT_SIZE);
+        this.compactFirstIndex = group.getFirstIndex();
+        this.compactTable = table;
+        this.compactCount = group.getCount();
+        this.minLogicOffset = group.getFirstIndex() * CQ_STORE_UNIT_SIZE;
+        this.maxPhysicOffset = group.getLastPhyEnd();
+        this.logicOffset.set(group.getLastIndex());
+        return group.getLastIndex();
+    }
+
+    /**
+     * 重启时恢复索引，只从检查点记录的位置开始校验，指向 commit log 有效范围之外的索引会被截断
+     *
+     * @param maxPhyOffset          commit log 恢复之后的末尾位置
+     * @param checkpointLogicOffset 检查点记录的 logicOffset，该位置之前的索引已经刷盘
+     * @return 恢复之后的 logicOffset，-1 表示加载索引文件失败
+     */
+    public long recover(final long maxPhyOffset, final long checkpointLogicOffset) {
+        if (!this.load()) {
+            return -1;
+        }
+        if (this.mappedFileQueue.getMappedFiles().isEmpty()) {
+            return 0;
+        }
+        long firstIndex = Math.max(1, this.mappedFileQueue.getMinOffset() / CQ_STORE_UNIT_SIZE);
+        long maxIndex = this.mappedFileQueue.getMaxWrotePosition() / CQ_STORE_UNIT_SIZE - 1;
+        long index = firstIndex - 1;
+        long lastPhyEnd = 0;
+        if (checkpointLogicOffset >= firstIndex && checkpointLogicOffset <= maxIndex) {
+            long phyEnd = readPhyEnd(checkpointLogicOffset);
+            if (phyEnd > 0 && phyEnd <= maxPhyOffset) {
+                index = checkpointLogicOffset;
+                lastPhyEnd = phyEnd;
+            }
+        }
+        long checkpointIndex = index;
+        while (index < maxIndex) {
+            long offset = (index + 1) * CQ_STORE_UNIT_SIZE;
+            MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset);
+            int position = (int) (offset % this.mappedFileSize);
+            if (mappedFile == null || position + CQ_STORE_UNIT_SIZE > this.mappedFileSize) {
+                break;
+            }
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            long offsetPy = byteBuffer.getLong(position);
+            int size = byteBuffer.getInt(position + 8);
+            if (size <= 0 || size == Integer.MAX_VALUE || offsetPy < lastPhyEnd || offsetPy + size > maxPhyOffset) {
+                break;
+            }
+            lastPhyEnd = offsetPy + size;
+            index++;
+        }
+        log.info("index queue {} recover end, checkpoint logic offset {}, recover logic offset {}, checked {}",
+                transferId, checkpointLogicOffset, index, index - checkpointIndex);
+        if (index <= 0) {
+            return 0;
+        }
+        long end = (index + 1) * CQ_STORE_UNIT_SIZE;
+        this.mappedFileQueue.setFlushedWhere(end);
+        this.mappedFileQueue.setCommittedWhere(end);
+        this.mappedFileQueue.truncateDirtyFiles(end);
+        this.cleanDirtyTail(end);
+        this.minLogicOffset = this.mappedFileQueue.getMinOffset();
+        this.maxPhysicOffset = lastPhyEnd;
+        this.logicOffset.set(index);
+        return index;
+    }
+
+    /**
+     * 读取 index 对应的消息在 commit log 中的起始位置，索引不存在时返回 -1
+     */
+    public long readPhyOffset(long index) {
+        int count = this.compactCount;
+        ByteBuffer table = this.compactTable;
+        if (table != null) {
+            long first = this.compactFirstIndex;
+            if (index < first || index >= first + count) {
+                return -1;
+            }
+            return table.getLong((int) (index - first) * CQ_STORE_UNIT_SIZE);
+        }
+        long offset = index * CQ_STORE_UNIT_SIZE;
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset);
+        int position = (int) (offset % this.mappedFileSize);
+        if (mappedFile == null || position + CQ_STORE_UNIT_SIZE > this.mappedFileSize) {
+            return -1;
+        }
+        ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+        int size = byteBuffer.getInt(position + 8);
+        if (size <= 0 || size == Integer.MAX_VALUE) {
+            return -1;
+        }
+        return byteBuffer.getLong(position);
+    }
+
+    private long readPhyEnd(long index) {
+        long offset = index * CQ_STORE_UNIT_SIZE;
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset);
+        int position = (int) (offset % this.mappedFileSize);
+        if (mappedFile == null || position + CQ_STORE_UNIT_SIZE > this.mappedFileSize) {
+            return -1;
+        }
+        ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+        long offsetPy = byteBuffer.getLong(position);
+        int size = byteBuffer.getInt(position + 8);
+        if (size <= 0 || size == Integer.MAX_VALUE) {
+            return -1;
+        }
+        return offsetPy + size;
+    }
+
+    /**
+     * 截断之后残留的旧索引需要清零，否则下次恢复时可能被当成有效索引
+     */
+    private void cleanDirtyTail(long end) {
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(end);
+        if (mappedFile == null) {
+            return;
+        }
+        ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+        int cleanCount = 0;
+        for (int position = (int) (end % this.mappedFileSize); position + CQ_STORE_UNIT_SIZE <= this.mappedFileSize;
+             position += CQ_STORE_UNIT_SIZE) {
+            if (byteBuffer.getLong(position) == 0 && byteBuffer.getInt(position + 8) == 0) {
+                break;
+            }
+            byteBuffer.putLong(position, 0L);
+            byteBuffer.putInt(position + 8, 0);
+            cleanCount++;
+        }
+        if (cleanCount > 0) {
+            mappedFile.getMappedByteBuffer().force();
+            log.warn("clean {} dirty index of {} after offset {}", cleanCount, transferId, end);
+        }
+    }
+
     public long getLastOffset() {
         long lastOffset = -1;
         int logicFileSize = this.mappedFileSize;
@@ -141,6 +341,12 @@ public class IndexQueue {
     }
 
     public long putMessagePositionInfoWrapper(long offset, int msgSize) {
+        if (this.compactTable != null && (this.compactCount < this.compactThreshold || !promote())) {
+            if (!putCompact(offset, msgSize, this.logicOffset.get() + 1)) {
+                return -1;
+            }
+            return logicOffset.addAndGet(1);
+        }
         final int maxRetries = 30;
         long resultLogicOffset = -1;
         for (int i = 0; i < maxRetries; i++) {
@@ -197,6 +403,61 @@ public class IndexQueue {
         return false;
     }
 
+    private boolean putCompact(final long offset, final int size, final long cqOffset) {
+        if (offset + size <= this.maxPhysicOffset) {
+            log.warn("Maybe try to build index queue repeatedly maxPhysicOffset={} phyOffset={}", maxPhysicOffset, offset);
+            return true;
+        }
+        if (!this.sharedIndexStore.append(this.topicHash, cqOffset, offset, size)) {
+            return false;
+        }
+        int count = this.compactCount;
+        ByteBuffer table = this.compactTable;
+        int position = count * CQ_STORE_UNIT_SIZE;
+        if (position + CQ_STORE_UNIT_SIZE > table.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(table.capacity() << 1);
+            System.arraycopy(table.array(), 0, bigger.array(), 0, position);
+            table = bigger;
+            this.compactTable = bigger;
+        }
+        if (count == 0) {
+            this.compactFirstIndex = cqOffset;
+            this.minLogicOffset = cqOffset * CQ_STORE_UNIT_SIZE;
+        }
+        table.putLong(position, offset);
+        table.putInt(position + 8, size);
+        this.maxPhysicOffset = offset + size;
+        this.compactCount = count + 1;
+        return true;
+    }
+
+    /**
+     * 把内存中的索引写入独立的索引文件并刷盘，之后不再写入共用的索引文件。
+     * 失败时删除写了一半的文件，继续使用紧凑模式
+     */
+    private boolean promote() {
+        long beginTime = System.currentTimeMillis();
+        ByteBuffer table = this.compactTable;
+        int count = this.compactCount;
+        long first = this.compactFirstIndex;
+        long maxPhysicOffset = this.maxPhysicOffset;
+        this.maxPhysicOffset = -1;
+        for (int i = 0; i < count; i++) {
+            int position = i * CQ_STORE_UNIT_SIZE;
+            if (!putMessagePositionInfo(table.getLong(position), table.getInt(position + 8), first + i)) {
+                log.error("index queue {} promote error, keep using shared index", transferId);
+                this.mappedFileQueue.destroy();
+                this.maxPhysicOffset = maxPhysicOffset;
+                return false;
+            }
+        }
+        while (!this.mappedFileQueue.flush(0)) {
+        }
+        this.compactTable = null;
+        log.info("index queue {} promote to index file, count {}, cost {} ms", transferId, count, System.currentTimeMillis() - beginTime);
+        return true;
+    }
+
     private void fillPreBlank(final MappedFile mappedFile, final long untilWhere) {
         ByteBuffer byteBuffer = ByteBuffer.allocate(CQ_STORE_UNIT_SIZE);
         byteBuffer.putLong(0L);
@@ -209,6 +470,19 @@ public class IndexQueue {
     }
 
     public SelectMappedBufferResult getIndexBuffer(final long startIndex) {
+        int count = this.compactCount;
+        ByteBuffer table = this.compactTable;
+        if (table != null) {
+            long first = this.compactFirstIndex;
+            if (startIndex >= first && startIndex < first + count) {
+                ByteBuffer byteBuffer = table.duplicate();
+                byteBuffer.position((int) (startIndex - first) * CQ_STORE_UNIT_SIZE);
+                byteBuffer.limit(count * CQ_STORE_UNIT_SIZE);
+                return new SelectMappedBufferResult(startIndex * CQ_STORE_UNIT_SIZE, byteBuffer.slice(), byteBuffer.remaining(), null);
+            }
+            log.info("start index {} {} return null", startIndex, logicOffset);
+            return null;
+        }
         int mappedFileSize = this.mappedFileSize;
         long offset = startIndex * CQ_STORE_UNIT_SIZE;
         if (offset >= this.getMinLogicOffset()) {
@@ -249,6 +523,13 @@ public class IndexQueue {
     public void destroy() {
         this.maxPhysicOffset = -1;
         this.minLogicOffset = 0;
+        if (this.sharedIndexStore != null) {
+            this.sharedIndexStore.appendTombstone(this.topicHash);
+            if (this.compactTable != null) {
+                this.compactTable = ByteBuffer.allocate(COMPACT_INITIAL_CAPACITY * CQ_STORE_UNIT_SIZE);
+                this.compactCount = 0;
+            }
+        }
         this.mappedFileQueue.destroy();
     }
 
@@ -257,6 +538,9 @@ public class IndexQueue {
     }
 
     public long getMaxOffsetInQueue() {
+        if (this.compactTable != null) {
+            return this.compactFirstIndex + this.compactCount;
+        }
         return this.mappedFileQueue.getMaxOffset() / CQ_STORE_UNIT_SIZE;
     }
 
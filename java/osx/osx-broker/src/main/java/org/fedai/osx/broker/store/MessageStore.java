@@ -19,14 +19,25 @@ import org.fedai.osx.broker.message.*;
 import org.fedai.osx.broker.queue.*;
 import org.fedai.osx.core.config.MetaInfo;
 import org.fedai.osx.core.constant.TransferStatus;
+import org.fedai.osx.core.constant.StatusCode;
 import org.fedai.osx.core.exceptions.MappedFileException;
+import org.fedai.osx.core.exceptions.SysException;
 import org.fedai.osx.core.exceptions.TransferQueueInvalidStatusException;
 import org.fedai.osx.core.frame.ServiceThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
 public class MessageStore {
 
@@ -40,98 +51,280 @@ public class MessageStore {
 
     MappedFileQueue mappedFileQueue;
     ReentrantLock putMessageLock = new ReentrantLock();
+    ReentrantLock flushLock = new ReentrantLock();
     long beginTimeInLock;
     AppendMessageHandler appendMessageCallback = new DefaultAppendMessageHandler(MetaInfo.MAP_FILE_SIZE);
     AllocateMappedFileService allocateMappedFileService;
 
+    ConcurrentLinkedQueue<PutMessageRequest> putRequestQueue = new ConcurrentLinkedQueue<>();
+    AtomicLong groupCommitBatchCount = new AtomicLong(0);
+    AtomicLong groupCommitMessageCount = new AtomicLong(0);
+
     CleanMappedFileThread cleanMappedFileThread = new CleanMappedFileThread();
+    /*
+     * 返回仍被队列引用的 commit log 最小位置，为 null 时只按时间与容量清理
+     */
+    volatile LongSupplier retainOffsetSupplier;
+    FlushDiskType flushDiskType;
+    FlushMappedFileService flushMappedFileService;
 
     public MessageStore(AllocateMappedFileService allocateMappedFileService, String path) {
-        allocateMappedFileService = this.allocateMappedFileService;
-        mappedFileQueue = new MappedFileQueue(path, MetaInfo.MAP_FILE_SIZE, allocateMappedFileService);
+        this(allocateMappedFileService, Collections.singletonList(path));
+    }
+
+    /**
+     * @param paths commit log 文件所在的目录，多个目录时文件按写入负载与剩余空间分布到各个目录
+     */
+    public MessageStore(AllocateMappedFileService allocateMappedFileService, List<String> paths) {
+        this.allocateMappedFileService = allocateMappedFileService;
+        mappedFileQueue = paths.size() > 1 ?
+                new MultiPathMappedFileQueue(paths, MetaInfo.MAP_FILE_SIZE, allocateMappedFileService) :
+                new MappedFileQueue(paths.get(0), MetaInfo.MAP_FILE_SIZE, allocateMappedFileService);
         this.createTimestamp = System.currentTimeMillis();
         this.lastStatusChangeTimestamp = this.createTimestamp;
         this.lastWriteTimestamp = this.createTimestamp;
+        this.flushDiskType = FlushDiskType.parse(MetaInfo.PROPERTY_STORE_FLUSH_DISK_TYPE);
+        if (flushDiskType == FlushDiskType.SYNC_FLUSH) {
+            flushMappedFileService = new GroupFlushService();
+        } else {
+            flushMappedFileService = new AsyncFlushService();
+        }
         cleanMappedFileThread.start();
+        flushMappedFileService.start();
+    }
+
+    /**
+     * 重启时加载 commit log 并截断末尾未写完整的消息。
+     * 检查点之前的数据已经刷盘，只需要从检查点开始逐条校验，恢复耗时与检查点之后写入的数据量相关
+     *
+     * @param checkpointOffset 检查点记录的已刷盘位置，小于 0 表示没有检查点，从第一个文件开始校验
+     * @return 恢复之后 commit log 的末尾位置
+     */
+    public long load(long checkpointOffset) {
+        long beginTime = System.currentTimeMillis();
+        if (!mappedFileQueue.load()) {
+            throw new SysException(StatusCode.PTP_SYSTEM_ERROR, "load commit log error");
+        }
+        List<MappedFile> mappedFiles = mappedFileQueue.getMappedFiles();
+        if (mappedFiles.isEmpty()) {
+            return 0;
+        }
+        int mappedFileSize = mappedFileQueue.getMappedFileSize();
+        long minOffset = mappedFileQueue.getMinOffset();
+        long maxOffset = mappedFileQueue.getMaxWrotePosition();
+        long processOffset = checkpointOffset;
+        if (processOffset < minOffset || processOffset > maxOffset) {
+            logger.info("commit log checkpoint offset {} is out of range [{}, {}], recover from the first mapped file",
+                    checkpointOffset, minOffset, maxOffset);
+            processOffset = minOffset;
+        }
+        long checkedBytes = 0;
+        MappedFile mappedFile = mappedFileQueue.findMappedFileByOffset(processOffset);
+        while (mappedFile != null) {
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            int position = (int) (processOffset - mappedFile.getFileFromOffset());
+            byteBuffer.position(position);
+            int size = MessageDecoder.checkMessageAndReturnSize(byteBuffer, mappedFileSize - position);
+            if (size > 0) {
+                processOffset += size;
+                checkedBytes += size;
+            } else if (size == 0) {
+                // 文件末尾的空白填充，继续检查下一个文件
+                processOffset = mappedFile.getFileFromOffset() + mappedFileSize;
+                if (processOffset >= maxOffset) {
+                    break;
+                }
+                mappedFile = mappedFileQueue.findMappedFileByOffset(processOffset);
+            } else {
+                break;
+            }
+        }
+        mappedFileQueue.setFlushedWhere(processOffset);
+        mappedFileQueue.setCommittedWhere(processOffset);
+        mappedFileQueue.truncateDirtyFiles(processOffset);
+        cleanDirtyTail(processOffset);
+        logger.info("commit log recover end, checkpoint offset {}, recover offset {}, checked bytes {}, cost {} ms",
+                checkpointOffset, processOffset, checkedBytes, System.currentTimeMillis() - beginTime);
+        return processOffset;
+    }
+
+    /**
+     * 异常宕机时末尾可能残留写了一半的消息，这里清零，避免之后追加的消息与残留数据拼接后被误认为是完整消息。
+     * 残留数据只会出现在最后一次写入的位置之后，遇到全为 0 的页即可停止
+     */
+    private void cleanDirtyTail(long offset) {
+        MappedFile mappedFile = mappedFileQueue.findMappedFileByOffset(offset);
+        if (mappedFile == null) {
+            return;
+        }
+        ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+        int fileSize = mappedFile.getFileSize();
+        int position = (int) (offset - mappedFile.getFileFromOffset());
+        int cleanBytes = 0;
+        while (position < fileSize) {
+            int pageEnd = Math.min(fileSize, (position / MappedFile.OS_PAGE_SIZE + 1) * MappedFile.OS_PAGE_SIZE);
+            boolean dirty = false;
+            for (int i = position; i < pageEnd && !dirty; i++) {
+                dirty = byteBuffer.get(i) != 0;
+            }
+            if (!dirty) {
+                break;
+            }
+            for (int i = position; i < pageEnd; i++) {
+                byteBuffer.put(i, (byte) 0);
+            }
+            cleanBytes += pageEnd - position;
+            position = pageEnd;
+        }
+        if (cleanBytes > 0) {
+            mappedFile.getMappedByteBuffer().force();
+            logger.warn("clean dirty tail of commit log {}, offset {}, bytes {}", mappedFile.getFileName(), offset, cleanBytes);
+        }
     }
 
+    /**
+     * Appends the message through the group commit pipeline and waits for its result.
+     */
     public PutMessageResult putMessage(final MessageExtBrokerInner msg) {
-        if (transferStatus == TransferStatus.TRANSFERING) {
-            long timestamp = System.currentTimeMillis();
-            msg.setStoreTimestamp(timestamp);
-            if (logger.isTraceEnabled()) {
-                logger.trace("put message {}", msg);
-            }
-            lastWriteTimestamp = timestamp;
-            AppendMessageResult result = null;
-            String topic = msg.getTopic();
-            int queueId = msg.getQueueId();
-            long elapsedTimeInLock = 0;
-            MappedFile unlockMappedFile = null;
-            MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
-
-            putMessageLock.lock(); //spin or ReentrantLock ,depending on store config
-            try {
-                long beginLockTimestamp = System.currentTimeMillis();
-                this.beginTimeInLock = beginLockTimestamp;
+        return asyncPutMessage(msg).join();
+    }
 
-                // Here settings are stored timestamp, in order to ensure an orderly
-                // global
-                msg.setStoreTimestamp(beginLockTimestamp);
+    /**
+     * Enqueues the message for group commit. Concurrent producers are collected into batches and
+     * whichever thread wins {@link #putMessageLock} appends the whole batch to the tail mapped file
+     * in one critical section, completing every caller's future once the lock is released.
+     */
+    public CompletableFuture<PutMessageResult> asyncPutMessage(final MessageExtBrokerInner msg) {
+        if (transferStatus != TransferStatus.TRANSFERING) {
+            throw new TransferQueueInvalidStatusException("invalid queue status : " + transferStatus);
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("put message {}", msg);
+        }
+        PutMessageRequest request = new PutMessageRequest(msg);
+        putRequestQueue.offer(request);
+        drainPutRequests(request);
+        if (flushDiskType == FlushDiskType.SYNC_FLUSH) {
+            return request.future.thenCompose(this::handleDiskFlush);
+        }
+        return request.future;
+    }
 
-                if (null == mappedFile || mappedFile.isFull()) {
-                    mappedFile = this.mappedFileQueue.getLastMappedFile(0); // Mark: NewFile may be cause noise
-                }
-                if (null == mappedFile) {
-                    logger.error("create mapped file1 error, topic: " + msg.getTopic());
-                    beginTimeInLock = 0;
-                    return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
-                }
+    private CompletableFuture<PutMessageResult> handleDiskFlush(PutMessageResult putMessageResult) {
+        if (!putMessageResult.isOk()) {
+            return CompletableFuture.completedFuture(putMessageResult);
+        }
+        AppendMessageResult appendMessageResult = putMessageResult.getAppendMessageResult();
+        GroupFlushRequest flushRequest = new GroupFlushRequest(putMessageResult,
+                appendMessageResult.getWroteOffset() + appendMessageResult.getWroteBytes());
+        ((GroupFlushService) flushMappedFileService).putRequest(flushRequest);
+        return flushRequest.future;
+    }
 
-                result = mappedFile.appendMessage(msg, this.appendMessageCallback);
-                switch (result.getStatus()) {
-                    case PUT_OK:
-                        break;
-                    case END_OF_FILE:
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("");
-                        }
-
-                        unlockMappedFile = mappedFile;
-                        // Create a new file, re-write the message
-                        mappedFile = this.mappedFileQueue.getLastMappedFile(0);
-                        if (null == mappedFile) {
-                            logger.error("create mapped file error, topic: " + msg.getTopic());
-                            beginTimeInLock = 0;
-                            return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result);
-                        }
-                        result = mappedFile.appendMessage(msg, this.appendMessageCallback);
-                        break;
-                    case MESSAGE_SIZE_EXCEEDED:
-                    case PROPERTIES_SIZE_EXCEEDED:
-                        beginTimeInLock = 0;
-                        return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result);
-                    case UNKNOWN_ERROR:
-                        beginTimeInLock = 0;
-                        return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
-                    default:
-                        beginTimeInLock = 0;
-                        return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
-                }
-                elapsedTimeInLock = System.currentTimeMillis() - beginLockTimestamp;
-                beginTimeInLock = 0;
+    /**
+     * 批量写入队列中的请求。写入方在自己的请求提交之后就返回，最多替其他写入方多提交一批，
+     * 持续写入时不会一直被留下来处理别人的请求；返回前队列中还有请求时交给刷盘线程继续处理
+     *
+     * @param own 调用方自己的请求，刷盘线程调用时为 null，只提交一批
+     */
+    private void drainPutRequests(PutMessageRequest own) {
+        while (!putRequestQueue.isEmpty()) {
+            /*
+             * 拿不到锁说明有其他线程正在批量写入，它释放锁之后会再次检查队列，这里直接返回即可
+             */
+            if (!putMessageLock.tryLock()) {
+                return;
+            }
+            List<PutMessageRequest> committed = new ArrayList<>();
+            try {
+                commitBatchInLock(committed);
             } finally {
                 putMessageLock.unlock();
             }
-            if (elapsedTimeInLock > 500) {
-                logger.warn("[NOTIFYME]putMessage in lock cost time(ms)={}, bodyLength={} AppendMessageResult={}", elapsedTimeInLock, msg.getBody().length, result);
+            for (PutMessageRequest request : committed) {
+                request.future.complete(request.result);
             }
-            wrotePosition.addAndGet(result.getWroteBytes());
-            PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
-            return putMessageResult;
-        } else {
-            throw new TransferQueueInvalidStatusException("invalid queue status : " + transferStatus);
+            if (flushDiskType == FlushDiskType.ASYNC_FLUSH &&
+                    mappedFileQueue.remainHowManyDataToFlush() >= (long) MetaInfo.PROPERTY_STORE_FLUSH_LEAST_PAGES * MappedFile.OS_PAGE_SIZE) {
+                flushMappedFileService.wakeup();
+            }
+            if (own == null || own.future.isDone()) {
+                break;
+            }
+        }
+        /*
+         * 释放锁之后再检查一次，持锁期间没拿到锁的写入方已经返回，它们的请求不能留在队列中
+         */
+        if (!putRequestQueue.isEmpty()) {
+            flushMappedFileService.wakeup();
+        }
+    }
+
+    private void commitBatchInLock(List<PutMessageRequest> committed) {
+        long beginLockTimestamp = System.currentTimeMillis();
+        this.beginTimeInLock = beginLockTimestamp;
+        this.lastWriteTimestamp = beginLockTimestamp;
+        int maxBatch = MetaInfo.PROPERTY_STORE_GROUP_COMMIT_MAX_BATCH;
+        int wroteBytes = 0;
+        PutMessageRequest request;
+        while (committed.size() < maxBatch && (request = putRequestQueue.poll()) != null) {
+            MessageExtBrokerInner msg = request.msg;
+            // Here settings are stored timestamp, in order to ensure an orderly
+            // global
+            msg.setStoreTimestamp(beginLockTimestamp);
+            try {
+                request.result = appendInLock(msg);
+            } catch (Throwable e) {
+                logger.error("append message error, topic: {}", msg.getTopic(), e);
+                request.result = new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, null);
+            }
+            if (request.result.isOk()) {
+                wroteBytes += request.result.getAppendMessageResult().getWroteBytes();
+            }
+            committed.add(request);
+        }
+        wrotePosition.addAndGet(wroteBytes);
+        groupCommitBatchCount.incrementAndGet();
+        groupCommitMessageCount.addAndGet(committed.size());
+        long elapsedTimeInLock = System.currentTimeMillis() - beginLockTimestamp;
+        beginTimeInLock = 0;
+        if (elapsedTimeInLock > 500) {
+            logger.warn("[NOTIFYME]putMessage in lock cost time(ms)={}, batchSize={} wroteBytes={}", elapsedTimeInLock, committed.size(), wroteBytes);
+        }
+    }
+
+    private PutMessageResult appendInLock(final MessageExtBrokerInner msg) {
+        AppendMessageResult result;
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+        if (null == mappedFile || mappedFile.isFull()) {
+            mappedFile = this.mappedFileQueue.getLastMappedFile(0); // Mark: NewFile may be cause noise
+        }
+        if (null == mappedFile) {
+            logger.error("create mapped file1 error, topic: " + msg.getTopic());
+            return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+        }
+
+        result = mappedFile.appendMessage(msg, this.appendMessageCallback);
+        switch (result.getStatus()) {
+            case PUT_OK:
+                break;
+            case END_OF_FILE:
+                // Create a new file, re-write the message
+                mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                if (null == mappedFile) {
+                    logger.error("create mapped file error, topic: " + msg.getTopic());
+                    return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result);
+                }
+                result = mappedFile.appendMessage(msg, this.appendMessageCallback);
+                break;
+            case MESSAGE_SIZE_EXCEEDED:
+            case PROPERTIES_SIZE_EXCEEDED:
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result);
+            case UNKNOWN_ERROR:
+            default:
+                return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
         }
+        return new PutMessageResult(PutMessageStatus.PUT_OK, result);
     }
 
     public SelectMappedBufferResult consumeOneMessage(long offset) {
@@ -144,6 +337,17 @@ public class MessageStore {
         }
     }
 
+    /**
+     * 索引中已经记录了消息长度，直接按长度截取，不需要先读取 TOTALSIZE 再截取一次。
+     * 返回结果持有 mappedFile 的引用，使用完后需要调用 {@link SelectMappedBufferResult#release()}
+     */
+    public SelectMappedBufferResult consumeOneMessage(long offset, int size) {
+        if (size <= 0) {
+            return consumeOneMessage(offset);
+        }
+        return this.getMessage(offset, size);
+    }
+
     public SelectMappedBufferResult getMessage(final long offset, final int size) {
 
         if (transferStatus == TransferStatus.TRANSFERING) {
@@ -197,12 +401,95 @@ public class MessageStore {
         return wrotePosition;
     }
 
+    public long getGroupCommitBatchCount() {
+        return groupCommitBatchCount.get();
+    }
+
+    public long getGroupCommitMessageCount() {
+        return groupCommitMessageCount.get();
+    }
+
+    public FlushDiskType getFlushDiskType() {
+        return flushDiskType;
+    }
+
+    public long getFlushedWhere() {
+        return mappedFileQueue.getFlushedWhere();
+    }
+
+    public void setRetainOffsetSupplier(LongSupplier retainOffsetSupplier) {
+        this.retainOffsetSupplier = retainOffsetSupplier;
+    }
+
+    public long getMaxWrotePosition() {
+        return mappedFileQueue.getMaxWrotePosition();
+    }
+
+    /**
+     * 提示内核预读 commit log 中 [offset, offset + length) 的数据，超出已写入范围的部分忽略
+     *
+     * @return 实际提示预读的结束位置
+     */
+    public long readAhead(long offset, long length) {
+        long end = Math.min(offset + length, getMaxWrotePosition());
+        long position = offset;
+        while (position < end) {
+            MappedFile mappedFile = mappedFileQueue.findMappedFileByOffset(position);
+            if (mappedFile == null) {
+                break;
+            }
+            int pos = (int) (position - mappedFile.getFileFromOffset());
+            int size = (int) Math.min(end - position, mappedFileQueue.getMappedFileSize() - pos);
+            if (!mappedFile.readAhead(pos, size)) {
+                break;
+            }
+            position += size;
+        }
+        return position;
+    }
+
+    /**
+     * commit log 中最早的文件的起始位置，更早的数据已经删除
+     */
+    public long getMinOffset() {
+        return mappedFileQueue.getMinOffset();
+    }
+
+    /**
+     * 将 offset 之前的数据全部刷盘，供检查点使用
+     *
+     * @return 刷盘之后的位置
+     */
+    public long flushUntil(long offset) {
+        flushLock.lock();
+        try {
+            while (mappedFileQueue.getFlushedWhere() < offset) {
+                long beforeWhere = mappedFileQueue.getFlushedWhere();
+                mappedFileQueue.flush(0);
+                if (mappedFileQueue.getFlushedWhere() == beforeWhere) {
+                    break;
+                }
+            }
+            return mappedFileQueue.getFlushedWhere();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
     public synchronized void start() {
         if (this.transferStatus == TransferStatus.INIT) {
             this.transferStatus = TransferStatus.TRANSFERING;
         }
     }
 
+    /**
+     * 停止刷盘线程，停止前会把剩余的脏页全部刷盘
+     */
+    public synchronized void shutdown() {
+        flushMappedFileService.shutdown();
+        cleanMappedFileThread.makeStop();
+    }
+
     public long getLastReadTimestamp() {
         return lastReadTimestamp;
     }
@@ -219,9 +506,251 @@ public class MessageStore {
         this.lastWriteTimestamp = lastWriteTimestamp;
     }
 
+    private static class PutMessageRequest {
+        final MessageExtBrokerInner msg;
+        final CompletableFuture<PutMessageResult> future = new CompletableFuture<>();
+        PutMessageResult result;
+
+        PutMessageRequest(MessageExtBrokerInner msg) {
+            this.msg = msg;
+        }
+    }
+
+    private static class GroupFlushRequest {
+        final PutMessageResult putMessageResult;
+        final long nextOffset;
+        final long createTimestamp = System.currentTimeMillis();
+        final long expireTimestamp = createTimestamp + MetaInfo.PROPERTY_STORE_SYNC_FLUSH_TIMEOUT;
+        final CompletableFuture<PutMessageResult> future = new CompletableFuture<>();
+
+        GroupFlushRequest(PutMessageResult putMessageResult, long nextOffset) {
+            this.putMessageResult = putMessageResult;
+            this.nextOffset = nextOffset;
+        }
+    }
+
     /**
-     * 定期扫描过期文件
+     * 刷盘线程的公共部分，统计每种刷盘模式的吞吐与耗时
      */
+    abstract class FlushMappedFileService extends ServiceThread {
+        private static final int RETRY_TIMES_OVER = 10;
+        final AtomicLong flushTimes = new AtomicLong(0);
+        final AtomicLong flushedBytes = new AtomicLong(0);
+        final AtomicLong flushCostTotal = new AtomicLong(0);
+        volatile long maxFlushCost = 0;
+        long lastReportTimestamp = System.currentTimeMillis();
+
+        boolean doFlush(int flushLeastPages) {
+            long beginTime = System.currentTimeMillis();
+            long beforeWhere;
+            long flushed;
+            boolean result;
+            flushLock.lock();
+            try {
+                beforeWhere = mappedFileQueue.getFlushedWhere();
+                result = mappedFileQueue.flush(flushLeastPages);
+                flushed = mappedFileQueue.getFlushedWhere() - beforeWhere;
+            } finally {
+                flushLock.unlock();
+            }
+            long cost = System.currentTimeMillis() - beginTime;
+            if (flushed > 0) {
+                flushTimes.incrementAndGet();
+                flushedBytes.addAndGet(flushed);
+                flushCostTotal.addAndGet(cost);
+                if (cost > maxFlushCost) {
+                    maxFlushCost = cost;
+                }
+            }
+            if (cost > 500) {
+                logger.warn("[NOTIFYME]{} flush cost time(ms)={}, flushed bytes={}", getServiceName(), cost, flushed);
+            }
+            return result;
+        }
+
+        void flushAllOnShutdown() {
+            boolean result = false;
+            for (int i = 0; i < RETRY_TIMES_OVER && !result; i++) {
+                flushLock.lock();
+                try {
+                    result = mappedFileQueue.flush(0);
+                } finally {
+                    flushLock.unlock();
+                }
+                logger.info("{} service shutdown, retry {} times {}", getServiceName(), i + 1, result ? "OK" : "Not OK");
+            }
+        }
+
+        void report() {
+            long now = System.currentTimeMillis();
+            if (now - lastReportTimestamp < MetaInfo.PROPERTY_STORE_FLUSH_REPORT_INTERVAL) {
+                return;
+            }
+            long times = flushTimes.getAndSet(0);
+            long bytes = flushedBytes.getAndSet(0);
+            long costTotal = flushCostTotal.getAndSet(0);
+            long maxCost = maxFlushCost;
+            maxFlushCost = 0;
+            long seconds = Math.max(1, (now - lastReportTimestamp) / 1000);
+            lastReportTimestamp = now;
+            logger.info("{} flush monitor, times {}, throughput {} bytes/s, avg cost {} ms, max cost {} ms {}",
+                    getServiceName(), times, bytes / seconds, times > 0 ? costTotal / times : 0, maxCost, extraReport());
+        }
+
+        String extraReport() {
+            return "";
+        }
+    }
+
+    /**
+     * 异步刷盘，脏页超过阈值或者到达刷盘间隔时刷盘
+     */
+    class AsyncFlushService extends FlushMappedFileService {
+        private long lastFlushThoroughTimestamp = System.currentTimeMillis();
+
+        @Override
+        public String getServiceName() {
+            return "AsyncFlushService";
+        }
+
+        @Override
+        public void run() {
+            logger.info("{} service started", getServiceName());
+            while (!this.isStopped()) {
+                this.waitForRunning(MetaInfo.PROPERTY_STORE_FLUSH_INTERVAL);
+                try {
+                    drainPutRequests(null);
+                    int flushLeastPages = MetaInfo.PROPERTY_STORE_FLUSH_LEAST_PAGES;
+                    long now = System.currentTimeMillis();
+                    if (now >= lastFlushThoroughTimestamp + MetaInfo.PROPERTY_STORE_FLUSH_THOROUGH_INTERVAL) {
+                        lastFlushThoroughTimestamp = now;
+                        flushLeastPages = 0;
+                    }
+                    doFlush(flushLeastPages);
+                    report();
+                } catch (Throwable e) {
+                    logger.error("{} service has exception", getServiceName(), e);
+                }
+            }
+            flushAllOnShutdown();
+            logger.info("{} service end", getServiceName());
+        }
+    }
+
+    /**
+     * 同步刷盘，生产者等待同一批次的消息 force 到磁盘之后才返回
+     */
+    class GroupFlushService extends FlushMappedFileService {
+        final ConcurrentLinkedQueue<GroupFlushRequest> requestQueue = new ConcurrentLinkedQueue<>();
+        final List<GroupFlushRequest> pendingRequests = new ArrayList<>();
+        final AtomicLong ackTimes = new AtomicLong(0);
+        final AtomicLong ackWaitTotal = new AtomicLong(0);
+        final AtomicLong timeoutTimes = new AtomicLong(0);
+
+        void putRequest(GroupFlushRequest request) {
+            requestQueue.offer(request);
+            this.wakeup();
+        }
+
+        @Override
+        public String getServiceName() {
+            return "GroupFlushService";
+        }
+
+        @Override
+        public void run() {
+            logger.info("{} service started", getServiceName());
+            while (!this.isStopped()) {
+                this.waitForRunning(10);
+                try {
+                    drainPutRequests(null);
+                    doGroupFlush();
+                    report();
+                } catch (Throwable e) {
+                    logger.error("{} service has exception", getServiceName(), e);
+                }
+            }
+            doGroupFlush();
+            flushAllOnShutdown();
+            logger.info("{} service end", getServiceName());
+        }
+
+        private void doGroupFlush() {
+            GroupFlushRequest request;
+            while ((request = requestQueue.poll()) != null) {
+                pendingRequests.add(request);
+            }
+            if (pendingRequests.isEmpty()) {
+                return;
+            }
+            long maxOffset = 0;
+            for (GroupFlushRequest pendingRequest : pendingRequests) {
+                maxOffset = Math.max(maxOffset, pendingRequest.nextOffset);
+            }
+            while (mappedFileQueue.getFlushedWhere() < maxOffset) {
+                long beforeWhere = mappedFileQueue.getFlushedWhere();
+                doFlush(0);
+                if (mappedFileQueue.getFlushedWhere() == beforeWhere) {
+                    break;
+                }
+            }
+            long flushedWhere = mappedFileQueue.getFlushedWhere();
+            long now = System.currentTimeMillis();
+            Iterator<GroupFlushRequest> iterator = pendingRequests.iterator();
+            while (iterator.hasNext()) {
+                GroupFlushRequest pendingRequest = iterator.next();
+                if (flushedWhere >= pendingRequest.nextOffset) {
+                    ackTimes.incrementAndGet();
+                    ackWaitTotal.addAndGet(now - pendingRequest.createTimestamp);
+                    pendingRequest.future.complete(pendingRequest.putMessageResult);
+                    iterator.remove();
+                } else if (now > pendingRequest.expireTimestamp) {
+                    timeoutTimes.incrementAndGet();
+                    logger.warn("sync flush timeout, expect offset {} flushed offset {}", pendingRequest.nextOffset, flushedWhere);
+                    pendingRequest.putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
+                    pendingRequest.future.complete(pendingRequest.putMessageResult);
+                    iterator.remove();
+                }
+            }
+        }
+
+        @Override
+        String extraReport() {
+            long times = ackTimes.getAndSet(0);
+            long waitTotal = ackWaitTotal.getAndSet(0);
+            return ", acks " + times + ", avg ack wait " + (times > 0 ? waitTotal / times : 0) + " ms, timeouts " + timeoutTimes.getAndSet(0);
+        }
+    }
+
+    /**
+     * 清理 commit log 文件：
+     * 1. 所有引用该文件的队列都已经消费完或者已经销毁时删除
+     * 2. 超过保留时间或者总大小超过上限时，即使还有未消费的消息也删除，作为兜底
+     * 未刷盘的文件不删除，每次删除之间按 store.clean.delete.interval 间隔，避免影响前台读写
+     */
+    public void cleanMappedFiles() {
+        /*
+         * 先读取刷盘位置，之后读取的消费进度与磁盘上限都不能越过这个位置，刷盘线程同时推进时删除的下界也是确定的
+         */
+        long flushedWhere = mappedFileQueue.getFlushedWhere();
+        int deleteInterval = MetaInfo.PROPERTY_STORE_CLEAN_DELETE_INTERVAL;
+        int expiredCount = mappedFileQueue.deleteExpiredFileByTime(MetaInfo.PROPERTY_MAPPED_FILE_EXPIRE_TIME, deleteInterval, 1000, false);
+        long deleteBefore = -1;
+        LongSupplier supplier = retainOffsetSupplier;
+        if (MetaInfo.PROPERTY_STORE_CLEAN_CONSUMED_ENABLE && supplier != null) {
+            deleteBefore = supplier.getAsLong();
+        }
+        if (MetaInfo.PROPERTY_STORE_MAX_DISK_SIZE > 0) {
+            deleteBefore = Math.max(deleteBefore, mappedFileQueue.getMaxOffset() - MetaInfo.PROPERTY_STORE_MAX_DISK_SIZE * 1024L * 1024L);
+        }
+        deleteBefore = Math.min(deleteBefore, flushedWhere);
+        int consumedCount = deleteBefore > 0 ? mappedFileQueue.deleteFilesBeforeOffset(deleteBefore, deleteInterval, 1000) : 0;
+        if (expiredCount > 0 || consumedCount > 0) {
+            logger.info("CleanMappedFileThread clean mapped file, expired count {}, consumed or over size count {}, delete before {}",
+                    expiredCount, consumedCount, deleteBefore);
+        }
+    }
+
     private class CleanMappedFileThread extends ServiceThread {
 
         @Override
@@ -231,11 +760,10 @@ public class MessageStore {
 
         @Override
         public void run() {
-            while (true) {
-                this.waitForRunning(3600000);
+            while (!this.isStopped()) {
+                this.waitForRunning(MetaInfo.PROPERTY_STORE_CLEAN_INTERVAL);
                 try {
-                    int count = mappedFileQueue.deleteExpiredFileByTime(MetaInfo.PROPERTY_MAPPED_FILE_EXPIRE_TIME, 1000, 1000, false);
-                    logger.info("CleanMappedFileThread clean expired mapped file ,count {}", count);
+                    cleanMappedFiles();
                 } catch (Exception e) {
                     logger.error("CleanMappedFileThread clean error", e);
                 }
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * 队列内按 msgCode 去重的滑动窗口，窗口同时受条数与时间限制，超出任意一个限制的 msgCode 会被淘汰。
+ * <p>
+ * 1. msgCode 只保存 64 位 hash，hash 表使用开放寻址的 long 数组，查找与删除都是 O(1)
+ * 2. 查找前先查布隆过滤器，绝大多数新消息不需要访问 hash 表；淘汰的条目不会从过滤器中清除，
+ * 淘汰数量超过窗口容量时按当前窗口重建过滤器，均摊仍然是 O(1)
+ * 3. 按写入顺序保存在环形数组中，淘汰时从最早的条目开始
+ * 4. 可以生成快照写入磁盘，重启时加载快照并按记录的索引位置截断
+ * <p>
+ * 不是线程安全的，由所属队列加锁调用。两个不同的 msgCode 只有在 64 位 hash 完全相同时才会被误判为重复
+ */
+public class MsgCodeDedupWindow {
+
+    private static final Logger logger = LoggerFactory.getLogger(MsgCodeDedupWindow.class);
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int BLOOM_BITS_PER_ENTRY = 16;
+    private static final int BLOOM_HASH_COUNT = 4;
+
+    private final int maxCount;
+    private final long windowTime;
+
+    /*
+     * 开放寻址 hash 表，0 表示空槽
+     */
+    private long[] table;
+    private int tableMask;
+    /*
+     * 按写入顺序保存的环形数组
+     */
+    private long[] ringHashes;
+    private long[] ringTimes;
+    private long[] ringIndexes;
+    private int ringHead;
+    private int size;
+
+    private long[] bloomBits;
+    private int bloomMask;
+    private int evictedSinceRebuild;
+
+    private boolean changed;
+
+    public MsgCodeDedupWindow(int maxCount, long windowTime) {
+        this.maxCount = Math.max(maxCount, 1);
+        this.windowTime = windowTime;
+        allocate(Math.min(this.maxCount, INITIAL_CAPACITY));
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public long getWindowTime() {
+        return windowTime;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 快照之后是否有新的 msgCode 写入或者淘汰
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    public boolean contains(String msgCode, long now) {
+        evictExpired(now);
+        long hash = hash(msgCode);
+        if (!bloomMightContain(hash)) {
+            return false;
+        }
+        return indexOf(hash) >= 0;
+    }
+
+    /**
+     * 记录一条已经写入的消息，调用方需要先通过 {@link #contains} 确认不是重复消息
+     *
+     * @param timestamp 消息写入时间
+     * @param index     消息在索引队列中的位置，加载快照时用于截断
+     */
+    public void add(String msgCode, long timestamp, long index) {
+        add(hash(msgCode), timestamp, index);
+    }
+
+    private void add(long hash, long timestamp, long index) {
+        evictExpired(timestamp);
+        if (size == maxCount) {
+            evictHead();
+        }
+        if (size == ringHashes.length) {
+            grow();
+        }
+        int tail = (ringHead + size) & (ringHashes.length - 1);
+        ringHashes[tail] = hash;
+        ringTimes[tail] = timestamp;
+        ringIndexes[tail] = index;
+        size++;
+        tableInsert(hash);
+        bloomAdd(hash);
+        changed = true;
+    }
+
+    public void evictExpired(long now) {
+        if (windowTime <= 0) {
+            return;
+        }
+        long expireTime = now - windowTime;
+        while (size > 0 && ringTimes[ringHead] < expireTime) {
+            evictHead();
+        }
+    }
+
+    private void evictHead() {
+        tableRemove(ringHashes[ringHead]);
+        ringHead = (ringHead + 1) & (ringHashes.length - 1);
+        size--;
+        changed = true;
+        if (++evictedSinceRebuild > ringHashes.length) {
+            rebuildBloom();
+        }
+    }
+
+    /**
+     * 容量按 2 的幂增长，最大不超过 maxCount 对应的容量，未使用的队列不会占用整个窗口的内存
+     */
+    private void grow() {
+        long[] oldHashes = ringHashes;
+        long[] oldTimes = ringTimes;
+        long[] oldIndexes = ringIndexes;
+        int oldHead = ringHead;
+        int oldSize = size;
+        allocate(oldHashes.length << 1);
+        int mask = oldHashes.length - 1;
+        for (int i = 0; i < oldSize; i++) {
+            int position = (oldHead + i) & mask;
+            ringHashes[i] = oldHashes[position];
+            ringTimes[i] = oldTimes[position];
+            ringIndexes[i] = oldIndexes[position];
+            tableInsert(oldHashes[position]);
+            bloomAdd(oldHashes[position]);
+        }
+        size = oldSize;
+    }
+
+    private void allocate(int capacity) {
+        int ringCapacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ringHashes = new long[ringCapacity];
+        ringTimes = new long[ringCapacity];
+        ringIndexes = new long[ringCapacity];
+        ringHead = 0;
+        size = 0;
+        // 装载因子不超过 0.5，线性探测的平均探测次数保持在常数
+        table = new long[ringCapacity << 1];
+        tableMask = table.length - 1;
+        int bloomLongs = Math.max((ringCapacity * BLOOM_BITS_PER_ENTRY) >>> 6, 1);
+        bloomBits = new long[bloomLongs];
+        bloomMask = (bloomLongs << 6) - 1;
+        evictedSinceRebuild = 0;
+    }
+
+    private int indexOf(long hash) {
+        int position = spread(hash) & tableMask;
+        while (table[position] != 0) {
+            if (table[position] == hash) {
+                return position;
+            }
+            position = (position + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    private void tableInsert(long hash) {
+        int position = spread(hash) & tableMask;
+        while (table[position] != 0) {
+            if (table[position] == hash) {
+                return;
+            }
+            position = (position + 1) & tableMask;
+        }
+        table[position] = hash;
+    }
+
+    /**
+     * 线性探测的删除需要把后面同一探测链上的元素前移，不能只清空当前槽
+     */
+    private void tableRemove(long hash) {
+        int position = indexOf(hash);
+        if (position < 0) {
+            return;
+        }
+        int next = (position + 1) & tableMask;
+        while (table[next] != 0) {
+            int home = spread(table[next]) & tableMask;
+            // home 不在 (position, next] 之间时，next 上的元素可以移动到 position
+            if (((next - home) & tableMask) >= ((next - position) & tableMask)) {
+                table[position] = table[next];
+                position = next;
+            }
+            next = (next + 1) & tableMask;
+        }
+        table[position] = 0;
+    }
+
+    private void bloomAdd(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASH_COUNT; i++) {
+            int bit = (h1 + i * h2) & bloomMask;
+            bloomBits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean bloomMightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASH_COUNT; i++) {
+            int bit = (h1 + i * h2) & bloomMask;
+            if ((bloomBits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rebuildBloom() {
+        Arrays.fill(bloomBits, 0L);
+        int mask = ringHashes.length - 1;
+        for (int i = 0; i < size; i++) {
+            bloomAdd(ringHashes[(ringHead + i) & mask]);
+        }
+        evictedSinceRebuild = 0;
+    }
+
+    private static int spread(long hash) {
+        return (int) (hash ^ (hash >>> 29));
+    }
+
+    /**
+     * 64 位 hash，0 保留为 hash 表的空槽
+     */
+    static long hash(String msgCode) {
+        long h = 1125899906842597L;
+        for (int i = 0; i < msgCode.length(); i++) {
+            h = 31 * h + msgCode.charAt(i);
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * 复制当前窗口，调用方在队列锁内调用，写文件可以在锁外进行
+     *
+     * @param logicOffset 快照时索引队列的位置，该位置之前的消息都已经记录在窗口中
+     */
+    public Snapshot snapshot(long logicOffset) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.logicOffset = logicOffset;
+        snapshot.hashes = new long[size];
+        snapshot.times = new long[size];
+        snapshot.indexes = new long[size];
+        int mask = ringHashes.length - 1;
+        for (int i = 0; i < size; i++) {
+            int position = (ringHead + i) & mask;
+            snapshot.hashes[i] = ringHashes[position];
+            snapshot.times[i] = ringTimes[position];
+            snapshot.indexes[i] = ringIndexes[position];
+        }
+        changed = false;
+        return snapshot;
+    }
+
+    /**
+     * 加载快照，索引位置超过 maxLogicOffset 的条目对应的消息在重启时已经被截断，不能恢复
+     */
+    public void restore(Snapshot snapshot, long maxLogicOffset) {
+        for (int i = 0; i < snapshot.hashes.length; i++) {
+            if (snapshot.indexes[i] > maxLogicOffset) {
+                break;
+            }
+            add(snapshot.hashes[i], snapshot.times[i], snapshot.indexes[i]);
+        }
+    }
+
+    public static class Snapshot {
+        private static final int MAGIC = 0x4D434457;
+        private static final int VERSION = 1;
+
+        long logicOffset;
+        long[] hashes;
+        long[] times;
+        long[] indexes;
+
+        public long getLogicOffset() {
+            return logicOffset;
+        }
+
+        public int size() {
+            return hashes.length;
+        }
+
+        /**
+         * @return 快照文件不存在或者无法解析时返回 null
+         */
+        public static Snapshot load(String path) {
+            File file = new File(path);
+            if (!file.exists()) {
+                return null;
+            }
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                    logger.error("invalid msg code dedup snapshot {}", path);
+                    return null;
+                }
+                Snapshot snapshot = new Snapshot();
+                snapshot.logicOffset = inputStream.readLong();
+                int count = inputStream.readInt();
+                snapshot.hashes = new long[count];
+                snapshot.times = new long[count];
+                snapshot.indexes = new long[count];
+                for (int i = 0; i < count; i++) {
+                    snapshot.hashes[i] = inputStream.readLong();
+                    snapshot.times[i] = inputStream.readLong();
+                    snapshot.indexes[i] = inputStream.readLong();
+                }
+                return snapshot;
+            } catch (Exception e) {
+                logger.error("load msg code dedup snapshot {} error", path, e);
+                return null;
+            }
+        }
+
+        /**
+         * 先写临时文件再重命名，保证宕机时快照文件不会只写了一半
+         */
+        public void save(String path) throws IOException {
+            File file = new File(path);
+            File tmpFile = new File(path + ".tmp");
+            if (file.getParentFile() != null && !file.getParentFile().exists()) {
+                file.getParentFile().mkdirs();
+            }
+            try (FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+                 DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream))) {
+                outputStream.writeInt(MAGIC);
+                outputStream.writeInt(VERSION);
+                outputStream.writeLong(logicOffset);
+                outputStream.writeInt(hashes.length);
+                for (int i = 0; i < hashes.length; i++) {
+                    outputStream.writeLong(hashes[i]);
+                    outputStream.writeLong(times[i]);
+                    outputStream.writeLong(indexes[i]);
+                }
+                outputStream.flush();
+                fileOutputStream.getFD().sync();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
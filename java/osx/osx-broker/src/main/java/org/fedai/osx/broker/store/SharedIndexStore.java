@@ -0,0 +1,284 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.store;
+
+import org.fedai.osx.broker.queue.MappedFile;
+import org.fedai.osx.broker.queue.MappedFileQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 多个队列共用的索引文件，消息较少的队列不再单独创建索引文件，索引只追加到这里，同时保存在队列的内存中。
+ * <p>
+ * 每条记录 24 字节：topic hash(8) + commit log 位置(8) + 消息大小(4) + 队列内的索引位置(4)。
+ * 消息大小为 -1 的记录表示该队列已经销毁，为 0 的记录已经失效，恢复时跳过；topic hash 为 0 表示后面没有数据。
+ * <p>
+ * 重启时按文件顺序扫描全部记录，按 topic hash 分组还原每个队列的索引，
+ * 文件在其中所有记录指向的 commit log 都已经删除之后删除
+ */
+public class SharedIndexStore {
+
+    public static final int UNIT_SIZE = 24;
+    private static final int TOMBSTONE = -1;
+    private static final int DELETE_FILES_INTERVAL = 0;
+    private static final long DELETE_FILES_FORCIBLY_INTERVAL = 1000 * 120;
+    private static final Logger logger = LoggerFactory.getLogger(SharedIndexStore.class);
+
+    private final MappedFileQueue mappedFileQueue;
+    private final int mappedFileSize;
+    private final byte[] unit = new byte[UNIT_SIZE];
+    private final ByteBuffer unitBuffer = ByteBuffer.wrap(unit);
+    private long writeOffset = 0;
+
+    /**
+     * @param mappedFileSize 会向下取整为记录大小的整数倍，记录不会跨越文件
+     */
+    public SharedIndexStore(String storePath, int mappedFileSize) {
+        this.mappedFileSize = Math.max(UNIT_SIZE, mappedFileSize / UNIT_SIZE * UNIT_SIZE);
+        this.mappedFileQueue = new MappedFileQueue(storePath, this.mappedFileSize, null);
+    }
+
+    /**
+     * 64 位 FNV-1a，0 保留给空记录
+     */
+    public static long topicHash(String transferId) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : transferId.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    public synchronized boolean append(long topicHash, long index, long phyOffset, int size) {
+        unitBuffer.clear();
+        unitBuffer.putLong(topicHash);
+        unitBuffer.putLong(phyOffset);
+        unitBuffer.putInt(size);
+        unitBuffer.putInt((int) index);
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(writeOffset);
+        if (mappedFile == null || !mappedFile.appendMessage(unit)) {
+            logger.error("append shared index error, write offset {}", writeOffset);
+            return false;
+        }
+        writeOffset += UNIT_SIZE;
+        return true;
+    }
+
+    /**
+     * 队列销毁时写入，恢复时丢弃该队列之前的所有记录
+     */
+    public boolean appendTombstone(long topicHash) {
+        return append(topicHash, 0, 0, TOMBSTONE);
+    }
+
+    /**
+     * 重启时扫描所有记录，按 topic hash 分组还原各个队列的索引。
+     * 指向 commit log 有效范围之外的记录会被标记为失效，避免之后写入的消息覆盖该位置后被误认为有效
+     *
+     * @param maxPhyOffset commit log 恢复之后的末尾位置
+     * @return 加载文件失败时返回 null
+     */
+    public synchronized Map<Long, Group> load(long maxPhyOffset) {
+        if (!this.mappedFileQueue.load()) {
+            return null;
+        }
+        Map<Long, Group> groups = new HashMap<>();
+        long offset = 0;
+        int invalidCount = 0;
+        List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        if (!mappedFiles.isEmpty()) {
+            offset = mappedFiles.get(0).getFileFromOffset();
+        }
+        scan:
+        for (MappedFile mappedFile : mappedFiles) {
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            boolean changed = false;
+            for (int position = 0; position + UNIT_SIZE <= this.mappedFileSize; position += UNIT_SIZE) {
+                long topicHash = byteBuffer.getLong(position);
+                if (topicHash == 0) {
+                    if (changed) {
+                        mappedFile.getMappedByteBuffer().force();
+                    }
+                    break scan;
+                }
+                offset += UNIT_SIZE;
+                long phyOffset = byteBuffer.getLong(position + 8);
+                int size = byteBuffer.getInt(position + 16);
+                long index = byteBuffer.getInt(position + 20) & 0xffffffffL;
+                if (size == TOMBSTONE) {
+                    groups.remove(topicHash);
+                    continue;
+                }
+                if (size <= 0) {
+                    continue;
+                }
+                Group group = groups.computeIfAbsent(topicHash, Group::new);
+                if (phyOffset + size > maxPhyOffset || !group.add(index, phyOffset, size)) {
+                    byteBuffer.putInt(position + 16, 0);
+                    changed = true;
+                    invalidCount++;
+                }
+                if (group.getCount() == 0) {
+                    groups.remove(topicHash);
+                }
+            }
+            if (changed) {
+                mappedFile.getMappedByteBuffer().force();
+            }
+        }
+        this.writeOffset = offset;
+        this.mappedFileQueue.setFlushedWhere(offset);
+        this.mappedFileQueue.setCommittedWhere(offset);
+        this.mappedFileQueue.truncateDirtyFiles(offset);
+        logger.info("shared index load end, write offset {}, queue count {}, invalid count {}", offset, groups.size(), invalidCount);
+        return groups;
+    }
+
+    public boolean flush(int flushLeastPages) {
+        return this.mappedFileQueue.flush(flushLeastPages);
+    }
+
+    /**
+     * 删除所有记录都指向 minPhyOffset 之前的文件，只从第一个文件开始连续删除，最后一个文件不删除
+     *
+     * @param minPhyOffset commit log 中最早的位置
+     */
+    public int deleteExpiredFiles(long minPhyOffset) {
+        List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        long deleteBefore = -1;
+        for (int i = 0; i < mappedFiles.size() - 1; i++) {
+            MappedFile mappedFile = mappedFiles.get(i);
+            if (!isExpired(mappedFile, minPhyOffset)) {
+                break;
+            }
+            deleteBefore = mappedFile.getFileFromOffset() + this.mappedFileSize;
+        }
+        if (deleteBefore < 0) {
+            return 0;
+        }
+        return this.mappedFileQueue.deleteFilesBeforeOffset(deleteBefore, DELETE_FILES_INTERVAL, DELETE_FILES_FORCIBLY_INTERVAL);
+    }
+
+    private boolean isExpired(MappedFile mappedFile, long minPhyOffset) {
+        ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+        for (int position = 0; position + UNIT_SIZE <= this.mappedFileSize; position += UNIT_SIZE) {
+            int size = byteBuffer.getInt(position + 16);
+            if (size > 0 && byteBuffer.getLong(position + 8) + size > minPhyOffset) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getWriteOffset() {
+        return writeOffset;
+    }
+
+    public void shutdown() {
+        while (!this.mappedFileQueue.flush(0)) {
+        }
+        this.mappedFileQueue.shutdown(DELETE_FILES_FORCIBLY_INTERVAL);
+    }
+
+    public void destroy() {
+        this.mappedFileQueue.destroy();
+        this.writeOffset = 0;
+    }
+
+    /**
+     * 恢复出来的单个队列的索引，entries 中的格式与独立的索引文件相同：commit log 位置(8) + 消息大小(4)
+     */
+    public static class Group {
+        private final long topicHash;
+        private long firstIndex;
+        private int count;
+        private long lastPhyEnd;
+        private ByteBuffer entries = ByteBuffer.allocate(16 * IndexQueue.CQ_STORE_UNIT_SIZE);
+
+        Group(long topicHash) {
+            this.topicHash = topicHash;
+        }
+
+        /**
+         * 索引位置与已有的记录重复时说明之后的记录是在截断之后重新写入的，丢弃旧记录；
+         * 不连续时说明之前的记录所在的文件已经删除或者队列重新创建，从这条记录重新开始
+         *
+         * @return 记录无效时返回 false
+         */
+        boolean add(long index, long phyOffset, int size) {
+            if (count > 0 && index >= firstIndex && index <= getLastIndex()) {
+                count = (int) (index - firstIndex);
+                lastPhyEnd = count > 0 ? entries.getLong((count - 1) * IndexQueue.CQ_STORE_UNIT_SIZE)
+                        + entries.getInt((count - 1) * IndexQueue.CQ_STORE_UNIT_SIZE + 8) : 0;
+            } else if (count > 0 && index != getLastIndex() + 1) {
+                count = 0;
+                lastPhyEnd = 0;
+            }
+            if (phyOffset < lastPhyEnd) {
+                return false;
+            }
+            if (count == 0) {
+                firstIndex = index;
+            }
+            int position = count * IndexQueue.CQ_STORE_UNIT_SIZE;
+            if (position + IndexQueue.CQ_STORE_UNIT_SIZE > entries.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(entries.capacity() << 1);
+                System.arraycopy(entries.array(), 0, bigger.array(), 0, position);
+                entries = bigger;
+            }
+            entries.putLong(position, phyOffset);
+            entries.putInt(position + 8, size);
+            count++;
+            lastPhyEnd = phyOffset + size;
+            return true;
+        }
+
+        public long getTopicHash() {
+            return topicHash;
+        }
+
+        public long getFirstIndex() {
+            return firstIndex;
+        }
+
+        public long getLastIndex() {
+            return firstIndex + count - 1;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getLastPhyEnd() {
+            return lastPhyEnd;
+        }
+
+        public long getPhyOffset(long index) {
+            return entries.getLong((int) (index - firstIndex) * IndexQueue.CQ_STORE_UNIT_SIZE);
+        }
+
+        public ByteBuffer getEntries() {
+            return entries;
+        }
+    }
+}
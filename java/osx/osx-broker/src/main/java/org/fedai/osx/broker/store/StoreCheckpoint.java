@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.store;
+
+import lombok.Data;
+import org.fedai.osx.core.utils.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 存储检查点，记录已经刷盘的 commit log 位置以及每个队列已经刷盘的索引位置。
+ * 重启时检查点之前的数据不需要再校验
+ */
+@Data
+public class StoreCheckpoint {
+    private static final Logger logger = LoggerFactory.getLogger(StoreCheckpoint.class);
+
+    long commitLogOffset = -1;
+    long timestamp;
+    Map<String, QueueCheckpoint> queues = new HashMap<>();
+
+    /**
+     * @return 检查点文件不存在或者无法解析时返回 null
+     */
+    public static StoreCheckpoint load(String path) {
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            return JsonUtil.json2Object(content, StoreCheckpoint.class);
+        } catch (Exception e) {
+            logger.error("load store checkpoint {} error", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * 先写临时文件再重命名，保证宕机时检查点文件不会只写了一半
+     */
+    public void save(String path) throws IOException {
+        File file = new File(path);
+        File tmpFile = new File(path + ".tmp");
+        if (file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        try (FileOutputStream outputStream = new FileOutputStream(tmpFile)) {
+            outputStream.write(JsonUtil.object2Json(this).getBytes(StandardCharsets.UTF_8));
+            outputStream.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Data
+    public static class QueueCheckpoint {
+        String sessionId;
+        String topic;
+        long logicOffset;
+        long consumeOffset;
+    }
+}
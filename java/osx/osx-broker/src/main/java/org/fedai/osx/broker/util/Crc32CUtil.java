@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fedai.osx.broker.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C 校验。JDK 9 及以上使用 java.util.zip.CRC32C（有硬件指令加速），
+ * JDK 8 下退化为纯 java 的 slicing-by-8 实现，两者结果一致
+ */
+public class Crc32CUtil {
+
+    private static final Logger logger = LoggerFactory.getLogger(Crc32CUtil.class);
+    private static final int CASTAGNOLI_POLY = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+    private static final MethodHandle JDK_CONSTRUCTOR;
+    private static final MethodHandle JDK_UPDATE_BYTE_BUFFER;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ CASTAGNOLI_POLY : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int k = 1; k < 8; k++) {
+                TABLES[k][i] = (TABLES[k - 1][i] >>> 8) ^ TABLES[0][TABLES[k - 1][i] & 0xff];
+            }
+        }
+
+        MethodHandle constructor = null;
+        MethodHandle updateByteBuffer = null;
+        try {
+            Class<?> clazz = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            constructor = lookup.findConstructor(clazz, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            updateByteBuffer = lookup.findVirtual(clazz, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch (Throwable e) {
+            logger.info("java.util.zip.CRC32C is not available, use pure java implementation");
+            constructor = null;
+            updateByteBuffer = null;
+        }
+        JDK_CONSTRUCTOR = constructor;
+        JDK_UPDATE_BYTE_BUFFER = updateByteBuffer;
+    }
+
+    public static boolean isJdkCrc32CAvailable() {
+        return JDK_CONSTRUCTOR != null;
+    }
+
+    public static int crc32c(byte[] data, int offset, int length) {
+        if (JDK_CONSTRUCTOR != null) {
+            try {
+                Checksum checksum = (Checksum) JDK_CONSTRUCTOR.invokeExact();
+                checksum.update(data, offset, length);
+                return (int) checksum.getValue();
+            } catch (Throwable ignore) {
+                // 不会出现，出现时退化为纯 java 实现
+            }
+        }
+        return crc32cPureJava(ByteBuffer.wrap(data), offset, length);
+    }
+
+    /**
+     * 计算 buffer 中 [offset, offset + length) 的 CRC32C，使用绝对下标，不会修改 buffer 的 position 和 limit
+     */
+    public static int crc32c(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return crc32c(buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        if (JDK_UPDATE_BYTE_BUFFER != null) {
+            try {
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(offset + length);
+                slice.position(offset);
+                Checksum checksum = (Checksum) JDK_CONSTRUCTOR.invokeExact();
+                JDK_UPDATE_BYTE_BUFFER.invokeExact(checksum, slice);
+                return (int) checksum.getValue();
+            } catch (Throwable ignore) {
+                // 不会出现，出现时退化为纯 java 实现
+            }
+        }
+        return crc32cPureJava(buffer, offset, length);
+    }
+
+    /**
+     * 创建可以复用的 CRC32C 计算对象，配合 {@link #crc32c(Checksum, ByteBuffer, int, int)} 使用
+     *
+     * @return JDK 8 下返回 null
+     */
+    public static Checksum createChecksum() {
+        if (JDK_CONSTRUCTOR != null) {
+            try {
+                return (Checksum) JDK_CONSTRUCTOR.invokeExact();
+            } catch (Throwable ignore) {
+                // 不会出现，出现时退化为纯 java 实现
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 使用调用方复用的 checksum 计算 buffer 中 [offset, offset + length) 的 CRC32C，不创建新的对象。
+     * 计算时临时修改 buffer 的 position 和 limit，返回前恢复，调用方需要保证没有其他线程同时使用该 buffer
+     */
+    public static int crc32c(Checksum checksum, ByteBuffer buffer, int offset, int length) {
+        if (checksum == null) {
+            return crc32c(buffer, offset, length);
+        }
+        checksum.reset();
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + offset, length);
+            return (int) checksum.getValue();
+        }
+        int position = buffer.position();
+        int limit = buffer.limit();
+        try {
+            buffer.limit(offset + length);
+            buffer.position(offset);
+            JDK_UPDATE_BYTE_BUFFER.invokeExact(checksum, buffer);
+            return (int) checksum.getValue();
+        } catch (Throwable e) {
+            return crc32c(buffer, offset, length);
+        } finally {
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+    }
+
+    public static int crc32cPureJava(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer byteBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int crc = 0xFFFFFFFF;
+        while (length >= 8) {
+            int low = byteBuffer.getInt(offset) ^ crc;
+            int high = byteBuffer.getInt(offset + 4);
+            crc = TABLES[7][low & 0xff] ^ TABLES[6][(low >>> 8) & 0xff]
+                    ^ TABLES[5][(low >>> 16) & 0xff] ^ TABLES[4][low >>> 24]
+                    ^ TABLES[3][high & 0xff] ^ TABLES[2][(high >>> 8) & 0xff]
+                    ^ TABLES[1][(high >>> 16) & 0xff] ^ TABLES[0][high >>> 24];
+            offset += 8;
+            length -= 8;
+        }
+        while (length > 0) {
+            crc = (crc >>> 8) ^ TABLES[0][(crc ^ byteBuffer.get(offset)) & 0xff];
+            offset++;
+            length--;
+        }
+        return ~crc;
+    }
+}
@@ -21,8 +21,11 @@ import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.webank.ai.eggroll.api.networking.proxy.Proxy;
 import com.webank.eggroll.core.transfer.Transfer;
+import io.grpc.Context;
+import io.grpc.Deadline;
 import io.grpc.ManagedChannel;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
 import org.apache.commons.lang3.StringUtils;
 import org.fedai.osx.broker.constants.MessageFlag;
 import org.fedai.osx.broker.http.HttpClientPool;
@@ -55,6 +58,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class TransferUtil {
 
@@ -295,7 +299,7 @@ public class TransferUtil {
             stub = (PrivateTransferTransportGrpc.PrivateTransferTransportBlockingStub) context.getData(Dict.BLOCKING_STUB);
         }
         try {
-            result = stub.push(produceRequest);
+            result = stub.withDeadline(buildRedirectDeadline(MetaInfo.PROPERTY_GRPC_CLIENT_REDIRECT_DEADLINE)).push(produceRequest);
         } catch (StatusRuntimeException e) {
             logger.error("redirect error", e);
             throw new RemoteRpcException(StatusCode.NET_ERROR, "send to " + routerInfo.toKey() + " error : " + e.getMessage());
@@ -341,21 +345,75 @@ public class TransferUtil {
         ManagedChannel managedChannel = GrpcConnectionFactory.createManagedChannel(routerInfo);
         context.setActionType(ActionType.REDIRECT_CONSUME.name());
         PrivateTransferTransportGrpc.PrivateTransferTransportBlockingStub stub = PrivateTransferTransportGrpc.newBlockingStub(managedChannel);
-        return stub.pop(inbound);
+        try {
+            return stub.withDeadline(buildRedirectDeadline(getPopRedirectTimeout(inbound))).pop(inbound);
+        } catch (StatusRuntimeException e) {
+            logger.error("redirect pop error", e);
+            throw new RemoteRpcException(StatusCode.NET_ERROR, "send to " + routerInfo.toKey() + " error : " + e.getMessage());
+        }
     }
 
     static public Osx.TransportOutbound redirectPeek(OsxContext context, RouterInfo routerInfo, Osx.PeekInbound inbound) {
         ManagedChannel managedChannel = GrpcConnectionFactory.createManagedChannel(routerInfo);
         context.setActionType(ActionType.REDIRECT_CONSUME.name());
         PrivateTransferTransportGrpc.PrivateTransferTransportBlockingStub stub = PrivateTransferTransportGrpc.newBlockingStub(managedChannel);
-        return stub.peek(inbound);
+        try {
+            return stub.withDeadline(buildRedirectDeadline(MetaInfo.PROPERTY_GRPC_CLIENT_REDIRECT_DEADLINE)).peek(inbound);
+        } catch (StatusRuntimeException e) {
+            logger.error("redirect peek error", e);
+            throw new RemoteRpcException(StatusCode.NET_ERROR, "send to " + routerInfo.toKey() + " error : " + e.getMessage());
+        }
     }
 
     static public Osx.TransportOutbound redirectRelease(OsxContext context, RouterInfo routerInfo, Osx.ReleaseInbound inbound) {
         ManagedChannel managedChannel = GrpcConnectionFactory.createManagedChannel(routerInfo);
         context.setActionType(ActionType.CANCEL_TOPIC.name());
         PrivateTransferTransportGrpc.PrivateTransferTransportBlockingStub stub = PrivateTransferTransportGrpc.newBlockingStub(managedChannel);
-        return stub.release(inbound);
+        try {
+            return stub.withDeadline(buildRedirectDeadline(MetaInfo.PROPERTY_GRPC_CLIENT_REDIRECT_DEADLINE)).release(inbound);
+        } catch (StatusRuntimeException e) {
+            logger.error("redirect release error", e);
+            throw new RemoteRpcException(StatusCode.NET_ERROR, "send to " + routerInfo.toKey() + " error : " + e.getMessage());
+        }
+    }
+
+    /**
+     * 异步转发 pop，结果在 grpc 客户端线程上通过 responseObserver 回调，调用线程不等待下一跳
+     */
+    static public void redirectPopAsync(OsxContext context, RouterInfo routerInfo, Osx.PopInbound inbound, StreamObserver<Osx.TransportOutbound> responseObserver) {
+        ManagedChannel managedChannel = GrpcConnectionFactory.createManagedChannel(routerInfo);
+        context.setActionType(ActionType.REDIRECT_CONSUME.name());
+        PrivateTransferTransportGrpc.newStub(managedChannel)
+                .withDeadline(buildRedirectDeadline(getPopRedirectTimeout(inbound)))
+                .pop(inbound, new RedirectStreamObserver<>(routerInfo, responseObserver));
+    }
+
+    static public void redirectPeekAsync(OsxContext context, RouterInfo routerInfo, Osx.PeekInbound inbound, StreamObserver<Osx.TransportOutbound> responseObserver) {
+        ManagedChannel managedChannel = GrpcConnectionFactory.createManagedChannel(routerInfo);
+        context.setActionType(ActionType.REDIRECT_CONSUME.name());
+        PrivateTransferTransportGrpc.newStub(managedChannel)
+                .withDeadline(buildRedirectDeadline(MetaInfo.PROPERTY_GRPC_CLIENT_REDIRECT_DEADLINE))
+                .peek(inbound, new RedirectStreamObserver<>(routerInfo, responseObserver));
+    }
+
+    /**
+     * 转发调用的 deadline，取上游调用剩余的 deadline 与本地超时中较早的一个，
+     * 上游已经放弃的请求不会在下一跳继续占用连接和线程
+     *
+     * @param timeout 本地超时，单位毫秒
+     */
+    static public Deadline buildRedirectDeadline(long timeout) {
+        Deadline deadline = Deadline.after(timeout, TimeUnit.MILLISECONDS);
+        Deadline callerDeadline = Context.current().getDeadline();
+        return callerDeadline != null ? callerDeadline.minimum(deadline) : deadline;
+    }
+
+    /**
+     * pop 在对端会阻塞等待消息，deadline 需要在等待时间之外再留出转发的时间
+     */
+    static long getPopRedirectTimeout(Osx.PopInbound inbound) {
+        long waitTime = inbound.getTimeout() > 0 ? inbound.getTimeout() : MetaInfo.CONSUME_MSG_WAITING_TIMEOUT;
+        return waitTime + MetaInfo.PROPERTY_GRPC_CLIENT_REDIRECT_DEADLINE;
     }
 
     static public Object transfomateResult(OsxContext context, Object oriResult) {
@@ -396,20 +454,7 @@ public class TransferUtil {
         AssertUtil.notNull(routerInfo, context.getDesNodeId() != null ? "des partyId " + context.getDesNodeId() + " router info is null" : " error router info");
         Object result = null;
         if (routerInfo.getProtocol() == null ||Protocol.grpc.equals(routerInfo.getProtocol())) {
-            Osx.Inbound inbound = null;
-            if(data instanceof Osx.Inbound){
-                inbound = (Osx.Inbound) data;
-            }else if(data instanceof HttpInvoke){
-                HttpInvoke httpInvoke = (HttpInvoke)data;
-                Osx.Inbound.Builder  inboundBuilder = Osx.Inbound.newBuilder();
-                if(httpInvoke.getPayload()!=null)
-                    inboundBuilder.setPayload(ByteString.copyFrom(httpInvoke.getPayload()));
-                inbound = inboundBuilder.build();
-            }
-            if(inbound==null){
-                throw new InvalidRequestException("invalid request");
-            }
-
+            Osx.Inbound inbound = buildRedirectInbound(data);
             context.setDataSize(inbound.getSerializedSize());
             PrivateTransferProtocolGrpc.PrivateTransferProtocolBlockingStub stub = null;
             if (context.getData(Dict.BLOCKING_STUB) == null) {
@@ -419,7 +464,7 @@ public class TransferUtil {
                 stub = (PrivateTransferProtocolGrpc.PrivateTransferProtocolBlockingStub) context.getData(Dict.BLOCKING_STUB);
             }
             try {
-                result = stub.invoke(inbound);
+                result = stub.withDeadline(buildRedirectDeadline(MetaInfo.PROPERTY_GRPC_CLIENT_REDIRECT_DEADLINE)).invoke(inbound);
             } catch (StatusRuntimeException e) {
                 logger.error("redirect error", e);
                 throw new RemoteRpcException(StatusCode.NET_ERROR, "send to " + routerInfo.toKey() + " error : " + e.getMessage());
@@ -470,6 +515,69 @@ public class TransferUtil {
 
     }
 
+    /**
+     * grpc 路由的异步转发，不阻塞调用线程，下一跳的返回或者异常通过 responseObserver 回调
+     */
+    static public void redirectAsync(OsxContext context, Object data, RouterInfo routerInfo, StreamObserver<Osx.Outbound> responseObserver) {
+        AssertUtil.notNull(routerInfo, context.getDesNodeId() != null ? "des partyId " + context.getDesNodeId() + " router info is null" : " error router info");
+        if (routerInfo.getProtocol() != null && !Protocol.grpc.equals(routerInfo.getProtocol())) {
+            throw new SysException("async redirect only support grpc router : " + routerInfo.toKey());
+        }
+        Osx.Inbound inbound = buildRedirectInbound(data);
+        context.setDataSize(inbound.getSerializedSize());
+        ManagedChannel managedChannel = GrpcConnectionFactory.createManagedChannel(routerInfo);
+        PrivateTransferProtocolGrpc.newStub(managedChannel)
+                .withDeadline(buildRedirectDeadline(MetaInfo.PROPERTY_GRPC_CLIENT_REDIRECT_DEADLINE))
+                .invoke(inbound, new RedirectStreamObserver<>(routerInfo, responseObserver));
+    }
+
+    private static Osx.Inbound buildRedirectInbound(Object data) {
+        Osx.Inbound inbound = null;
+        if (data instanceof Osx.Inbound) {
+            inbound = (Osx.Inbound) data;
+        } else if (data instanceof HttpInvoke) {
+            HttpInvoke httpInvoke = (HttpInvoke) data;
+            Osx.Inbound.Builder inboundBuilder = Osx.Inbound.newBuilder();
+            if (httpInvoke.getPayload() != null)
+                inboundBuilder.setPayload(ByteString.copyFrom(httpInvoke.getPayload()));
+            inbound = inboundBuilder.build();
+        }
+        if (inbound == null) {
+            throw new InvalidRequestException("invalid request");
+        }
+        return inbound;
+    }
+
+    /**
+     * 把下一跳的 grpc 异常转换为 RemoteRpcException，与同步转发抛出的异常保持一致
+     */
+    private static class RedirectStreamObserver<T> implements StreamObserver<T> {
+
+        private final RouterInfo routerInfo;
+        private final StreamObserver<T> delegate;
+
+        RedirectStreamObserver(RouterInfo routerInfo, StreamObserver<T> delegate) {
+            this.routerInfo = routerInfo;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onNext(T value) {
+            delegate.onNext(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.error("redirect error", t);
+            delegate.onError(new RemoteRpcException(StatusCode.NET_ERROR, "send to " + routerInfo.toKey() + " error : " + t.getMessage()));
+        }
+
+        @Override
+        public void onCompleted() {
+            delegate.onCompleted();
+        }
+    }
+
 
     public static Osx.Outbound.Builder buildResponseInner(String code, String msgReturn, byte[] content) {
 
@@ -483,15 +591,15 @@ public class TransferUtil {
     }
 
     public static Osx.TransportOutbound buildTransportOutbound(String code, String msgReturn, TransferQueueConsumeResult messageWraper) {
-        byte[] content = null;
-        if (messageWraper != null && messageWraper.getMessage() != null) {
-            content = messageWraper.getMessage().getBody();
+        ByteString content = null;
+        if (messageWraper != null) {
+            content = messageWraper.bodyByteString();
         }
         Osx.TransportOutbound.Builder builder = Osx.TransportOutbound.newBuilder();
         builder.setCode(code);
         builder.setMessage(msgReturn);
         if (content != null) {
-            builder.setPayload(ByteString.copyFrom(content));
+            builder.setPayload(content);
         }
         return builder.build();
     }
@@ -12,6 +12,7 @@ import org.fedai.osx.core.constant.UriConstants;
 import org.fedai.osx.core.context.OsxContext;
 import org.fedai.osx.core.context.Protocol;
 import org.fedai.osx.core.router.RouterInfo;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
@@ -22,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
@@ -160,6 +162,71 @@ public class QueueTest {
         System.err.println("result : " + new String(outbound.getPayload().toByteArray()));
     }
 
+    @Test
+    public void testBatchPop() {
+
+        Osx.PopInbound.Builder inboundBuilder = Osx.PopInbound.newBuilder();
+        inboundBuilder.setTopic(topic);
+        inboundBuilder.setMaxCount(100);
+        inboundBuilder.setMaxBytes(1 << 20);
+        OsxContext fateContext = new OsxContext();
+        fateContext.setTraceId(Long.toString(System.currentTimeMillis()));
+        fateContext.setSessionId(sessionId);
+        fateContext.setUri(UriConstants.POP);
+        fateContext.setTechProviderCode(MetaInfo.PROPERTY_FATE_TECH_PROVIDER);
+        OsxContext.pushThreadLocalContext(fateContext);
+        Osx.TransportOutbound outbound = TransferUtil.redirectPop(fateContext, routerInfo, inboundBuilder.build());
+        System.err.println("result count : " + outbound.getPayloadsCount());
+        for (ByteString payload : outbound.getPayloadsList()) {
+            System.err.println("result : " + payload.toStringUtf8());
+        }
+
+        // 使用新的 topic，maxBytes 按存储中的消息大小计算，比消息体多出消息头与属性，单条多出的部分不超过 1024 字节
+        String batchTopic = topic + "_batch_" + System.currentTimeMillis();
+        int bodySize = 4096;
+        for (int i = 0; i < 5; i++) {
+            byte[] body = new byte[bodySize];
+            Arrays.fill(body, (byte) i);
+            Osx.PushInbound.Builder pushInbound = Osx.PushInbound.newBuilder();
+            pushInbound.setTopic(batchTopic);
+            pushInbound.setPayload(ByteString.copyFrom(body));
+            OsxContext pushContext = new OsxContext();
+            pushContext.setTraceId("fate-test-" + System.currentTimeMillis());
+            pushContext.setSessionId(sessionId);
+            pushContext.setTopic(batchTopic);
+            pushContext.setDesNodeId(desPartyId);
+            pushContext.setTechProviderCode(MetaInfo.PROPERTY_FATE_TECH_PROVIDER);
+            OsxContext.pushThreadLocalContext(pushContext);
+            TransferUtil.redirectPush(pushContext, pushInbound.build(), routerInfo, true);
+        }
+        // 第一条就超过 maxBytes 时单独返回
+        Osx.TransportOutbound single = popBatch(batchTopic, 100, 1);
+        Assert.assertEquals(1, single.getPayloadsCount());
+        Assert.assertEquals(0, single.getPayloads(0).byteAt(0));
+        // 累计大小超过 maxBytes 时停止，第三条放不下
+        Osx.TransportOutbound limited = popBatch(batchTopic, 100, bodySize * 5 / 2);
+        Assert.assertEquals(2, limited.getPayloadsCount());
+        Assert.assertEquals(1, limited.getPayloads(0).byteAt(0));
+        Assert.assertEquals(2, limited.getPayloads(1).byteAt(0));
+        Osx.TransportOutbound rest = popBatch(batchTopic, 100, 1 << 20);
+        Assert.assertEquals(2, rest.getPayloadsCount());
+        Assert.assertEquals(bodySize, rest.getPayloads(1).size());
+    }
+
+    private Osx.TransportOutbound popBatch(String batchTopic, int maxCount, int maxBytes) {
+        Osx.PopInbound.Builder inboundBuilder = Osx.PopInbound.newBuilder();
+        inboundBuilder.setTopic(batchTopic);
+        inboundBuilder.setMaxCount(maxCount);
+        inboundBuilder.setMaxBytes(maxBytes);
+        OsxContext popContext = new OsxContext();
+        popContext.setTraceId(Long.toString(System.currentTimeMillis()));
+        popContext.setSessionId(sessionId);
+        popContext.setUri(UriConstants.POP);
+        popContext.setTechProviderCode(MetaInfo.PROPERTY_FATE_TECH_PROVIDER);
+        OsxContext.pushThreadLocalContext(popContext);
+        return TransferUtil.redirectPop(popContext, routerInfo, inboundBuilder.build());
+    }
+
 
 //    @Test
 //    public void  testTopicApply(){
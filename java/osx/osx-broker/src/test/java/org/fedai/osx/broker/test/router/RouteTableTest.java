@@ -0,0 +1,122 @@
+package org.fedai.osx.broker.test.router;
+
+import org.fedai.osx.broker.router.DefaultFateRouterServiceImpl;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.router.RouterInfo;
+import org.fedai.osx.core.utils.JsonUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+public class RouteTableTest {
+
+    private static final String SELF_PARTY_ID = "9999";
+    private static final String DES_PARTY_ID = "10000";
+    private static final String ROLE = "fateflow";
+
+    File configDir;
+    String originConfigDir;
+    Boolean originRemoteHealthCheck;
+    Boolean originRouteCycleChecker;
+    Set<String> originSelfParty;
+    DefaultFateRouterServiceImpl routerService;
+
+    @Before
+    public void init() throws Exception {
+        originConfigDir = MetaInfo.PROPERTY_CONFIG_DIR;
+        originRemoteHealthCheck = MetaInfo.PROPERTY_USE_REMOTE_HEALTH_CHECK;
+        originRouteCycleChecker = MetaInfo.PROPERTY_OPEN_ROUTE_CYCLE_CHECKER;
+        originSelfParty = MetaInfo.PROPERTY_SELF_PARTY;
+        configDir = Files.createTempDirectory("osx-route-table").toFile();
+        File brokerDir = new File(configDir, "broker");
+        brokerDir.mkdirs();
+
+        Map<String, Object> roles = new HashMap<>();
+        roles.put("default", Collections.singletonList(endpoint(9370)));
+        roles.put(ROLE, Collections.singletonList(endpoint(9360)));
+        Map<String, Object> defaultRoles = new HashMap<>();
+        defaultRoles.put("default", Collections.singletonList(endpoint(9380)));
+        Map<String, Object> routeTable = new HashMap<>();
+        routeTable.put(DES_PARTY_ID, roles);
+        routeTable.put("default", defaultRoles);
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("route_table", routeTable);
+        conf.put("self_party", Collections.singletonList(SELF_PARTY_ID));
+        Files.write(new File(brokerDir, "route_table.json").toPath(),
+                JsonUtil.object2Json(conf).getBytes(StandardCharsets.UTF_8));
+
+        MetaInfo.PROPERTY_CONFIG_DIR = configDir.getAbsolutePath();
+        MetaInfo.PROPERTY_USE_REMOTE_HEALTH_CHECK = false;
+        MetaInfo.PROPERTY_OPEN_ROUTE_CYCLE_CHECKER = false;
+        routerService = new DefaultFateRouterServiceImpl();
+        routerService.start();
+    }
+
+    @After
+    public void destroy() {
+        MetaInfo.PROPERTY_CONFIG_DIR = originConfigDir;
+        MetaInfo.PROPERTY_USE_REMOTE_HEALTH_CHECK = originRemoteHealthCheck;
+        MetaInfo.PROPERTY_OPEN_ROUTE_CYCLE_CHECKER = originRouteCycleChecker;
+        MetaInfo.PROPERTY_SELF_PARTY = originSelfParty;
+        deleteDir(configDir);
+    }
+
+    private void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+
+    private static Map<String, Object> endpoint(int port) {
+        Map<String, Object> endpoint = new HashMap<>();
+        endpoint.put("ip", "127.0.0.1");
+        endpoint.put("port", port);
+        return endpoint;
+    }
+
+    private void assertRouterInfo(RouterInfo routerInfo, String srcPartyId, String dstPartyId, String desRole, int port) {
+        Assert.assertNotNull(routerInfo);
+        Assert.assertEquals(srcPartyId, routerInfo.getSourcePartyId());
+        Assert.assertEquals(dstPartyId, routerInfo.getDesPartyId());
+        Assert.assertEquals(desRole, routerInfo.getDesRole());
+        Assert.assertEquals(port, routerInfo.getPort().intValue());
+    }
+
+    @Test
+    public void testSelfPartyRouteCompiled() {
+        // 以本方 party 为源的路由在编译时生成，多次路由返回同一个对象
+        RouterInfo withRole = routerService.route(SELF_PARTY_ID, "", DES_PARTY_ID, ROLE);
+        assertRouterInfo(withRole, SELF_PARTY_ID, DES_PARTY_ID, ROLE, 9360);
+        Assert.assertSame(withRole, routerService.route(SELF_PARTY_ID, "", DES_PARTY_ID, ROLE));
+
+        RouterInfo defaultRole = routerService.route(SELF_PARTY_ID, "", DES_PARTY_ID, "");
+        assertRouterInfo(defaultRole, SELF_PARTY_ID, DES_PARTY_ID, "", 9370);
+        Assert.assertSame(defaultRole, routerService.route(SELF_PARTY_ID, "", DES_PARTY_ID, ""));
+    }
+
+    @Test
+    public void testRouteNotInTableNotCached() {
+        // 其他源 party 按请求生成，不会进入缓存
+        RouterInfo otherSrc = routerService.route("8888", "", DES_PARTY_ID, ROLE);
+        assertRouterInfo(otherSrc, "8888", DES_PARTY_ID, ROLE, 9360);
+        Assert.assertNotSame(otherSrc, routerService.route("8888", "", DES_PARTY_ID, ROLE));
+
+        // role 不存在时回退到 default role，desRole 仍然是请求中的 role
+        RouterInfo fallbackRole = routerService.route(SELF_PARTY_ID, "", DES_PARTY_ID, "unknown");
+        assertRouterInfo(fallbackRole, SELF_PARTY_ID, DES_PARTY_ID, "unknown", 9370);
+
+        // 路由表中没有的 party 使用 default party，desPartyId 仍然是请求中的 party
+        RouterInfo defaultParty = routerService.route(SELF_PARTY_ID, "", "20000", ROLE);
+        assertRouterInfo(defaultParty, SELF_PARTY_ID, "20000", ROLE, 9380);
+    }
+}
@@ -0,0 +1,132 @@
+package org.fedai.osx.broker.test.store;
+
+import org.fedai.osx.broker.constants.MessageFlag;
+import org.fedai.osx.broker.consumer.LocalQueueConsumer;
+import org.fedai.osx.broker.queue.TransferQueue;
+import org.fedai.osx.broker.queue.TransferQueueConsumeResult;
+import org.fedai.osx.broker.queue.TransferQueueManager;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.constant.QueueType;
+import org.fedai.osx.core.context.OsxContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class BatchConsumeTest {
+
+    private static final String SESSION_ID = "testSessionId";
+    private static final String TOPIC = "testTopic";
+    private static final int MESSAGE_COUNT = 10;
+    private static final int BODY_SIZE = 1000;
+
+    File storeDir;
+    String originFilePath;
+    Boolean originRecoverEnable;
+    Boolean originHotTailCacheEnable;
+
+    @Before
+    public void init() throws Exception {
+        originFilePath = MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE;
+        originRecoverEnable = MetaInfo.PROPERTY_STORE_RECOVER_ENABLE;
+        originHotTailCacheEnable = MetaInfo.PROPERTY_STORE_HOT_TAIL_CACHE_ENABLE;
+        storeDir = Files.createTempDirectory("osx-batch-consume").toFile();
+        MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE = storeDir.getAbsolutePath();
+        MetaInfo.PROPERTY_STORE_RECOVER_ENABLE = false;
+        MetaInfo.MAP_FILE_SIZE = 1 << 20;
+    }
+
+    @After
+    public void destroy() {
+        MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE = originFilePath;
+        MetaInfo.PROPERTY_STORE_RECOVER_ENABLE = originRecoverEnable;
+        MetaInfo.PROPERTY_STORE_HOT_TAIL_CACHE_ENABLE = originHotTailCacheEnable;
+        deleteDir(storeDir);
+    }
+
+    private void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+
+    private byte[] buildBody(int index) {
+        byte[] body = new byte[BODY_SIZE];
+        Arrays.fill(body, (byte) index);
+        return body;
+    }
+
+    private void assertBatch(List<TransferQueueConsumeResult> results, int expectCount, long expectFirstIndex) {
+        try {
+            Assert.assertEquals(expectCount, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                long index = expectFirstIndex + i;
+                Assert.assertEquals(index, results.get(i).getRequestIndex());
+                Assert.assertArrayEquals(buildBody((int) index), results.get(i).bodyBytes());
+            }
+        } finally {
+            for (TransferQueueConsumeResult result : results) {
+                result.release();
+            }
+        }
+    }
+
+    private void testConsumeBatch(boolean hotTailCacheEnable) {
+        MetaInfo.PROPERTY_STORE_HOT_TAIL_CACHE_ENABLE = hotTailCacheEnable;
+        TransferQueueManager transferQueueManager = new TransferQueueManager();
+        try {
+            TransferQueue transferQueue = (TransferQueue) transferQueueManager.createNewQueue(SESSION_ID, TOPIC, true, QueueType.NORMAL).getQueue();
+            OsxContext context = new OsxContext();
+            context.setTopic(TOPIC);
+            for (int i = 1; i <= MESSAGE_COUNT; i++) {
+                transferQueue.putMessage(context, buildBody(i), MessageFlag.SENDMSG, null);
+            }
+            LocalQueueConsumer consumer = new LocalQueueConsumer(transferQueueManager, 0, SESSION_ID, TOPIC);
+
+            // 条数达到 maxCount 时停止
+            List<TransferQueueConsumeResult> first = consumer.consumeBatch(new OsxContext(), -1, 3, Integer.MAX_VALUE);
+            // maxBytes 按存储中的消息大小计算，每条消息的消息体与属性相同，大小也相同
+            int storeSize = first.get(0).getMessage().getStoreSize();
+            Assert.assertTrue(storeSize > BODY_SIZE);
+            assertBatch(first, 3, 1);
+            Assert.assertEquals(4, consumer.getConsumeOffset());
+
+            // 累计大小超过 maxBytes 时停止，第三条放不下
+            assertBatch(consumer.consumeBatch(new OsxContext(), -1, MESSAGE_COUNT, storeSize * 5 / 2), 2, 4);
+            Assert.assertEquals(6, consumer.getConsumeOffset());
+
+            // 第一条就超过 maxBytes 时单独返回
+            assertBatch(consumer.consumeBatch(new OsxContext(), -1, MESSAGE_COUNT, storeSize / 10), 1, 6);
+            Assert.assertEquals(7, consumer.getConsumeOffset());
+
+            assertBatch(consumer.consumeBatch(new OsxContext(), -1, MESSAGE_COUNT, Integer.MAX_VALUE), 4, 7);
+            Assert.assertEquals(MESSAGE_COUNT + 1, consumer.getConsumeOffset());
+
+            // 没有新消息时返回空列表，消费进度不变
+            Assert.assertTrue(consumer.consumeBatch(new OsxContext(), -1, MESSAGE_COUNT, Integer.MAX_VALUE).isEmpty());
+            Assert.assertEquals(MESSAGE_COUNT + 1, consumer.getConsumeOffset());
+        } finally {
+            transferQueueManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testConsumeBatchFromStore() {
+        testConsumeBatch(false);
+    }
+
+    @Test
+    public void testConsumeBatchFromHotTail() {
+        testConsumeBatch(true);
+    }
+}
@@ -0,0 +1,113 @@
+package org.fedai.osx.broker.test.store;
+
+import com.google.protobuf.ByteString;
+import org.fedai.osx.broker.constants.MessageFlag;
+import org.fedai.osx.broker.message.AppendMessageResult;
+import org.fedai.osx.broker.message.AppendMessageStatus;
+import org.fedai.osx.broker.message.DefaultAppendMessageHandler;
+import org.fedai.osx.broker.message.MessageDecoder;
+import org.fedai.osx.broker.message.MessageExt;
+import org.fedai.osx.broker.message.MessageExtBrokerInner;
+import org.fedai.osx.core.config.MetaInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DefaultAppendMessageHandlerTest {
+
+    private static final List<String> SAMPLES = Arrays.asList(
+            "",
+            "topic-ascii_123",
+            "é ü ß",
+            "中文主题",
+            "emoji 😀 and 🎉",
+            "high \uD83D alone",
+            "low \uDE00 alone",
+            "tail high \uD83D",
+            "\uDE00\uD83D reversed pair",
+            "\u0000\u007F\u0080߿ࠀ￿");
+
+    private byte[] encode(String value) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(value.length() * 4 + 16);
+        DefaultAppendMessageHandler.putUtf8(byteBuffer, value);
+        byte[] bytes = new byte[byteBuffer.position()];
+        byteBuffer.flip();
+        byteBuffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testUtf8() {
+        for (String sample : SAMPLES) {
+            byte[] expect = sample.getBytes(StandardCharsets.UTF_8);
+            Assert.assertEquals(sample, expect.length, DefaultAppendMessageHandler.utf8Length(sample));
+            Assert.assertArrayEquals(sample, expect, encode(sample));
+        }
+        Assert.assertEquals(0, DefaultAppendMessageHandler.utf8Length(null));
+        Assert.assertEquals(0, encode("").length);
+    }
+
+    @Test
+    public void testProperties() {
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (int i = 0; i < SAMPLES.size(); i++) {
+            properties.put("key_" + i + "_" + SAMPLES.get(i), SAMPLES.get(SAMPLES.size() - 1 - i));
+        }
+        // 值为 null 的属性不写入
+        properties.put("nullValue", null);
+        properties.put("键", "值");
+        byte[] expect = MessageDecoder.messageProperties2String(properties).getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(expect.length, DefaultAppendMessageHandler.propertiesLength(properties));
+        ByteBuffer byteBuffer = ByteBuffer.allocate(expect.length + 16);
+        DefaultAppendMessageHandler.putProperties(byteBuffer, properties);
+        Assert.assertEquals(expect.length, byteBuffer.position());
+        Assert.assertArrayEquals(expect, Arrays.copyOf(byteBuffer.array(), byteBuffer.position()));
+
+        Map<String, String> onlyNull = new LinkedHashMap<>();
+        onlyNull.put("nullValue", null);
+        Assert.assertEquals(0, DefaultAppendMessageHandler.propertiesLength(onlyNull));
+        Assert.assertEquals(0, DefaultAppendMessageHandler.propertiesLength(null));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        boolean crcEnable = MetaInfo.PROPERTY_STORE_CRC_ENABLE;
+        try {
+            for (boolean crc : new boolean[]{false, true}) {
+                MetaInfo.PROPERTY_STORE_CRC_ENABLE = crc;
+                String topic = "主题-😀-topic";
+                byte[] body = "消息体 body 🎉".getBytes(StandardCharsets.UTF_8);
+                MessageExtBrokerInner msg = MessageDecoder.buildMessageExtBrokerInner(topic, ByteString.copyFrom(body),
+                        "msgCode", MessageFlag.SENDMSG, "9999", "10000");
+                msg.getProperties().put("sessionId", "会话_😀");
+                msg.getProperties().put("nullValue", null);
+
+                ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
+                byteBuffer.position(100);
+                AppendMessageResult result = new DefaultAppendMessageHandler(1 << 20).doAppend(0, byteBuffer, 1024 - 100, msg);
+                Assert.assertEquals(AppendMessageStatus.PUT_OK, result.getStatus());
+                Assert.assertEquals(100, result.getWroteOffset());
+                Assert.assertEquals(100 + result.getWroteBytes(), byteBuffer.position());
+
+                byteBuffer.position(100);
+                MessageExt message = MessageDecoder.decode(byteBuffer, true, true, false, true);
+                Assert.assertEquals(100 + result.getWroteBytes(), byteBuffer.position());
+                Assert.assertEquals(result.getWroteBytes(), message.getStoreSize());
+                Assert.assertEquals(topic, message.getTopic());
+                Assert.assertArrayEquals(body, message.getBody());
+                Assert.assertEquals("9999", message.getSrcPartyId());
+                Assert.assertEquals("10000", message.getDesPartyId());
+                Assert.assertEquals("会话_😀", message.getProperties().get("sessionId"));
+                Assert.assertFalse(message.getProperties().containsKey("nullValue"));
+            }
+        } finally {
+            MetaInfo.PROPERTY_STORE_CRC_ENABLE = crcEnable;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.fedai.osx.broker.test.store;
+
+import org.fedai.osx.broker.message.MessageExtBrokerInner;
+import org.fedai.osx.broker.store.HotTailCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HotTailCacheTest {
+
+    private final MessageExtBrokerInner message = new MessageExtBrokerInner();
+
+    /**
+     * 以 index 作为消息在存储中的位置，读取时用 commitLogOffset 区分消息
+     */
+    private boolean append(HotTailCache.Tail tail, long index, int size) {
+        return tail.append(index, message, index, size);
+    }
+
+    @Test
+    public void testEvictOnConsume() {
+        HotTailCache cache = new HotTailCache(1 << 20, 1024, 60000);
+        HotTailCache.Tail tail = cache.newTail("topic");
+        for (long i = 1; i <= 100; i++) {
+            Assert.assertTrue(append(tail, i, 100));
+        }
+        Assert.assertEquals(100 * 100, cache.getUsedBytes());
+        tail.evictBefore(51);
+        Assert.assertNull(tail.get(100 + 1));
+        Assert.assertEquals(51, tail.get(51).getCommitLogOffset());
+        Assert.assertEquals(100, tail.get(100).getCommitLogOffset());
+        Assert.assertEquals(50, tail.size());
+        Assert.assertEquals(50 * 100, cache.getUsedBytes());
+        Assert.assertEquals(50, cache.getEvictByConsume());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        // 消费者落后于缓存时清空，释放内存
+        Assert.assertNull(tail.get(10));
+        Assert.assertEquals(0, tail.size());
+        Assert.assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        HotTailCache cache = new HotTailCache(1000, 500, 60000);
+        HotTailCache.Tail first = cache.newTail("first");
+        HotTailCache.Tail second = cache.newTail("second");
+        for (long i = 1; i <= 8; i++) {
+            Assert.assertTrue(append(first, i, 100));
+        }
+        // 超过上限时淘汰所有队列中最早写入的消息，不只淘汰正在写入的队列
+        for (long i = 1; i <= 4; i++) {
+            Assert.assertTrue(append(second, i, 100));
+        }
+        Assert.assertEquals(1000, cache.getUsedBytes());
+        Assert.assertEquals(6, first.size());
+        Assert.assertEquals(3, first.getFirstIndex());
+        Assert.assertEquals(4, second.size());
+        Assert.assertEquals(1, second.getFirstIndex());
+        Assert.assertEquals(2, cache.getEvictBySize());
+
+        // first 中剩余的消息都早于 second，继续写入 second 时仍然先淘汰 first
+        Assert.assertTrue(append(second, 5, 100));
+        Assert.assertEquals(5, first.size());
+        Assert.assertEquals(5, second.size());
+
+        // 超过单条大小上限的消息不缓存，之后的消息重新开始缓存
+        Assert.assertFalse(append(first, 9, 600));
+        Assert.assertEquals(0, first.size());
+        Assert.assertTrue(append(first, 10, 100));
+        Assert.assertEquals(10, first.get(10).getCommitLogOffset());
+        Assert.assertEquals(1, cache.getRejects());
+
+        // 不连续的写入会清空之前的缓存
+        Assert.assertTrue(append(second, 7, 100));
+        Assert.assertEquals(1, second.size());
+        Assert.assertEquals(200, cache.getUsedBytes());
+
+        // 队列销毁之后不再参与淘汰
+        first.close();
+        Assert.assertEquals(0, first.size());
+        Assert.assertEquals(100, cache.getUsedBytes());
+    }
+}
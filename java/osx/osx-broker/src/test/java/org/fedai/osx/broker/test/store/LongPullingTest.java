@@ -0,0 +1,144 @@
+package org.fedai.osx.broker.test.store;
+
+import io.grpc.stub.StreamObserver;
+import org.fedai.osx.broker.constants.MessageFlag;
+import org.fedai.osx.broker.consumer.ConsumerManager;
+import org.fedai.osx.broker.consumer.UnaryConsumer;
+import org.fedai.osx.broker.queue.TransferQueue;
+import org.fedai.osx.broker.queue.TransferQueueManager;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.constant.QueueType;
+import org.fedai.osx.core.constant.StatusCode;
+import org.fedai.osx.core.context.OsxContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ppc.ptp.Osx;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LongPullingTest {
+
+    private static final String SESSION_ID = "testSessionId";
+    private static final String TOPIC = "testTopic";
+
+    File storeDir;
+    String originFilePath;
+    Boolean originRecoverEnable;
+    TransferQueueManager transferQueueManager;
+    ConsumerManager consumerManager;
+
+    @Before
+    public void init() throws Exception {
+        originFilePath = MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE;
+        originRecoverEnable = MetaInfo.PROPERTY_STORE_RECOVER_ENABLE;
+        storeDir = Files.createTempDirectory("osx-long-pulling").toFile();
+        MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE = storeDir.getAbsolutePath();
+        MetaInfo.PROPERTY_STORE_RECOVER_ENABLE = false;
+        MetaInfo.MAP_FILE_SIZE = 1 << 20;
+        transferQueueManager = new TransferQueueManager();
+        consumerManager = new ConsumerManager();
+        // 不经过 guice 注入，手动设置依赖
+        setField(ConsumerManager.class, consumerManager, "transferQueueManager", transferQueueManager);
+        setField(ConsumerManager.class, consumerManager, "consumerManager", consumerManager);
+        setField(TransferQueueManager.class, transferQueueManager, "consumerManager", consumerManager);
+    }
+
+    private void setField(Class<?> clazz, Object target, String name, Object value) throws Exception {
+        Field field = clazz.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    @After
+    public void destroy() {
+        consumerManager.shutdown();
+        transferQueueManager.shutdown();
+        MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE = originFilePath;
+        MetaInfo.PROPERTY_STORE_RECOVER_ENABLE = originRecoverEnable;
+        deleteDir(storeDir);
+    }
+
+    private void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+
+    private UnaryConsumer.LongPullingHold buildHold(long expireTimestamp, AtomicReference<Osx.TransportOutbound> response, CountDownLatch latch) {
+        UnaryConsumer.LongPullingHold longPullingHold = new UnaryConsumer.LongPullingHold();
+        longPullingHold.setContext(new OsxContext());
+        longPullingHold.setExpireTimestamp(expireTimestamp);
+        longPullingHold.setNeedOffset(-1);
+        longPullingHold.setStreamObserver(new StreamObserver<Osx.TransportOutbound>() {
+            @Override
+            public void onNext(Osx.TransportOutbound outbound) {
+                response.set(outbound);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                latch.countDown();
+            }
+        });
+        return longPullingHold;
+    }
+
+    @Test
+    public void testAnswerOnMessageArriving() throws Exception {
+        TransferQueue transferQueue = (TransferQueue) transferQueueManager.createNewQueue(SESSION_ID, TOPIC, true, QueueType.NORMAL).getQueue();
+        UnaryConsumer unaryConsumer = consumerManager.getOrCreateUnaryConsumer(SESSION_ID, TOPIC);
+        AtomicReference<Osx.TransportOutbound> response = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        unaryConsumer.addLongPullingQueue(buildHold(System.currentTimeMillis() + 60000, response, latch));
+        // 没有消息时请求一直等待
+        Assert.assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(unaryConsumer.hasLongPulling());
+
+        OsxContext context = new OsxContext();
+        context.setTopic(TOPIC);
+        byte[] body = "long pulling".getBytes(StandardCharsets.UTF_8);
+        long begin = System.currentTimeMillis();
+        transferQueue.putMessage(context, body, MessageFlag.SENDMSG, null);
+        // 写入时通知长轮询线程，不等兜底扫描
+        Assert.assertTrue(latch.await(MetaInfo.PROPERTY_CONSUME_LONG_PULLING_SCAN_INTERVAL / 2, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - begin < MetaInfo.PROPERTY_CONSUME_LONG_PULLING_SCAN_INTERVAL);
+        Assert.assertEquals(StatusCode.PTP_SUCCESS, response.get().getCode());
+        Assert.assertArrayEquals(body, response.get().getPayload().toByteArray());
+        Assert.assertFalse(unaryConsumer.hasLongPulling());
+        Assert.assertEquals(2, unaryConsumer.getConsumeOffset());
+    }
+
+    @Test
+    public void testAnswerOnTimeout() throws Exception {
+        transferQueueManager.createNewQueue(SESSION_ID, TOPIC, true, QueueType.NORMAL);
+        UnaryConsumer unaryConsumer = consumerManager.getOrCreateUnaryConsumer(SESSION_ID, TOPIC);
+        AtomicReference<Osx.TransportOutbound> response = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        long begin = System.currentTimeMillis();
+        unaryConsumer.addLongPullingQueue(buildHold(begin + 300, response, latch));
+        // 由时间轮在到期时应答，不等兜底扫描
+        Assert.assertTrue(latch.await(MetaInfo.PROPERTY_CONSUME_LONG_PULLING_SCAN_INTERVAL / 2, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - begin >= 300);
+        Assert.assertEquals(StatusCode.PTP_TIME_OUT, response.get().getCode());
+        Assert.assertTrue(response.get().getPayload().isEmpty());
+        Assert.assertFalse(unaryConsumer.hasLongPulling());
+        Assert.assertEquals(1, unaryConsumer.getConsumeOffset());
+    }
+}
@@ -0,0 +1,52 @@
+package org.fedai.osx.broker.test.store;
+
+import org.fedai.osx.broker.queue.MappedFile;
+import org.fedai.osx.broker.queue.MappedFileQueue;
+import org.fedai.osx.broker.queue.MappedMemoryManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class MappedMemoryManagerTest {
+
+    private static final int MAPPED_FILE_SIZE = 1 << 12;
+
+    @Test
+    public void testUnmapColdFiles() throws Exception {
+        File dir = Files.createTempDirectory("osx-mapped-memory").toFile();
+        MappedFileQueue mappedFileQueue = new MappedFileQueue(dir.getAbsolutePath(), MAPPED_FILE_SIZE, null);
+        try {
+            byte[] data = new byte[MAPPED_FILE_SIZE / 4];
+            for (int i = 0; i < 12; i++) {
+                Arrays.fill(data, (byte) i);
+                long offset = (long) i * data.length;
+                Assert.assertTrue(mappedFileQueue.getLastMappedFile(offset).appendMessage(data));
+            }
+            while (!mappedFileQueue.flush(0)) {
+            }
+            // 预算为 0 时所有冷文件都解除映射
+            MappedMemoryManager manager = new MappedMemoryManager(0, 0, 1000);
+            Assert.assertTrue(manager.checkAndUnmap() >= 3);
+            for (MappedFile mappedFile : mappedFileQueue.getMappedFiles()) {
+                Assert.assertFalse(mappedFile.isMapped());
+            }
+
+            // 读取时重新映射，内容不变
+            MappedFile second = mappedFileQueue.getMappedFiles().get(1);
+            Assert.assertEquals(4, second.sliceByteBuffer().get(0));
+            Assert.assertEquals(7, second.sliceByteBuffer().get(MAPPED_FILE_SIZE - 1));
+            Assert.assertTrue(second.isMapped());
+
+            // 被 hold 的文件不会解除映射
+            Assert.assertTrue(second.hold());
+            manager.checkAndUnmap();
+            Assert.assertTrue(second.isMapped());
+            second.release();
+        } finally {
+            mappedFileQueue.destroy();
+        }
+    }
+}
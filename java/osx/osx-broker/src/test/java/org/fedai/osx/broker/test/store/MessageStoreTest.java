@@ -0,0 +1,483 @@
+package org.fedai.osx.broker.test.store;
+
+import com.google.common.collect.Maps;
+import org.fedai.osx.broker.message.AllocateMappedFileService;
+import org.fedai.osx.broker.message.MessageDecoder;
+import org.fedai.osx.broker.message.MessageExt;
+import org.fedai.osx.broker.message.MessageExtBrokerInner;
+import org.fedai.osx.broker.message.SelectMappedBufferResult;
+import org.fedai.osx.broker.constants.MessageFlag;
+import org.fedai.osx.broker.queue.MappedFile;
+import org.fedai.osx.broker.queue.PutMessageResult;
+import org.fedai.osx.broker.queue.PutMessageStatus;
+import org.fedai.osx.broker.store.MessageStore;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.exceptions.MessageParseException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class MessageStoreTest {
+
+    File storeDir;
+    MessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        MetaInfo.MAP_FILE_SIZE = 1 << 20;
+        storeDir = Files.createTempDirectory("osx-store").toFile();
+        messageStore = new MessageStore(null, storeDir.getAbsolutePath());
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        for (File file : storeDir.listFiles()) {
+            file.delete();
+        }
+        storeDir.delete();
+    }
+
+    private MessageExtBrokerInner buildMessage(String topic, String content) {
+        MessageExtBrokerInner msg = MessageDecoder.buildMessageExtBrokerInner(topic, content.getBytes(StandardCharsets.UTF_8),
+                content, MessageFlag.SENDMSG, "9999", "10000");
+        msg.getProperties().put("sessionId", "testSessionId");
+        return msg;
+    }
+
+    @Test
+    public void testConcurrentGroupCommit() throws Exception {
+        int threadNum = 8;
+        int perThread = 500;
+        ExecutorService executorService = Executors.newFixedThreadPool(threadNum);
+        List<Future<List<PutMessageResult>>> futures = new ArrayList<>();
+        for (int t = 0; t < threadNum; t++) {
+            final int threadIndex = t;
+            futures.add(executorService.submit(() -> {
+                List<PutMessageResult> results = new ArrayList<>();
+                for (int i = 0; i < perThread; i++) {
+                    results.add(messageStore.putMessage(buildMessage("topic" + threadIndex, threadIndex + "_" + i)));
+                }
+                return results;
+            }));
+        }
+        Set<Long> offsets = ConcurrentHashMap.newKeySet();
+        for (Future<List<PutMessageResult>> future : futures) {
+            for (PutMessageResult result : future.get()) {
+                Assert.assertTrue(result.isOk());
+                Assert.assertTrue(offsets.add(result.getAppendMessageResult().getWroteOffset()));
+            }
+        }
+        executorService.shutdown();
+        Assert.assertEquals(threadNum * perThread, offsets.size());
+        Assert.assertEquals(threadNum * perThread, messageStore.getGroupCommitMessageCount());
+        Assert.assertTrue(messageStore.getGroupCommitBatchCount() <= messageStore.getGroupCommitMessageCount());
+
+        for (Long offset : offsets) {
+            SelectMappedBufferResult selectMappedBufferResult = messageStore.consumeOneMessage(offset);
+            try {
+                MessageExt messageExt = MessageDecoder.decode(selectMappedBufferResult.getByteBuffer());
+                Assert.assertNotNull(messageExt);
+                Assert.assertEquals(messageExt.getTopic(), "topic" + new String(messageExt.getBody(), StandardCharsets.UTF_8).split("_")[0]);
+            } finally {
+                selectMappedBufferResult.release();
+            }
+        }
+    }
+
+    @Test
+    public void testLeftoverPutRequestCommittedByFlushThread() throws Exception {
+        Field field = MessageStore.class.getDeclaredField("putMessageLock");
+        field.setAccessible(true);
+        ReentrantLock putMessageLock = (ReentrantLock) field.get(messageStore);
+        List<CompletableFuture<PutMessageResult>> futures = new ArrayList<>();
+        // 锁被占用时写入方拿不到锁直接返回，请求留在队列中
+        putMessageLock.lock();
+        try {
+            ExecutorService executorService = Executors.newSingleThreadExecutor();
+            for (int i = 0; i < 10; i++) {
+                final int index = i;
+                futures.add(executorService.submit(() -> messageStore.asyncPutMessage(buildMessage("topic", "leftover_" + index))).get());
+            }
+            executorService.shutdown();
+            for (CompletableFuture<PutMessageResult> future : futures) {
+                Assert.assertFalse(future.isDone());
+            }
+        } finally {
+            putMessageLock.unlock();
+        }
+        // 之后没有新的写入，剩余的请求由刷盘线程提交
+        for (CompletableFuture<PutMessageResult> future : futures) {
+            Assert.assertEquals(PutMessageStatus.PUT_OK, future.get(MetaInfo.PROPERTY_STORE_FLUSH_INTERVAL + 5000, TimeUnit.MILLISECONDS).getPutMessageStatus());
+        }
+    }
+
+    @Test
+    public void testRecoverTruncateTornTail() throws Exception {
+        long endOffset = 0;
+        for (int i = 0; i < 1000; i++) {
+            PutMessageResult result = messageStore.putMessage(buildMessage("topic", "msg_" + i));
+            Assert.assertTrue(result.isOk());
+            endOffset = result.getAppendMessageResult().getWroteOffset() + result.getAppendMessageResult().getWroteBytes();
+        }
+        messageStore.shutdown();
+
+        // 模拟宕机时只写了一半的消息
+        File[] files = storeDir.listFiles();
+        Arrays.sort(files);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(files[files.length - 1], "rw")) {
+            randomAccessFile.seek(endOffset % MetaInfo.MAP_FILE_SIZE);
+            randomAccessFile.writeInt(200);
+            randomAccessFile.writeInt(MessageFlag.SENDMSG.getFlag());
+            randomAccessFile.write(new byte[]{4, '9', '9'});
+        }
+
+        messageStore = new MessageStore(null, storeDir.getAbsolutePath());
+        Assert.assertEquals(endOffset, messageStore.load(-1));
+        messageStore.start();
+        PutMessageResult result = messageStore.putMessage(buildMessage("topic", "after_recover"));
+        Assert.assertTrue(result.isOk());
+        Assert.assertEquals(endOffset, result.getAppendMessageResult().getWroteOffset());
+        SelectMappedBufferResult selectMappedBufferResult = messageStore.consumeOneMessage(endOffset);
+        try {
+            MessageExt messageExt = MessageDecoder.decode(selectMappedBufferResult.getByteBuffer());
+            Assert.assertEquals("after_recover", new String(messageExt.getBody(), StandardCharsets.UTF_8));
+        } finally {
+            selectMappedBufferResult.release();
+        }
+        messageStore.shutdown();
+
+        // 从检查点恢复时只校验检查点之后的数据
+        messageStore = new MessageStore(null, storeDir.getAbsolutePath());
+        Assert.assertEquals(result.getAppendMessageResult().getWroteOffset() + result.getAppendMessageResult().getWroteBytes(),
+                messageStore.load(endOffset));
+    }
+
+    @Test
+    public void testCrc32CCheck() throws Exception {
+        PutMessageResult first = messageStore.putMessage(buildMessage("topic", "first"));
+        PutMessageResult second = messageStore.putMessage(buildMessage("topic", "second"));
+        long secondOffset = second.getAppendMessageResult().getWroteOffset();
+
+        // 修改第二条消息 crc 之前的最后一个字节，消息结构仍然完整，只有 crc 能发现
+        File[] files = storeDir.listFiles();
+        Arrays.sort(files);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(files[0], "rw")) {
+            long position = secondOffset + second.getAppendMessageResult().getWroteBytes() - 5;
+            randomAccessFile.seek(position);
+            byte origin = randomAccessFile.readByte();
+            randomAccessFile.seek(position);
+            randomAccessFile.writeByte(origin ^ 0xFF);
+        }
+
+        SelectMappedBufferResult selectMappedBufferResult = messageStore.consumeOneMessage(secondOffset);
+        try {
+            MessageDecoder.decode(selectMappedBufferResult.getByteBuffer(), true, true, false, true);
+            Assert.fail("crc32c check should fail");
+        } catch (MessageParseException expected) {
+        } finally {
+            selectMappedBufferResult.release();
+        }
+        selectMappedBufferResult = messageStore.consumeOneMessage(secondOffset);
+        try {
+            Assert.assertNotNull(MessageDecoder.decode(selectMappedBufferResult.getByteBuffer(), true, true, false, false));
+        } finally {
+            selectMappedBufferResult.release();
+        }
+        messageStore.shutdown();
+
+        messageStore = new MessageStore(null, storeDir.getAbsolutePath());
+        Assert.assertEquals(secondOffset, messageStore.load(-1));
+        Assert.assertEquals(first.getAppendMessageResult().getWroteOffset() + first.getAppendMessageResult().getWroteBytes(), secondOffset);
+    }
+
+    @Test
+    public void testZeroCopyConsume() throws Exception {
+        PutMessageResult putMessageResult = messageStore.putMessage(buildMessage("topic", "zero_copy"));
+        long offset = putMessageResult.getAppendMessageResult().getWroteOffset();
+        int size = putMessageResult.getAppendMessageResult().getWroteBytes();
+
+        SelectMappedBufferResult selectMappedBufferResult = messageStore.consumeOneMessage(offset, size);
+        try {
+            Assert.assertEquals(size, selectMappedBufferResult.getSize());
+            MessageExt messageExt = MessageDecoder.decode(selectMappedBufferResult.getByteBuffer(), false, true, false, true);
+            Assert.assertNull(messageExt.getBody());
+            ByteBuffer bodyBuffer = messageExt.getBodyBuffer();
+            Assert.assertTrue(bodyBuffer.isDirect());
+            byte[] body = new byte[bodyBuffer.remaining()];
+            bodyBuffer.get(body);
+            Assert.assertEquals("zero_copy", new String(body, StandardCharsets.UTF_8));
+            Assert.assertEquals("topic", messageExt.getTopic());
+        } finally {
+            selectMappedBufferResult.release();
+        }
+    }
+
+    @Test
+    public void testPreallocateMappedFile() throws Exception {
+        messageStore.shutdown();
+        AllocateMappedFileService allocateMappedFileService = new AllocateMappedFileService();
+        allocateMappedFileService.start();
+        messageStore = new MessageStore(allocateMappedFileService, storeDir.getAbsolutePath());
+        messageStore.start();
+        char[] chars = new char[1024];
+        Arrays.fill(chars, 'a');
+        String content = new String(chars);
+        List<Long> offsets = new ArrayList<>();
+        for (int i = 0; i < 4000; i++) {
+            PutMessageResult result = messageStore.putMessage(buildMessage("topic", content));
+            Assert.assertTrue(result.isOk());
+            offsets.add(result.getAppendMessageResult().getWroteOffset());
+        }
+        long lastOffset = offsets.get(offsets.size() - 1);
+        // 每次切换文件都经过预分配服务
+        Assert.assertTrue(allocateMappedFileService.getRequestTimes() >= lastOffset / MetaInfo.MAP_FILE_SIZE + 1);
+        Assert.assertTrue(allocateMappedFileService.getWaitTimes() <= allocateMappedFileService.getRequestTimes());
+        for (Long offset : offsets) {
+            SelectMappedBufferResult selectMappedBufferResult = messageStore.consumeOneMessage(offset);
+            try {
+                Assert.assertEquals(content, new String(MessageDecoder.decode(selectMappedBufferResult.getByteBuffer()).getBody(), StandardCharsets.UTF_8));
+            } finally {
+                selectMappedBufferResult.release();
+            }
+        }
+        messageStore.shutdown();
+        allocateMappedFileService.shutdown();
+    }
+
+    @Test
+    public void testMlockLimitAndRelease() throws Exception {
+        Integer originMaxLockedFiles = MetaInfo.PROPERTY_STORE_MLOCK_MAX_FILE_COUNT;
+        MetaInfo.PROPERTY_STORE_MLOCK_MAX_FILE_COUNT = 1;
+        MappedFile first = new MappedFile(new File(storeDir, "mlock_1").getAbsolutePath(), MetaInfo.MAP_FILE_SIZE);
+        MappedFile second = new MappedFile(new File(storeDir, "mlock_2").getAbsolutePath(), MetaInfo.MAP_FILE_SIZE);
+        int lockedBefore = MappedFile.getTotalLockedFiles();
+        try {
+            // memlock 限额不足时 mlock 失败，不计入锁定的文件数
+            boolean firstLocked = first.mlock();
+            Assert.assertEquals(lockedBefore + (firstLocked ? 1 : 0), MappedFile.getTotalLockedFiles());
+            if (firstLocked) {
+                // 达到上限之后不再锁定
+                Assert.assertFalse(second.mlock());
+                Assert.assertEquals(1, MappedFile.getTotalLockedFiles());
+            }
+            // 写满并刷盘之后释放
+            Assert.assertTrue(first.appendMessage(new byte[MetaInfo.MAP_FILE_SIZE]));
+            first.flush(0);
+            Assert.assertEquals(lockedBefore, MappedFile.getTotalLockedFiles());
+            // 销毁时释放
+            if (second.mlock()) {
+                Assert.assertEquals(lockedBefore + 1, MappedFile.getTotalLockedFiles());
+            }
+        } finally {
+            first.destroy(1000);
+            second.destroy(1000);
+            MetaInfo.PROPERTY_STORE_MLOCK_MAX_FILE_COUNT = originMaxLockedFiles;
+        }
+        Assert.assertEquals(lockedBefore, MappedFile.getTotalLockedFiles());
+    }
+
+    @Test
+    public void testCleanConsumedMappedFile() throws Exception {
+        char[] chars = new char[1024];
+        Arrays.fill(chars, 'a');
+        String content = new String(chars);
+        List<Long> offsets = new ArrayList<>();
+        for (int i = 0; i < 4000; i++) {
+            PutMessageResult result = messageStore.putMessage(buildMessage("topic", content));
+            Assert.assertTrue(result.isOk());
+            offsets.add(result.getAppendMessageResult().getWroteOffset());
+        }
+        messageStore.flushUntil(messageStore.getMaxWrotePosition());
+        int fileCount = storeDir.listFiles().length;
+
+        // 没有设置消费进度时只按时间清理，不删除任何文件
+        messageStore.cleanMappedFiles();
+        Assert.assertEquals(fileCount, storeDir.listFiles().length);
+
+        long retainOffset = offsets.get(2500);
+        messageStore.setRetainOffsetSupplier(() -> retainOffset);
+        messageStore.cleanMappedFiles();
+        Assert.assertEquals(fileCount - retainOffset / MetaInfo.MAP_FILE_SIZE, storeDir.listFiles().length);
+        SelectMappedBufferResult selectMappedBufferResult = messageStore.consumeOneMessage(retainOffset);
+        try {
+            Assert.assertEquals(content, new String(MessageDecoder.decode(selectMappedBufferResult.getByteBuffer()).getBody(), StandardCharsets.UTF_8));
+        } finally {
+            selectMappedBufferResult.release();
+        }
+
+        // 全部消费完时保留最后一个文件
+        messageStore.setRetainOffsetSupplier(() -> Long.MAX_VALUE);
+        messageStore.cleanMappedFiles();
+        Assert.assertEquals(1, storeDir.listFiles().length);
+    }
+
+    @Test
+    public void testCleanWhileFlushing() throws Exception {
+        Integer originFlushInterval = MetaInfo.PROPERTY_STORE_FLUSH_INTERVAL;
+        Integer originFlushThoroughInterval = MetaInfo.PROPERTY_STORE_FLUSH_THOROUGH_INTERVAL;
+        Integer originDeleteInterval = MetaInfo.PROPERTY_STORE_CLEAN_DELETE_INTERVAL;
+        Integer originFlushLeastPages = MetaInfo.PROPERTY_STORE_FLUSH_LEAST_PAGES;
+        // 只由测试线程刷盘，刷盘线程即使被唤醒也不足 store.flush.least.pages，不会刷盘
+        MetaInfo.PROPERTY_STORE_FLUSH_LEAST_PAGES = 1 << 20;
+        MetaInfo.PROPERTY_STORE_FLUSH_INTERVAL = 60 * 1000;
+        MetaInfo.PROPERTY_STORE_FLUSH_THOROUGH_INTERVAL = 60 * 1000;
+        MetaInfo.PROPERTY_STORE_CLEAN_DELETE_INTERVAL = 0;
+        try {
+            restartWithFlushDiskType("ASYNC_FLUSH");
+            char[] chars = new char[1024];
+            Arrays.fill(chars, 'a');
+            String content = new String(chars);
+            List<Long> offsets = new ArrayList<>();
+            for (int i = 0; i < 4000; i++) {
+                PutMessageResult result = messageStore.putMessage(buildMessage("topic", content));
+                Assert.assertTrue(result.isOk());
+                offsets.add(result.getAppendMessageResult().getWroteOffset());
+            }
+            int fileCount = storeDir.listFiles().length;
+            // 消息都已经消费，但还没有刷盘，不删除
+            messageStore.setRetainOffsetSupplier(() -> Long.MAX_VALUE);
+            messageStore.cleanMappedFiles();
+            Assert.assertEquals(fileCount, storeDir.listFiles().length);
+
+            Thread flushThread = new Thread(() -> {
+                for (int i = 0; i < offsets.size(); i += 100) {
+                    messageStore.flushUntil(offsets.get(i));
+                }
+                messageStore.flushUntil(messageStore.getMaxWrotePosition());
+            });
+            flushThread.start();
+            while (flushThread.isAlive()) {
+                messageStore.cleanMappedFiles();
+                // 删除的文件都已经刷盘
+                Assert.assertTrue(messageStore.getMinOffset() <= messageStore.getFlushedWhere());
+            }
+            flushThread.join();
+            long minOffset = messageStore.getMinOffset();
+            for (Long offset : offsets) {
+                if (offset < minOffset) {
+                    continue;
+                }
+                SelectMappedBufferResult selectMappedBufferResult = messageStore.consumeOneMessage(offset);
+                try {
+                    Assert.assertEquals(content, new String(MessageDecoder.decode(selectMappedBufferResult.getByteBuffer()).getBody(), StandardCharsets.UTF_8));
+                } finally {
+                    selectMappedBufferResult.release();
+                }
+            }
+            // 全部刷盘之后保留最后一个文件
+            messageStore.cleanMappedFiles();
+            Assert.assertEquals(1, storeDir.listFiles().length);
+            messageStore.shutdown();
+        } finally {
+            MetaInfo.PROPERTY_STORE_FLUSH_INTERVAL = originFlushInterval;
+            MetaInfo.PROPERTY_STORE_FLUSH_THOROUGH_INTERVAL = originFlushThoroughInterval;
+            MetaInfo.PROPERTY_STORE_CLEAN_DELETE_INTERVAL = originDeleteInterval;
+            MetaInfo.PROPERTY_STORE_FLUSH_LEAST_PAGES = originFlushLeastPages;
+        }
+    }
+
+    @Test
+    public void testMultiPathStore() throws Exception {
+        messageStore.shutdown();
+        File secondDir = Files.createTempDirectory("osx-store-second").toFile();
+        List<String> paths = Arrays.asList(storeDir.getAbsolutePath(), secondDir.getAbsolutePath());
+        try {
+            messageStore = new MessageStore(null, paths);
+            messageStore.start();
+            char[] chars = new char[1024];
+            Arrays.fill(chars, 'a');
+            String content = new String(chars);
+            long endOffset = 0;
+            for (int i = 0; i < 4000; i++) {
+                PutMessageResult result = messageStore.putMessage(buildMessage("topic", content));
+                Assert.assertTrue(result.isOk());
+                endOffset = result.getAppendMessageResult().getWroteOffset() + result.getAppendMessageResult().getWroteBytes();
+            }
+            // 正在写入的文件所在目录负载更高，下一个文件会放到另一个目录
+            Assert.assertTrue(storeDir.listFiles().length > 0);
+            Assert.assertTrue(secondDir.listFiles().length > 0);
+            messageStore.shutdown();
+
+            messageStore = new MessageStore(null, paths);
+            Assert.assertEquals(endOffset, messageStore.load(-1));
+            messageStore.start();
+            PutMessageResult result = messageStore.putMessage(buildMessage("topic", "after_recover"));
+            Assert.assertEquals(endOffset, result.getAppendMessageResult().getWroteOffset());
+            messageStore.shutdown();
+        } finally {
+            for (File file : secondDir.listFiles()) {
+                file.delete();
+            }
+            secondDir.delete();
+        }
+    }
+
+    private MessageStore restartWithFlushDiskType(String flushDiskType) {
+        messageStore.shutdown();
+        String originFlushDiskType = MetaInfo.PROPERTY_STORE_FLUSH_DISK_TYPE;
+        try {
+            MetaInfo.PROPERTY_STORE_FLUSH_DISK_TYPE = flushDiskType;
+            messageStore = new MessageStore(null, storeDir.getAbsolutePath());
+        } finally {
+            MetaInfo.PROPERTY_STORE_FLUSH_DISK_TYPE = originFlushDiskType;
+        }
+        messageStore.start();
+        return messageStore;
+    }
+
+    @Test
+    public void testSyncFlushWaitForFlush() throws Exception {
+        restartWithFlushDiskType("SYNC_FLUSH");
+        List<CompletableFuture<Long>> flushedWhereOnComplete = new ArrayList<>();
+        List<CompletableFuture<PutMessageResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            CompletableFuture<PutMessageResult> future = messageStore.asyncPutMessage(buildMessage("topic", "sync_" + i));
+            futures.add(future);
+            // 完成时记录已刷盘的位置
+            flushedWhereOnComplete.add(future.thenApply(result -> messageStore.getFlushedWhere()));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            PutMessageResult result = futures.get(i).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(PutMessageStatus.PUT_OK, result.getPutMessageStatus());
+            long end = result.getAppendMessageResult().getWroteOffset() + result.getAppendMessageResult().getWroteBytes();
+            Assert.assertTrue(flushedWhereOnComplete.get(i).get() >= end);
+        }
+        messageStore.shutdown();
+    }
+
+    @Test
+    public void testAsyncFlushNotWaitForFlush() throws Exception {
+        Integer originFlushInterval = MetaInfo.PROPERTY_STORE_FLUSH_INTERVAL;
+        Integer originFlushThoroughInterval = MetaInfo.PROPERTY_STORE_FLUSH_THOROUGH_INTERVAL;
+        // 刷盘线程在测试期间不会执行，写入不足 store.flush.least.pages 也不会唤醒刷盘线程
+        MetaInfo.PROPERTY_STORE_FLUSH_INTERVAL = 60 * 1000;
+        MetaInfo.PROPERTY_STORE_FLUSH_THOROUGH_INTERVAL = 60 * 1000;
+        try {
+            restartWithFlushDiskType("ASYNC_FLUSH");
+            CompletableFuture<PutMessageResult> future = messageStore.asyncPutMessage(buildMessage("topic", "async"));
+            PutMessageResult result = future.get(1, TimeUnit.SECONDS);
+            Assert.assertEquals(PutMessageStatus.PUT_OK, result.getPutMessageStatus());
+            long end = result.getAppendMessageResult().getWroteOffset() + result.getAppendMessageResult().getWroteBytes();
+            Assert.assertTrue(messageStore.getFlushedWhere() < end);
+            messageStore.shutdown();
+        } finally {
+            MetaInfo.PROPERTY_STORE_FLUSH_INTERVAL = originFlushInterval;
+            MetaInfo.PROPERTY_STORE_FLUSH_THOROUGH_INTERVAL = originFlushThoroughInterval;
+        }
+    }
+}
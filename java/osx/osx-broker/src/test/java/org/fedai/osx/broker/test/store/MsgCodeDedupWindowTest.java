@@ -0,0 +1,63 @@
+package org.fedai.osx.broker.test.store;
+
+import org.fedai.osx.broker.store.MsgCodeDedupWindow;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class MsgCodeDedupWindowTest {
+
+    @Test
+    public void testCountWindow() {
+        MsgCodeDedupWindow window = new MsgCodeDedupWindow(5000, 0);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertFalse(window.contains("msg_" + i, 0));
+            window.add("msg_" + i, 0, i + 1);
+        }
+        Assert.assertEquals(5000, window.size());
+        for (int i = 0; i < 5000; i++) {
+            Assert.assertFalse(window.contains("msg_" + i, 0));
+        }
+        for (int i = 5000; i < 10000; i++) {
+            Assert.assertTrue(window.contains("msg_" + i, 0));
+        }
+    }
+
+    @Test
+    public void testTimeWindow() {
+        MsgCodeDedupWindow window = new MsgCodeDedupWindow(100, 1000);
+        window.add("first", 0, 1);
+        window.add("second", 500, 2);
+        Assert.assertTrue(window.contains("first", 1000));
+        Assert.assertFalse(window.contains("first", 1001));
+        Assert.assertTrue(window.contains("second", 1001));
+        Assert.assertEquals(1, window.size());
+    }
+
+    @Test
+    public void testSnapshotTruncate() throws Exception {
+        MsgCodeDedupWindow window = new MsgCodeDedupWindow(100, 0);
+        for (int i = 1; i <= 10; i++) {
+            window.add("msg_" + i, 0, i);
+        }
+        File file = Files.createTempFile("osx-dedup", ".dedup").toFile();
+        try {
+            window.snapshot(10).save(file.getAbsolutePath());
+            Assert.assertFalse(window.isChanged());
+            MsgCodeDedupWindow.Snapshot snapshot = MsgCodeDedupWindow.Snapshot.load(file.getAbsolutePath());
+            Assert.assertEquals(10, snapshot.getLogicOffset());
+            Assert.assertEquals(10, snapshot.size());
+
+            // 重启后索引只恢复到第 8 条，之后的 msgCode 对应的消息已经不存在，重试时需要重新写入
+            MsgCodeDedupWindow restored = new MsgCodeDedupWindow(100, 0);
+            restored.restore(snapshot, 8);
+            Assert.assertTrue(restored.contains("msg_8", 0));
+            Assert.assertFalse(restored.contains("msg_9", 0));
+            Assert.assertEquals(8, restored.size());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.fedai.osx.broker.test.store;
+
+import org.fedai.osx.broker.callback.MsgEventCallback;
+import org.fedai.osx.broker.message.MessageExt;
+import org.fedai.osx.broker.queue.MsgEventDispatcher;
+import org.fedai.osx.broker.queue.TransferQueue;
+import org.fedai.osx.broker.queue.TransferQueueManager;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.constant.QueueType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MsgEventDispatcherTest {
+
+    private static final String SESSION_ID = "testSessionId";
+
+    File storeDir;
+    String originFilePath;
+    Boolean originRecoverEnable;
+    TransferQueueManager transferQueueManager;
+    TransferQueue topicA;
+    TransferQueue topicB;
+
+    @Before
+    public void init() throws Exception {
+        originFilePath = MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE;
+        originRecoverEnable = MetaInfo.PROPERTY_STORE_RECOVER_ENABLE;
+        storeDir = Files.createTempDirectory("osx-msg-event").toFile();
+        MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE = storeDir.getAbsolutePath();
+        MetaInfo.PROPERTY_STORE_RECOVER_ENABLE = false;
+        MetaInfo.MAP_FILE_SIZE = 1 << 20;
+        transferQueueManager = new TransferQueueManager();
+        topicA = (TransferQueue) transferQueueManager.createNewQueue(SESSION_ID, "topicA", true, QueueType.NORMAL).getQueue();
+        topicB = (TransferQueue) transferQueueManager.createNewQueue(SESSION_ID, "topicB", true, QueueType.NORMAL).getQueue();
+    }
+
+    @After
+    public void destroy() {
+        transferQueueManager.shutdown();
+        MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE = originFilePath;
+        MetaInfo.PROPERTY_STORE_RECOVER_ENABLE = originRecoverEnable;
+        deleteDir(storeDir);
+    }
+
+    private void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+
+    private MessageExt buildMessage(String msgId) {
+        MessageExt message = new MessageExt();
+        message.setMsgId(msgId);
+        return message;
+    }
+
+    @Test
+    public void testOrderAndShutdownDrain() {
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        MsgEventCallback slowCallback = (consumerManager, transferQueue, message) -> {
+            Thread.sleep(5);
+            handled.add(transferQueue.getTransferId() + "_" + message.getMsgId());
+            if ("3".equals(message.getMsgId())) {
+                throw new IllegalStateException("callback error");
+            }
+        };
+        List<MsgEventCallback> callbacks = Collections.singletonList(slowCallback);
+        MsgEventDispatcher dispatcher = new MsgEventDispatcher(1, 64, "blocking");
+        dispatcher.start();
+        int count = 20;
+        for (int i = 0; i < count; i++) {
+            dispatcher.dispatch(null, topicA, buildMessage(Integer.toString(i)), callbacks);
+            dispatcher.dispatch(null, topicB, buildMessage(Integer.toString(i)), callbacks);
+        }
+        // 回调很慢，停止时还有事件没有处理，停止前需要全部处理完
+        Assert.assertTrue(dispatcher.getPendingCount() > 0);
+        dispatcher.shutdown(10000);
+        Assert.assertEquals(0, dispatcher.getPendingCount());
+        Assert.assertEquals(count * 2, handled.size());
+
+        // 同一个 topic 按写入顺序执行，回调抛出异常之后通道继续处理后面的事件
+        int nextA = 0;
+        int nextB = 0;
+        for (String item : handled) {
+            if (item.startsWith("topicA_")) {
+                Assert.assertEquals("topicA_" + nextA++, item);
+            } else {
+                Assert.assertEquals("topicB_" + nextB++, item);
+            }
+        }
+        Assert.assertEquals(count, nextA);
+        Assert.assertEquals(count, nextB);
+    }
+
+    @Test
+    public void testFullRingBlocksProducer() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger handledCount = new AtomicInteger(0);
+        List<MsgEventCallback> callbacks = Collections.singletonList((consumerManager, transferQueue, message) -> {
+            gate.await();
+            handledCount.incrementAndGet();
+        });
+        MsgEventDispatcher dispatcher = new MsgEventDispatcher(1, 2, "blocking");
+        dispatcher.start();
+        int count = 4;
+        AtomicInteger published = new AtomicInteger(0);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                dispatcher.dispatch(null, i % 2 == 0 ? topicA : topicB, buildMessage(Integer.toString(i)), callbacks);
+                published.incrementAndGet();
+            }
+        });
+        producer.start();
+        // 回调被阻塞，ring buffer 只能放下 2 个事件，生产者等待空位
+        producer.join(500);
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertEquals(2, published.get());
+        Assert.assertEquals(2, dispatcher.getPendingCount());
+
+        gate.countDown();
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertEquals(count, published.get());
+        dispatcher.shutdown(5000);
+        Assert.assertEquals(count, handledCount.get());
+    }
+
+    @Test
+    public void testSlowLaneNotBlockOtherLanes() throws Exception {
+        MsgEventDispatcher dispatcher = new MsgEventDispatcher(2, 2, "blocking");
+        TransferQueue[] lanes = new TransferQueue[2];
+        for (int i = 0; lanes[0] == null || lanes[1] == null; i++) {
+            String topic = "laneTopic" + i;
+            int lane = dispatcher.getLane(topic);
+            if (lanes[lane] == null) {
+                lanes[lane] = (TransferQueue) transferQueueManager.createNewQueue(SESSION_ID, topic, true, QueueType.NORMAL).getQueue();
+            }
+        }
+        TransferQueue slowQueue = lanes[0];
+        TransferQueue fastQueue = lanes[1];
+        CountDownLatch gate = new CountDownLatch(1);
+        int fastCount = 10;
+        CountDownLatch fastHandled = new CountDownLatch(fastCount);
+        List<MsgEventCallback> callbacks = Collections.singletonList((consumerManager, transferQueue, message) -> {
+            if (transferQueue == slowQueue) {
+                gate.await();
+            } else {
+                fastHandled.countDown();
+            }
+        });
+        dispatcher.start();
+        Thread slowProducer = new Thread(() -> {
+            for (int i = 0; i < 4; i++) {
+                dispatcher.dispatch(null, slowQueue, buildMessage(Integer.toString(i)), callbacks);
+            }
+        });
+        slowProducer.start();
+        slowProducer.join(500);
+        // 慢通道的 ring buffer 已满，生产者等待空位
+        Assert.assertTrue(slowProducer.isAlive());
+        Assert.assertEquals(2, dispatcher.getPendingCount(0));
+
+        // 其他通道不受影响
+        for (int i = 0; i < fastCount; i++) {
+            dispatcher.dispatch(null, fastQueue, buildMessage(Integer.toString(i)), callbacks);
+        }
+        Assert.assertTrue(fastHandled.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(slowProducer.isAlive());
+
+        gate.countDown();
+        slowProducer.join(5000);
+        Assert.assertFalse(slowProducer.isAlive());
+        dispatcher.shutdown(5000);
+        Assert.assertEquals(0, dispatcher.getPendingCount());
+    }
+}
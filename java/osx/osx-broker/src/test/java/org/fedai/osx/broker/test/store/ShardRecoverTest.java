@@ -0,0 +1,174 @@
+package org.fedai.osx.broker.test.store;
+
+import org.fedai.osx.broker.constants.MessageFlag;
+import org.fedai.osx.broker.queue.TransferQueue;
+import org.fedai.osx.broker.queue.TransferQueueConsumeResult;
+import org.fedai.osx.broker.queue.TransferQueueManager;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.constant.QueueType;
+import org.fedai.osx.core.constant.StatusCode;
+import org.fedai.osx.core.context.OsxContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class ShardRecoverTest {
+
+    private static final int MESSAGE_COUNT = 5;
+
+    File storeDir;
+    String originFilePath;
+    Boolean originRecoverEnable;
+    Boolean originReadAheadEnable;
+    Integer originShardCount;
+
+    @Before
+    public void init() throws Exception {
+        originFilePath = MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE;
+        originRecoverEnable = MetaInfo.PROPERTY_STORE_RECOVER_ENABLE;
+        originReadAheadEnable = MetaInfo.PROPERTY_STORE_READ_AHEAD_ENABLE;
+        originShardCount = MetaInfo.PROPERTY_STORE_COMMIT_LOG_SHARD_COUNT;
+        storeDir = Files.createTempDirectory("osx-shard").toFile();
+        MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE = storeDir.getAbsolutePath();
+        MetaInfo.PROPERTY_STORE_RECOVER_ENABLE = true;
+        MetaInfo.PROPERTY_STORE_READ_AHEAD_ENABLE = false;
+        MetaInfo.MAP_FILE_SIZE = 1 << 20;
+    }
+
+    @After
+    public void destroy() {
+        MetaInfo.PROPERTY_TRANSFER_FILE_PATH_PRE = originFilePath;
+        MetaInfo.PROPERTY_STORE_RECOVER_ENABLE = originRecoverEnable;
+        MetaInfo.PROPERTY_STORE_READ_AHEAD_ENABLE = originReadAheadEnable;
+        MetaInfo.PROPERTY_STORE_COMMIT_LOG_SHARD_COUNT = originShardCount;
+        deleteDir(storeDir);
+    }
+
+    private void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * 按分片数为 2 时的分片选择，找到落在指定分片上的 sessionId
+     */
+    private String findSessionId(int shard) {
+        for (int i = 0; ; i++) {
+            String sessionId = "session_" + i;
+            if (Math.floorMod(sessionId.hashCode(), 2) == shard) {
+                return sessionId;
+            }
+        }
+    }
+
+    private TransferQueueManager start(int shardCount) {
+        MetaInfo.PROPERTY_STORE_COMMIT_LOG_SHARD_COUNT = shardCount;
+        TransferQueueManager transferQueueManager = new TransferQueueManager();
+        transferQueueManager.run(new String[0]);
+        return transferQueueManager;
+    }
+
+    private TransferQueue createAndPut(TransferQueueManager transferQueueManager, String sessionId, String topic) {
+        TransferQueue transferQueue = (TransferQueue) transferQueueManager.createNewQueue(sessionId, topic, true, QueueType.NORMAL).getQueue();
+        OsxContext context = new OsxContext();
+        context.setTopic(topic);
+        for (int i = 1; i <= MESSAGE_COUNT; i++) {
+            transferQueue.putMessage(context, (topic + "_" + i).getBytes(StandardCharsets.UTF_8), MessageFlag.SENDMSG, null);
+        }
+        return transferQueue;
+    }
+
+    /**
+     * 队列从指定分片恢复，并且可以读出重启之前写入的全部消息
+     */
+    private void assertRecovered(TransferQueueManager transferQueueManager, String sessionId, String topic, int shard) {
+        TransferQueue transferQueue = (TransferQueue) transferQueueManager.getQueue(sessionId, topic);
+        Assert.assertNotNull(topic, transferQueue);
+        Assert.assertSame(transferQueueManager.getMessageStores().get(shard), transferQueue.getMessageStore());
+        Assert.assertEquals(MESSAGE_COUNT, transferQueue.getIndexQueue().getLogicOffset().get());
+        for (int i = 1; i <= MESSAGE_COUNT; i++) {
+            TransferQueueConsumeResult result = transferQueue.consumeOneMessage(new OsxContext(), i);
+            try {
+                Assert.assertEquals(StatusCode.SUCCESS, result.getCode());
+                Assert.assertEquals(topic + "_" + i, new String(result.bodyBytes(), StandardCharsets.UTF_8));
+            } finally {
+                result.release();
+            }
+        }
+    }
+
+    @Test
+    public void testShardLayoutAndRecover() {
+        String sessionA = findSessionId(0);
+        String sessionB = findSessionId(1);
+        File shardDir = new File(storeDir, MetaInfo.INSTANCE_ID + File.separator + "shard-1");
+
+        TransferQueueManager transferQueueManager = start(2);
+        try {
+            TransferQueue topicA = createAndPut(transferQueueManager, sessionA, "topicA");
+            TransferQueue topicB = createAndPut(transferQueueManager, sessionB, "topicB");
+            // 两个 session 写入不同的分片，第 1 个分片在 shard-1 目录下
+            Assert.assertEquals(2, transferQueueManager.getMessageStores().size());
+            Assert.assertSame(transferQueueManager.getMessageStores().get(0), topicA.getMessageStore());
+            Assert.assertSame(transferQueueManager.getMessageStores().get(1), topicB.getMessageStore());
+            Assert.assertTrue(new File(shardDir, "message-store").isDirectory());
+        } finally {
+            transferQueueManager.shutdown();
+        }
+        Assert.assertTrue(new File(shardDir, "checkpoint").exists());
+
+        transferQueueManager = start(2);
+        try {
+            assertRecovered(transferQueueManager, sessionA, "topicA", 0);
+            assertRecovered(transferQueueManager, sessionB, "topicB", 1);
+        } finally {
+            transferQueueManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testRecoverAfterShardCountChange() {
+        String sessionA = findSessionId(0);
+        String sessionB = findSessionId(1);
+        TransferQueueManager transferQueueManager = start(2);
+        try {
+            createAndPut(transferQueueManager, sessionA, "topicA");
+            createAndPut(transferQueueManager, sessionB, "topicB");
+        } finally {
+            transferQueueManager.shutdown();
+        }
+
+        // 减少分片数，磁盘上已有的分片仍然恢复，但新的队列不再分配到这些分片
+        transferQueueManager = start(1);
+        try {
+            Assert.assertEquals(2, transferQueueManager.getMessageStores().size());
+            assertRecovered(transferQueueManager, sessionA, "topicA", 0);
+            assertRecovered(transferQueueManager, sessionB, "topicB", 1);
+            TransferQueue topicC = createAndPut(transferQueueManager, sessionB, "topicC");
+            Assert.assertSame(transferQueueManager.getMessageStores().get(0), topicC.getMessageStore());
+        } finally {
+            transferQueueManager.shutdown();
+        }
+
+        // 增加分片数，已有的队列仍然从原来所在的分片恢复
+        transferQueueManager = start(3);
+        try {
+            Assert.assertEquals(3, transferQueueManager.getMessageStores().size());
+            assertRecovered(transferQueueManager, sessionA, "topicA", 0);
+            assertRecovered(transferQueueManager, sessionB, "topicB", 1);
+            assertRecovered(transferQueueManager, sessionB, "topicC", 0);
+        } finally {
+            transferQueueManager.shutdown();
+        }
+    }
+}
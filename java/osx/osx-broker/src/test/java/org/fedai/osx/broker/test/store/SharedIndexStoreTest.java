@@ -0,0 +1,99 @@
+package org.fedai.osx.broker.test.store;
+
+import org.fedai.osx.broker.message.SelectMappedBufferResult;
+import org.fedai.osx.broker.store.IndexQueue;
+import org.fedai.osx.broker.store.SharedIndexStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+
+public class SharedIndexStoreTest {
+
+    private static final int MAPPED_FILE_SIZE = 1 << 12;
+
+    private void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testCompactRecover() throws Exception {
+        File dir = Files.createTempDirectory("osx-shared-index").toFile();
+        String sharedPath = dir.getAbsolutePath() + File.separator + "shared-index";
+        try {
+            SharedIndexStore sharedIndexStore = new SharedIndexStore(sharedPath, MAPPED_FILE_SIZE);
+            Assert.assertTrue(sharedIndexStore.load(0).isEmpty());
+            IndexQueue small = new IndexQueue("small", dir.getAbsolutePath(), MAPPED_FILE_SIZE, sharedIndexStore, 100);
+            IndexQueue destroyed = new IndexQueue("destroyed", dir.getAbsolutePath(), MAPPED_FILE_SIZE, sharedIndexStore, 100);
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(i + 1, small.putMessagePositionInfoWrapper(i * 200L, 100));
+                destroyed.putMessagePositionInfoWrapper(i * 200L + 100, 100);
+            }
+            destroyed.destroy();
+            Assert.assertTrue(small.isCompact());
+            // 紧凑模式不创建独立的索引文件
+            Assert.assertFalse(new File(dir, "small").exists());
+            Assert.assertEquals(400, small.readPhyOffset(3));
+            SelectMappedBufferResult indexBuffer = small.getIndexBuffer(9);
+            Assert.assertEquals(2 * IndexQueue.CQ_STORE_UNIT_SIZE, indexBuffer.getSize());
+            Assert.assertEquals(1600, indexBuffer.getByteBuffer().getLong());
+            sharedIndexStore.shutdown();
+
+            // 第 10 条消息不在 commit log 中，恢复时丢弃；已经销毁的队列不再恢复
+            SharedIndexStore restored = new SharedIndexStore(sharedPath, MAPPED_FILE_SIZE);
+            Map<Long, SharedIndexStore.Group> groups = restored.load(1850);
+            Assert.assertEquals(1, groups.size());
+            SharedIndexStore.Group group = groups.get(SharedIndexStore.topicHash("small"));
+            Assert.assertEquals(1, group.getFirstIndex());
+            Assert.assertEquals(9, group.getLastIndex());
+            IndexQueue recovered = new IndexQueue("small", dir.getAbsolutePath(), MAPPED_FILE_SIZE, restored, 100);
+            Assert.assertEquals(9, recovered.recover(1850, 0, group));
+            Assert.assertTrue(recovered.isCompact());
+            Assert.assertEquals(10, recovered.putMessagePositionInfoWrapper(1800, 100));
+            Assert.assertEquals(1800, recovered.readPhyOffset(10));
+            restored.shutdown();
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testPromote() throws Exception {
+        File dir = Files.createTempDirectory("osx-shared-index").toFile();
+        String sharedPath = dir.getAbsolutePath() + File.separator + "shared-index";
+        try {
+            SharedIndexStore sharedIndexStore = new SharedIndexStore(sharedPath, MAPPED_FILE_SIZE);
+            sharedIndexStore.load(0);
+            IndexQueue indexQueue = new IndexQueue("topic", dir.getAbsolutePath(), MAPPED_FILE_SIZE, sharedIndexStore, 4);
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(i + 1, indexQueue.putMessagePositionInfoWrapper(i * 100L, 100));
+            }
+            // 超过阈值之后写入独立的索引文件，之前的索引一并迁移
+            Assert.assertFalse(indexQueue.isCompact());
+            Assert.assertTrue(new File(dir, "topic").isDirectory());
+            Assert.assertEquals(0, indexQueue.readPhyOffset(1));
+            Assert.assertEquals(900, indexQueue.readPhyOffset(10));
+            while (!indexQueue.flush(0)) {
+            }
+            sharedIndexStore.shutdown();
+
+            SharedIndexStore restored = new SharedIndexStore(sharedPath, MAPPED_FILE_SIZE);
+            Map<Long, SharedIndexStore.Group> groups = restored.load(1000);
+            IndexQueue recovered = new IndexQueue("topic", dir.getAbsolutePath(), MAPPED_FILE_SIZE, restored, 4);
+            Assert.assertEquals(10, recovered.recover(1000, 0, groups.get(SharedIndexStore.topicHash("topic"))));
+            Assert.assertFalse(recovered.isCompact());
+            Assert.assertEquals(500, recovered.readPhyOffset(6));
+            restored.shutdown();
+        } finally {
+            deleteDir(dir);
+        }
+    }
+}
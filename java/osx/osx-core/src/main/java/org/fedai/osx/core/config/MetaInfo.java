@@ -67,6 +67,20 @@ public class MetaInfo {
     public static Integer PROPERTY_GRPC_SERVER_MAX_CONNECTION_AGE_SEC = 86400;
     @Config(confKey = "grpc.server.max.connection.age.grace.sec", pattern = Dict.POSITIVE_INTEGER_PATTERN)
     public static Integer PROPERTY_GRPC_SERVER_MAX_CONNECTION_AGE_GRACE_SEC = 86400;
+    @Config(confKey = "grpc.server.executor.mode")
+    public static String PROPERTY_GRPC_SERVER_EXECUTOR_MODE = "auto";
+    @Config(confKey = "grpc.server.executor.core.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_SERVER_EXECUTOR_CORE_SIZE = 200;
+    @Config(confKey = "grpc.server.executor.max.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_SERVER_EXECUTOR_MAX_SIZE = 1000;
+    @Config(confKey = "grpc.server.executor.queue.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_SERVER_EXECUTOR_QUEUE_SIZE = 10000;
+    @Config(confKey = "grpc.server.executor.keepalive.time", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_SERVER_EXECUTOR_KEEPALIVE_TIME = 60000;
+    @Config(confKey = "grpc.server.executor.admission.percent", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_SERVER_EXECUTOR_ADMISSION_PERCENT = 90;
+    @Config(confKey = "grpc.server.executor.report.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_SERVER_EXECUTOR_REPORT_INTERVAL = 60000;
     @Config(confKey = "grpc.oncompleted.wait.timeout", pattern = Dict.POSITIVE_INTEGER_PATTERN)
     public static Integer PROPERTY_GRPC_ONCOMPLETED_WAIT_TIMEOUT = 600;
     @Config(confKey = "grpc.client.max.inbound.message.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
@@ -85,8 +99,22 @@ public class MetaInfo {
     public static Integer PROPERTY_GRPC_CLIENT_PER_RPC_BUFFER_LIMIT =  (2 << 30) - 1;
     @Config(confKey = "grpc.client.retry.buffer.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
     public static Integer PROPERTY_GRPC_CLIENT_RETRY_BUFFER_SIZE = 86400;
-    @Config(confKey = "transfer.cached.msgid.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
-    public static Integer PROPERTY_TRANSFER_CACHED_MSGID_SIZE = 10;
+    @Config(confKey = "grpc.client.channel.pool.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_CLIENT_CHANNEL_POOL_SIZE = 2;
+    @Config(confKey = "grpc.client.channel.health.check.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_CLIENT_CHANNEL_HEALTH_CHECK_INTERVAL = 5000;
+    @Config(confKey = "grpc.client.channel.idle.evict.time", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_CLIENT_CHANNEL_IDLE_EVICT_TIME = 600000;
+    @Config(confKey = "grpc.client.redirect.deadline", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_GRPC_CLIENT_REDIRECT_DEADLINE = 300000;
+    @Config(confKey = "transfer.dedup.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_TRANSFER_DEDUP_ENABLE = false;
+    @Config(confKey = "transfer.dedup.window.count", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_TRANSFER_DEDUP_WINDOW_COUNT = 100000;
+    @Config(confKey = "transfer.dedup.window.time", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_TRANSFER_DEDUP_WINDOW_TIME = 3600 * 1000 * 24;
+    @Config(confKey = "transfer.dedup.snapshot.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_TRANSFER_DEDUP_SNAPSHOT_INTERVAL = 10 * 1000;
     @Config(confKey = "grpc.ssl.session.timeout", pattern = Dict.POSITIVE_INTEGER_PATTERN)
     public static Integer PROPERTY_GRPC_SSL_SESSION_TIME_OUT = 3600 << 4;
     @Config(confKey = "grpc.ssl.open.client.validate", pattern = Dict.BOOLEAN_PATTERN)
@@ -101,6 +129,82 @@ public class MetaInfo {
     public static String PROPERTY_TRANSFER_FILE_PATH_PRE = "mapped"+ File.separator+".fate"+ File.separator+"transfer_file";
     @Config(confKey = "index.mapped.file.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
     public static Integer PROPERTY_INDEX_MAP_FILE_SIZE = 1 << 21;
+    @Config(confKey = "store.mapped.memory.budget.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_MAPPED_MEMORY_BUDGET_ENABLE = true;
+    @Config(confKey = "store.mapped.memory.budget", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_MAPPED_MEMORY_BUDGET = 8192;
+    @Config(confKey = "store.mapped.memory.cold.time", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_MAPPED_MEMORY_COLD_TIME = 30 * 1000;
+    @Config(confKey = "store.mapped.memory.check.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_MAPPED_MEMORY_CHECK_INTERVAL = 1000;
+    @Config(confKey = "store.read.ahead.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_READ_AHEAD_ENABLE = true;
+    @Config(confKey = "store.read.ahead.lag.threshold", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_READ_AHEAD_LAG_THRESHOLD = 64;
+    @Config(confKey = "store.read.ahead.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_READ_AHEAD_SIZE = 16;
+    @Config(confKey = "store.read.ahead.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_READ_AHEAD_INTERVAL = 100;
+    @Config(confKey = "store.index.compact.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_INDEX_COMPACT_ENABLE = true;
+    @Config(confKey = "store.index.compact.threshold", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_INDEX_COMPACT_THRESHOLD = 1024;
+    @Config(confKey = "store.group.commit.max.batch", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_GROUP_COMMIT_MAX_BATCH = 256;
+    @Config(confKey = "store.flush.disk.type")
+    public static String PROPERTY_STORE_FLUSH_DISK_TYPE = "ASYNC_FLUSH";
+    @Config(confKey = "store.flush.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_FLUSH_INTERVAL = 500;
+    @Config(confKey = "store.flush.least.pages", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_FLUSH_LEAST_PAGES = 4;
+    @Config(confKey = "store.flush.thorough.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_FLUSH_THOROUGH_INTERVAL = 10 * 1000;
+    @Config(confKey = "store.sync.flush.timeout", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_SYNC_FLUSH_TIMEOUT = 5 * 1000;
+    @Config(confKey = "store.flush.report.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_FLUSH_REPORT_INTERVAL = 60 * 1000;
+    @Config(confKey = "store.commit.log.shard.count", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_COMMIT_LOG_SHARD_COUNT = 1;
+    @Config(confKey = "store.commit.log.extra.paths")
+    public static String PROPERTY_STORE_COMMIT_LOG_EXTRA_PATHS = "";
+    @Config(confKey = "store.preallocate.mapped.file.count", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_PREALLOCATE_MAPPED_FILE_COUNT = 2;
+    @Config(confKey = "store.warm.mapped.file.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_WARM_MAPPED_FILE_ENABLE = false;
+    @Config(confKey = "store.mlock.mapped.file.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_MLOCK_MAPPED_FILE_ENABLE = false;
+    @Config(confKey = "store.mlock.max.file.count", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_MLOCK_MAX_FILE_COUNT = 4;
+    @Config(confKey = "store.allocate.report.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_ALLOCATE_REPORT_INTERVAL = 60 * 1000;
+    @Config(confKey = "store.clean.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_CLEAN_INTERVAL = 60 * 1000;
+    @Config(confKey = "store.clean.consumed.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_CLEAN_CONSUMED_ENABLE = true;
+    @Config(confKey = "store.clean.delete.interval")
+    public static Integer PROPERTY_STORE_CLEAN_DELETE_INTERVAL = 100;
+    @Config(confKey = "store.max.disk.size")
+    public static Integer PROPERTY_STORE_MAX_DISK_SIZE = 0;
+    @Config(confKey = "store.checkpoint.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_CHECKPOINT_INTERVAL = 1000;
+    @Config(confKey = "store.recover.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_RECOVER_ENABLE = true;
+    @Config(confKey = "store.crc.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_CRC_ENABLE = false;
+    @Config(confKey = "store.crc.check.on.read", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_CRC_CHECK_ON_READ = false;
+    @Config(confKey = "store.crc.skip.hot.tail", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_CRC_SKIP_HOT_TAIL = true;
+    @Config(confKey = "store.consume.zero.copy", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_CONSUME_ZERO_COPY = true;
+    @Config(confKey = "store.hot.tail.cache.enable", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_STORE_HOT_TAIL_CACHE_ENABLE = true;
+    @Config(confKey = "store.hot.tail.cache.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_HOT_TAIL_CACHE_SIZE = 64;
+    @Config(confKey = "store.hot.tail.cache.message.max.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_HOT_TAIL_CACHE_MESSAGE_MAX_SIZE = 1 << 20;
+    @Config(confKey = "store.hot.tail.cache.report.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_STORE_HOT_TAIL_CACHE_REPORT_INTERVAL = 60 * 1000;
     @Config(confKey = "https.server.cert.chain.file")
     public static String PROPERTY_HTTPS_SERVER_CERT_CHAIN_FILE;
     @Config(confKey = "https.server.private.key.file")
@@ -181,6 +285,12 @@ public class MetaInfo {
     public static Integer PROPERTY_HTTP_ACCEPT_RECEIVE_BUFFER_SIZE = 4096;
     @Config(confKey = "consume.msg.waiting.timeout")
     public static Integer CONSUME_MSG_WAITING_TIMEOUT = 60 * 60 * 1000;
+    @Config(confKey = "consume.batch.max.count", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_CONSUME_BATCH_MAX_COUNT = 1000;
+    @Config(confKey = "consume.batch.max.bytes", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_CONSUME_BATCH_MAX_BYTES = 4 << 20;
+    @Config(confKey = "consume.long.pulling.scan.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_CONSUME_LONG_PULLING_SCAN_INTERVAL = 5000;
     @Config(confKey = "flow.control.sample.count", pattern = Dict.POSITIVE_INTEGER_PATTERN)
     public static Integer PROPERTY_FLOW_CONTROL_SAMPLE_COUNT = 10;
     @Config(confKey = "flow.control.sample.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
@@ -201,6 +311,14 @@ public class MetaInfo {
     public static Integer PROPERTY_QUEUE_MAX_FREE_TIME = 60 * 60 * 1000 * 12;
     @Config(confKey = "queue.check.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
     public static Integer PROPERTY_TRANSFER_QUEUE_CHECK_INTERVAL = 5*60 * 1000;
+    @Config(confKey = "msg.callback.dispatch.async", pattern = Dict.BOOLEAN_PATTERN)
+    public static Boolean PROPERTY_MSG_CALLBACK_DISPATCH_ASYNC = true;
+    @Config(confKey = "msg.callback.dispatch.thread.num", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_MSG_CALLBACK_DISPATCH_THREAD_NUM = 4;
+    @Config(confKey = "msg.callback.dispatch.buffer.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_MSG_CALLBACK_DISPATCH_BUFFER_SIZE = 16384;
+    @Config(confKey = "msg.callback.dispatch.wait.strategy")
+    public static String PROPERTY_MSG_CALLBACK_DISPATCH_WAIT_STRATEGY = "blocking";
     public static String INSTANCE_ID = NetUtils.getLocalHost() + "_" + MetaInfo.PROPERTY_GRPC_PORT;
     @Config(confKey = "flow.print.uri", pattern = Dict.BOOLEAN_PATTERN)
     public static Boolean PROPERTY_PRINT_URI = false;
@@ -208,6 +326,12 @@ public class MetaInfo {
     public static String PROPERTY_EGGROLL_CLUSTER_MANANGER_IP;
     @Config(confKey = "eggroll.cluster.manager.port", pattern = Dict.POSITIVE_INTEGER_PATTERN)
     public static Integer PROPERTY_EGGROLL_CLUSTER_MANANGER_PORT;
+    @Config(confKey = "eggroll.meta.cache.refresh.interval", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_EGGROLL_META_CACHE_REFRESH_INTERVAL = 10000;
+    @Config(confKey = "eggroll.meta.cache.expire.time", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_EGGROLL_META_CACHE_EXPIRE_TIME = 600000;
+    @Config(confKey = "eggroll.meta.cache.max.size", pattern = Dict.POSITIVE_INTEGER_PATTERN)
+    public static Integer PROPERTY_EGGROLL_META_CACHE_MAX_SIZE = 2000;
     // @Config(confKey = "http.client.method.config")
     public static Map<String, Map<String, Integer>> PROPERTY_HTTP_CLIENT_METHOD_CONFIG_MAP = new HashMap<>();
     /**
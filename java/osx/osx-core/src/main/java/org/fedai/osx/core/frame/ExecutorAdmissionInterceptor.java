@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.core.frame;
+
+import io.grpc.*;
+
+/**
+ * 服务端线程池过载时直接以 RESOURCE_EXHAUSTED 结束新的调用，不再进入业务逻辑，
+ * 客户端可以据此退避重试。需要作为最外层的拦截器
+ */
+public class ExecutorAdmissionInterceptor implements ServerInterceptor {
+
+    private final OsxServerExecutor executor;
+
+    public ExecutorAdmissionInterceptor(OsxServerExecutor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        if (executor.isOverloaded()) {
+            executor.recordAdmissionRejected();
+            call.close(Status.RESOURCE_EXHAUSTED.withDescription("server is busy, queue depth " + executor.getQueueDepth()
+                    + ", active " + executor.getActiveCount()), new Metadata());
+            return new ServerCall.Listener<ReqT>() {
+            };
+        }
+        return next.startCall(call, headers);
+    }
+}
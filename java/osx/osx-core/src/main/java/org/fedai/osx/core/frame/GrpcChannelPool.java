@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.core.frame;
+
+import io.grpc.ManagedChannel;
+import org.fedai.osx.core.config.GrpcChannelInfo;
+import org.fedai.osx.core.config.MetaInfo;
+import org.fedai.osx.core.router.RouterInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 同一个路由的连接池。每个路由建立多个连接，请求分散到正在进行调用最少的连接上，
+ * 避免所有请求都复用同一个 http2 连接。
+ * 选择连接时只读取 volatile 数组，不加锁；补齐、替换和关闭连接在加锁后进行。
+ * 连接池被回收之后 select 返回 null，调用方重新创建连接池，不会拿到已经关闭的连接；
+ * 健康检查替换下来的连接可能已经被 select 交给了调用方，过了一个健康检查间隔之后再关闭
+ */
+public class GrpcChannelPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(GrpcChannelPool.class);
+    private static final PooledChannel[] EMPTY = new PooledChannel[0];
+
+    private final RouterInfo routerInfo;
+    private final GrpcChannelInfo channelInfo;
+    private final int size;
+    private volatile PooledChannel[] channels = EMPTY;
+    private volatile long lastAccessTimestamp = System.currentTimeMillis();
+    private volatile boolean evicted = false;
+    /*
+     * 被替换下来等待关闭的连接，只在加锁后访问
+     */
+    private final List<RetiredChannel> retiredChannels = new ArrayList<>();
+
+    public GrpcChannelPool(RouterInfo routerInfo, GrpcChannelInfo channelInfo, int size) {
+        this.routerInfo = routerInfo;
+        this.channelInfo = channelInfo;
+        this.size = Math.max(size, 1);
+    }
+
+    /**
+     * 选择正在进行调用最少的健康连接，全部不健康时仍然返回一个连接，由 grpc 自己重连
+     *
+     * @return 连接池为空或者已经被回收时返回 null
+     */
+    public ManagedChannel select() {
+        // 先写访问时间再读回收标记，与 evictIfIdle 的顺序相反，两边至少有一方能看到对方的写入
+        lastAccessTimestamp = System.currentTimeMillis();
+        if (evicted) {
+            return null;
+        }
+        PooledChannel[] current = channels;
+        PooledChannel selected = null;
+        PooledChannel fallback = null;
+        for (PooledChannel pooledChannel : current) {
+            if (fallback == null || pooledChannel.getInFlight() < fallback.getInFlight()) {
+                fallback = pooledChannel;
+            }
+            if (pooledChannel.isHealthy() && (selected == null || pooledChannel.getInFlight() < selected.getInFlight())) {
+                selected = pooledChannel;
+            }
+        }
+        if (selected == null) {
+            selected = fallback;
+        }
+        return selected != null ? selected.getChannel() : null;
+    }
+
+    /**
+     * 补齐连接数
+     */
+    public synchronized void fill() {
+        PooledChannel[] current = channels;
+        if (current.length >= size) {
+            return;
+        }
+        PooledChannel[] newChannels = Arrays.copyOf(current, size);
+        int count = current.length;
+        for (int i = current.length; i < size; i++) {
+            PooledChannel pooledChannel = GrpcConnectionFactory.createPooledChannel(routerInfo, channelInfo);
+            if (pooledChannel != null) {
+                newChannels[count++] = pooledChannel;
+            }
+        }
+        channels = count == size ? newChannels : Arrays.copyOf(newChannels, count);
+    }
+
+    /**
+     * 健康检查，已经关闭或者处于 TRANSIENT_FAILURE 的连接会被替换
+     */
+    public synchronized void check() {
+        long now = System.currentTimeMillis();
+        closeRetired(now, MetaInfo.PROPERTY_GRPC_CLIENT_CHANNEL_HEALTH_CHECK_INTERVAL);
+        PooledChannel[] current = channels;
+        PooledChannel[] newChannels = null;
+        for (int i = 0; i < current.length; i++) {
+            PooledChannel pooledChannel = current[i];
+            boolean healthy = pooledChannel.checkState();
+            pooledChannel.setHealthy(healthy);
+            if (!healthy) {
+                PooledChannel replacement = GrpcConnectionFactory.createPooledChannel(routerInfo, channelInfo);
+                if (replacement != null) {
+                    if (newChannels == null) {
+                        newChannels = current.clone();
+                    }
+                    newChannels[i] = replacement;
+                    logger.warn("replace unhealthy channel to {} {}", routerInfo.toKey(), pooledChannel);
+                    retiredChannels.add(new RetiredChannel(pooledChannel, now));
+                }
+            }
+        }
+        if (newChannels != null) {
+            channels = newChannels;
+        }
+    }
+
+    /**
+     * 关闭被替换超过 graceTime 的连接，关闭时已经开始的调用会继续完成
+     */
+    private void closeRetired(long now, long graceTime) {
+        Iterator<RetiredChannel> iterator = retiredChannels.iterator();
+        while (iterator.hasNext()) {
+            RetiredChannel retiredChannel = iterator.next();
+            if (now - retiredChannel.retireTimestamp >= graceTime) {
+                iterator.remove();
+                retiredChannel.pooledChannel.getChannel().shutdown();
+            }
+        }
+    }
+
+    public boolean isIdle(long now, long idleTime) {
+        if (now - lastAccessTimestamp < idleTime) {
+            return false;
+        }
+        for (PooledChannel pooledChannel : channels) {
+            if (pooledChannel.getInFlight() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 空闲时标记为已回收并关闭所有连接。标记之后再检查一次访问时间，
+     * 期间有 select 已经越过回收标记的检查时撤销回收，避免关闭刚被选中的连接
+     *
+     * @return 是否已经回收
+     */
+    public synchronized boolean evictIfIdle(long now, long idleTime) {
+        long accessTimestamp = lastAccessTimestamp;
+        if (!isIdle(now, idleTime)) {
+            return false;
+        }
+        evicted = true;
+        if (lastAccessTimestamp != accessTimestamp) {
+            evicted = false;
+            return false;
+        }
+        shutdown();
+        return true;
+    }
+
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    public synchronized void shutdown() {
+        evicted = true;
+        PooledChannel[] current = channels;
+        channels = EMPTY;
+        for (PooledChannel pooledChannel : current) {
+            pooledChannel.getChannel().shutdown();
+        }
+        // 连接池已经回收，select 不会再返回被替换的连接
+        closeRetired(Long.MAX_VALUE, 0);
+    }
+
+    public int getActiveCount() {
+        int activeCount = 0;
+        for (PooledChannel pooledChannel : channels) {
+            if (pooledChannel.isHealthy()) {
+                activeCount++;
+            }
+        }
+        return activeCount;
+    }
+
+    public int getChannelCount() {
+        return channels.length;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(channels);
+    }
+
+    private static class RetiredChannel {
+        final PooledChannel pooledChannel;
+        final long retireTimestamp;
+
+        RetiredChannel(PooledChannel pooledChannel, long retireTimestamp) {
+            this.pooledChannel = pooledChannel;
+            this.retireTimestamp = retireTimestamp;
+        }
+    }
+}
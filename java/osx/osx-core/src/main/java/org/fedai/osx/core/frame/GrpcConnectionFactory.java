@@ -19,7 +19,7 @@ package org.fedai.osx.core.frame;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import io.grpc.ConnectivityState;
+import io.grpc.ClientInterceptor;
 import io.grpc.ManagedChannel;
 import io.grpc.netty.shaded.io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.shaded.io.grpc.netty.NegotiationType;
@@ -54,7 +54,10 @@ import static org.fedai.osx.core.config.MetaInfo.PROPERTY_MAX_TRANSFER_QUEUE_SIZ
 public class GrpcConnectionFactory {
 
     private static final Logger logger = LoggerFactory.getLogger(GrpcConnectionFactory.class);
-    static ConcurrentHashMap<String, ManagedChannel> managedChannelPool = new ConcurrentHashMap<>();
+    /*
+     * 每个路由一个连接池，key 为 RouterInfo.toKey()
+     */
+    static ConcurrentHashMap<String, GrpcChannelPool> channelPoolMap = new ConcurrentHashMap<>();
     static LoadingCache<String, ReentrantLock> keyLockCache = CacheBuilder.newBuilder()
             .expireAfterAccess(PROPERTY_MAX_QUEUE_LOCK_LIVE, TimeUnit.SECONDS)
             .concurrencyLevel(4)
@@ -68,46 +71,32 @@ public class GrpcConnectionFactory {
 
     private static AtomicLong   historyCount = new AtomicLong(0);
 
-    private static  boolean checkChannel(ManagedChannel channel){
-        boolean shutdown = channel.isShutdown();
-        boolean terminated = channel.isTerminated();
-        ConnectivityState state = channel.getState(true);
-        if (shutdown || terminated || state == ConnectivityState.SHUTDOWN||state==ConnectivityState.TRANSIENT_FAILURE){
-            if(state==ConnectivityState.TRANSIENT_FAILURE){
-                Thread  thread=    new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            channel.shutdown();
-                        }
-                    });
-                thread.start();
-            }
-            return false;
-        }
-        return  true;
-    }
-
     static {
-        // 创建守护线程
+        // 创建守护线程，负责健康检查和回收空闲的连接池
         Thread daemonThread = new Thread(() -> {
+            long lastReportTimestamp = System.currentTimeMillis();
             while (true) {
                 try {
-                    Thread.sleep(MetaInfo.PROPERTY_CHANNEL_POOL_INFO);
+                    Thread.sleep(MetaInfo.PROPERTY_GRPC_CLIENT_CHANNEL_HEALTH_CHECK_INTERVAL);
+                    long now = System.currentTimeMillis();
+                    int total = 0;
                     int activeNum = 0;
-                    int total = managedChannelPool.size();
                     // 遍历并删除元素
-                    Iterator<Map.Entry<String, ManagedChannel>> iterator = managedChannelPool.entrySet().iterator();
+                    Iterator<Map.Entry<String, GrpcChannelPool>> iterator = channelPoolMap.entrySet().iterator();
                     while (iterator.hasNext()) {
-                        Map.Entry<String, ManagedChannel> entry = iterator.next();
+                        Map.Entry<String, GrpcChannelPool> entry = iterator.next();
                         String key = entry.getKey();
                         ReentrantLock  lock = keyLockCache.get(key);
                         try {
                             lock.lock();
-                            ManagedChannel channel = entry.getValue();
-                            if (!checkChannel(channel)) {
+                            GrpcChannelPool channelPool = entry.getValue();
+                            if (channelPool.evictIfIdle(now, MetaInfo.PROPERTY_GRPC_CLIENT_CHANNEL_IDLE_EVICT_TIME)) {
+                                logger.info("evict idle grpc channel pool {}", key);
                                 iterator.remove();
                             } else {
-                                activeNum++;
+                                channelPool.check();
+                                total += channelPool.getChannelCount();
+                                activeNum += channelPool.getActiveCount();
                             }
                         }finally {
                             if(lock!=null){
@@ -115,7 +104,11 @@ public class GrpcConnectionFactory {
                             }
                         }
                     }
-                    logger.info("grpc pool info：history {} current：{}, active:{}", historyCount.get(),total, activeNum);
+                    if (now - lastReportTimestamp >= MetaInfo.PROPERTY_CHANNEL_POOL_INFO) {
+                        lastReportTimestamp = now;
+                        logger.info("grpc pool info：history {} current：{}, active:{}", historyCount.get(),total, activeNum);
+                        channelPoolMap.forEach((key, channelPool) -> logger.info("grpc pool {} : {}", key, channelPool));
+                    }
                 } catch (Exception e) {
                     logger.error("exception：", e);
                 }
@@ -126,30 +119,33 @@ public class GrpcConnectionFactory {
     }
 
 
+    /**
+     * 从路由对应的连接池中选择正在进行调用最少的连接，连接池已经建立时不加锁；
+     * 连接池已经被回收时 select 返回 null，加锁后重新创建
+     */
     public static  ManagedChannel createManagedChannel(RouterInfo routerInfo) {
         if (routerInfo == null) {
             throw new NoRouterInfoException("no router info");
         }
+        String key = routerInfo.toKey();
+        GrpcChannelPool channelPool = channelPoolMap.get(key);
+        if (channelPool != null) {
+            ManagedChannel managedChannel = channelPool.select();
+            if (managedChannel != null) {
+                return managedChannel;
+            }
+        }
         ReentrantLock  lock = null;
         try {
-            lock = keyLockCache.get(routerInfo.toKey());
+            lock = keyLockCache.get(key);
             lock.lock();
-            if (managedChannelPool.get(routerInfo.toKey()) != null) {
-                ManagedChannel targetChannel = managedChannelPool.get(routerInfo.toKey());
-                if (!checkChannel(targetChannel)) {
-                    ManagedChannel managedChannel = createManagedChannel(routerInfo, buildDefaultGrpcChannelInfo());
-                    if (managedChannel != null) {
-                        managedChannelPool.put(routerInfo.toKey(), managedChannel);
-                    }
-                }
-                return managedChannelPool.get(routerInfo.toKey());
-            } else {
-                ManagedChannel managedChannel = createManagedChannel(routerInfo, buildDefaultGrpcChannelInfo());
-                if (managedChannel != null) {
-                    managedChannelPool.put(routerInfo.toKey(), managedChannel);
-                }
-                return managedChannel;
+            channelPool = channelPoolMap.get(key);
+            if (channelPool == null || channelPool.isEvicted()) {
+                channelPool = new GrpcChannelPool(routerInfo, buildDefaultGrpcChannelInfo(), MetaInfo.PROPERTY_GRPC_CLIENT_CHANNEL_POOL_SIZE);
+                channelPoolMap.put(key, channelPool);
             }
+            channelPool.fill();
+            return channelPool.select();
         } catch (ExecutionException e) {
             e.printStackTrace();
         } finally {
@@ -160,6 +156,16 @@ public class GrpcConnectionFactory {
         return  null;
     }
 
+    static PooledChannel createPooledChannel(RouterInfo routerInfo, GrpcChannelInfo channelInfo) {
+        PooledChannel pooledChannel = new PooledChannel();
+        ManagedChannel managedChannel = createManagedChannel(routerInfo, channelInfo, pooledChannel.getInterceptor());
+        if (managedChannel == null) {
+            return null;
+        }
+        pooledChannel.setChannel(managedChannel);
+        return pooledChannel;
+    }
+
 
     private static GrpcChannelInfo buildDefaultGrpcChannelInfo() {
         GrpcChannelInfo grpcChannelInfo = new GrpcChannelInfo();
@@ -176,7 +182,11 @@ public class GrpcConnectionFactory {
     }
 
 
-    public static synchronized ManagedChannel createManagedChannel(RouterInfo routerInfo, GrpcChannelInfo channelInfo) {
+    public static ManagedChannel createManagedChannel(RouterInfo routerInfo, GrpcChannelInfo channelInfo) {
+        return createManagedChannel(routerInfo, channelInfo, null);
+    }
+
+    private static ManagedChannel createManagedChannel(RouterInfo routerInfo, GrpcChannelInfo channelInfo, ClientInterceptor interceptor) {
         try {
             if (channelInfo == null) {
                 throw new SysException("grpc channel info is null");
@@ -194,6 +204,9 @@ public class GrpcConnectionFactory {
                     .retryBufferSize(channelInfo.getRetryBufferSize())
                     .intercept(ContextPrepareInterceptor.INTERCEPTOR)
                     .maxRetryAttempts(channelInfo.getMaxRetryAttemps());
+            if (interceptor != null) {
+                channelBuilder.intercept(interceptor);
+            }
 
             if (routerInfo.isUseSSL()) {
                 if (routerInfo.isUseKeyStore()) {
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.core.frame;
+
+import org.fedai.osx.core.datasource.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * grpc 服务端使用的有界线程池，替代 Executors.newCachedThreadPool()，避免突发的阻塞调用创建大量线程。
+ * <ul>
+ *     <li>pool：有界线程池，线程数未达到最大值时优先创建线程，达到最大值后进入有界队列</li>
+ *     <li>virtual：每个任务一个虚拟线程，只在 JDK 21 及以上可用，通过反射调用，编译目标仍为 java 8</li>
+ * </ul>
+ * 两种模式都限制排队加正在执行的任务总数，超过时抛出 RejectedExecutionException；
+ * 超过准入阈值时新的调用由 {@link ExecutorAdmissionInterceptor} 以 RESOURCE_EXHAUSTED 拒绝
+ */
+public class OsxServerExecutor implements Executor {
+
+    public static final String MODE_AUTO = "auto";
+    public static final String MODE_POOL = "pool";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private static final Logger logger = LoggerFactory.getLogger(OsxServerExecutor.class);
+    private static final MethodHandle NEW_VIRTUAL_THREAD_EXECUTOR;
+
+    static {
+        MethodHandle newVirtualThreadExecutor = null;
+        try {
+            newVirtualThreadExecutor = MethodHandles.publicLookup().findStatic(Executors.class,
+                    "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        } catch (Throwable ignore) {
+            // JDK 21 以下没有虚拟线程
+        }
+        NEW_VIRTUAL_THREAD_EXECUTOR = newVirtualThreadExecutor;
+    }
+
+    private final String name;
+    private final String mode;
+    private final int capacity;
+    private final int admissionThreshold;
+    private final ExecutorService delegate;
+    private final ThreadPoolExecutor threadPoolExecutor;
+    /**
+     * 已提交还没有执行完的任务数，包括排队和正在执行的任务
+     */
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicLong completedCount = new AtomicLong(0);
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+    private final AtomicLong admissionRejectedCount = new AtomicLong(0);
+    private final AtomicLong totalWaitNanos = new AtomicLong(0);
+    private final AtomicLong maxWaitNanos = new AtomicLong(0);
+    private ScheduledExecutorService reportExecutor;
+
+    /**
+     * @param mode             auto / pool / virtual，auto 在支持虚拟线程时使用 virtual，否则使用 pool
+     * @param admissionPercent 排队加正在执行的任务数达到容量的百分比后拒绝新的调用
+     */
+    public OsxServerExecutor(String name, String mode, int coreSize, int maxSize, int queueSize,
+                             long keepAliveTime, int admissionPercent) {
+        this.name = name;
+        int maxThreads = Math.max(maxSize, coreSize);
+        this.capacity = maxThreads + queueSize;
+        this.admissionThreshold = Math.max(1, (int) ((long) capacity * admissionPercent / 100));
+        String realMode = MODE_POOL;
+        if (MODE_VIRTUAL.equalsIgnoreCase(mode) || MODE_AUTO.equalsIgnoreCase(mode)) {
+            if (isVirtualThreadAvailable()) {
+                realMode = MODE_VIRTUAL;
+            } else if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+                logger.warn("virtual thread is not supported by current jvm {}, use thread pool instead",
+                        System.getProperty("java.version"));
+            }
+        }
+        ExecutorService executorService = null;
+        if (MODE_VIRTUAL.equals(realMode)) {
+            try {
+                executorService = (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invokeExact();
+            } catch (Throwable e) {
+                logger.warn("create virtual thread executor failed, use thread pool instead", e);
+                realMode = MODE_POOL;
+            }
+        }
+        if (executorService == null) {
+            TaskQueue taskQueue = new TaskQueue(queueSize);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(coreSize, maxThreads, keepAliveTime, TimeUnit.MILLISECONDS,
+                    taskQueue, new NamedThreadFactory(name), (r, executor) -> {
+                // 线程数已达到最大值，再尝试放入队列
+                if (executor.isShutdown() || !taskQueue.force(r)) {
+                    throw new RejectedExecutionException("executor " + this.name + " queue is full");
+                }
+            });
+            taskQueue.setExecutor(pool);
+            this.threadPoolExecutor = pool;
+            executorService = pool;
+        } else {
+            this.threadPoolExecutor = null;
+        }
+        this.mode = realMode;
+        this.delegate = executorService;
+        logger.info("create grpc server executor {}, mode {}, core {}, max {}, queue {}, admission threshold {}",
+                name, this.mode, coreSize, maxThreads, queueSize, admissionThreshold);
+    }
+
+    public static boolean isVirtualThreadAvailable() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("executor " + name + " is full, capacity " + capacity);
+        }
+        long submitTime = System.nanoTime();
+        try {
+            delegate.execute(() -> runTask(command, submitTime));
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private void runTask(Runnable command, long submitTime) {
+        long waitNanos = System.nanoTime() - submitTime;
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            // 更新最大等待时间
+        }
+        active.incrementAndGet();
+        try {
+            command.run();
+        } finally {
+            active.decrementAndGet();
+            pending.decrementAndGet();
+            completedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 排队加正在执行的任务数达到准入阈值，新的调用应该被拒绝，剩余的容量留给已经接受的调用
+     */
+    public boolean isOverloaded() {
+        return pending.get() >= admissionThreshold;
+    }
+
+    void recordAdmissionRejected() {
+        admissionRejectedCount.incrementAndGet();
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public int getQueueDepth() {
+        return Math.max(0, pending.get() - active.get());
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * pool 模式下为线程池中的线程数，virtual 模式下为正在执行的虚拟线程数
+     */
+    public int getThreadCount() {
+        return threadPoolExecutor != null ? threadPoolExecutor.getPoolSize() : active.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getAdmissionRejectedCount() {
+        return admissionRejectedCount.get();
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.get();
+    }
+
+    /**
+     * 上次调用之后的最大排队等待时间，调用后重置
+     */
+    public long getAndResetMaxWaitNanos() {
+        return maxWaitNanos.getAndSet(0);
+    }
+
+    /**
+     * 定时打印队列长度、活跃线程数和排队等待时间
+     */
+    public synchronized void startReport(long intervalMs) {
+        if (reportExecutor != null || intervalMs <= 0) {
+            return;
+        }
+        reportExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name + "-report", true));
+        reportExecutor.scheduleWithFixedDelay(new Runnable() {
+            long lastCompleted = 0;
+            long lastWaitNanos = 0;
+
+            @Override
+            public void run() {
+                long completed = completedCount.get();
+                long waitNanos = totalWaitNanos.get();
+                long count = completed - lastCompleted;
+                long avgWaitMicros = count > 0 ? (waitNanos - lastWaitNanos) / count / 1000 : 0;
+                lastCompleted = completed;
+                lastWaitNanos = waitNanos;
+                logger.info("grpc server executor {} : mode {}, threads {}, active {}, queue {}, completed {}, rejected {}, "
+                                + "admission rejected {}, avg wait {}us, max wait {}us",
+                        name, mode, getThreadCount(), getActiveCount(), getQueueDepth(), count, rejectedCount.get(),
+                        admissionRejectedCount.get(), avgWaitMicros, getAndResetMaxWaitNanos() / 1000);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (reportExecutor != null) {
+            reportExecutor.shutdown();
+            reportExecutor = null;
+        }
+        delegate.shutdown();
+    }
+
+    /**
+     * 线程数没有达到最大值并且没有空闲线程时拒绝入队，使线程池先创建线程，达到最大值后再排队
+     */
+    private class TaskQueue extends LinkedBlockingQueue<Runnable> {
+
+        private transient volatile ThreadPoolExecutor executor;
+
+        TaskQueue(int capacity) {
+            super(Math.max(capacity, 1));
+        }
+
+        void setExecutor(ThreadPoolExecutor executor) {
+            this.executor = executor;
+        }
+
+        boolean force(Runnable runnable) {
+            return super.offer(runnable);
+        }
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            ThreadPoolExecutor current = executor;
+            if (current != null) {
+                int poolSize = current.getPoolSize();
+                // pending 包含当前任务，大于线程数说明没有空闲线程
+                if (poolSize < current.getMaximumPoolSize() && pending.get() > poolSize) {
+                    return false;
+                }
+            }
+            return super.offer(runnable);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 The FATE Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fedai.osx.core.frame;
+
+import io.grpc.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接池中的一个连接，通过拦截器统计正在进行的调用数和失败次数
+ */
+public class PooledChannel {
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong totalCalls = new AtomicLong(0);
+    private final AtomicLong failedCalls = new AtomicLong(0);
+    private final long createTimestamp = System.currentTimeMillis();
+    private final ClientInterceptor interceptor = new CountingInterceptor();
+    private ManagedChannel channel;
+    private volatile boolean healthy = true;
+
+    public ManagedChannel getChannel() {
+        return channel;
+    }
+
+    void setChannel(ManagedChannel channel) {
+        this.channel = channel;
+    }
+
+    ClientInterceptor getInterceptor() {
+        return interceptor;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getTotalCalls() {
+        return totalCalls.get();
+    }
+
+    public long getFailedCalls() {
+        return failedCalls.get();
+    }
+
+    public long getCreateTimestamp() {
+        return createTimestamp;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    /**
+     * 连接已经关闭或者处于 TRANSIENT_FAILURE 时返回 false，不会触发建立连接
+     */
+    boolean checkState() {
+        if (channel.isShutdown() || channel.isTerminated()) {
+            return false;
+        }
+        ConnectivityState state = channel.getState(false);
+        return state != ConnectivityState.SHUTDOWN && state != ConnectivityState.TRANSIENT_FAILURE;
+    }
+
+    @Override
+    public String toString() {
+        return "{inFlight=" + inFlight.get() + ", total=" + totalCalls.get() + ", failed=" + failedCalls.get()
+                + ", state=" + (channel != null ? channel.getState(false) : null) + "}";
+    }
+
+    private class CountingInterceptor implements ClientInterceptor {
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+            return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    inFlight.incrementAndGet();
+                    totalCalls.incrementAndGet();
+                    try {
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                inFlight.decrementAndGet();
+                                if (!status.isOk()) {
+                                    failedCalls.incrementAndGet();
+                                }
+                                super.onClose(status, trailers);
+                            }
+                        }, headers);
+                    } catch (RuntimeException e) {
+                        inFlight.decrementAndGet();
+                        failedCalls.incrementAndGet();
+                        throw e;
+                    }
+                }
+            };
+        }
+    }
+}